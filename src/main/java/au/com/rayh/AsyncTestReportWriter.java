@@ -0,0 +1,214 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011 Ray Yamamoto Hilton
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package au.com.rayh;
+
+import hudson.FilePath;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes JUnit report files to the workspace on a background thread, so that the thread pumping xcodebuild output
+ * never waits on the remoting channel.
+ * Reports are handed over as already marshalled bytes through a bounded queue. When the queue is full the caller
+ * waits for a free slot, which caps the memory held by pending reports.
+ * {@link #close()} is the barrier that waits until every queued report has been written.
+ */
+public class AsyncTestReportWriter {
+    static final int DEFAULT_QUEUE_CAPACITY = 64;
+    private static final PendingReport CLOSE = new PendingReport(null, null);
+    // How often a caller waiting for a free slot checks that the writer thread is still running.
+    private static final long ALIVE_CHECK_MILLIS = 100;
+
+    private final BlockingQueue<PendingReport> queue;
+    private Thread writerThread;
+    private volatile Throwable failure;
+    private volatile int maxQueueDepth;
+    private volatile long reportsWritten;
+    private volatile long totalWriteNanos;
+    private volatile long maxWriteNanos;
+
+    public AsyncTestReportWriter() {
+        this(DEFAULT_QUEUE_CAPACITY);
+    }
+
+    public AsyncTestReportWriter(int queueCapacity) {
+        this.queue = new ArrayBlockingQueue<PendingReport>(queueCapacity);
+    }
+
+    private static class PendingReport {
+        final FilePath target;
+        final byte[] content;
+
+        PendingReport(FilePath target, byte[] content) {
+            this.target = target;
+            this.content = content;
+        }
+    }
+
+    /**
+     * Queue a report to be written. Blocks only while the queue is full.
+     * @param target the report file to create
+     * @param content the complete report
+     * @throws IOException if an earlier report could not be written or the writer thread has stopped
+     */
+    public synchronized void submit(FilePath target, byte[] content) throws IOException, InterruptedException {
+        rethrowFailure();
+        if ( writerThread == null ) {
+            writerThread = new Thread(new Runnable() {
+                public void run() {
+                    drain();
+                }
+            }, "Xcode test report writer");
+            writerThread.setDaemon(true);
+            writerThread.start();
+        }
+        enqueue(new PendingReport(target, content));
+        int depth = queue.size();
+        if ( depth > maxQueueDepth ) {
+            maxQueueDepth = depth;
+        }
+    }
+
+    /**
+     * Wait until every queued report has been written and stop the background thread.
+     * @throws IOException if any report could not be written
+     */
+    public synchronized void close() throws IOException, InterruptedException {
+        if ( writerThread != null ) {
+            try {
+                enqueue(CLOSE);
+                writerThread.join();
+            }
+            catch ( InterruptedException ex ) {
+                writerThread.interrupt();
+                throw ex;
+            }
+            writerThread = null;
+        }
+        rethrowFailure();
+    }
+
+    private void drain() {
+        try {
+            while ( true ) {
+                PendingReport report = queue.take();
+                if ( report == CLOSE ) {
+                    return;
+                }
+                if ( failure != null ) {
+                    // Keep taking reports so that the producer is never blocked, the failure is reported on close.
+                    continue;
+                }
+                long start = System.nanoTime();
+                try (OutputStream out = report.target.write()) {
+                    out.write(report.content);
+                }
+                catch ( IOException | InterruptedException | RuntimeException ex ) {
+                    failure = ex;
+                    continue;
+                }
+                long elapsed = System.nanoTime() - start;
+                reportsWritten++;
+                totalWriteNanos += elapsed;
+                if ( elapsed > maxWriteNanos ) {
+                    maxWriteNanos = elapsed;
+                }
+            }
+        }
+        catch ( InterruptedException ex ) {
+            // Aborted while waiting for the next report.
+        }
+        catch ( Error ex ) {
+            // The thread dies, callers find out through enqueue().
+            failure = ex;
+            throw ex;
+        }
+    }
+
+    /**
+     * Put a report in the queue, failing instead of waiting forever when the writer thread is no longer running.
+     */
+    private void enqueue(PendingReport report) throws IOException, InterruptedException {
+        while ( true ) {
+            if ( !writerThread.isAlive() ) {
+                rethrowFailure();
+                throw new IOException("The test report writer has stopped");
+            }
+            if ( queue.offer(report, ALIVE_CHECK_MILLIS, TimeUnit.MILLISECONDS) ) {
+                return;
+            }
+        }
+    }
+
+    private void rethrowFailure() throws IOException, InterruptedException {
+        Throwable ex = failure;
+        if ( ex instanceof InterruptedException ) {
+            throw (InterruptedException)ex;
+        }
+        else if ( ex != null ) {
+            throw new IOException("Failed to write test report", ex);
+        }
+    }
+
+    /**
+     * @return the number of reports currently waiting to be written
+     */
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * @return the largest number of reports that were waiting at the same time
+     */
+    public int getMaxQueueDepth() {
+        return maxQueueDepth;
+    }
+
+    /**
+     * @return the number of reports written so far
+     */
+    public long getReportsWritten() {
+        return reportsWritten;
+    }
+
+    /**
+     * @return the average time taken to write one report, in milliseconds
+     */
+    public long getAverageWriteMillis() {
+        long count = reportsWritten;
+        return count == 0 ? 0 : totalWriteNanos / count / 1000000;
+    }
+
+    /**
+     * @return the longest time taken to write one report, in milliseconds
+     */
+    public long getMaxWriteMillis() {
+        return maxWriteNanos / 1000000;
+    }
+}
@@ -0,0 +1,298 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011 Ray Yamamoto Hilton
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package au.com.rayh;
+
+import com.dd.plist.NSArray;
+import com.dd.plist.NSData;
+import com.dd.plist.NSDate;
+import com.dd.plist.NSDictionary;
+import com.dd.plist.NSNumber;
+import com.dd.plist.NSObject;
+import com.dd.plist.NSString;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Streams a binary property list ("bplist00").
+ * The file is memory mapped and objects are looked up through the offset table only when they are reached,
+ * so neither the offset table nor the objects are loaded up front.
+ */
+class BinaryPlistStreamReader extends PlistStreamReader {
+    // Seconds between 1970-01-01 and 2001-01-01, the epoch of binary property list dates.
+    private static final long EPOCH_OFFSET = 978307200L;
+    // Deeper nesting than this can only come from a reference cycle.
+    private static final int MAX_DEPTH = 512;
+    private static final int TRAILER_SIZE = 32;
+
+    private final File file;
+    private final boolean deleteOnClose;
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private final int offsetSize;
+    private final int refSize;
+    private final long objectCount;
+    private final long topObject;
+    private final long offsetTableOffset;
+
+    BinaryPlistStreamReader(File file, boolean deleteOnClose, Set<String> streamedKeys, Set<String> skippedKeys) throws IOException {
+	super(streamedKeys, skippedKeys);
+	this.file = file;
+	this.deleteOnClose = deleteOnClose;
+	channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+	try {
+	    long size = channel.size();
+	    if ( size < TRAILER_SIZE + 8 || size > Integer.MAX_VALUE ) {
+		throw new IOException("Unsupported binary property list size: " + size);
+	    }
+	    buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+	    int trailer = (int)size - TRAILER_SIZE;
+	    offsetSize = buffer.get(trailer + 6) & 0xff;
+	    refSize = buffer.get(trailer + 7) & 0xff;
+	    objectCount = buffer.getLong(trailer + 8);
+	    topObject = buffer.getLong(trailer + 16);
+	    offsetTableOffset = buffer.getLong(trailer + 24);
+	    if ( offsetSize < 1 || offsetSize > 8 || refSize < 1 || refSize > 8 || topObject < 0 || topObject >= objectCount
+		    || offsetTableOffset < 8 || offsetTableOffset + objectCount * offsetSize > trailer ) {
+		throw new IOException("Corrupt binary property list trailer");
+	    }
+	}
+	catch ( IOException e ) {
+	    close();
+	    throw e;
+	}
+    }
+
+    @Override
+    public void read(Handler handler) throws IOException, InterruptedException {
+	if ( type(topObject) == 0xd ) {
+	    streamDictionary(topObject, handler, 0);
+	}
+    }
+
+    @Override
+    public void close() throws IOException {
+	channel.close();
+	if ( deleteOnClose ) {
+	    Files.deleteIfExists(file.toPath());
+	}
+    }
+
+    private void streamDictionary(long ref, Handler handler, int depth) throws IOException, InterruptedException {
+	checkDepth(depth);
+	handler.startDictionary();
+	int offset = offsetOf(ref);
+	int[] count = length(offset);
+	int keys = count[1];
+	int values = keys + count[0] * refSize;
+	NSDictionary properties = new NSDictionary();
+	for ( int i = 0; i < count[0]; i++ ) {
+	    String key = readKey(readUnsigned(keys + i * refSize, refSize), depth + 1);
+	    long valueRef = readUnsigned(values + i * refSize, refSize);
+	    if ( skippedKeys.contains(key) ) {
+		continue;
+	    }
+	    if ( streamedKeys.contains(key) && type(valueRef) == 0xa ) {
+		int elementsOffset = offsetOf(valueRef);
+		int[] elements = length(elementsOffset);
+		for ( int j = 0; j < elements[0]; j++ ) {
+		    long elementRef = readUnsigned(elements[1] + j * refSize, refSize);
+		    if ( type(elementRef) == 0xd ) {
+			streamDictionary(elementRef, handler, depth + 2);
+		    }
+		}
+		properties.put(key, new NSArray(0));
+	    }
+	    else {
+		NSObject value = readObject(valueRef, depth + 1);
+		if ( value != null ) {
+		    properties.put(key, value);
+		}
+	    }
+	}
+	handler.endDictionary(properties);
+    }
+
+    private NSObject readObject(long ref, int depth) throws IOException {
+	checkDepth(depth);
+	int offset = offsetOf(ref);
+	int marker = buffer.get(offset) & 0xff;
+	int info = marker & 0xf;
+	switch ( marker >> 4 ) {
+	case 0x0:
+	    if ( info == 0x8 || info == 0x9 ) {
+		return new NSNumber(info == 0x9);
+	    }
+	    return null;
+	case 0x1:
+	    return new NSNumber(readInteger(offset + 1, 1 << info));
+	case 0x2:
+	    if ( info == 2 ) {
+		return new NSNumber(Float.intBitsToFloat(buffer.getInt(offset + 1)));
+	    }
+	    return new NSNumber(buffer.getDouble(offset + 1));
+	case 0x3:
+	    double seconds = buffer.getDouble(offset + 1);
+	    return new NSDate(new Date((long)((seconds + EPOCH_OFFSET) * 1000)));
+	case 0x4: {
+	    int[] length = length(offset);
+	    return new NSData(bytes(length[1], length[0]));
+	}
+	case 0x5: {
+	    int[] length = length(offset);
+	    return new NSString(string(length[1], length[0], StandardCharsets.US_ASCII));
+	}
+	case 0x6: {
+	    int[] length = length(offset);
+	    return new NSString(string(length[1], length[0] * 2, StandardCharsets.UTF_16BE));
+	}
+	case 0x7: {
+	    int[] length = length(offset);
+	    return new NSString(string(length[1], length[0], StandardCharsets.UTF_8));
+	}
+	case 0xa:
+	case 0xc: {
+	    int[] length = length(offset);
+	    List<NSObject> objects = new ArrayList<NSObject>(length[0]);
+	    for ( int i = 0; i < length[0]; i++ ) {
+		NSObject value = readObject(readUnsigned(length[1] + i * refSize, refSize), depth + 1);
+		if ( value != null ) {
+		    objects.add(value);
+		}
+	    }
+	    return new NSArray(objects.toArray(new NSObject[objects.size()]));
+	}
+	case 0xd: {
+	    int[] length = length(offset);
+	    int values = length[1] + length[0] * refSize;
+	    NSDictionary dictionary = new NSDictionary();
+	    for ( int i = 0; i < length[0]; i++ ) {
+		String key = readKey(readUnsigned(length[1] + i * refSize, refSize), depth + 1);
+		NSObject value = readObject(readUnsigned(values + i * refSize, refSize), depth + 1);
+		if ( value != null ) {
+		    dictionary.put(key, value);
+		}
+	    }
+	    return dictionary;
+	}
+	default:
+	    // UIDs and reserved types do not occur in the property lists written by Xcode.
+	    return null;
+	}
+    }
+
+    private String readKey(long ref, int depth) throws IOException {
+	NSObject key = readObject(ref, depth);
+	if ( !(key instanceof NSString) ) {
+	    throw new IOException("Dictionary key is not a string: " + ref);
+	}
+	return key.toString();
+    }
+
+    private int type(long ref) throws IOException {
+	return (buffer.get(offsetOf(ref)) & 0xff) >> 4;
+    }
+
+    private int offsetOf(long ref) throws IOException {
+	if ( ref < 0 || ref >= objectCount ) {
+	    throw new IOException("Object reference out of range: " + ref);
+	}
+	long offset = readUnsigned((int)(offsetTableOffset + ref * offsetSize), offsetSize);
+	if ( offset < 8 || offset >= offsetTableOffset ) {
+	    throw new IOException("Object offset out of range: " + offset);
+	}
+	return (int)offset;
+    }
+
+    /**
+     * @return the number of elements of the object at the offset and the offset of its first element
+     */
+    private int[] length(int offset) throws IOException {
+	int info = buffer.get(offset) & 0xf;
+	if ( info != 0xf ) {
+	    return new int[] { info, offset + 1 };
+	}
+	int marker = buffer.get(offset + 1) & 0xff;
+	if ( marker >> 4 != 0x1 ) {
+	    throw new IOException("Invalid length at offset " + offset);
+	}
+	int size = 1 << (marker & 0xf);
+	long length = readInteger(offset + 2, size);
+	if ( length < 0 || length > Integer.MAX_VALUE ) {
+	    throw new IOException("Invalid length at offset " + offset);
+	}
+	return new int[] { (int)length, offset + 2 + size };
+    }
+
+    private long readInteger(int offset, int size) {
+	switch ( size ) {
+	case 1:
+	    return buffer.get(offset) & 0xffL;
+	case 2:
+	    return buffer.getShort(offset) & 0xffffL;
+	case 4:
+	    return buffer.getInt(offset) & 0xffffffffL;
+	case 16:
+	    return buffer.getLong(offset + 8);
+	default:
+	    return buffer.getLong(offset);
+	}
+    }
+
+    private long readUnsigned(int offset, int size) {
+	long value = 0;
+	for ( int i = 0; i < size; i++ ) {
+	    value = (value << 8) | (buffer.get(offset + i) & 0xff);
+	}
+	return value;
+    }
+
+    private byte[] bytes(int offset, int length) {
+	byte[] bytes = new byte[length];
+	ByteBuffer slice = buffer.duplicate();
+	slice.position(offset);
+	slice.get(bytes);
+	return bytes;
+    }
+
+    private String string(int offset, int length, Charset charset) {
+	return new String(bytes(offset, length), charset);
+    }
+
+    private static void checkDepth(int depth) throws IOException {
+	if ( depth > MAX_DEPTH ) {
+	    throw new IOException("Property list nested too deeply");
+	}
+    }
+}
@@ -1,5 +1,13 @@
 package au.com.rayh;
 
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
 import com.dd.plist.NSDictionary; 
 import com.dd.plist.NSArray;
 import com.dd.plist.NSNumber;
@@ -8,7 +16,10 @@ import com.dd.plist.NSString;
 import com.dd.plist.PropertyListFormatException; 
 import com.dd.plist.PropertyListParser; 
 
-public class BuildConfiguration {
+public class BuildConfiguration implements Serializable {
+  private static final long serialVersionUID = 1L;
+  private static final Logger LOGGER = Logger.getLogger(BuildConfiguration.class.getName());
+
   public String uuid;
   public String name;
   public String bundleIdentifier;
@@ -18,18 +29,33 @@ public class BuildConfiguration {
   public String provisioningProfileUUID;
   public String provisioningProfileSpecifier;
   public String productName;
+  // Every setting of the configuration, array values separated by spaces.
+  public Map<String, String> buildSettings = new HashMap<String, String>();
+  // xcconfig file the configuration is based on, relative to the directory of the project file.
+  public String baseConfigurationFile;
 
-  BuildConfiguration(NSDictionary objectsDict, String buildConfigurationUUID, Boolean automatic) {
-    NSDictionary buildConfigurationDict = ((NSDictionary)objectsDict.objectForKey(buildConfigurationUUID.toString()));
+  BuildConfiguration(NSDictionary buildConfigurationDict, String buildConfigurationUUID, Boolean automatic) {
     //String baseConfigurationReference = buildConfigurationDict.objectForKey("baseConfigurationReference").toString();
     this.uuid = buildConfigurationUUID.toString();
     this.name = buildConfigurationDict.objectForKey("name").toString();
-    System.out.println("buildConfigurationUUID: " + this.uuid);
     NSDictionary buildSettingsDict = ((NSDictionary)buildConfigurationDict.objectForKey("buildSettings"));
     if ( buildSettingsDict == null ) {
-      System.out.println("buildSettings not exists!");
+      LOGGER.fine("Build configuration " + this.uuid + " has no build settings");
       return;
     }
+    for ( String key : buildSettingsDict.allKeys() ) {
+      NSObject value = buildSettingsDict.objectForKey(key);
+      if ( value instanceof NSArray ) {
+        List<String> values = new ArrayList<String>();
+        for ( NSObject element : ((NSArray)value).getArray() ) {
+          values.add(element.toString());
+        }
+        this.buildSettings.put(key, String.join(" ", values));
+      }
+      else if ( value != null ) {
+        this.buildSettings.put(key, value.toString());
+      }
+    }
     // LastUpgradeCheck = 0630, CreatedOnToolsVersion = 6.3.1
     if ( buildSettingsDict.objectForKey("PRODUCT_BUNDLE_IDENTIFIER") != null ) {
 
@@ -38,17 +64,22 @@ public class BuildConfiguration {
     else if ( buildSettingsDict.objectForKey("PRODUCT_NAME") != null ) {
         this.productName = buildSettingsDict.objectForKey("PRODUCT_NAME").toString();
     }
-    this.infoPlistFile = buildSettingsDict.objectForKey("INFOPLIST_FILE").toString();
+    // Settings that are missing here may be set by the xcconfig file.
+    this.infoPlistFile = this.buildSettings.get("INFOPLIST_FILE");
     //this.codeSignStyle = buildSettingsDict.objectForKey("CODE_SIGN_STYLE").toString();
     if ( buildSettingsDict.objectForKey("BUNDLE_LOADER") == null && buildSettingsDict.objectForKey("TEST_TARGET_NAME") == null && buildSettingsDict.objectForKey("DEVELOPMENT_TEAM") != null ) {
 	this.developmentTeamId = buildSettingsDict.objectForKey("DEVELOPMENT_TEAM").toString();
     }
     if ( !automatic ) {
-      this.provisioningProfileUUID = buildSettingsDict.objectForKey("PROVISIONING_PROFILE").toString();
-      this.provisioningProfileSpecifier = buildSettingsDict.objectForKey("PROVISIONING_PROFILE_SPECIFIER").toString();
+      this.provisioningProfileUUID = this.buildSettings.get("PROVISIONING_PROFILE");
+      this.provisioningProfileSpecifier = this.buildSettings.get("PROVISIONING_PROFILE_SPECIFIER");
     }
     //else {
     //  this.codeSignStyle = "Automatic";
     //}
   }
+
+  void makeUnmodifiable() {
+    buildSettings = Collections.unmodifiableMap(buildSettings);
+  }
 }
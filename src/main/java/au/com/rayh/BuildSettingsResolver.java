@@ -0,0 +1,326 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011 Ray Yamamoto Hilton
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package au.com.rayh;
+
+import hudson.FilePath;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Resolves the build settings of the targets of a project like Xcode does, without running
+ * "xcodebuild -showBuildSettings".
+ * Settings are layered, lowest first: built-in settings, the xcconfig file of the project configuration and its
+ * includes, the project configuration, the xcconfig file of the target configuration and the target configuration.
+ * References such as $(VAR), ${VAR}, $(inherited) and $(VAR:modifier) are expanded, and resolved values are kept
+ * by target and configuration.
+ * Conditional settings, such as CODE_SIGN_IDENTITY[sdk=iphoneos*], are not applied.
+ */
+public class BuildSettingsResolver {
+    private final FilePath projectLocation;
+    private final XcodeProject project;
+    // Settings of the xcconfig files, with the settings of their includes, by the remote path of the file.
+    private final Map<String, List<String[]>> xcconfigs = new HashMap<String, List<String[]>>();
+    // Settings by target and configuration.
+    private final Map<String, Settings> settings = new HashMap<String, Settings>();
+
+    private static class Settings {
+	// Values of each setting, from the lowest layer to the highest.
+	final Map<String, List<String>> definitions = new HashMap<String, List<String>>();
+	// Expanded value of the highest layer.
+	final Map<String, String> values = new HashMap<String, String>();
+	final Set<String> resolving = new HashSet<String>();
+
+	void define(String name, String value) {
+	    if ( name.indexOf('[') >= 0 ) {
+		return;
+	    }
+	    List<String> values = definitions.get(name);
+	    if ( values == null ) {
+		values = new ArrayList<String>();
+		definitions.put(name, values);
+	    }
+	    values.add(value);
+	}
+    }
+
+    /**
+     * @param projectLocation Xcode project file location (directory)
+     * @param project the parsed project
+     */
+    public BuildSettingsResolver(FilePath projectLocation, XcodeProject project) {
+	this.projectLocation = projectLocation;
+	this.project = project;
+    }
+
+    /**
+     * @param targetName name of the target, or null for the settings of the project
+     * @param configurationName name of the build configuration
+     * @param setting name of the setting
+     * @return the expanded value, empty when the setting is not defined
+     */
+    public String resolve(String targetName, String configurationName, String setting) throws IOException, InterruptedException {
+	return resolve(getSettings(targetName, configurationName), setting);
+    }
+
+    /**
+     * Expands the references to settings in a value, e.g. in an Info.plist.
+     * @param targetName name of the target, or null for the settings of the project
+     * @param configurationName name of the build configuration
+     * @param value text with references to settings
+     * @return the expanded value
+     */
+    public String expand(String targetName, String configurationName, String value) throws IOException, InterruptedException {
+	return value == null ? null : expand(getSettings(targetName, configurationName), value, null, -1);
+    }
+
+    private Settings getSettings(String targetName, String configurationName) throws IOException, InterruptedException {
+	String key = targetName + "/" + configurationName;
+	Settings targetSettings = settings.get(key);
+	if ( targetSettings != null ) {
+	    return targetSettings;
+	}
+	targetSettings = new Settings();
+	String sourceRoot = projectLocation.getParent().getRemote();
+	targetSettings.define("PROJECT_NAME", projectLocation.getBaseName());
+	targetSettings.define("PROJECT_FILE_PATH", projectLocation.getRemote());
+	targetSettings.define("SRCROOT", sourceRoot);
+	targetSettings.define("SOURCE_ROOT", sourceRoot);
+	targetSettings.define("PROJECT_DIR", sourceRoot);
+	targetSettings.define("CONFIGURATION", configurationName);
+	if ( targetName != null ) {
+	    targetSettings.define("TARGET_NAME", targetName);
+	}
+	define(targetSettings, project.buildConfiguration.get(configurationName));
+	ProjectTarget target = targetName == null ? null : project.targets.get(targetName);
+	if ( target != null ) {
+	    define(targetSettings, target.buildConfiguration.get(configurationName));
+	}
+	settings.put(key, targetSettings);
+	return targetSettings;
+    }
+
+    private void define(Settings targetSettings, BuildConfiguration buildConfiguration) throws IOException, InterruptedException {
+	if ( buildConfiguration == null ) {
+	    return;
+	}
+	if ( buildConfiguration.baseConfigurationFile != null ) {
+	    for ( String[] setting : readXcconfig(projectLocation.getParent().child(buildConfiguration.baseConfigurationFile), new HashSet<String>()) ) {
+		targetSettings.define(setting[0], setting[1]);
+	    }
+	}
+	for ( Map.Entry<String, String> setting : buildConfiguration.buildSettings.entrySet() ) {
+	    targetSettings.define(setting.getKey(), setting.getValue());
+	}
+    }
+
+    /**
+     * Reads the settings of an xcconfig file, in order, with the settings of the files it includes where they are
+     * included. Missing files have no settings.
+     */
+    private List<String[]> readXcconfig(FilePath file, Set<String> including) throws IOException, InterruptedException {
+	String path = file.getRemote();
+	List<String[]> xcconfig = xcconfigs.get(path);
+	if ( xcconfig != null ) {
+	    return xcconfig;
+	}
+	xcconfig = new ArrayList<String[]>();
+	if ( !including.add(path) ) {
+	    // Included from itself.
+	    return xcconfig;
+	}
+	if ( file.exists() ) {
+	    for ( String line : file.readToString().split("\r?\n") ) {
+		int comment = line.indexOf("//");
+		if ( comment >= 0 ) {
+		    line = line.substring(0, comment);
+		}
+		line = line.trim();
+		if ( line.startsWith("#include") ) {
+		    // Also "#include?", for files that may not exist.
+		    int start = line.indexOf('"');
+		    int end = line.lastIndexOf('"');
+		    if ( start >= 0 && end > start ) {
+			xcconfig.addAll(readXcconfig(file.getParent().child(line.substring(start + 1, end)), including));
+		    }
+		    continue;
+		}
+		int equals = line.indexOf('=');
+		if ( equals <= 0 ) {
+		    continue;
+		}
+		String value = line.substring(equals + 1).trim();
+		if ( value.endsWith(";") ) {
+		    value = value.substring(0, value.length() - 1).trim();
+		}
+		xcconfig.add(new String[] { line.substring(0, equals).trim(), value });
+	    }
+	}
+	including.remove(path);
+	xcconfigs.put(path, xcconfig);
+	return xcconfig;
+    }
+
+    private String resolve(Settings targetSettings, String name) {
+	String value = targetSettings.values.get(name);
+	if ( value != null ) {
+	    return value;
+	}
+	if ( !targetSettings.resolving.add(name) ) {
+	    // The setting refers to itself.
+	    return "";
+	}
+	List<String> definitions = targetSettings.definitions.get(name);
+	value = definitions == null ? "" : expand(targetSettings, definitions.get(definitions.size() - 1), name, definitions.size() - 1);
+	targetSettings.resolving.remove(name);
+	targetSettings.values.put(name, value);
+	return value;
+    }
+
+    /**
+     * @param name setting the value is defined for, or null
+     * @param layer layer of the definition, $(inherited) refers to the layers below it
+     */
+    private String expand(Settings targetSettings, String value, String name, int layer) {
+	if ( value.indexOf('$') < 0 ) {
+	    return value;
+	}
+	StringBuilder expanded = new StringBuilder();
+	int i = 0;
+	while ( i < value.length() ) {
+	    char c = value.charAt(i);
+	    int end = -1;
+	    if ( c == '$' && i + 1 < value.length() && (value.charAt(i + 1) == '(' || value.charAt(i + 1) == '{') ) {
+		int depth = 0;
+		for ( int j = i + 1; j < value.length() && end < 0; j++ ) {
+		    char d = value.charAt(j);
+		    if ( d == '(' || d == '{' ) {
+			depth++;
+		    }
+		    else if ( (d == ')' || d == '}') && --depth == 0 ) {
+			end = j;
+		    }
+		}
+	    }
+	    if ( end < 0 ) {
+		expanded.append(c);
+		i++;
+		continue;
+	    }
+	    expanded.append(expandReference(targetSettings, value.substring(i + 2, end), name, layer));
+	    i = end + 1;
+	}
+	return expanded.toString();
+    }
+
+    private String expandReference(Settings targetSettings, String reference, String name, int layer) {
+	List<String> parts = splitReference(reference);
+	String referenceName = expand(targetSettings, parts.get(0), name, layer);
+	String value;
+	if ( referenceName.equals("inherited") ) {
+	    List<String> definitions = name == null ? null : targetSettings.definitions.get(name);
+	    value = definitions == null || layer <= 0 ? "" : expand(targetSettings, definitions.get(layer - 1), name, layer - 1);
+	}
+	else {
+	    value = resolve(targetSettings, referenceName);
+	}
+	for ( String modifier : parts.subList(1, parts.size()) ) {
+	    if ( modifier.startsWith("default=") ) {
+		if ( value.isEmpty() ) {
+		    value = expand(targetSettings, modifier.substring("default=".length()), name, layer);
+		}
+	    }
+	    else {
+		value = applyModifier(value, modifier);
+	    }
+	}
+	return value;
+    }
+
+    /**
+     * Splits a reference into the name and modifiers, at the colons outside of nested references.
+     * A default value runs to the end of the reference.
+     */
+    static List<String> splitReference(String reference) {
+	List<String> parts = new ArrayList<String>();
+	int depth = 0;
+	int start = 0;
+	for ( int i = 0; i < reference.length(); i++ ) {
+	    char c = reference.charAt(i);
+	    if ( c == '(' || c == '{' ) {
+		depth++;
+	    }
+	    else if ( c == ')' || c == '}' ) {
+		depth--;
+	    }
+	    else if ( c == ':' && depth == 0 ) {
+		parts.add(reference.substring(start, i));
+		start = i + 1;
+		if ( reference.startsWith("default=", start) ) {
+		    break;
+		}
+	    }
+	}
+	parts.add(reference.substring(start));
+	return parts;
+    }
+
+    static String applyModifier(String value, String modifier) {
+	String file = value.substring(value.lastIndexOf('/') + 1);
+	switch ( modifier ) {
+	case "lower":
+	    return value.toLowerCase(Locale.ENGLISH);
+	case "upper":
+	    return value.toUpperCase(Locale.ENGLISH);
+	case "identifier":
+	case "c99extidentifier":
+	    String identifier = value.replaceAll("[^A-Za-z0-9_]", "_");
+	    return !identifier.isEmpty() && Character.isDigit(identifier.charAt(0)) ? "_" + identifier : identifier;
+	case "rfc1034identifier":
+	    return value.replaceAll("[^A-Za-z0-9.-]", "-");
+	case "file":
+	    return file;
+	case "base":
+	    return file.lastIndexOf('.') > 0 ? file.substring(0, file.lastIndexOf('.')) : file;
+	case "suffix":
+	    return file.lastIndexOf('.') > 0 ? file.substring(file.lastIndexOf('.')) : "";
+	case "dir":
+	    return value.lastIndexOf('/') >= 0 ? value.substring(0, value.lastIndexOf('/')) : "";
+	case "standardizepath":
+	    return XcodeProjectParser.normalizePath("", value);
+	case "quote":
+	    return value.replaceAll("([\\\\\"' ])", "\\\\$1");
+	default:
+	    // Modifiers that only apply to other platforms or tools are ignored.
+	    return value;
+	}
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011 Ray Yamamoto Hilton
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package au.com.rayh;
+
+import java.io.PrintStream;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Shows a condensed xcodebuild output on the console: target headers, one summary line per build phase,
+ * warnings, errors and test results. The last raw lines are kept in a ring buffer so they can be printed
+ * when the build fails.
+ */
+public class CondensedConsoleLog {
+    public static final int DEFAULT_TAIL_LINES = 5000;
+
+    // Build commands start at the beginning of the line, e.g. "CompileC /path/File.o File.m normal arm64 ..."
+    private static final Pattern BUILD_COMMAND = Pattern.compile("([A-Z][A-Za-z0-9]+) \\S.*");
+
+    private final PrintStream console;
+    private final String[] tail;
+    private int tailStart = 0;
+    private int tailSize = 0;
+    private String phase = null;
+    private int phaseSteps = 0;
+
+    public CondensedConsoleLog(PrintStream console, int tailLines) {
+        this.console = console;
+        this.tail = new String[tailLines];
+    }
+
+    public void handleLine(String line) {
+        if ( tail.length > 0 ) {
+            tail[(tailStart + tailSize) % tail.length] = line;
+            if ( tailSize < tail.length ) {
+                tailSize++;
+            }
+            else {
+                tailStart = (tailStart + 1) % tail.length;
+            }
+        }
+        if ( isShown(line) ) {
+            flushPhase();
+            console.println(line);
+            return;
+        }
+        Matcher m = BUILD_COMMAND.matcher(line);
+        if ( m.matches() ) {
+            String command = m.group(1);
+            if ( !command.equals(phase) ) {
+                flushPhase();
+                phase = command;
+            }
+            phaseSteps++;
+        }
+    }
+
+    private static boolean isShown(String line) {
+        return XCodeBuildOutputParser.classifyLine(line) != 0
+                || line.startsWith("=== ")
+                || line.startsWith("** ")
+                || line.contains("warning: ")
+                || line.contains("error: ")
+                || line.trim().startsWith("Executed ");
+    }
+
+    /**
+     * Print the summary of the build phase in progress, if any.
+     */
+    public void flushPhase() {
+        if ( phase != null ) {
+            console.println(Messages.CondensedConsoleLog_Phase(phase, phaseSteps));
+            phase = null;
+            phaseSteps = 0;
+        }
+    }
+
+    /**
+     * Print the raw lines kept in the ring buffer, oldest first, and empty it.
+     */
+    public void printTail() {
+        flushPhase();
+        if ( tailSize == 0 ) {
+            return;
+        }
+        console.println(Messages.CondensedConsoleLog_Tail(tailSize));
+        for ( int i = 0; i < tailSize; i++ ) {
+            console.println(tail[(tailStart + i) % tail.length]);
+            tail[(tailStart + i) % tail.length] = null;
+        }
+        tailStart = 0;
+        tailSize = 0;
+    }
+}
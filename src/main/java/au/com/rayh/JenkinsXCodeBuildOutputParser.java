@@ -29,28 +29,48 @@
 
 package au.com.rayh;
 
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import hudson.FilePath;
 import hudson.Functions;
+import hudson.Proc;
 import hudson.model.TaskListener;
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.GregorianCalendar;
 
+import javax.xml.bind.JAXBException;
+
 import org.apache.commons.lang.StringUtils;
 
+import au.com.rayh.report.TestCase;
+import au.com.rayh.report.TestReportWriter;
+import au.com.rayh.report.TestSuite;
+
 /**
  *
  * @author ray
  */
 public class JenkinsXCodeBuildOutputParser extends XCodeBuildOutputParser {
+    // Opt in to spooling finished test cases to temporary files, for test bundles too large to keep in memory.
+    @SuppressFBWarnings("MS_SHOULD_BE_FINAL")
+    public static boolean BOUNDED_MEMORY = Boolean.parseBoolean(System.getProperty(JenkinsXCodeBuildOutputParser.class.getName() + ".boundedMemory", "false"));
+
     protected TaskListener buildListener;
     private FilePath testReportsDir;
     private OutputStream logFileOutputStream;
     private boolean ignoreTestResults;
+    private final AsyncTestReportWriter testReportWriter = new AsyncTestReportWriter();
+    private XcodeTestResultsAction testResultsAction;
+    private CondensedConsoleLog condensedConsoleLog;
+    private int maxTestFailures;
+    private int testFailures;
+    private volatile boolean testFailureLimitReached;
 
 	public JenkinsXCodeBuildOutputParser(FilePath workspace, TaskListener buildListener) throws IOException, InterruptedException {
 		super();
@@ -59,6 +79,7 @@ public class JenkinsXCodeBuildOutputParser extends XCodeBuildOutputParser {
         this.consoleLog = true;
         this.logFileOutputStream = null;
 	this.ignoreTestResults = false;
+        this.boundedMemory = BOUNDED_MEMORY;
 
         testReportsDir = workspace.child("test-reports");
         testReportsDir.mkdirs();
@@ -71,8 +92,82 @@ public class JenkinsXCodeBuildOutputParser extends XCodeBuildOutputParser {
     public void setIgnoreTestResults(boolean ignoreTestResults) {
 	this.ignoreTestResults = ignoreTestResults;
     }
+
+    /**
+     * Show a condensed output on the console instead of every line, the log file still gets the full output.
+     * @param tailLines number of raw lines kept for {@link #printConsoleTail()}
+     */
+    public void setCondensedConsoleLog(int tailLines) {
+        this.condensedConsoleLog = new CondensedConsoleLog(buildListener.getLogger(), tailLines);
+    }
+
+    /**
+     * Print the last raw lines of the output when the console was condensed, e.g. because the build failed.
+     */
+    public void printConsoleTail() {
+        if ( condensedConsoleLog != null ) {
+            condensedConsoleLog.printTail();
+        }
+    }
+
+    /**
+     * Publish the results to the given action as each test case and suite finishes.
+     */
+    public void setTestResultsAction(XcodeTestResultsAction testResultsAction) {
+        this.testResultsAction = testResultsAction;
+        testResultsAction.testingStarted();
+    }
+
+    /**
+     * @param maxTestFailures number of failed tests after which {@link #isTestFailureLimitReached()} is true, 0 for no limit
+     */
+    public void setMaxTestFailures(int maxTestFailures) {
+        this.maxTestFailures = maxTestFailures;
+    }
+
+    public int getTestFailures() {
+        return testFailures;
+    }
+
+    public boolean isTestFailureLimitReached() {
+        return testFailureLimitReached;
+    }
+
+    /**
+     * Wait for xcodebuild writing to this parser to finish, killing its process tree once the test failure limit
+     * is reached. The output pump must not do this itself, because killing a local process waits for the pump.
+     * @param proc the started xcodebuild process
+     * @return the exit code of the process
+     */
+    public int join(Proc proc) throws IOException, InterruptedException {
+        if ( maxTestFailures > 0 ) {
+            while ( proc.isAlive() ) {
+                if ( testFailureLimitReached ) {
+                    buildListener.getLogger().println(Messages.XCodeBuilder_AbortAfterTestFailures(testFailures, maxTestFailures));
+                    proc.kill();
+                    break;
+                }
+                try {
+                    Thread.sleep(1000);
+                } catch(InterruptedException e) {
+                    // Aborted, kill xcodebuild like join() would.
+                    proc.kill();
+                    throw e;
+                }
+            }
+        }
+        return proc.join();
+    }
     
     public void setLogfilePath(final FilePath buildDirectory, final String logfileOutputDirectory) throws IOException, InterruptedException {
+        setLogfilePath(buildDirectory, logfileOutputDirectory, false);
+    }
+
+    /**
+     * @param compressed write "xcodebuild.log.gz" in gzip segments with the index "xcodebuild.log.idx",
+     *                   see {@link SegmentedLogOutputStream}
+     */
+    public void setLogfilePath(final FilePath buildDirectory, final String logfileOutputDirectory, final boolean compressed) throws IOException, InterruptedException {
 	// Remove buildDirectory.exists() && buildDirectory.isDirectory() from condition.
 	// Because If Generate archive is not specified, directory was not created.
         if(!StringUtils.isEmpty(logfileOutputDirectory)) {
@@ -87,20 +182,53 @@ public class JenkinsXCodeBuildOutputParser extends XCodeBuildOutputParser {
             if (!logFilePath.exists()) {
                 logFilePath.mkdirs();
             }
-            logFileOutputStream = new BufferedOutputStream(logFilePath.child("xcodebuild.log").write(),1024*512);
+            if ( compressed ) {
+                logFileOutputStream = new SegmentedLogOutputStream(new BufferedOutputStream(logFilePath.child("xcodebuild.log.gz").write(),1024*512),
+                        logFilePath.child("xcodebuild.log.idx").write(), SegmentedLogOutputStream.DEFAULT_SEGMENT_SIZE);
+            }
+            else {
+                logFileOutputStream = new BufferedOutputStream(logFilePath.child("xcodebuild.log").write(),1024*512);
+            }
         }
     }
     
-    public void closeLogfile() throws IOException {
-    	if(logFileOutputStream != null) {
-            logFileOutputStream.flush();
-            logFileOutputStream.close();
-            logFileOutputStream = null;
+    /**
+     * Close the log file and wait until every pending test report has been written to the workspace.
+     */
+    public void closeLogfile() throws IOException, InterruptedException {
+        try {
+            if(logFileOutputStream != null) {
+                logFileOutputStream.flush();
+                logFileOutputStream.close();
+                logFileOutputStream = null;
+            }
+            try {
+                finishTestSuites();
+            } catch(JAXBException e) {
+                throw new IOException(e);
+            }
+            testReportWriter.close();
+            if(condensedConsoleLog != null) {
+                condensedConsoleLog.flushPhase();
+            }
+        } finally {
+            // Even when the reports could not be written, this parser is done.
+            if(testResultsAction != null) {
+                testResultsAction.testingFinished();
+                testResultsAction = null;
+            }
+        }
+        if(testReportWriter.getReportsWritten() > 0) {
+            buildListener.getLogger().println(Messages.JenkinsXCodeBuildOutputParser_TestReportsWritten(testReportWriter.getReportsWritten(), testReportWriter.getMaxQueueDepth(), testReportWriter.getAverageWriteMillis(), testReportWriter.getMaxWriteMillis()));
         }
     }
 
+    public AsyncTestReportWriter getTestReportWriter() {
+        return testReportWriter;
+    }
+
     public class LineBasedFilterOutputStream extends FilterOutputStream {
-        StringBuilder buffer = new StringBuilder();
+        private final byte[] singleByte = new byte[1];
 
         public LineBasedFilterOutputStream() {
             super(buildListener.getLogger());
@@ -108,24 +236,25 @@ public class JenkinsXCodeBuildOutputParser extends XCodeBuildOutputParser {
 
         @Override
         public void write(int b) throws IOException {
-	    if ( !ignoreTestResults ) {
-                if((char)b == '\n') {
-                    try {
-                        handleLine(buffer.toString());
-                        buffer = new StringBuilder();
-                    } catch(Exception e) {  // Very fugly
-                        Functions.printStackTrace(e, buildListener.fatalError(e.getMessage()));
-                        throw new IOException(e);
-                    }
-                } else {
-                    buffer.append((char)b);
+            singleByte[0] = (byte)b;
+            write(singleByte, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+	    if ( !ignoreTestResults || condensedConsoleLog != null ) {
+                try {
+                    handleBytes(b, off, len);
+                } catch(Exception e) {  // Very fugly
+                    Functions.printStackTrace(e, buildListener.fatalError(e.getMessage()));
+                    throw new IOException(e);
                 }
 	    }
-            if(consoleLog) {
-                super.write(b);
+            if(consoleLog && condensedConsoleLog == null) {
+                out.write(b, off, len);
             }
             if(logFileOutputStream != null) {
-                logFileOutputStream.write(b);
+                logFileOutputStream.write(b, off, len);
             }
         }
         
@@ -141,8 +270,51 @@ public class JenkinsXCodeBuildOutputParser extends XCodeBuildOutputParser {
     }
 
 	@Override
-	protected OutputStream outputForSuite() throws IOException,
+	protected void handleLine(String line) throws ParseException, IOException, InterruptedException,
+			JAXBException {
+		if ( condensedConsoleLog != null ) {
+			condensedConsoleLog.handleLine(line);
+		}
+		if ( !ignoreTestResults ) {
+			super.handleLine(line);
+		}
+	}
+
+	@Override
+	protected void testCaseFinished(TestSuite testSuite, TestCase testCase, boolean failed) {
+		if ( failed ) {
+			testFailures++;
+			if ( maxTestFailures > 0 && testFailures >= maxTestFailures ) {
+				testFailureLimitReached = true;
+			}
+		}
+		if ( testResultsAction != null ) {
+			testResultsAction.addTestCase(testSuite, testCase, failed);
+		}
+	}
+
+	@Override
+	protected OutputStream outputForSuite(TestSuite testSuite) throws IOException,
 			InterruptedException {
-		return testReportsDir.child("TEST-" + currentTestSuite.getName() + ".xml").write();
+		return reportFileForSuite(testSuite).write();
+	}
+
+	/**
+	 * Marshal the report here and leave the remote write to the background writer,
+	 * so the xcodebuild output pump is not held up by the remoting channel.
+	 */
+	@Override
+	protected void writeTestReport(TestSuite testSuite) throws IOException, InterruptedException,
+			JAXBException {
+		ByteArrayOutputStream report = new ByteArrayOutputStream();
+		TestReportWriter.write(testSuite, report);
+		testReportWriter.submit(reportFileForSuite(testSuite), report.toByteArray());
+		if ( testResultsAction != null ) {
+			testResultsAction.addTestSuite(testSuite);
+		}
+	}
+
+	private FilePath reportFileForSuite(TestSuite testSuite) {
+		return testReportsDir.child("TEST-" + testSuite.getName() + ".xml");
 	}
 }
@@ -0,0 +1,360 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011 Ray Yamamoto Hilton
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package au.com.rayh;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+/**
+ * A pull parser for JSON documents, so that large documents can be walked without building them in memory.
+ * Values are consumed one token at a time and whatever is not needed is skipped with {@link #skipValue()}.
+ */
+public class JsonStreamReader implements Closeable {
+    public enum Token {
+	BEGIN_OBJECT, END_OBJECT, BEGIN_ARRAY, END_ARRAY, NAME, STRING, NUMBER, BOOLEAN, NULL, END_DOCUMENT
+    }
+
+    private static final int EMPTY_DOCUMENT = 0;
+    private static final int NONEMPTY_DOCUMENT = 1;
+    private static final int EMPTY_OBJECT = 2;
+    private static final int DANGLING_NAME = 3;
+    private static final int NONEMPTY_OBJECT = 4;
+    private static final int EMPTY_ARRAY = 5;
+    private static final int NONEMPTY_ARRAY = 6;
+
+    private final Reader in;
+    private final char[] buffer = new char[8192];
+    private int position;
+    private int limit;
+    private int[] stack = new int[32];
+    private int stackSize = 1;
+    private Token peeked;
+    private final StringBuilder text = new StringBuilder();
+
+    public JsonStreamReader(Reader in) {
+	this.in = in;
+	stack[0] = EMPTY_DOCUMENT;
+    }
+
+    public Token peek() throws IOException {
+	if ( peeked != null ) {
+	    return peeked;
+	}
+	int scope = stack[stackSize - 1];
+	int c;
+	switch ( scope ) {
+	case EMPTY_ARRAY:
+	    stack[stackSize - 1] = NONEMPTY_ARRAY;
+	    c = nextNonWhitespace();
+	    if ( c == ']' ) {
+		return peeked = Token.END_ARRAY;
+	    }
+	    if ( c == -1 ) {
+		throw syntaxError("Unexpected end of the document");
+	    }
+	    position--;
+	    break;
+	case NONEMPTY_ARRAY:
+	    c = nextNonWhitespace();
+	    if ( c == ']' ) {
+		return peeked = Token.END_ARRAY;
+	    }
+	    if ( c != ',' ) {
+		throw syntaxError("Expected ',' or ']'");
+	    }
+	    break;
+	case EMPTY_OBJECT:
+	case NONEMPTY_OBJECT:
+	    c = nextNonWhitespace();
+	    if ( c == '}' ) {
+		return peeked = Token.END_OBJECT;
+	    }
+	    if ( scope == NONEMPTY_OBJECT ) {
+		if ( c != ',' ) {
+		    throw syntaxError("Expected ',' or '}'");
+		}
+		c = nextNonWhitespace();
+	    }
+	    if ( c != '"' ) {
+		throw syntaxError("Expected a name");
+	    }
+	    stack[stackSize - 1] = DANGLING_NAME;
+	    return peeked = Token.NAME;
+	case DANGLING_NAME:
+	    if ( nextNonWhitespace() != ':' ) {
+		throw syntaxError("Expected ':'");
+	    }
+	    stack[stackSize - 1] = NONEMPTY_OBJECT;
+	    break;
+	case EMPTY_DOCUMENT:
+	    stack[stackSize - 1] = NONEMPTY_DOCUMENT;
+	    break;
+	default:
+	    if ( nextNonWhitespace() != -1 ) {
+		throw syntaxError("Expected the end of the document");
+	    }
+	    return peeked = Token.END_DOCUMENT;
+	}
+	c = nextNonWhitespace();
+	switch ( c ) {
+	case '{':
+	    return peeked = Token.BEGIN_OBJECT;
+	case '[':
+	    return peeked = Token.BEGIN_ARRAY;
+	case '"':
+	    return peeked = Token.STRING;
+	case 't':
+	case 'f':
+	    position--;
+	    return peeked = Token.BOOLEAN;
+	case 'n':
+	    position--;
+	    return peeked = Token.NULL;
+	case -1:
+	    throw syntaxError("Unexpected end of the document");
+	default:
+	    position--;
+	    return peeked = Token.NUMBER;
+	}
+    }
+
+    public void beginObject() throws IOException {
+	expect(Token.BEGIN_OBJECT);
+	push(EMPTY_OBJECT);
+    }
+
+    public void endObject() throws IOException {
+	expect(Token.END_OBJECT);
+	stackSize--;
+    }
+
+    public void beginArray() throws IOException {
+	expect(Token.BEGIN_ARRAY);
+	push(EMPTY_ARRAY);
+    }
+
+    public void endArray() throws IOException {
+	expect(Token.END_ARRAY);
+	stackSize--;
+    }
+
+    /**
+     * @return whether the current object or array has another element
+     */
+    public boolean hasNext() throws IOException {
+	Token token = peek();
+	return token != Token.END_OBJECT && token != Token.END_ARRAY && token != Token.END_DOCUMENT;
+    }
+
+    public String nextName() throws IOException {
+	expect(Token.NAME);
+	return readString();
+    }
+
+    /**
+     * @return the next string, or the text of the next number or boolean, or null for a JSON null
+     */
+    public String nextString() throws IOException {
+	Token token = peek();
+	peeked = null;
+	switch ( token ) {
+	case STRING:
+	    return readString();
+	case NUMBER:
+	case BOOLEAN:
+	    return readLiteral();
+	case NULL:
+	    readLiteral();
+	    return null;
+	default:
+	    throw syntaxError("Expected a value but was " + token);
+	}
+    }
+
+    /**
+     * Skips the next value, including everything nested in it.
+     */
+    public void skipValue() throws IOException {
+	int depth = 0;
+	do {
+	    Token token = peek();
+	    peeked = null;
+	    switch ( token ) {
+	    case BEGIN_OBJECT:
+		push(EMPTY_OBJECT);
+		depth++;
+		break;
+	    case BEGIN_ARRAY:
+		push(EMPTY_ARRAY);
+		depth++;
+		break;
+	    case END_OBJECT:
+	    case END_ARRAY:
+		stackSize--;
+		depth--;
+		break;
+	    case NAME:
+	    case STRING:
+		skipString();
+		break;
+	    case END_DOCUMENT:
+		throw syntaxError("Unexpected end of the document");
+	    default:
+		readLiteral();
+		break;
+	    }
+	} while ( depth > 0 );
+    }
+
+    @Override
+    public void close() throws IOException {
+	in.close();
+    }
+
+    private void expect(Token expected) throws IOException {
+	Token token = peek();
+	if ( token != expected ) {
+	    throw syntaxError("Expected " + expected + " but was " + token);
+	}
+	peeked = null;
+    }
+
+    private void push(int scope) {
+	if ( stackSize == stack.length ) {
+	    stack = Arrays.copyOf(stack, stackSize * 2);
+	}
+	stack[stackSize++] = scope;
+    }
+
+    private int read() throws IOException {
+	if ( position == limit ) {
+	    limit = in.read(buffer, 0, buffer.length);
+	    position = 0;
+	    if ( limit <= 0 ) {
+		limit = 0;
+		return -1;
+	    }
+	}
+	return buffer[position++];
+    }
+
+    private int nextNonWhitespace() throws IOException {
+	int c;
+	do {
+	    c = read();
+	} while ( c == ' ' || c == '\n' || c == '\r' || c == '\t' );
+	return c;
+    }
+
+    private String readString() throws IOException {
+	text.setLength(0);
+	while ( true ) {
+	    int c = read();
+	    if ( c == '"' ) {
+		return text.toString();
+	    }
+	    if ( c == '\\' ) {
+		text.append(readEscape());
+	    }
+	    else if ( c == -1 ) {
+		throw syntaxError("Unterminated string");
+	    }
+	    else {
+		text.append((char)c);
+	    }
+	}
+    }
+
+    private void skipString() throws IOException {
+	while ( true ) {
+	    int c = read();
+	    if ( c == '"' ) {
+		return;
+	    }
+	    if ( c == '\\' ) {
+		readEscape();
+	    }
+	    else if ( c == -1 ) {
+		throw syntaxError("Unterminated string");
+	    }
+	}
+    }
+
+    private char readEscape() throws IOException {
+	int c = read();
+	switch ( c ) {
+	case 'b':
+	    return '\b';
+	case 'f':
+	    return '\f';
+	case 'n':
+	    return '\n';
+	case 'r':
+	    return '\r';
+	case 't':
+	    return '\t';
+	case 'u':
+	    int value = 0;
+	    for ( int i = 0; i < 4; i++ ) {
+		int digit = Character.digit(read(), 16);
+		if ( digit < 0 ) {
+		    throw syntaxError("Invalid unicode escape");
+		}
+		value = value * 16 + digit;
+	    }
+	    return (char)value;
+	case '"':
+	case '\\':
+	case '/':
+	    return (char)c;
+	default:
+	    throw syntaxError("Invalid escape");
+	}
+    }
+
+    private String readLiteral() throws IOException {
+	text.setLength(0);
+	while ( true ) {
+	    int c = read();
+	    if ( c == -1 ) {
+		break;
+	    }
+	    if ( c == ',' || c == '}' || c == ']' || c == ' ' || c == '\n' || c == '\r' || c == '\t' || c == ':' ) {
+		position--;
+		break;
+	    }
+	    text.append((char)c);
+	}
+	if ( text.length() == 0 ) {
+	    throw syntaxError("Expected a value");
+	}
+	return text.toString();
+    }
+
+    private IOException syntaxError(String message) {
+	return new IOException("Malformed JSON: " + message);
+    }
+}
@@ -0,0 +1,267 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011 Ray Yamamoto Hilton
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package au.com.rayh;
+
+import com.dd.plist.ASCIIPropertyListParser;
+import com.dd.plist.NSDictionary;
+import com.dd.plist.NSObject;
+import com.dd.plist.PropertyListFormatException;
+import com.dd.plist.PropertyListParser;
+
+import hudson.util.IOUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.xml.sax.SAXException;
+
+/**
+ * Reads the objects of a project.pbxproj on demand.
+ * The file is scanned once to find where each object starts, without building anything, and an object is only
+ * decoded when it is asked for. Decoded objects are not kept, so memory holds the file and the offsets rather than
+ * a dictionary for every file, group and build phase of the project.
+ * Projects that are not in the ASCII format written by Xcode are parsed as a whole.
+ */
+public class PbxprojReader {
+    private final byte[] data;
+    // Start of each object in data, by UUID.
+    private final Map<String, Integer> offsets;
+    // Objects of a project that is not in the ASCII format.
+    private final NSDictionary objectsDict;
+    private final String rootObject;
+
+    private PbxprojReader(byte[] data, Map<String, Integer> offsets, NSDictionary objectsDict, String rootObject) {
+	this.data = data;
+	this.offsets = offsets;
+	this.objectsDict = objectsDict;
+	this.rootObject = rootObject;
+    }
+
+    /**
+     * @param in contents of a project.pbxproj
+     */
+    public static PbxprojReader read(InputStream in) throws IOException, ParseException, PropertyListFormatException, ParserConfigurationException, SAXException {
+	byte[] data = IOUtils.toByteArray(in);
+	int pos = skipWhitespace(data, 0);
+	if ( pos >= data.length || data[pos] != '{' ) {
+	    NSDictionary rootDict = (NSDictionary)PropertyListParser.parse(data);
+	    NSObject rootObject = rootDict.objectForKey("rootObject");
+	    NSObject objects = rootDict.objectForKey("objects");
+	    return new PbxprojReader(null, null, objects instanceof NSDictionary ? (NSDictionary)objects : new NSDictionary(), rootObject == null ? null : rootObject.toString());
+	}
+	Map<String, Integer> offsets = new HashMap<String, Integer>();
+	String rootObject = null;
+	pos++;
+	while ( (pos = skipWhitespace(data, pos)) < data.length && data[pos] != '}' ) {
+	    int start = pos;
+	    pos = skipValue(data, pos);
+	    String key = stringValue(data, start, pos);
+	    pos = skipWhitespace(data, expect(data, pos, '='));
+	    if ( key.equals("objects") ) {
+		pos = indexObjects(data, pos, offsets);
+	    }
+	    else {
+		start = pos;
+		pos = skipValue(data, pos);
+		if ( key.equals("rootObject") ) {
+		    rootObject = stringValue(data, start, pos);
+		}
+	    }
+	    pos = expect(data, pos, ';');
+	}
+	return new PbxprojReader(data, offsets, null, rootObject);
+    }
+
+    /**
+     * @return the UUID of the PBXProject object
+     */
+    public String getRootObject() {
+	return rootObject;
+    }
+
+    /**
+     * @return the number of objects in the project
+     */
+    public int getObjectCount() {
+	return objectsDict != null ? objectsDict.count() : offsets.size();
+    }
+
+    /**
+     * Decodes an object. Each call decodes it again, so callers keep the objects they use more than once.
+     * @param uuid UUID of the object
+     * @return the object, or null when there is no such object or it is not a dictionary
+     * @throws ParseException when the object can not be decoded, so that the project is not read with an object missing
+     */
+    public NSDictionary getObject(String uuid) throws ParseException {
+	NSObject object = null;
+	if ( objectsDict != null ) {
+	    object = objectsDict.objectForKey(uuid);
+	}
+	else if ( offsets.get(uuid) != null ) {
+	    int start = offsets.get(uuid);
+	    object = ASCIIPropertyListParser.parse(Arrays.copyOfRange(data, start, skipValue(data, start)));
+	}
+	return object instanceof NSDictionary ? (NSDictionary)object : null;
+    }
+
+    private static int indexObjects(byte[] data, int pos, Map<String, Integer> offsets) throws ParseException {
+	pos = expect(data, pos, '{');
+	while ( (pos = skipWhitespace(data, pos)) < data.length && data[pos] != '}' ) {
+	    int start = pos;
+	    pos = skipValue(data, pos);
+	    String uuid = stringValue(data, start, pos);
+	    pos = skipWhitespace(data, expect(data, pos, '='));
+	    offsets.put(uuid, pos);
+	    pos = expect(data, skipValue(data, pos), ';');
+	}
+	return expect(data, pos, '}');
+    }
+
+    /**
+     * @return the position after the whitespace and comments at pos
+     */
+    private static int skipWhitespace(byte[] data, int pos) throws ParseException {
+	while ( pos < data.length ) {
+	    byte b = data[pos];
+	    if ( b == ' ' || b == '\t' || b == '\r' || b == '\n' ) {
+		pos++;
+	    }
+	    else if ( b == '/' && pos + 1 < data.length && data[pos + 1] == '*' ) {
+		pos += 2;
+		while ( pos + 1 < data.length && !(data[pos] == '*' && data[pos + 1] == '/') ) {
+		    pos++;
+		}
+		if ( pos + 1 >= data.length ) {
+		    throw new ParseException("Unterminated comment", pos);
+		}
+		pos += 2;
+	    }
+	    else if ( b == '/' && pos + 1 < data.length && data[pos + 1] == '/' ) {
+		while ( pos < data.length && data[pos] != '\n' ) {
+		    pos++;
+		}
+	    }
+	    else {
+		break;
+	    }
+	}
+	return pos;
+    }
+
+    private static int expect(byte[] data, int pos, char token) throws ParseException {
+	pos = skipWhitespace(data, pos);
+	if ( pos >= data.length || data[pos] != token ) {
+	    throw new ParseException("Expected '" + token + "'", pos);
+	}
+	return pos + 1;
+    }
+
+    /**
+     * @param pos start of a value
+     * @return the position after the value
+     */
+    private static int skipValue(byte[] data, int pos) throws ParseException {
+	if ( pos >= data.length ) {
+	    throw new ParseException("Unexpected end of the project", pos);
+	}
+	switch ( data[pos] ) {
+	case '{':
+	    pos++;
+	    while ( (pos = skipWhitespace(data, pos)) < data.length && data[pos] != '}' ) {
+		pos = skipValue(data, pos);
+		pos = skipWhitespace(data, expect(data, pos, '='));
+		pos = expect(data, skipValue(data, pos), ';');
+	    }
+	    return expect(data, pos, '}');
+	case '(':
+	    pos++;
+	    while ( (pos = skipWhitespace(data, pos)) < data.length && data[pos] != ')' ) {
+		pos = skipWhitespace(data, skipValue(data, pos));
+		if ( pos < data.length && data[pos] == ',' ) {
+		    pos++;
+		}
+		else if ( pos >= data.length || data[pos] != ')' ) {
+		    throw new ParseException("Expected ',' or ')'", pos);
+		}
+	    }
+	    return expect(data, pos, ')');
+	case '"':
+	    pos++;
+	    while ( pos < data.length && data[pos] != '"' ) {
+		pos += data[pos] == '\\' ? 2 : 1;
+	    }
+	    if ( pos >= data.length ) {
+		throw new ParseException("Unterminated string", pos);
+	    }
+	    return pos + 1;
+	case '<':
+	    while ( pos < data.length && data[pos] != '>' ) {
+		pos++;
+	    }
+	    if ( pos >= data.length ) {
+		throw new ParseException("Unterminated data", pos);
+	    }
+	    return pos + 1;
+	default:
+	    int start = pos;
+	    while ( pos < data.length && isUnquoted(data[pos]) ) {
+		pos++;
+	    }
+	    if ( pos == start ) {
+		throw new ParseException("Unexpected '" + (char)data[pos] + "'", pos);
+	    }
+	    return pos;
+	}
+    }
+
+    private static boolean isUnquoted(byte b) {
+	switch ( b ) {
+	case ' ': case '\t': case '\r': case '\n':
+	case '{': case '}': case '(': case ')': case '<': case '>':
+	case '=': case ';': case ',': case '"':
+	    return false;
+	default:
+	    return true;
+	}
+    }
+
+    /**
+     * @return a key or UUID, without its quotes
+     */
+    private static String stringValue(byte[] data, int start, int end) {
+	if ( end - start >= 2 && data[start] == '"' ) {
+	    start++;
+	    end--;
+	}
+	return new String(data, start, end - start, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011 Ray Yamamoto Hilton
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package au.com.rayh;
+
+import com.dd.plist.NSDictionary;
+
+import hudson.FilePath;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Set;
+
+/**
+ * Reads a property list without building the whole object tree in memory.
+ * The arrays under the streamed keys are not materialized: each dictionary in them is reported to the
+ * {@link Handler} as soon as it has been read, and the array shows up as an empty array in the properties
+ * of its own dictionary. The values of the skipped keys are not read at all.
+ * XML property lists are read with StAX and binary property lists are walked through their offset table.
+ */
+public abstract class PlistStreamReader implements Closeable {
+    private static final byte[] BINARY_MAGIC = "bplist".getBytes(StandardCharsets.US_ASCII);
+
+    public interface Handler {
+	/**
+	 * Called when the root dictionary or a dictionary in a streamed array starts.
+	 */
+	void startDictionary() throws IOException, InterruptedException;
+
+	/**
+	 * Called when the dictionary started by the matching {@link #startDictionary()} ends.
+	 * @param properties the properties of the dictionary, without the skipped keys
+	 */
+	void endDictionary(NSDictionary properties) throws IOException, InterruptedException;
+    }
+
+    protected final Set<String> streamedKeys;
+    protected final Set<String> skippedKeys;
+
+    protected PlistStreamReader(Set<String> streamedKeys, Set<String> skippedKeys) {
+	this.streamedKeys = streamedKeys;
+	this.skippedKeys = skippedKeys;
+    }
+
+    /**
+     * @param plist the property list, in XML or binary format
+     * @param streamedKeys keys of the arrays whose dictionaries are reported one by one
+     * @param skippedKeys keys whose values are not read
+     * @return a reader for the property list, which must be closed
+     */
+    public static PlistStreamReader open(FilePath plist, Set<String> streamedKeys, Set<String> skippedKeys) throws IOException, InterruptedException {
+	byte[] magic = new byte[BINARY_MAGIC.length];
+	int length = 0;
+	try ( InputStream in = plist.read() ) {
+	    int n;
+	    while ( length < magic.length && (n = in.read(magic, length, magic.length - length)) > 0 ) {
+		length += n;
+	    }
+	}
+	if ( length < magic.length || !Arrays.equals(magic, BINARY_MAGIC) ) {
+	    return new XmlPlistStreamReader(plist.read(), streamedKeys, skippedKeys);
+	}
+	if ( !plist.isRemote() ) {
+	    return new BinaryPlistStreamReader(new File(plist.getRemote()), false, streamedKeys, skippedKeys);
+	}
+	// The offset table needs random access, so a remote binary property list is copied next to us first.
+	File copy = File.createTempFile("plist", ".bplist");
+	try ( OutputStream out = Files.newOutputStream(copy.toPath()) ) {
+	    plist.copyTo(out);
+	}
+	catch ( IOException | InterruptedException e ) {
+	    Files.deleteIfExists(copy.toPath());
+	    throw e;
+	}
+	return new BinaryPlistStreamReader(copy, true, streamedKeys, skippedKeys);
+    }
+
+    /**
+     * Reads the whole property list, calling the handler for the root dictionary and every dictionary
+     * in a streamed array.
+     */
+    public abstract void read(Handler handler) throws IOException, InterruptedException;
+}
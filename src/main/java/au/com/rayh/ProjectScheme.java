@@ -1,31 +1,100 @@
 package au.com.rayh;
 
-public class ProjectScheme {
-    //public String parallelizeBuildables;
-    //public String buildImplicitDependencies;
-    //public String blueprintIdentifier;
-    //public String buildForTesting;
-    //public String buildForRunning;
-    //public String buildForProfiling;
-    //public String buildForArchiving;
-    //public String buildForAnalyzing;
-    //public String buildableIdentifier;
-    //public String buildableName;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+public class ProjectScheme implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public boolean parallelizeBuildables;
+    public boolean buildImplicitDependencies;
+    public List<BuildActionEntry> buildActionEntries;
+    public String testBuildConfiguration;
+    public boolean codeCoverageEnabled;
+    public List<TestableReference> testables;
+    // Target of the last build action entry, kept for the callers that only need one.
     public String blueprintName;
     public String referencedContainer;
 
     ProjectScheme() {
-	//parallelizeBuildables = null;
-	//buildImplicitDependencies = null;
-	//blueprintIdentifier = null;
-	//buildForTesting = null;
-	//buildForRunning = null;
-	//buildForProfiling = null;
-	//buildForArchiving = null;
-	//buildForAnalyzing = null;
-	//buildableIdentifier = null;
-	//buildableName = null;
+	parallelizeBuildables = false;
+	buildImplicitDependencies = false;
+	buildActionEntries = new ArrayList<BuildActionEntry>();
+	testBuildConfiguration = null;
+	codeCoverageEnabled = false;
+	testables = new ArrayList<TestableReference>();
 	blueprintName = null;
 	referencedContainer = null;
     }
+
+    /**
+     * Target built by the build action of a scheme, and for which actions.
+     */
+    public static class BuildActionEntry implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	public boolean buildForTesting;
+	public boolean buildForRunning;
+	public boolean buildForProfiling;
+	public boolean buildForArchiving;
+	public boolean buildForAnalyzing;
+	public BuildableReference buildableReference;
+
+	BuildActionEntry() {
+	    buildForTesting = false;
+	    buildForRunning = false;
+	    buildForProfiling = false;
+	    buildForArchiving = false;
+	    buildForAnalyzing = false;
+	    buildableReference = null;
+	}
+    }
+
+    /**
+     * Test target run by the test action of a scheme.
+     */
+    public static class TestableReference implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	public boolean skipped;
+	public boolean parallelizable;
+	public String testExecutionOrdering;
+	// When set, only selectedTests are run, otherwise all tests but skippedTests.
+	public boolean useTestSelectionWhitelist;
+	public List<String> skippedTests;
+	public List<String> selectedTests;
+	public BuildableReference buildableReference;
+
+	TestableReference() {
+	    skipped = false;
+	    parallelizable = false;
+	    testExecutionOrdering = null;
+	    useTestSelectionWhitelist = false;
+	    skippedTests = new ArrayList<String>();
+	    selectedTests = new ArrayList<String>();
+	    buildableReference = null;
+	}
+    }
+
+    /**
+     * Target referenced from a scheme.
+     */
+    public static class BuildableReference implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	public String buildableIdentifier;
+	public String blueprintIdentifier;
+	public String buildableName;
+	public String blueprintName;
+	public String referencedContainer;
+
+	BuildableReference() {
+	    buildableIdentifier = null;
+	    blueprintIdentifier = null;
+	    buildableName = null;
+	    blueprintName = null;
+	    referencedContainer = null;
+	}
+    }
 }
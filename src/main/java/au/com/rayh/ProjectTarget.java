@@ -1,15 +1,26 @@
 package au.com.rayh;
 
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class ProjectTarget implements Serializable {
+    private static final long serialVersionUID = 1L;
 
-public class ProjectTarget {
     public String uuid;
     //public String name;
     public String productType;
     public String provisioningStyle;
     public String testTargetID;
     public String defaultConfigurationName;
-    public HashMap<String, BuildConfiguration> buildConfiguration;
+    public Map<String, BuildConfiguration> buildConfiguration;
+    // Files built or copied by the build phases, relative to the directory of the project file.
+    public List<String> sourceFiles;
+    // Names of the targets this target depends on, explicitly or by linking their product.
+    public List<String> dependencies;
 
     ProjectTarget() {
 	uuid = null;
@@ -20,6 +31,17 @@ public class ProjectTarget {
 	defaultConfigurationName = null;
 	
 	buildConfiguration = new HashMap<String, BuildConfiguration>();
+	sourceFiles = new ArrayList<String>();
+	dependencies = new ArrayList<String>();
+    }
+
+    void makeUnmodifiable() {
+	for ( BuildConfiguration configuration : buildConfiguration.values() ) {
+	    configuration.makeUnmodifiable();
+	}
+	buildConfiguration = Collections.unmodifiableMap(buildConfiguration);
+	sourceFiles = Collections.unmodifiableList(sourceFiles);
+	dependencies = Collections.unmodifiableList(dependencies);
     }
 }
 
@@ -0,0 +1,155 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011 Ray Yamamoto Hilton
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package au.com.rayh;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes a log as a series of gzip members, each holding whole lines and roughly {@link #DEFAULT_SEGMENT_SIZE}
+ * bytes of output. The concatenated members are a valid gzip file, so <code>zcat xcodebuild.log.gz</code> still
+ * shows the whole log. A sidecar index lists for every segment the number of its first line and its offset in the
+ * compressed file, which lets {@link SegmentedLogReader} decompress only the segment holding a given line.
+ * <p>
+ * Index format, one segment per line: <code>firstLine compressedOffset uncompressedOffset</code>, lines counted
+ * from 1. Lines starting with <code>#</code> are comments.
+ */
+public class SegmentedLogOutputStream extends OutputStream {
+    public static final int DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+    static final String INDEX_HEADER = "# firstLine compressedOffset uncompressedOffset";
+    private static final int DEFLATE_BUFFER_SIZE = 64 * 1024;
+
+    private final CountingOutputStream out;
+    private final PrintWriter index;
+    private final int segmentSize;
+    private GZIPOutputStream segment = null;
+    private long segmentBytes = 0;
+    private long line = 1;
+    private long uncompressedBytes = 0;
+
+    /**
+     * @param out receives the compressed log
+     * @param index receives the segment index
+     * @param segmentSize uncompressed bytes after which a segment ends at the next line break
+     */
+    public SegmentedLogOutputStream(OutputStream out, OutputStream index, int segmentSize) {
+        this.out = new CountingOutputStream(out);
+        this.index = new PrintWriter(new OutputStreamWriter(index, StandardCharsets.UTF_8));
+        this.segmentSize = segmentSize;
+        this.index.println(INDEX_HEADER);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte)b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        int start = off;
+        int end = off + len;
+        for ( int i = off; i < end; i++ ) {
+            if ( b[i] == '\n' ) {
+                writeToSegment(b, start, i + 1 - start);
+                start = i + 1;
+                line++;
+                if ( segmentBytes >= segmentSize ) {
+                    finishSegment();
+                }
+            }
+        }
+        if ( start < end ) {
+            writeToSegment(b, start, end - start);
+        }
+    }
+
+    private void writeToSegment(byte[] b, int off, int len) throws IOException {
+        if ( segment == null ) {
+            index.println(line + " " + out.getCount() + " " + uncompressedBytes);
+            segment = new GZIPOutputStream(out, DEFLATE_BUFFER_SIZE);
+            segmentBytes = 0;
+        }
+        segment.write(b, off, len);
+        segmentBytes += len;
+        uncompressedBytes += len;
+    }
+
+    private void finishSegment() throws IOException {
+        if ( segment != null ) {
+            segment.finish();
+            segment = null;
+            // Readers may follow the index while the log is still being written.
+            index.flush();
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if ( segment != null ) {
+            segment.flush();
+        }
+        out.flush();
+        index.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finishSegment();
+        } finally {
+            out.close();
+            index.close();
+        }
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long count = 0;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        long getCount() {
+            return count;
+        }
+    }
+}
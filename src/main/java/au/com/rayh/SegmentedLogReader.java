@@ -0,0 +1,125 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011 Ray Yamamoto Hilton
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package au.com.rayh;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads lines from a log written by {@link SegmentedLogOutputStream}, only decompressing the segments that
+ * hold them.
+ */
+public class SegmentedLogReader {
+    private final File log;
+    private final long[] firstLines;
+    private final long[] offsets;
+
+    public SegmentedLogReader(File log, File index) throws IOException {
+        this.log = log;
+        List<long[]> segments = new ArrayList<long[]>();
+        for ( String entry : Files.readAllLines(index.toPath(), StandardCharsets.UTF_8) ) {
+            if ( entry.isEmpty() || entry.startsWith("#") ) {
+                continue;
+            }
+            String[] fields = entry.split(" ");
+            segments.add(new long[] { Long.parseLong(fields[0]), Long.parseLong(fields[1]) });
+        }
+        firstLines = new long[segments.size()];
+        offsets = new long[segments.size()];
+        for ( int i = 0; i < segments.size(); i++ ) {
+            firstLines[i] = segments.get(i)[0];
+            offsets[i] = segments.get(i)[1];
+        }
+    }
+
+    /**
+     * @return the number of segments in the log
+     */
+    public int getSegmentCount() {
+        return firstLines.length;
+    }
+
+    /**
+     * @param line line number, counted from 1
+     * @return the index of the segment holding the line
+     */
+    int segmentOf(long line) {
+        int low = 0;
+        int high = firstLines.length - 1;
+        while ( low < high ) {
+            int mid = (low + high + 1) >>> 1;
+            if ( firstLines[mid] <= line ) {
+                low = mid;
+            }
+            else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @param fromLine first line to read, counted from 1
+     * @param count maximum number of lines to read
+     * @return the lines, fewer than requested at the end of the log
+     */
+    public List<String> readLines(long fromLine, int count) throws IOException {
+        List<String> lines = new ArrayList<String>();
+        if ( firstLines.length == 0 || count <= 0 ) {
+            return lines;
+        }
+        int segment = segmentOf(fromLine);
+        try (InputStream in = new FileInputStream(log)) {
+            long skip = offsets[segment];
+            while ( skip > 0 ) {
+                long skipped = in.skip(skip);
+                if ( skipped <= 0 ) {
+                    throw new IOException("Index points past the end of " + log);
+                }
+                skip -= skipped;
+            }
+            // Concatenated gzip members are read as one stream, so reading may go on into the next segments.
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(in), StandardCharsets.UTF_8));
+            long line = firstLines[segment];
+            String text;
+            while ( lines.size() < count && (text = reader.readLine()) != null ) {
+                if ( line >= fromLine ) {
+                    lines.add(text);
+                }
+                line++;
+            }
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011 Ray Yamamoto Hilton
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package au.com.rayh;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+
+import hudson.FilePath;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import au.com.rayh.report.TestCase;
+
+/**
+ * Copies the attachments of failed tests, such as screenshots, to test-reports/attachments with a bounded pool of
+ * workers, and links them from the system-out of the JUnit test cases.
+ * Attachments are stored under the hash of their content, so identical screenshots are stored only once.
+ */
+public class TestAttachmentExtractor {
+    @SuppressFBWarnings("MS_SHOULD_BE_FINAL")
+    public static int PARALLELISM = Integer.getInteger(TestAttachmentExtractor.class.getName() + ".parallelism", 4);
+    // Seconds to wait for the attachments still being stored, after which they are cancelled so that a hung export does not hang the build.
+    @SuppressFBWarnings("MS_SHOULD_BE_FINAL")
+    public static int TIMEOUT = Integer.getInteger(TestAttachmentExtractor.class.getName() + ".timeout", 600);
+
+    private static final Logger LOGGER = Logger.getLogger(TestAttachmentExtractor.class.getName());
+
+    /**
+     * Writes an attachment that is not a plain file yet, such as one stored in an xcresult bundle.
+     */
+    public interface Exporter {
+	void export(FilePath target) throws IOException, InterruptedException;
+    }
+
+    private final FilePath attachmentsDir;
+    private final ExecutorService executor;
+    private final Set<String> storedAttachments = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger attachments = new AtomicInteger();
+    private final AtomicInteger sequence = new AtomicInteger();
+    // The name of each attachment, to report the ones that are cancelled.
+    private final Map<Future<FilePath>, String> pending = new ConcurrentHashMap<Future<FilePath>, String>();
+
+    public TestAttachmentExtractor(FilePath testReportsDir) {
+	attachmentsDir = testReportsDir.child("attachments");
+	executor = Executors.newFixedThreadPool(PARALLELISM, new ThreadFactory() {
+	    public Thread newThread(Runnable runnable) {
+		Thread thread = new Thread(runnable, "Xcode test attachment extractor");
+		thread.setDaemon(true);
+		return thread;
+	    }
+	});
+    }
+
+    /**
+     * Copies an attachment file.
+     * @return the stored attachment
+     */
+    public Future<FilePath> extract(final FilePath attachment) {
+	attachments.incrementAndGet();
+	Future<FilePath> future = executor.submit(new Callable<FilePath>() {
+	    public FilePath call() throws IOException, InterruptedException {
+		return store(attachment, attachment.getName(), false);
+	    }
+	});
+	pending.put(future, attachment.getName());
+	return future;
+    }
+
+    /**
+     * Exports an attachment to a temporary file first.
+     * @param fileName the name of the attachment, whose extension is kept
+     * @return the stored attachment
+     */
+    public Future<FilePath> extract(final String fileName, final Exporter exporter) {
+	attachments.incrementAndGet();
+	Future<FilePath> future = executor.submit(new Callable<FilePath>() {
+	    public FilePath call() throws IOException, InterruptedException {
+		attachmentsDir.mkdirs();
+		FilePath exported = attachmentsDir.child(".export-" + sequence.incrementAndGet());
+		try {
+		    exporter.export(exported);
+		    return store(exported, fileName, true);
+		}
+		finally {
+		    exported.delete();
+		}
+	    }
+	});
+	pending.put(future, fileName);
+	return future;
+    }
+
+    private FilePath store(FilePath attachment, String fileName, boolean move) throws IOException, InterruptedException {
+	int extension = fileName.lastIndexOf('.');
+	FilePath target = attachmentsDir.child(attachment.digest() + (extension > 0 ? fileName.substring(extension) : ""));
+	if ( storedAttachments.add(target.getName()) && !target.exists() ) {
+	    attachmentsDir.mkdirs();
+	    if ( move ) {
+		attachment.renameTo(target);
+	    }
+	    else {
+		attachment.copyTo(target);
+	    }
+	}
+	return target;
+    }
+
+    /**
+     * Waits for the attachments of a test case and links them from its system-out, in the form understood by the
+     * JUnit Attachments plugin. An attachment that is not stored within {@link #TIMEOUT} seconds is cancelled and not linked.
+     */
+    public static void link(TestCase testCase, List<Future<FilePath>> attachments) throws IOException, InterruptedException {
+	List<String> links = new ArrayList<String>();
+	for ( Future<FilePath> attachment : attachments ) {
+	    if ( attachment.isCancelled() ) {
+		continue;
+	    }
+	    try {
+		String link = "[[ATTACHMENT|" + attachment.get(TIMEOUT, TimeUnit.SECONDS).getRemote() + "]]";
+		if ( !links.contains(link) ) {
+		    links.add(link);
+		}
+	    }
+	    catch ( ExecutionException ex ) {
+		ex.getCause().printStackTrace();
+	    }
+	    catch ( TimeoutException ex ) {
+		attachment.cancel(true);
+		LOGGER.warning("Cancelled an attachment of " + testCase.getName() + " that was not stored in " + TIMEOUT + " seconds");
+	    }
+	}
+	for ( String link : links ) {
+	    testCase.appendSystemOut(link);
+	}
+    }
+
+    /**
+     * @return the number of attachments extracted so far
+     */
+    public int getAttachments() {
+	return attachments.get();
+    }
+
+    /**
+     * @return the number of distinct attachments stored so far
+     */
+    public int getStoredAttachments() {
+	return storedAttachments.size();
+    }
+
+    /**
+     * Waits until every attachment has been stored, for at most {@link #TIMEOUT} seconds, and stops the workers.
+     * @return the names of the attachments that were cancelled because they were not stored in time
+     */
+    public List<String> close() throws InterruptedException {
+	executor.shutdown();
+	try {
+	    if ( executor.awaitTermination(TIMEOUT, TimeUnit.SECONDS) ) {
+		return Collections.emptyList();
+	    }
+	}
+	catch ( InterruptedException ex ) {
+	    executor.shutdownNow();
+	    throw ex;
+	}
+	// Interrupts the exports still running, the ones still queued are only removed and have to be cancelled too.
+	executor.shutdownNow();
+	List<String> cancelled = new ArrayList<String>();
+	for ( Map.Entry<Future<FilePath>, String> attachment : pending.entrySet() ) {
+	    if ( attachment.getKey().cancel(true) ) {
+		cancelled.add(attachment.getValue());
+	    }
+	}
+	if ( !cancelled.isEmpty() ) {
+	    LOGGER.warning("Cancelled " + cancelled.size() + " attachments that were not stored in " + TIMEOUT + " seconds: " + cancelled);
+	}
+	return cancelled;
+    }
+}
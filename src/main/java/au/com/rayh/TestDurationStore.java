@@ -0,0 +1,437 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011 Ray Yamamoto Hilton
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package au.com.rayh;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+
+import hudson.FilePath;
+import hudson.model.Run;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * The durations of the tests of the last builds of a job, kept in the job directory to find slow tests and to
+ * balance tests between runs.
+ * The store is columnar: the test names, which are "className.name", are kept once in a table, and each recorded
+ * build is a column of durations in seconds indexed by the position of the name in the table. Tests that did not
+ * run in a build have NaN in its column.
+ */
+public class TestDurationStore {
+    public static final String FILE_NAME = "xcodeTestDurations.bin";
+    @SuppressFBWarnings("MS_SHOULD_BE_FINAL")
+    public static int HISTORY = Integer.getInteger(TestDurationStore.class.getName() + ".history", 30);
+
+    private static final int MAGIC = 0x58435444;
+    private static final int VERSION = 1;
+
+    private final List<String> names = new ArrayList<String>();
+    private final Map<String, Integer> indexes = new HashMap<String, Integer>();
+    // The builds and their columns, oldest first.
+    private final List<Integer> builds = new ArrayList<Integer>();
+    private final List<float[]> columns = new ArrayList<float[]>();
+
+    /**
+     * @return the store in the file, or an empty store when there is none yet
+     */
+    public static TestDurationStore load(File file) throws IOException {
+	TestDurationStore store = new TestDurationStore();
+	if ( !file.exists() ) {
+	    return store;
+	}
+	try ( DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file.toPath()))) ) {
+	    if ( in.readInt() != MAGIC || in.readInt() != VERSION ) {
+		throw new IOException("Not a test duration store: " + file);
+	    }
+	    int nameCount = in.readInt();
+	    for ( int i = 0; i < nameCount; i++ ) {
+		store.indexOf(in.readUTF());
+	    }
+	    int columnCount = in.readInt();
+	    for ( int i = 0; i < columnCount; i++ ) {
+		store.builds.add(in.readInt());
+		float[] column = new float[in.readInt()];
+		for ( int j = 0; j < column.length; j++ ) {
+		    column[j] = in.readFloat();
+		}
+		store.columns.add(column);
+	    }
+	}
+	return store;
+    }
+
+    /**
+     * Writes the store to a temporary file next to the file first, so that it is replaced at once.
+     */
+    public void save(File file) throws IOException {
+	File temporary = new File(file.getParentFile(), file.getName() + ".tmp");
+	try ( DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary.toPath()))) ) {
+	    out.writeInt(MAGIC);
+	    out.writeInt(VERSION);
+	    out.writeInt(names.size());
+	    for ( String name : names ) {
+		out.writeUTF(name);
+	    }
+	    out.writeInt(columns.size());
+	    for ( int i = 0; i < columns.size(); i++ ) {
+		out.writeInt(builds.get(i));
+		float[] column = columns.get(i);
+		out.writeInt(column.length);
+		for ( float duration : column ) {
+		    out.writeFloat(duration);
+		}
+	    }
+	}
+	Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private int indexOf(String name) {
+	Integer index = indexes.get(name);
+	if ( index == null ) {
+	    index = names.size();
+	    names.add(name);
+	    indexes.put(name, index);
+	}
+	return index;
+    }
+
+    /**
+     * Adds the durations of a build. The durations of several steps of the same build go into one column.
+     * Only the last {@link #HISTORY} builds by number are kept, and the tests that ran in none of them are forgotten.
+     * @param durations the duration in seconds of each test, keyed by "className.name"
+     */
+    public void record(int build, Map<String, Float> durations) {
+	if ( durations.isEmpty() ) {
+	    return;
+	}
+	for ( String name : durations.keySet() ) {
+	    indexOf(name);
+	}
+	int position = builds.indexOf(build);
+	float[] column;
+	if ( position < 0 ) {
+	    column = new float[names.size()];
+	    Arrays.fill(column, Float.NaN);
+	    // Builds finish in any order when they run in parallel, the columns stay in the order of the builds.
+	    position = builds.size();
+	    while ( position > 0 && builds.get(position - 1) > build ) {
+		position--;
+	    }
+	    builds.add(position, build);
+	    columns.add(position, column);
+	}
+	else {
+	    float[] previous = columns.get(position);
+	    column = Arrays.copyOf(previous, names.size());
+	    Arrays.fill(column, previous.length, column.length, Float.NaN);
+	    columns.set(position, column);
+	}
+	for ( Map.Entry<String, Float> duration : durations.entrySet() ) {
+	    column[indexes.get(duration.getKey())] = duration.getValue();
+	}
+	if ( columns.size() > HISTORY ) {
+	    builds.subList(0, columns.size() - HISTORY).clear();
+	    columns.subList(0, columns.size() - HISTORY).clear();
+	    compact();
+	}
+    }
+
+    /**
+     * Drops the names that have no duration in any column left.
+     */
+    private void compact() {
+	int[] mapping = new int[names.size()];
+	List<String> kept = new ArrayList<String>();
+	for ( int i = 0; i < names.size(); i++ ) {
+	    mapping[i] = -1;
+	    for ( float[] column : columns ) {
+		if ( i < column.length && !Float.isNaN(column[i]) ) {
+		    mapping[i] = kept.size();
+		    kept.add(names.get(i));
+		    break;
+		}
+	    }
+	}
+	if ( kept.size() == names.size() ) {
+	    return;
+	}
+	for ( int i = 0; i < columns.size(); i++ ) {
+	    float[] column = columns.get(i);
+	    float[] compacted = new float[kept.size()];
+	    Arrays.fill(compacted, Float.NaN);
+	    for ( int j = 0; j < column.length; j++ ) {
+		if ( mapping[j] >= 0 ) {
+		    compacted[mapping[j]] = column[j];
+		}
+	    }
+	    columns.set(i, compacted);
+	}
+	names.clear();
+	indexes.clear();
+	for ( String name : kept ) {
+	    indexOf(name);
+	}
+    }
+
+    /**
+     * @return the names of the tests, as "className.name"
+     */
+    public List<String> getTests() {
+	return Collections.unmodifiableList(names);
+    }
+
+    /**
+     * @return the recorded builds, oldest first
+     */
+    public List<Integer> getBuilds() {
+	return Collections.unmodifiableList(builds);
+    }
+
+    /**
+     * @return the durations of a test in the builds it ran in, oldest first
+     */
+    public float[] getDurations(String test) {
+	Integer index = indexes.get(test);
+	if ( index == null ) {
+	    return new float[0];
+	}
+	float[] durations = new float[columns.size()];
+	int count = 0;
+	for ( float[] column : columns ) {
+	    if ( index < column.length && !Float.isNaN(column[index]) ) {
+		durations[count++] = column[index];
+	    }
+	}
+	return Arrays.copyOf(durations, count);
+    }
+
+    /**
+     * @return a copy of the store without the given build and the ones after it, so that steps running in parallel
+     * in a build see the same durations while the others record theirs
+     */
+    public TestDurationStore before(int build) {
+	TestDurationStore store = new TestDurationStore();
+	for ( String name : names ) {
+	    store.indexOf(name);
+	}
+	for ( int i = 0; i < builds.size(); i++ ) {
+	    if ( builds.get(i) < build ) {
+		store.builds.add(builds.get(i));
+		store.columns.add(columns.get(i));
+	    }
+	}
+	return store;
+    }
+
+    /**
+     * @return whether a test ran in the last recorded build
+     */
+    public boolean ranInLastBuild(String test) {
+	Integer index = indexes.get(test);
+	if ( index == null || columns.isEmpty() ) {
+	    return false;
+	}
+	float[] column = columns.get(columns.size() - 1);
+	return index < column.length && !Float.isNaN(column[index]);
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the percentile of the durations of a test, interpolated between the closest ones, or NaN when it never ran
+     */
+    public float getPercentile(String test, double percentile) {
+	float[] durations = getDurations(test);
+	if ( durations.length == 0 ) {
+	    return Float.NaN;
+	}
+	Arrays.sort(durations);
+	double rank = percentile / 100 * (durations.length - 1);
+	int lower = (int)Math.floor(rank);
+	int upper = (int)Math.ceil(rank);
+	return (float)(durations[lower] + (durations[upper] - durations[lower]) * (rank - lower));
+    }
+
+    /**
+     * @return the change of the duration of a test from one build to the next in seconds, fitted over the builds it
+     * ran in, or 0 when it ran in fewer than two builds
+     */
+    public float getTrend(String test) {
+	Integer index = indexes.get(test);
+	if ( index == null ) {
+	    return 0;
+	}
+	int count = 0;
+	double sumX = 0;
+	double sumY = 0;
+	double sumXY = 0;
+	double sumXX = 0;
+	for ( int i = 0; i < columns.size(); i++ ) {
+	    float[] column = columns.get(i);
+	    if ( index < column.length && !Float.isNaN(column[index]) ) {
+		double x = builds.get(i);
+		count++;
+		sumX += x;
+		sumY += column[index];
+		sumXY += x * column[index];
+		sumXX += x * x;
+	    }
+	}
+	double denominator = count * sumXX - sumX * sumX;
+	if ( count < 2 || denominator == 0 ) {
+	    return 0;
+	}
+	return (float)((count * sumXY - sumX * sumY) / denominator);
+    }
+
+    /**
+     * @return the slowest tests by the given percentile of their durations, slowest first
+     */
+    public List<String> getSlowestTests(int count, final double percentile) {
+	final Map<String, Float> durations = new HashMap<String, Float>();
+	for ( String name : names ) {
+	    durations.put(name, getPercentile(name, percentile));
+	}
+	List<String> tests = new ArrayList<String>(names);
+	Collections.sort(tests, new Comparator<String>() {
+	    public int compare(String test1, String test2) {
+		return Float.compare(durations.get(test2), durations.get(test1));
+	    }
+	});
+	return tests.subList(0, Math.min(count, tests.size()));
+    }
+
+    /**
+     * @return the last modification time of each JUnit report in the directory, to tell the reports of a build from
+     * the ones left by the previous builds
+     */
+    public static Map<String, Long> listTestReports(FilePath testReportsDir) throws IOException, InterruptedException {
+	Map<String, Long> testReports = new HashMap<String, Long>();
+	if ( testReportsDir.isDirectory() ) {
+	    for ( FilePath testReport : testReportsDir.list("TEST-*.xml") ) {
+		testReports.put(testReport.getName(), testReport.lastModified());
+	    }
+	}
+	return testReports;
+    }
+
+    /**
+     * Reads the durations of the test cases of the JUnit reports that are new or were rewritten since the reports
+     * were listed.
+     * @param previousTestReports the reports listed with {@link #listTestReports(FilePath)} before the tests ran
+     */
+    public static Map<String, Float> readDurations(FilePath testReportsDir, Map<String, Long> previousTestReports) throws IOException, InterruptedException {
+	Map<String, Float> durations = new LinkedHashMap<String, Float>();
+	for ( Map.Entry<String, Long> testReport : listTestReports(testReportsDir).entrySet() ) {
+	    if ( testReport.getValue().equals(previousTestReports.get(testReport.getKey())) ) {
+		continue;
+	    }
+	    try ( InputStream in = testReportsDir.child(testReport.getKey()).read() ) {
+		readDurations(in, durations);
+	    }
+	}
+	return durations;
+    }
+
+    static void readDurations(InputStream in, Map<String, Float> durations) throws IOException {
+	XMLInputFactory factory = XMLInputFactory.newInstance();
+	factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+	factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+	try {
+	    XMLStreamReader reader = factory.createXMLStreamReader(in);
+	    try {
+		while ( reader.hasNext() ) {
+		    if ( reader.next() == XMLStreamConstants.START_ELEMENT && reader.getLocalName().equals("testcase") ) {
+			String className = reader.getAttributeValue(null, "classname");
+			String name = reader.getAttributeValue(null, "name");
+			String time = reader.getAttributeValue(null, "time");
+			if ( name != null && time != null ) {
+			    try {
+				durations.put(className != null ? className + "." + name : name, Float.parseFloat(time));
+			    }
+			    catch ( NumberFormatException ex ) {
+				// Not timed.
+			    }
+			}
+		    }
+		}
+	    }
+	    finally {
+		reader.close();
+	    }
+	}
+	catch ( XMLStreamException ex ) {
+	    throw new IOException(ex);
+	}
+    }
+
+    /**
+     * @return the durations recorded by the builds of the job before the given one
+     */
+    public static TestDurationStore loadBefore(Run<?, ?> build) throws IOException {
+	File file = new File(build.getParent().getRootDir(), FILE_NAME);
+	synchronized ( TestDurationStore.class ) {
+	    return load(file).before(build.getNumber());
+	}
+    }
+
+    /**
+     * Adds the durations of the tests of a build to the store of its job.
+     * @return the number of tests recorded
+     */
+    public static int record(Run<?, ?> build, FilePath testReportsDir, Map<String, Long> previousTestReports) throws IOException, InterruptedException {
+	Map<String, Float> durations = readDurations(testReportsDir, previousTestReports);
+	if ( durations.isEmpty() ) {
+	    return 0;
+	}
+	File file = new File(build.getParent().getRootDir(), FILE_NAME);
+	// Concurrent builds of a job update the same file.
+	synchronized ( TestDurationStore.class ) {
+	    TestDurationStore store = load(file);
+	    store.record(build.getNumber(), durations);
+	    store.save(file);
+	}
+	return durations.size();
+    }
+}
@@ -0,0 +1,295 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011 Ray Yamamoto Hilton
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package au.com.rayh;
+
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.scm.ChangeLogSet;
+import jenkins.scm.RunWithSCM;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Finds the test targets affected by the files changed in a build, from the files in the build phases of the
+ * targets and the dependencies between them.
+ * All paths are relative to the workspace of the build, like the paths in the changes of the SCM.
+ */
+public class TestImpactAnalysis {
+    private static final Set<String> TEST_PRODUCT_TYPES = new HashSet<String>(Arrays.asList("com.apple.product-type.bundle.unit-test", "com.apple.product-type.bundle.ui-testing"));
+    // Files that change how every target is built.
+    private static final Set<String> BUILD_FILES = new HashSet<String>(Arrays.asList("Package.swift", "Package.resolved", "Podfile", "Podfile.lock", "Cartfile", "Cartfile.resolved"));
+    // Files outside of the projects that can not change the tests: documentation, images and CI configuration.
+    private static final Set<String> NON_CODE_EXTENSIONS = new HashSet<String>(Arrays.asList("md", "markdown", "txt", "rst", "adoc", "png", "jpg", "jpeg", "gif", "svg", "pdf"));
+    private static final Set<String> NON_CODE_FILES = new HashSet<String>(Arrays.asList("LICENSE", "Jenkinsfile", ".gitignore", ".gitattributes", ".travis.yml", ".gitlab-ci.yml"));
+    private static final List<String> NON_CODE_DIRECTORIES = Arrays.asList(".github/", ".circleci/", ".gitlab/");
+
+    private final Map<String, ProjectTarget> targets = new TreeMap<String, ProjectTarget>();
+    // Targets by the targets they depend on.
+    private final Map<String, Set<String>> dependents = new HashMap<String, Set<String>>();
+    // Targets by the files in their build phases.
+    private final Map<String, Set<String>> fileTargets = new HashMap<String, Set<String>>();
+    // Targets by the directories of the files in their build phases.
+    private final Map<String, Set<String>> directoryTargets = new HashMap<String, Set<String>>();
+    private final Set<String> files = new HashSet<String>();
+
+    private static void add(Map<String, Set<String>> map, String key, String value) {
+	Set<String> values = map.get(key);
+	if ( values == null ) {
+	    values = new HashSet<String>();
+	    map.put(key, values);
+	}
+	values.add(value);
+    }
+
+    /**
+     * @param projectDirectory the directory of the project file, relative to the workspace
+     */
+    public void addProject(String projectDirectory, XcodeProject project) {
+	Map<String, String> targetNames = new HashMap<String, String>();
+	for ( Map.Entry<String, ProjectTarget> target : project.targets.entrySet() ) {
+	    targetNames.put(target.getValue().uuid, target.getKey());
+	}
+	for ( Map.Entry<String, ProjectTarget> target : project.targets.entrySet() ) {
+	    String name = target.getKey();
+	    targets.put(name, target.getValue());
+	    for ( String sourceFile : target.getValue().sourceFiles ) {
+		String path = XcodeProjectParser.normalizePath(projectDirectory, sourceFile);
+		add(fileTargets, path, name);
+		add(directoryTargets, XcodeProjectParser.parentPath(path), name);
+	    }
+	    for ( String dependency : target.getValue().dependencies ) {
+		add(dependents, dependency, name);
+	    }
+	    // Tests also run in their host application.
+	    if ( target.getValue().testTargetID != null && targetNames.containsKey(target.getValue().testTargetID) ) {
+		add(dependents, targetNames.get(target.getValue().testTargetID), name);
+	    }
+	}
+	for ( String file : project.files ) {
+	    files.add(XcodeProjectParser.normalizePath(projectDirectory, file));
+	}
+    }
+
+    /**
+     * @return the names of all test targets
+     */
+    public Set<String> getTestTargets() {
+	Set<String> testTargets = new TreeSet<String>();
+	for ( Map.Entry<String, ProjectTarget> target : targets.entrySet() ) {
+	    if ( TEST_PRODUCT_TYPES.contains(target.getValue().productType) ) {
+		testTargets.add(target.getKey());
+	    }
+	}
+	return testTargets;
+    }
+
+    /**
+     * @return the targets of a file, or of the folder reference holding it, or null when it is in no target
+     */
+    private Set<String> targetsOf(String path) {
+	for ( String folder = path; !folder.isEmpty(); folder = XcodeProjectParser.parentPath(folder) ) {
+	    if ( fileTargets.containsKey(folder) ) {
+		return fileTargets.get(folder);
+	    }
+	}
+	return null;
+    }
+
+    private boolean isInProject(String path) {
+	for ( String folder = path; !folder.isEmpty(); folder = XcodeProjectParser.parentPath(folder) ) {
+	    if ( files.contains(folder) ) {
+		return true;
+	    }
+	}
+	return false;
+    }
+
+    private static boolean isBuildFile(String path) {
+	String name = path.substring(path.lastIndexOf('/') + 1);
+	return BUILD_FILES.contains(name) || name.endsWith(".xcconfig") || path.contains(".xcodeproj/") || path.contains(".xcworkspace/")
+	    || path.endsWith(".xcodeproj") || path.endsWith(".xcworkspace");
+    }
+
+    private static boolean isNonCodeFile(String path) {
+	String name = path.substring(path.lastIndexOf('/') + 1);
+	String extension = name.lastIndexOf('.') > 0 ? name.substring(name.lastIndexOf('.') + 1).toLowerCase(Locale.ENGLISH) : "";
+	if ( NON_CODE_FILES.contains(name) || NON_CODE_EXTENSIONS.contains(extension) ) {
+	    return true;
+	}
+	for ( String directory : NON_CODE_DIRECTORIES ) {
+	    if ( path.startsWith(directory) || path.contains("/" + directory) ) {
+		return true;
+	    }
+	}
+	return false;
+    }
+
+    /**
+     * @param changedFiles the changed paths, or null when they are not known
+     * @return the test targets to run for the changes, or null when all tests have to run
+     */
+    public Set<String> getImpactedTestTargets(Collection<String> changedFiles) {
+	if ( changedFiles == null || changedFiles.isEmpty() ) {
+	    return null;
+	}
+	Deque<String> impacted = new ArrayDeque<String>();
+	for ( String changedFile : changedFiles ) {
+	    String path = XcodeProjectParser.normalizePath("", changedFile);
+	    if ( isBuildFile(path) ) {
+		return null;
+	    }
+	    Set<String> changedTargets = targetsOf(path);
+	    if ( changedTargets == null && isInProject(path) ) {
+		// Headers are usually not in a build phase, but belong to the targets of the files next to them.
+		changedTargets = directoryTargets.get(XcodeProjectParser.parentPath(path));
+		if ( changedTargets == null ) {
+		    return null;
+		}
+	    }
+	    if ( changedTargets == null ) {
+		// Only documentation and the like can be left out, anything else, like the sources of a local package
+		// or a checkout that does not line up with the project, may change what the tests run.
+		if ( !isNonCodeFile(path) ) {
+		    return null;
+		}
+		continue;
+	    }
+	    impacted.addAll(changedTargets);
+	}
+	Set<String> visited = new HashSet<String>();
+	Set<String> testTargets = new TreeSet<String>();
+	while ( !impacted.isEmpty() ) {
+	    String target = impacted.pop();
+	    if ( !visited.add(target) ) {
+		continue;
+	    }
+	    if ( targets.containsKey(target) && TEST_PRODUCT_TYPES.contains(targets.get(target).productType) ) {
+		testTargets.add(target);
+	    }
+	    if ( dependents.containsKey(target) ) {
+		impacted.addAll(dependents.get(target));
+	    }
+	}
+	return testTargets;
+    }
+
+    /**
+     * @return the xcodebuild arguments that only run the impacted test targets
+     */
+    public List<String> getArguments(Set<String> impactedTestTargets) {
+	List<String> arguments = new ArrayList<String>();
+	if ( impactedTestTargets.isEmpty() ) {
+	    // Still build, but do not run any test.
+	    for ( String testTarget : getTestTargets() ) {
+		arguments.add("-skip-testing:" + testTarget);
+	    }
+	}
+	else {
+	    for ( String testTarget : impactedTestTargets ) {
+		arguments.add("-only-testing:" + testTarget);
+	    }
+	}
+	return arguments;
+    }
+
+    /**
+     * Collects the changes of the build and of the builds since the last successful one, so that changes first
+     * built by a failed or aborted build are tested again.
+     * @return the paths changed since the last successful build according to the SCM, or null when there is no
+     * successful build or the changes are not known
+     */
+    public static List<String> changedFiles(Run<?, ?> build) {
+	List<String> changedFiles = new ArrayList<String>();
+	for ( Run<?, ?> run = build; run != null; run = run.getPreviousBuild() ) {
+	    if ( run != build && run.getResult() == Result.SUCCESS ) {
+		return changedFiles;
+	    }
+	    if ( !(run instanceof RunWithSCM) ) {
+		return null;
+	    }
+	    for ( ChangeLogSet<? extends ChangeLogSet.Entry> changeSet : ((RunWithSCM<?, ?>)run).getChangeSets() ) {
+		for ( ChangeLogSet.Entry entry : changeSet ) {
+		    changedFiles.addAll(entry.getAffectedPaths());
+		}
+	    }
+	}
+	return null;
+    }
+
+    /**
+     * Take the projects that are built, the ones in the workspace, the project file or the one in the directory.
+     * @param discovery the projects read on the agent, see {@link XcodeDiscoveryCallable}
+     * @param projectRootPath the directory of the projects relative to the workspace, or empty
+     * @return the analysis, or null when a project could not be read
+     */
+    public static TestImpactAnalysis load(XcodeDiscoveryCallable.Result discovery, String projectRootPath, String xcodeWorkspaceFile, String xcodeProjectFile) {
+	TestImpactAnalysis analysis = new TestImpactAnalysis();
+	if ( !StringUtils.isEmpty(xcodeWorkspaceFile) ) {
+	    XcodeWorkspace workspace = discovery.getWorkspace();
+	    if ( workspace == null ) {
+		return null;
+	    }
+	    for ( Map.Entry<String, XcodeProject> project : workspace.projects.entrySet() ) {
+		if ( project.getValue() == null ) {
+		    return null;
+		}
+		// Projects outside the workspace of the build can not have changes.
+		if ( !project.getKey().startsWith("/") ) {
+		    String location = XcodeProjectParser.normalizePath(XcodeProjectParser.parentPath(xcodeWorkspaceFile), project.getKey());
+		    analysis.addProject(XcodeProjectParser.normalizePath(StringUtils.defaultString(projectRootPath), XcodeProjectParser.parentPath(location)), project.getValue());
+		}
+	    }
+	    return analysis;
+	}
+	List<String> projectLocations = new ArrayList<String>();
+	if ( !StringUtils.isEmpty(xcodeProjectFile) ) {
+	    projectLocations.add(xcodeProjectFile);
+	}
+	else if ( discovery.getDirectoryProjects() != null ) {
+	    projectLocations.addAll(discovery.getDirectoryProjects());
+	}
+	for ( String location : projectLocations ) {
+	    XcodeProject project = discovery.getProject(location);
+	    if ( project == null ) {
+		return null;
+	    }
+	    analysis.addProject(XcodeProjectParser.normalizePath(StringUtils.defaultString(projectRootPath), XcodeProjectParser.parentPath(location)), project);
+	}
+	return analysis;
+    }
+}
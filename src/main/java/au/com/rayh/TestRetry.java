@@ -0,0 +1,344 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011 Ray Yamamoto Hilton
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package au.com.rayh;
+
+import hudson.FilePath;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.bind.JAXBException;
+import javax.xml.datatype.DatatypeConfigurationException;
+import javax.xml.datatype.DatatypeFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import au.com.rayh.report.TestCase;
+import au.com.rayh.report.TestError;
+import au.com.rayh.report.TestFailure;
+import au.com.rayh.report.TestReportWriter;
+import au.com.rayh.report.TestSuite;
+
+/**
+ * Reruns the failed tests of a test run with "xcodebuild test-without-building -only-testing:", and merges the
+ * results of the rerun into the JUnit reports of the first run.
+ * Like the Maven Surefire plugin, a test that passes when it is rerun is reported as passed with its earlier
+ * failures as flakyFailure elements, and a test that fails again keeps its failure with the later ones as
+ * rerunFailure elements.
+ */
+public class TestRetry {
+    private static final Set<String> ACTIONS = new HashSet<String>(Arrays.asList("clean", "build", "archive", "analyze", "install", "installsrc", "build-for-testing"));
+    // Options that are followed by a value.
+    private static final Set<String> OPTIONS_WITH_VALUE = new HashSet<String>(Arrays.asList("-archivePath", "-resultBundlePath", "-enableCodeCoverage", "-only-testing", "-skip-testing"));
+    // Options before an action that are not followed by a value, besides -name=value and -name:value.
+    private static final Set<String> FLAGS = new HashSet<String>(Arrays.asList("-alltargets", "-quiet", "-verbose", "-allowProvisioningUpdates",
+	    "-allowProvisioningDeviceRegistration", "-hideShellScriptEnvironment", "-parallelizeTargets", "-skipUnavailableActions", "-json"));
+
+    private TestRetry() {
+    }
+
+    /**
+     * @return the test as "TestTarget/TestClass/testMethod", or null when its class name does not have the module of
+     * the test target
+     */
+    static String testIdentifier(TestCase testCase) {
+	String className = testCase.getClassname();
+	if ( className == null ) {
+	    return null;
+	}
+	int module = className.indexOf('.');
+	if ( module <= 0 || module == className.length() - 1 ) {
+	    return null;
+	}
+	String name = testCase.getName();
+	if ( name.endsWith("()") ) {
+	    name = name.substring(0, name.length() - 2);
+	}
+	return className.substring(0, module) + "/" + className.substring(module + 1) + "/" + name;
+    }
+
+    /**
+     * @return the failed tests as "TestTarget/TestClass/testMethod", or null when one of them can not be named that way
+     */
+    public static List<String> failedTests(Collection<TestSuite> testSuites) {
+	List<String> failedTests = new ArrayList<String>();
+	for ( TestSuite testSuite : testSuites ) {
+	    for ( TestCase testCase : testSuite.getTestCases() ) {
+		if ( !testCase.getFailures().isEmpty() || !testCase.getErrors().isEmpty() ) {
+		    String testIdentifier = testIdentifier(testCase);
+		    if ( testIdentifier == null ) {
+			return null;
+		    }
+		    failedTests.add(testIdentifier);
+		}
+	    }
+	}
+	return failedTests;
+    }
+
+    /**
+     * Turns the command line of the first run into one that only runs the given tests, without building again.
+     * @param resultBundlePath where the rerun writes its result bundle, or null
+     * @return the command line, or null when the first run did not run tests
+     */
+    public static List<String> retryCommandLine(List<String> commandLine, List<String> failedTests, String resultBundlePath) {
+	List<String> retry = new ArrayList<String>();
+	boolean test = false;
+	for ( int i = 0; i < commandLine.size(); i++ ) {
+	    String argument = commandLine.get(i);
+	    String previous = i > 0 ? commandLine.get(i - 1) : "";
+	    boolean action = i > 0 && (!previous.startsWith("-") || FLAGS.contains(previous) || previous.contains("=") || previous.contains(":"));
+	    if ( action && (argument.equals("test") || argument.equals("test-without-building")) ) {
+		if ( !test ) {
+		    retry.add("test-without-building");
+		    test = true;
+		}
+	    }
+	    else if ( action && ACTIONS.contains(argument) ) {
+		// Not run again.
+	    }
+	    else if ( OPTIONS_WITH_VALUE.contains(argument) ) {
+		i++;
+	    }
+	    else if ( !argument.startsWith("-only-testing:") && !argument.startsWith("-skip-testing:") ) {
+		retry.add(argument);
+	    }
+	}
+	if ( !test ) {
+	    return null;
+	}
+	if ( resultBundlePath != null ) {
+	    retry.add("-resultBundlePath");
+	    retry.add(resultBundlePath);
+	}
+	for ( String failedTest : failedTests ) {
+	    retry.add("-only-testing:" + failedTest);
+	}
+	return retry;
+    }
+
+    /**
+     * Reads the JUnit reports that are new or were rewritten since the reports were listed.
+     * @param previousTestReports the reports listed with {@link TestDurationStore#listTestReports(FilePath)} before the run
+     * @return the test suites by name
+     */
+    public static Map<String, TestSuite> readTestReports(FilePath testReportsDir, Map<String, Long> previousTestReports) throws IOException, InterruptedException {
+	Map<String, TestSuite> testSuites = new LinkedHashMap<String, TestSuite>();
+	for ( Map.Entry<String, Long> testReport : TestDurationStore.listTestReports(testReportsDir).entrySet() ) {
+	    if ( testReport.getValue().equals(previousTestReports.get(testReport.getKey())) ) {
+		continue;
+	    }
+	    try ( InputStream in = testReportsDir.child(testReport.getKey()).read() ) {
+		TestSuite testSuite = readTestReport(in);
+		if ( testSuite != null ) {
+		    testSuites.put(testSuite.getName(), testSuite);
+		}
+	    }
+	}
+	return testSuites;
+    }
+
+    static TestSuite readTestReport(InputStream in) throws IOException {
+	XMLInputFactory factory = XMLInputFactory.newInstance();
+	factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+	factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+	try {
+	    XMLStreamReader reader = factory.createXMLStreamReader(in);
+	    try {
+		TestSuite testSuite = null;
+		TestCase testCase = null;
+		while ( reader.hasNext() ) {
+		    int event = reader.next();
+		    if ( event == XMLStreamConstants.END_ELEMENT && reader.getLocalName().equals("testcase") ) {
+			testCase = null;
+		    }
+		    if ( event != XMLStreamConstants.START_ELEMENT ) {
+			continue;
+		    }
+		    String element = reader.getLocalName();
+		    if ( element.equals("testsuite") && testSuite == null ) {
+			testSuite = new TestSuite(reader.getAttributeValue(null, "hostname"), reader.getAttributeValue(null, "name"), null);
+			String time = reader.getAttributeValue(null, "time");
+			if ( time != null ) {
+			    testSuite.setDuration(Float.parseFloat(time));
+			}
+			String timestamp = reader.getAttributeValue(null, "timestamp");
+			if ( timestamp != null ) {
+			    testSuite.setTimestamp(DatatypeFactory.newInstance().newXMLGregorianCalendar(timestamp).toGregorianCalendar().getTime());
+			}
+		    }
+		    else if ( element.equals("testcase") && testSuite != null ) {
+			testCase = new TestCase(reader.getAttributeValue(null, "classname"), reader.getAttributeValue(null, "name"));
+			String time = reader.getAttributeValue(null, "time");
+			if ( time != null ) {
+			    testCase.setTime(Float.parseFloat(time));
+			}
+			testSuite.getTestCases().add(testCase);
+		    }
+		    else if ( testCase != null ) {
+			switch ( element ) {
+			case "failure":
+			    testCase.getFailures().add(readFailure(reader));
+			    break;
+			case "flakyFailure":
+			    testCase.getFlakyFailures().add(readFailure(reader));
+			    break;
+			case "rerunFailure":
+			    testCase.getRerunFailures().add(readFailure(reader));
+			    break;
+			case "error":
+			    testCase.getErrors().add(new TestError(reader.getAttributeValue(null, "message"), reader.getAttributeValue(null, "type")));
+			    break;
+			case "system-out":
+			    testCase.appendSystemOut(reader.getElementText());
+			    break;
+			default:
+			    break;
+			}
+		    }
+		}
+		if ( testSuite != null ) {
+		    testSuite.updateCounts();
+		}
+		return testSuite;
+	    }
+	    finally {
+		reader.close();
+	    }
+	}
+	catch ( XMLStreamException | DatatypeConfigurationException | IllegalArgumentException ex ) {
+	    throw new IOException(ex);
+	}
+    }
+
+    private static TestFailure readFailure(XMLStreamReader reader) throws XMLStreamException {
+	String message = reader.getAttributeValue(null, "message");
+	String location = reader.getElementText();
+	return new TestFailure(message, location.isEmpty() ? null : location);
+    }
+
+    private static List<TestFailure> failuresOf(TestCase testCase) {
+	List<TestFailure> failures = new ArrayList<TestFailure>(testCase.getFailures());
+	for ( TestError error : testCase.getErrors() ) {
+	    failures.add(new TestFailure(error.getMessage(), null));
+	}
+	return failures;
+    }
+
+    /**
+     * Merges the results of a rerun into the results of the earlier runs.
+     * @param testResultsAction the results of the build that are updated for the tests passing on rerun, or null
+     * @return the suites whose reports must be written again: the rerun replaced the report of every suite it ran,
+     *         even when none of its test cases matched one of the earlier runs
+     */
+    public static List<TestSuite> merge(Map<String, TestSuite> testSuites, Map<String, TestSuite> retrySuites, XcodeTestResultsAction testResultsAction) {
+	List<TestSuite> merged = new ArrayList<TestSuite>();
+	for ( TestSuite retrySuite : retrySuites.values() ) {
+	    TestSuite testSuite = testSuites.get(retrySuite.getName());
+	    if ( testSuite == null ) {
+		continue;
+	    }
+	    Map<String, TestCase> testCases = new LinkedHashMap<String, TestCase>();
+	    for ( TestCase testCase : testSuite.getTestCases() ) {
+		testCases.put(testCase.getClassname() + "." + testCase.getName(), testCase);
+	    }
+	    boolean changed = false;
+	    for ( TestCase retryCase : retrySuite.getTestCases() ) {
+		TestCase testCase = testCases.get(retryCase.getClassname() + "." + retryCase.getName());
+		if ( testCase == null || (testCase.getFailures().isEmpty() && testCase.getErrors().isEmpty()) ) {
+		    continue;
+		}
+		List<TestFailure> retryFailures = failuresOf(retryCase);
+		if ( retryFailures.isEmpty() ) {
+		    testCase.getFlakyFailures().addAll(testCase.getRerunFailures());
+		    testCase.getRerunFailures().clear();
+		    testCase.getFlakyFailures().addAll(failuresOf(testCase));
+		    testCase.getFailures().clear();
+		    testCase.getErrors().clear();
+		    testCase.setTime(retryCase.getTime());
+		    if ( testResultsAction != null ) {
+			testResultsAction.passedOnRerun(testSuite, testCase);
+		    }
+		}
+		else {
+		    testCase.getRerunFailures().addAll(retryFailures);
+		}
+		changed = true;
+	    }
+	    if ( changed ) {
+		testSuite.updateCounts();
+	    }
+	    merged.add(testSuite);
+	}
+	return merged;
+    }
+
+    /**
+     * @return the number of tests that failed
+     */
+    public static int countFailures(Collection<TestSuite> testSuites) {
+	int failures = 0;
+	for ( TestSuite testSuite : testSuites ) {
+	    failures += testSuite.getFailures() + testSuite.getErrors();
+	}
+	return failures;
+    }
+
+    /**
+     * @return the number of tests that passed after failing
+     */
+    public static int countFlakyTests(Collection<TestSuite> testSuites) {
+	int flakyTests = 0;
+	for ( TestSuite testSuite : testSuites ) {
+	    for ( TestCase testCase : testSuite.getTestCases() ) {
+		if ( testCase.getFailures().isEmpty() && testCase.getErrors().isEmpty() && !testCase.getFlakyFailures().isEmpty() ) {
+		    flakyTests++;
+		}
+	    }
+	}
+	return flakyTests;
+    }
+
+    public static void writeTestReports(FilePath testReportsDir, Collection<TestSuite> testSuites) throws IOException, InterruptedException {
+	for ( TestSuite testSuite : testSuites ) {
+	    try ( OutputStream out = testReportsDir.child("TEST-" + testSuite.getName() + ".xml").write() ) {
+		TestReportWriter.write(testSuite, out);
+	    }
+	    catch ( JAXBException ex ) {
+		throw new IOException(ex);
+	    }
+	}
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011 Ray Yamamoto Hilton
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package au.com.rayh;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Splits the test classes of a job between shards of about the same duration, so that they can be run on several
+ * agents at once with the -only-testing options of xcodebuild.
+ * The classes and their durations come from the {@link TestDurationStore} of the job, so every shard of a build
+ * gets the same partition. Shard 0 runs everything that is not in the other shards, with -skip-testing options, so
+ * that new tests and tests whose test target is not known still run.
+ */
+public class TestShards {
+    private final List<List<String>> shards;
+    private final float[] durations;
+
+    TestShards(List<List<String>> shards, float[] durations) {
+	this.shards = shards;
+	this.durations = durations;
+    }
+
+    /**
+     * @param testName a test as recorded in the {@link TestDurationStore}, "className.name"
+     * @return the test class as "TestTarget/TestClass", or null when the class name does not have the module of the
+     * test target, as with Objective-C tests
+     */
+    static String testClassIdentifier(String testName) {
+	int method = testName.lastIndexOf('.');
+	if ( method <= 0 ) {
+	    return null;
+	}
+	String className = testName.substring(0, method);
+	int module = className.indexOf('.');
+	if ( module <= 0 || module == className.length() - 1 ) {
+	    return null;
+	}
+	return className.substring(0, module) + "/" + className.substring(module + 1);
+    }
+
+    /**
+     * @return the duration of each test class that ran in the last recorded build, the sum of the medians of the
+     * durations of its tests
+     */
+    static Map<String, Float> testClassDurations(TestDurationStore store) {
+	Map<String, Float> testClasses = new LinkedHashMap<String, Float>();
+	for ( String test : store.getTests() ) {
+	    String testClass = testClassIdentifier(test);
+	    // Removed tests stay in the store for a while.
+	    if ( testClass == null || !store.ranInLastBuild(test) ) {
+		continue;
+	    }
+	    Float duration = testClasses.get(testClass);
+	    testClasses.put(testClass, (duration != null ? duration : 0f) + store.getPercentile(test, 50));
+	}
+	return testClasses;
+    }
+
+    /**
+     * Assigns the longest classes first, each to the shard with the least work so far.
+     * @param testClasses the duration of each test class
+     */
+    static TestShards partition(final Map<String, Float> testClasses, int shardCount) {
+	List<String> sorted = new ArrayList<String>(testClasses.keySet());
+	Collections.sort(sorted, new Comparator<String>() {
+	    public int compare(String class1, String class2) {
+		int comparison = Float.compare(testClasses.get(class2), testClasses.get(class1));
+		return comparison != 0 ? comparison : class1.compareTo(class2);
+	    }
+	});
+	List<List<String>> shards = new ArrayList<List<String>>();
+	float[] durations = new float[shardCount];
+	for ( int i = 0; i < shardCount; i++ ) {
+	    shards.add(new ArrayList<String>());
+	}
+	for ( String testClass : sorted ) {
+	    int shortest = 0;
+	    for ( int i = 1; i < shardCount; i++ ) {
+		if ( durations[i] < durations[shortest] ) {
+		    shortest = i;
+		}
+	    }
+	    shards.get(shortest).add(testClass);
+	    durations[shortest] += testClasses.get(testClass);
+	}
+	for ( List<String> shard : shards ) {
+	    Collections.sort(shard);
+	}
+	return new TestShards(shards, durations);
+    }
+
+    public static TestShards partition(TestDurationStore store, int shardCount) {
+	return partition(testClassDurations(store), shardCount);
+    }
+
+    public int getShardCount() {
+	return shards.size();
+    }
+
+    /**
+     * @return the test classes of a shard, as "TestTarget/TestClass"
+     */
+    public List<String> getTestClasses(int shard) {
+	return Collections.unmodifiableList(shards.get(shard));
+    }
+
+    /**
+     * @return the expected duration of a shard in seconds, without the tests that were never recorded
+     */
+    public float getDuration(int shard) {
+	return durations[shard];
+    }
+
+    /**
+     * @return whether a shard has nothing to run, which only happens to the shards after the first one
+     */
+    public boolean isEmpty(int shard) {
+	return shard > 0 && shards.get(shard).isEmpty();
+    }
+
+    /**
+     * @return the xcodebuild options that select the tests of a shard
+     */
+    public List<String> getArguments(int shard) {
+	List<String> arguments = new ArrayList<String>();
+	if ( shard == 0 ) {
+	    for ( int i = 1; i < shards.size(); i++ ) {
+		for ( String testClass : shards.get(i) ) {
+		    arguments.add("-skip-testing:" + testClass);
+		}
+	    }
+	}
+	else {
+	    for ( String testClass : shards.get(shard) ) {
+		arguments.add("-only-testing:" + testClass);
+	    }
+	}
+	return arguments;
+    }
+}
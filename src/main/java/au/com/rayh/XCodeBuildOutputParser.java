@@ -30,21 +30,26 @@ import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
-import javax.xml.bind.Marshaller;
 
 import au.com.rayh.report.TestCase;
+import au.com.rayh.report.TestCaseSpool;
 import au.com.rayh.report.TestError;
 import au.com.rayh.report.TestFailure;
+import au.com.rayh.report.TestReportWriter;
 import au.com.rayh.report.TestSuite;
 
 /**
@@ -60,22 +65,57 @@ public class XCodeBuildOutputParser {
 	new SimpleDateFormat("yyyy-MM-dd HH:mm:ss z"),
 	new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS")
     };
-    private static Pattern START_SUITE = Pattern.compile("Test Suite '([^\\/](?:\\.|[^'\\\\])*)'\\s+started at\\s+(.*)");
-    private static Pattern END_SUITE = Pattern.compile("Test Suite '([^\\/](?:\\.|[^'\\\\])*)'\\s+\\S+\\s+at\\s+(.*).");
-    private static Pattern START_TESTCASE = Pattern.compile("Test Case '-\\[(\\S+)\\s+(\\S+)\\]' started.");
-    private static Pattern END_TESTCASE = Pattern.compile("Test Case '-\\[(\\S+)\\s+(\\S+)\\]' passed \\((.*) seconds\\).");
-    private static Pattern ERROR_TESTCASE = Pattern.compile("(.*): error: -\\[(\\S+)\\s+(\\S+)\\] : (.*)");
-    private static Pattern ERROR_UI_TESTCASE = Pattern.compile(".*?Assertion Failure: (.+:\\d+): (.*)");
-    private static Pattern FAILED_TESTCASE = Pattern.compile("Test Case '-\\[(\\S+)\\s+(\\S+)\\]' failed \\((\\S+) seconds\\).");
-    private static Pattern FAILED_WITH_EXIT_CODE = Pattern.compile("failed with exit code (\\d+)");
-    private static Pattern TERMINATING_EXCEPTION = Pattern.compile(".*\\*\\*\\* Terminating app due to uncaught exception '(\\S+)', reason: '(.+[^\\\\])'.*");
+    static final Pattern START_SUITE = Pattern.compile("Test Suite '([^\\/](?:\\.|[^'\\\\])*)'\\s+started at\\s+(.*)");
+    static final Pattern END_SUITE = Pattern.compile("Test Suite '([^\\/](?:\\.|[^'\\\\])*)'\\s+\\S+\\s+at\\s+(.*).");
+    static final Pattern START_TESTCASE = Pattern.compile("Test Case '-\\[(\\S+)\\s+(\\S+)\\]' started.");
+    static final Pattern END_TESTCASE = Pattern.compile("Test Case '-\\[(\\S+)\\s+(\\S+)\\]' passed \\((.*) seconds\\).");
+    static final Pattern ERROR_TESTCASE = Pattern.compile("(.*): error: -\\[(\\S+)\\s+(\\S+)\\] : (.*)");
+    static final Pattern ERROR_UI_TESTCASE = Pattern.compile(".*?Assertion Failure: (.+:\\d+): (.*)");
+    static final Pattern FAILED_TESTCASE = Pattern.compile("Test Case '-\\[(\\S+)\\s+(\\S+)\\]' failed \\((\\S+) seconds\\).");
+    static final Pattern FAILED_WITH_EXIT_CODE = Pattern.compile("failed with exit code (\\d+)");
+    static final Pattern PARALLEL_START_SUITE = Pattern.compile("Test [Ss]uite '([^\\/][^']*)' started on '(.+)'");
+    static final Pattern PARALLEL_TESTCASE = Pattern.compile("Test [Cc]ase '(.+)' (passed|failed) on '(.+)' \\((\\S+) seconds\\)");
+    static final Pattern TERMINATING_EXCEPTION = Pattern.compile(".*\\*\\*\\* Terminating app due to uncaught exception '(\\S+)', reason: '(.+[^\\\\])'.*");
+    // Literal markers used to decide which of the patterns above can possibly match a line.
+    // Every pattern only matches lines that start with, equal or contain one of these.
+    private static final String SUITE_PREFIX = "Test Suite '";
+    private static final String PARALLEL_SUITE_PREFIX = "Test suite '";
+    private static final String TESTCASE_PREFIX = "Test Case '";
+    private static final String PARALLEL_TESTCASE_PREFIX = "Test case '";
+    private static final String EXIT_CODE_PREFIX = "failed with exit code ";
+    private static final String BUILD_FAILED = "BUILD FAILED";
+    private static final String TEST_FAILED = "** TEST FAILED **";
+    private static final String ERROR_MARKER = ": error: -[";
+    private static final String UI_ERROR_MARKER = "Assertion Failure: ";
+    private static final String TERMINATING_MARKER = "*** Terminating app due to uncaught exception '";
+    static final int SUITE_LINE = 1;
+    static final int TESTCASE_LINE = 1 << 1;
+    static final int ERROR_LINE = 1 << 2;
+    static final int UI_ERROR_LINE = 1 << 3;
+    static final int EXIT_CODE_LINE = 1 << 4;
+    static final int BUILD_FAILED_LINE = 1 << 5;
+    static final int TERMINATING_LINE = 1 << 6;
     private File testReportsDir;
     protected OutputStream captureOutputStream;
     protected int exitCode;
     protected HashMap<String, TestSuite> testSuitesHash = new HashMap<String, TestSuite>();
     protected TestSuite currentTestSuite = null;
     protected TestCase currentTestCase = null;
+    // In bounded memory mode finished test cases are spooled to disk instead of being kept until the suite ends.
+    protected boolean boundedMemory = false;
+    // The last finished test case, spooled once the next one finishes so that late errors can still be added.
+    private TestSuite finishedTestSuite = null;
+    private TestCase finishedTestCase = null;
+    // With parallel testing every clone runs whole test classes and only reports results, in any order.
+    // Those suites are kept here keyed by class name, their test cases keyed by name, until the output ends.
+    protected LinkedHashMap<String, TestSuite> parallelTestSuites = new LinkedHashMap<String, TestSuite>();
+    // How many times a suite was started and not yet finished, e.g. 'All tests' is started once per clone.
+    private HashMap<String, Integer> openSuiteCount = new HashMap<String, Integer>();
+    // Names of the suites started by the serial output, so that their late errors are not taken for a parallel test runner.
+    private HashSet<String> startedTestSuites = new HashSet<String>();
     protected boolean consoleLog;
+    private byte[] lineBuffer = new byte[1024];
+    private int lineLength = 0;
 
     protected XCodeBuildOutputParser() {
         super();
@@ -94,7 +134,7 @@ public class XCodeBuildOutputParser {
     }
 
     public class LineBasedFilterOutputStream extends FilterOutputStream {
-        StringBuilder buffer = new StringBuilder();
+        private final byte[] singleByte = new byte[1];
 
         public LineBasedFilterOutputStream(OutputStream log) {
             super(log);
@@ -102,18 +142,69 @@ public class XCodeBuildOutputParser {
 
         @Override
         public void write(int b) throws IOException {
-            super.write(b);
-            if((char)b == '\n') {
-                try {
-                    handleLine(buffer.toString());
-                    buffer = new StringBuilder();
-                } catch(Exception e) {  // Very fugly
-                    throw new IOException(e);
+            singleByte[0] = (byte)b;
+            write(singleByte, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            try {
+                handleBytes(b, off, len);
+            } catch(Exception e) {  // Very fugly
+                throw new IOException(e);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                finishTestSuites();
+            } catch(InterruptedException | JAXBException e) {
+                throw new IOException(e);
+            }
+            super.close();
+        }
+    }
+
+    /**
+     * Split a chunk of raw xcodebuild output into lines and pass each complete line to {@link #handleLine(String)}.
+     * Lines are decoded as UTF-8 once they are complete, so multi-byte characters spanning two chunks are kept intact.
+     * Any bytes after the last newline are kept until the next chunk arrives.
+     * @param b the output bytes
+     * @param off the start offset in the data
+     * @param len the number of bytes to handle
+     */
+    protected void handleBytes(byte[] b, int off, int len) throws ParseException, IOException, InterruptedException, JAXBException {
+        int start = off;
+        int end = off + len;
+        for ( int i = off; i < end; i++ ) {
+            if ( b[i] == '\n' ) {
+                String line;
+                if ( lineLength == 0 ) {
+                    // Whole line is in this chunk, decode straight from the caller's buffer.
+                    line = new String(b, start, i - start, StandardCharsets.UTF_8);
                 }
-            } else {
-                buffer.append((char)b);
+                else {
+                    appendToLineBuffer(b, start, i - start);
+                    line = new String(lineBuffer, 0, lineLength, StandardCharsets.UTF_8);
+                    lineLength = 0;
+                }
+                start = i + 1;
+                handleLine(line);
             }
         }
+        if ( start < end ) {
+            appendToLineBuffer(b, start, end - start);
+        }
+    }
+
+    private void appendToLineBuffer(byte[] b, int off, int len) {
+        if ( lineLength + len > lineBuffer.length ) {
+            lineBuffer = Arrays.copyOf(lineBuffer, Math.max(lineBuffer.length * 2, lineLength + len));
+        }
+        System.arraycopy(b, off, lineBuffer, lineLength, len);
+        lineLength += len;
     }
 
     private Date parseDate(String text) throws ParseException {
@@ -174,174 +265,479 @@ public class XCodeBuildOutputParser {
         }
     }
 
+    /**
+     * Look up a test suite the same way requireTestSuite does, without failing.
+     * @return the started test suite, or null if the serial output never started it
+     */
+    private TestSuite findTestSuite(String name) {
+        TestSuite testSuite = testSuitesHash.get(name);
+        if ( testSuite == null ) {
+            // Swift
+            String[] testSuites = name.split(Pattern.quote("."));
+            if ( testSuites.length == 2 && testSuitesHash.containsKey(testSuites[0] + ".xctest") ) {
+                testSuite = testSuitesHash.get(testSuites[1]);
+            }
+        }
+        return testSuite;
+    }
+
+    /**
+     * @return whether the serial output started a test suite with this name, even if it has ended since
+     */
+    private boolean isStartedTestSuite(String name) {
+        if ( startedTestSuites.contains(name) ) {
+            return true;
+        }
+        // Swift
+        String[] testSuites = name.split(Pattern.quote("."));
+        return testSuites.length == 2 && startedTestSuites.contains(testSuites[0] + ".xctest") && startedTestSuites.contains(testSuites[1]);
+    }
+
+    private TestCase findTestCase(String suiteName, String testCaseName) {
+        TestSuite testSuite = findTestSuite(suiteName);
+        return testSuite == null ? null : testSuite.getTestCasesHash().get(testCaseName);
+    }
+
     private void writeTestReport() throws IOException, InterruptedException,
             JAXBException {
-        try (OutputStream testReportOutputStream = outputForSuite()) {
-            JAXBContext jaxbContext;
-            Thread t = Thread.currentThread();
-            ClassLoader orig = t.getContextClassLoader();
-            t.setContextClassLoader(XCodeBuildOutputParser.class.getClassLoader());
-            try {
-                jaxbContext = JAXBContext.newInstance(TestSuite.class);
-            } finally {
-                t.setContextClassLoader(orig);
+        if ( finishedTestSuite == currentTestSuite ) {
+            spoolFinishedTestCase();
+        }
+        try {
+            writeTestReport(currentTestSuite);
+        } finally {
+            TestCaseSpool spool = currentTestSuite.getSpool();
+            if ( spool != null ) {
+                spool.close();
+                currentTestSuite.setSpool(null);
             }
-            Marshaller marshaller = jaxbContext.createMarshaller();
-            marshaller.marshal(currentTestSuite, testReportOutputStream);
         }
     }
 
-    protected OutputStream outputForSuite() throws IOException,
-            InterruptedException {
-        return new FileOutputStream(new File(testReportsDir, "TEST-" + currentTestSuite.getName() + ".xml"));
+    /**
+     * Keep memory bounded for large test bundles: finished test cases are marshalled to a temporary file and
+     * released, instead of being held by their suite until it ends. Test cases in the report of a suite are
+     * ordered by when they were released, which only differs from the output for crashed or UI tests.
+     * Does not apply to the output of parallel test runners.
+     */
+    public void setBoundedMemory(boolean boundedMemory) {
+        this.boundedMemory = boundedMemory;
     }
 
-    protected void handleLine(String line) throws ParseException, IOException, InterruptedException, JAXBException {
-        Matcher m = START_SUITE.matcher(line);
-        if(m.matches()) {
-	    if (testSuitesHash.isEmpty()) {
-	    	consoleLog = true;
-	    }
-	    String suite_name = m.group(1);
-	    if ( m.group(1).endsWith(".xctest") ) {
-		suite_name = suite_name.replaceAll("-", "_");
-	    }
-            currentTestSuite = new TestSuite(InetAddress.getLocalHost().getHostName(), m.group(1), parseDate(m.group(2)));
-	    testSuitesHash.put(suite_name, currentTestSuite);
+    private void addFinishedTestCase(TestSuite testSuite, TestCase testCase) throws IOException, JAXBException {
+        if ( !boundedMemory ) {
+            testSuite.getTestCases().add(testCase);
             return;
         }
+        spoolFinishedTestCase();
+        finishedTestSuite = testSuite;
+        finishedTestCase = testCase;
+    }
 
-        m = END_SUITE.matcher(line);
-        if(m.matches()) {
-            String suite_name = m.group(1);
-            if ( m.group(1).endsWith(".xctest") ) {
-                suite_name = suite_name.replaceAll("-", "_");
-            }
-	    requireTestSuite(suite_name);
-            currentTestSuite.setEndTime(parseDate(m.group(2)));
-            writeTestReport();
-            testSuitesHash.remove(suite_name);
-	    currentTestSuite = null;
-	    if ( testSuitesHash.size() == 1 ) {
-		// If the last test suitev in nhash is Unknown, process it and exit.
-		currentTestSuite = testSuitesHash.get("UnknownSuite");
-		if ( currentTestSuite != null ) {
-		    currentTestSuite.setEndTime(parseDate(m.group(2)));
-		    writeTestReport();
-		    testSuitesHash.remove(suite_name);
-		    currentTestSuite = null;
-		}
-	    }
-	    if (testSuitesHash.isEmpty()) {
-                consoleLog = false;
-	    }
+    private void spoolFinishedTestCase() throws IOException, JAXBException {
+        if ( finishedTestCase == null ) {
             return;
         }
+        TestCaseSpool spool = finishedTestSuite.getSpool();
+        if ( spool == null ) {
+            spool = new TestCaseSpool();
+            finishedTestSuite.setSpool(spool);
+        }
+        spool.append(finishedTestCase);
+        finishedTestSuite.getTestCasesHash().remove(finishedTestCase.getName());
+        finishedTestSuite = null;
+        finishedTestCase = null;
+    }
 
-        m = START_TESTCASE.matcher(line);
-        if(m.matches()) {
-	    requireTestSuite(m.group(1));
-	    currentTestCase = new TestCase(m.group(1), m.group(2));
-            currentTestSuite.getTestCasesHash().put(m.group(2), currentTestCase);
-            return;
+    /**
+     * Write the JUnit report of a finished test suite.
+     * @param testSuite the suite to write
+     */
+    protected void writeTestReport(TestSuite testSuite) throws IOException, InterruptedException,
+            JAXBException {
+        try (OutputStream testReportOutputStream = outputForSuite(testSuite)) {
+            TestReportWriter.write(testSuite, testReportOutputStream);
         }
+    }
 
-        m = END_TESTCASE.matcher(line);
-        if(m.matches()) {
-            requireTestSuite(m.group(1));
-            requireTestCase(m.group(2));
-            currentTestCase.setTime(Float.parseFloat(m.group(3)));
-            currentTestSuite.getTestCases().add(currentTestCase);
-            currentTestSuite.addTest();
-	    // Actually, I think that the test case should be closed and deleted here.
-	    // In case the error is reported late without synchronization.
-	    //currentTestSuite.getTestCasesHash().remove(m.group(2));
-	    currentTestCase = null;
-	    return;
-	}
+    protected OutputStream outputForSuite() throws IOException,
+            InterruptedException {
+        return outputForSuite(currentTestSuite);
+    }
 
-        m = ERROR_TESTCASE.matcher(line);
-        if(m.matches()) {
-            String errorLocation = m.group(1);
-            String testSuite = m.group(2);
-            String testCase = m.group(3);
-            String errorMessage = m.group(4);
-            requireTestSuite(testSuite);
-            requireTestCase(testCase);
-            TestFailure failure = new TestFailure(errorMessage, errorLocation);
-            currentTestCase.getFailures().add(failure);
-            return;
+    protected OutputStream outputForSuite(TestSuite testSuite) throws IOException,
+            InterruptedException {
+        return new FileOutputStream(new File(testReportsDir, "TEST-" + testSuite.getName() + ".xml"));
+    }
+
+    /**
+     * Called as soon as the result of a test case is known, before the report of its suite is written.
+     * @param testSuite the suite the test case belongs to
+     * @param testCase the finished test case
+     * @param failed whether the test case failed
+     */
+    protected void testCaseFinished(TestSuite testSuite, TestCase testCase, boolean failed) throws IOException, InterruptedException {
+    }
+
+    /**
+     * Strip the module from a test class name, "MyAppTests.LoginTests" becomes "LoginTests".
+     */
+    private static String testClassName(String name) {
+        return name.substring(name.lastIndexOf('.') + 1);
+    }
+
+    private TestSuite parallelTestSuite(String name) throws IOException {
+        String suiteName = testClassName(name);
+        TestSuite testSuite = parallelTestSuites.get(suiteName);
+        if ( testSuite == null ) {
+            testSuite = new TestSuite(InetAddress.getLocalHost().getHostName(), suiteName, new Date());
+            parallelTestSuites.put(suiteName, testSuite);
         }
+        return testSuite;
+    }
 
-	// If the test result is returned asynchronously, there is a possibility
-	//  that in this case the target test can not be decided and information
-	//  is recorded in the wrong place.
-        m = ERROR_UI_TESTCASE.matcher(line);
-        if(m.matches()) {
-            String errorLocation = m.group(1);
-            String errorMessage = m.group(2);
-            TestFailure failure = new TestFailure(errorMessage, errorLocation);
+    private TestCase parallelTestCase(TestSuite testSuite, String name) {
+        TestCase testCase = testSuite.getTestCasesHash().get(name);
+        if ( testCase == null ) {
+            testCase = new TestCase(testSuite.getName(), name);
+            testSuite.getTestCasesHash().put(name, testCase);
+        }
+        return testCase;
+    }
 
- 	    if ( currentTestSuite == null ) {
-		currentTestSuite = testSuitesHash.get("UnknownSuite");
-		if ( currentTestSuite == null ) {
- 		    currentTestSuite = new TestSuite(InetAddress.getLocalHost().getHostName(), "UnknownSuite", new Date());
-		    testSuitesHash.put("UnknownSuite", currentTestSuite);
-		}
- 	    }
-                  
-	    if ( currentTestCase == null ) {
-		currentTestCase = currentTestSuite.getTestCasesHash().get("UnknownTestCase");
-		if ( currentTestCase == null ) {
-		    currentTestCase = new TestCase(currentTestSuite.getName(), "UnknownTestCase");
-		    currentTestSuite.getTestCasesHash().put("UnknownTestCase", currentTestCase);
-		    currentTestSuite.getTestCases().add(currentTestCase);
-		    currentTestSuite.addTest();
-		}
-	    }
+    /**
+     * Record the result of a test reported by a parallel test runner, e.g.
+     * "Test case '-[LoginTests testLogin]' failed on 'Clone 1 of iPhone 8' (0.5 seconds)"
+     * or "Test case 'LoginTests.testLogin()' passed on 'Clone 2 of iPhone 8' (0.1 seconds)".
+     */
+    private void handleParallelTestCase(String test, boolean failed, float time) throws IOException, InterruptedException {
+        String className;
+        String testName;
+        if ( test.startsWith("-[") && test.endsWith("]") ) {
+            String[] names = test.substring(2, test.length() - 1).split("\\s+", 2);
+            className = names[0];
+            testName = names.length > 1 ? names[1] : "";
+        }
+        else {
+            int separator = test.lastIndexOf('.');
+            className = separator < 0 ? "UnknownSuite" : test.substring(0, separator);
+            testName = test.substring(separator + 1).replaceAll("\\(\\)$", "");
+        }
+        TestSuite testSuite = parallelTestSuite(className);
+        TestCase testCase = parallelTestCase(testSuite, testName);
+        // Finished, any failure reported later belongs to another run of this test.
+        testSuite.getTestCasesHash().remove(testName);
+        testCase.setTime(time);
+        testSuite.getTestCases().add(testCase);
+        testSuite.addTest();
+        if ( failed ) {
+            testSuite.addFailure();
+        }
+        testCaseFinished(testSuite, testCase, failed);
+    }
 
-            currentTestCase.getFailures().add(failure);
-            return;
+    /**
+     * Write the suites collected from parallel test runners. Called once the xcodebuild output has ended.
+     * Failures whose result line never arrived are written as failed test cases.
+     */
+    public void finishTestSuites() throws IOException, InterruptedException, JAXBException {
+        Iterator<TestSuite> iterator = parallelTestSuites.values().iterator();
+        while ( iterator.hasNext() ) {
+            TestSuite testSuite = iterator.next();
+            for ( TestCase testCase : testSuite.getTestCasesHash().values() ) {
+                testSuite.getTestCases().add(testCase);
+                testSuite.addTest();
+                testSuite.addFailure();
+            }
+            testSuite.getTestCasesHash().clear();
+            float duration = 0;
+            for ( TestCase testCase : testSuite.getTestCases() ) {
+                duration += testCase.getTime();
+            }
+            testSuite.setEndTime(new Date());
+            // Test classes share the clones, the wall clock time would include other suites.
+            testSuite.setDuration(duration);
+            writeTestReport(testSuite);
+            iterator.remove();
         }
+    }
 
-        m = FAILED_TESTCASE.matcher(line);
-        if(m.matches()) {
-            requireTestSuite(m.group(1));
-            requireTestCase(m.group(2));
-            currentTestSuite.addTest();
-            currentTestSuite.addFailure();
-            currentTestCase.setTime(Float.parseFloat(m.group(3)));
-            currentTestSuite.getTestCases().add(currentTestCase);
-	    //currentTestSuite.getTestCasesHash().remove(m.group(2));
-	    currentTestCase = null;
-            return;
+    /**
+     * Work out which kinds of test output a line could be, without running any regular expression.
+     * The leading token decides between suite, test case and exit code lines; the markers that may appear anywhere
+     * in a line are found in a single pass, dispatching on their first character.
+     * @param line a line of xcodebuild output
+     * @return a bit mask of the *_LINE constants, 0 if the line can not be test output
+     */
+    static int classifyLine(String line) {
+        int candidates = 0;
+        int length = line.length();
+        if ( length == 0 ) {
+            return 0;
+        }
+        switch ( line.charAt(0) ) {
+        case 'T':
+            if ( line.startsWith(SUITE_PREFIX) || line.startsWith(PARALLEL_SUITE_PREFIX) ) {
+                candidates |= SUITE_LINE;
+            }
+            else if ( line.startsWith(TESTCASE_PREFIX) || line.startsWith(PARALLEL_TESTCASE_PREFIX) ) {
+                candidates |= TESTCASE_LINE;
+            }
+            break;
+        case 'f':
+            if ( line.startsWith(EXIT_CODE_PREFIX) ) {
+                candidates |= EXIT_CODE_LINE;
+            }
+            break;
+        case 'B':
+        case '*':
+            if ( line.equals(BUILD_FAILED) || line.equals(TEST_FAILED) ) {
+                candidates |= BUILD_FAILED_LINE;
+            }
+            break;
+        default:
+            break;
+        }
+        for ( int i = 0; i < length; i++ ) {
+            switch ( line.charAt(i) ) {
+            case ':':
+                if ( line.startsWith(ERROR_MARKER, i) ) {
+                    candidates |= ERROR_LINE;
+                }
+                break;
+            case 'A':
+                if ( line.startsWith(UI_ERROR_MARKER, i) ) {
+                    candidates |= UI_ERROR_LINE;
+                }
+                break;
+            case '*':
+                if ( line.startsWith(TERMINATING_MARKER, i) ) {
+                    candidates |= TERMINATING_LINE;
+                }
+                break;
+            default:
+                break;
+            }
         }
+        return candidates;
+    }
 
-        m = FAILED_WITH_EXIT_CODE.matcher(line);
-        if(m.matches()) {
-            exitCode = Integer.parseInt(m.group(1));
+    protected void handleLine(String line) throws ParseException, IOException, InterruptedException, JAXBException {
+        int candidates = classifyLine(line);
+        if ( candidates == 0 ) {
+            // Compiler and linker output, nothing to parse.
             return;
         }
+        Matcher m;
+        if ( (candidates & SUITE_LINE) != 0 ) {
+            m = START_SUITE.matcher(line);
+            if(m.matches()) {
+                if (testSuitesHash.isEmpty()) {
+                    consoleLog = true;
+                }
+                String suite_name = m.group(1);
+                if ( m.group(1).endsWith(".xctest") ) {
+                    suite_name = suite_name.replaceAll("-", "_");
+                }
+                Integer open = openSuiteCount.get(suite_name);
+                if ( open != null && testSuitesHash.containsKey(suite_name) ) {
+                    // Started again by another test runner before the first one finished it.
+                    openSuiteCount.put(suite_name, open + 1);
+                    currentTestSuite = testSuitesHash.get(suite_name);
+                    return;
+                }
+                openSuiteCount.put(suite_name, 1);
+                startedTestSuites.add(suite_name);
+                currentTestSuite = new TestSuite(InetAddress.getLocalHost().getHostName(), m.group(1), parseDate(m.group(2)));
+                testSuitesHash.put(suite_name, currentTestSuite);
+                return;
+            }
 
-        if(line.matches("BUILD FAILED") || line.matches("\\*\\* TEST FAILED \\*\\*")) {
-            exitCode = -1;
+            m = END_SUITE.matcher(line);
+            if(m.matches()) {
+                String suite_name = m.group(1);
+                if ( m.group(1).endsWith(".xctest") ) {
+                    suite_name = suite_name.replaceAll("-", "_");
+                }
+                if ( !parallelTestSuites.isEmpty() && findTestSuite(suite_name) == null ) {
+                    // Summary of the parallel test runners, e.g. 'Selected tests', which was never started here.
+                    return;
+                }
+                requireTestSuite(suite_name);
+                currentTestSuite.setEndTime(parseDate(m.group(2)));
+                Integer open = openSuiteCount.remove(suite_name);
+                if ( open != null && open > 1 ) {
+                    // Other test runners are still running this suite, write it when the last one finishes.
+                    openSuiteCount.put(suite_name, open - 1);
+                    currentTestSuite = null;
+                    return;
+                }
+                writeTestReport();
+                testSuitesHash.remove(suite_name);
+                currentTestSuite = null;
+                if ( testSuitesHash.size() == 1 ) {
+                    // If the last test suitev in nhash is Unknown, process it and exit.
+                    currentTestSuite = testSuitesHash.get("UnknownSuite");
+                    if ( currentTestSuite != null ) {
+                        currentTestSuite.setEndTime(parseDate(m.group(2)));
+                        writeTestReport();
+                        testSuitesHash.remove(suite_name);
+                        currentTestSuite = null;
+                    }
+                }
+                if (testSuitesHash.isEmpty()) {
+                    consoleLog = false;
+                }
+                return;
+            }
+
+            m = PARALLEL_START_SUITE.matcher(line);
+            if(m.matches()) {
+                String suite_name = m.group(1);
+                if ( !suite_name.endsWith(".xctest") && !suite_name.equals("All tests") && !suite_name.equals("Selected tests") ) {
+                    parallelTestSuite(suite_name);
+                }
+                return;
+            }
         }
-        
-        m = TERMINATING_EXCEPTION.matcher(line);
-        if(m.matches()) {
-            exitCode = -1;
-            requireTestSuite();
-            if (currentTestCase != null) {
-                TestError error = new TestError(m.group(2), m.group(1));
-                currentTestCase.getErrors().add(error);
-                currentTestSuite.getTestCases().add(currentTestCase);
+
+        if ( (candidates & TESTCASE_LINE) != 0 ) {
+            m = START_TESTCASE.matcher(line);
+            if(m.matches()) {
+                requireTestSuite(m.group(1));
+                // Every test case of a class repeats its name.
+                currentTestCase = new TestCase(currentTestSuite.getName().equals(m.group(1)) ? currentTestSuite.getName() : m.group(1).intern(), m.group(2));
+                currentTestSuite.getTestCasesHash().put(m.group(2), currentTestCase);
+                return;
+            }
+
+            m = END_TESTCASE.matcher(line);
+            if(m.matches()) {
+                requireTestSuite(m.group(1));
+                requireTestCase(m.group(2));
+                currentTestCase.setTime(Float.parseFloat(m.group(3)));
                 currentTestSuite.addTest();
-                currentTestSuite.addError();
-		//currentTestSuite.getTestCasesHash().remove(currentTestCase.getName());
+                testCaseFinished(currentTestSuite, currentTestCase, false);
+                addFinishedTestCase(currentTestSuite, currentTestCase);
+                // Actually, I think that the test case should be closed and deleted here.
+                // In case the error is reported late without synchronization.
+                //currentTestSuite.getTestCasesHash().remove(m.group(2));
                 currentTestCase = null;
+                return;
+            }
+
+            m = PARALLEL_TESTCASE.matcher(line);
+            if(m.matches()) {
+                handleParallelTestCase(m.group(1), m.group(2).equals("failed"), Float.parseFloat(m.group(4)));
+                return;
+            }
+        }
+
+        if ( (candidates & ERROR_LINE) != 0 ) {
+            m = ERROR_TESTCASE.matcher(line);
+            if(m.matches()) {
+                String errorLocation = m.group(1);
+                String testSuite = m.group(2);
+                String testCase = m.group(3);
+                String errorMessage = m.group(4);
+                TestFailure failure = new TestFailure(errorMessage, errorLocation);
+                if ( findTestCase(testSuite, testCase) == null ) {
+                    TestSuite serialTestSuite = findTestSuite(testSuite);
+                    if ( serialTestSuite == null && !isStartedTestSuite(testSuite) ) {
+                        // Never started in this output, so it runs on a parallel test runner which reports the result later.
+                        parallelTestCase(parallelTestSuite(testSuite), testCase).getFailures().add(failure);
+                        return;
+                    }
+                    if ( serialTestSuite != null && serialTestSuite.getSpool() != null && serialTestSuite.getSpool().addFailure(testCase, failure) ) {
+                        // Logged after the test case ended and was spooled.
+                        return;
+                    }
+                }
+                requireTestSuite(testSuite);
+                requireTestCase(testCase);
+                currentTestCase.getFailures().add(failure);
+                return;
+            }
+        }
+
+        // If the test result is returned asynchronously, there is a possibility
+        //  that in this case the target test can not be decided and information
+        //  is recorded in the wrong place.
+        if ( (candidates & UI_ERROR_LINE) != 0 ) {
+            m = ERROR_UI_TESTCASE.matcher(line);
+            if(m.matches()) {
+                String errorLocation = m.group(1);
+                String errorMessage = m.group(2);
+                TestFailure failure = new TestFailure(errorMessage, errorLocation);
+
+                if ( currentTestSuite == null ) {
+                    currentTestSuite = testSuitesHash.get("UnknownSuite");
+                    if ( currentTestSuite == null ) {
+                        currentTestSuite = new TestSuite(InetAddress.getLocalHost().getHostName(), "UnknownSuite", new Date());
+                        testSuitesHash.put("UnknownSuite", currentTestSuite);
+                    }
+                }
+
+                if ( currentTestCase == null ) {
+                    currentTestCase = currentTestSuite.getTestCasesHash().get("UnknownTestCase");
+                    if ( currentTestCase == null ) {
+                        currentTestCase = new TestCase(currentTestSuite.getName(), "UnknownTestCase");
+                        currentTestSuite.getTestCasesHash().put("UnknownTestCase", currentTestCase);
+                        currentTestSuite.getTestCases().add(currentTestCase);
+                        currentTestSuite.addTest();
+                    }
+                }
+
+                currentTestCase.getFailures().add(failure);
+                return;
+            }
+        }
+
+        if ( (candidates & TESTCASE_LINE) != 0 ) {
+            m = FAILED_TESTCASE.matcher(line);
+            if(m.matches()) {
+                requireTestSuite(m.group(1));
+                requireTestCase(m.group(2));
+                currentTestSuite.addTest();
+                currentTestSuite.addFailure();
+                currentTestCase.setTime(Float.parseFloat(m.group(3)));
+                testCaseFinished(currentTestSuite, currentTestCase, true);
+                addFinishedTestCase(currentTestSuite, currentTestCase);
+                //currentTestSuite.getTestCasesHash().remove(m.group(2));
+                currentTestCase = null;
+                return;
+            }
+        }
+
+        if ( (candidates & EXIT_CODE_LINE) != 0 ) {
+            m = FAILED_WITH_EXIT_CODE.matcher(line);
+            if(m.matches()) {
+                exitCode = Integer.parseInt(m.group(1));
+                return;
+            }
+        }
+
+        if ( (candidates & BUILD_FAILED_LINE) != 0 ) {
+            exitCode = -1;
+        }
+
+        if ( (candidates & TERMINATING_LINE) != 0 ) {
+            m = TERMINATING_EXCEPTION.matcher(line);
+            if(m.matches()) {
+                exitCode = -1;
+                requireTestSuite();
+                if (currentTestCase != null) {
+                    TestError error = new TestError(m.group(2), m.group(1));
+                    currentTestCase.getErrors().add(error);
+                    currentTestSuite.getTestCases().add(currentTestCase);
+                    currentTestSuite.addTest();
+                    currentTestSuite.addError();
+                    //currentTestSuite.getTestCasesHash().remove(currentTestCase.getName());
+                    currentTestCase = null;
+                }
+                writeTestReport();
+                currentTestSuite = null;
             }
-            writeTestReport();
-            currentTestSuite = null;
         }
     }
 
@@ -35,6 +35,7 @@ import hudson.EnvVars;
 import hudson.Extension;
 import hudson.FilePath;
 import hudson.Launcher;
+import hudson.Proc;
 import hudson.model.*;
 import hudson.security.ACL;
 import hudson.util.FormValidation;
@@ -67,7 +68,8 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
-import java.util.regex.Pattern;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 import java.util.Collection;
 import java.util.concurrent.TimeUnit;
@@ -75,6 +77,8 @@ import java.util.concurrent.TimeUnit;
 import com.dd.plist.NSDictionary;
 import com.dd.plist.PropertyListParser;
 
+import au.com.rayh.report.TestSuite;
+
 /**
  * @author Ray Hilton
  */
@@ -371,6 +375,56 @@ public class XCodeBuilder extends Builder implements SimpleBuildStep {
      */
     @CheckForNull
     private Boolean cleanResultBundlePath;
+    /**
+     * @since 2.0.17
+     */
+    @CheckForNull
+    private Integer maxTestFailures;
+    /**
+     * @since 2.0.17
+     */
+    @CheckForNull
+    private Boolean parseOutputOnAgent;
+    /**
+     * @since 2.0.17
+     */
+    @CheckForNull
+    private Boolean condensedConsoleLog;
+    /**
+     * @since 2.0.17
+     */
+    @CheckForNull
+    private Boolean compressLogfile;
+    /**
+     * @since 2.0.17
+     */
+    @CheckForNull
+    private Boolean extractTestAttachments;
+    /**
+     * @since 2.0.17
+     */
+    @CheckForNull
+    private Boolean generateCoverageReport;
+    /**
+     * @since 2.0.17
+     */
+    @CheckForNull
+    private Integer testShardCount;
+    /**
+     * @since 2.0.17
+     */
+    @CheckForNull
+    private Integer testShardIndex;
+    /**
+     * @since 2.0.17
+     */
+    @CheckForNull
+    private Integer retryFailedTests;
+    /**
+     * @since 2.0.17
+     */
+    @CheckForNull
+    private Boolean onlyImpactedTests;
 
     public Boolean getCleanBeforeBuild() {
 	return cleanBeforeBuild == null ? Boolean.valueOf(true) : cleanBeforeBuild;
@@ -893,6 +947,96 @@ public class XCodeBuilder extends Builder implements SimpleBuildStep {
         return cleanResultBundlePath == null ? Boolean.valueOf(true) : cleanResultBundlePath;
     }
 
+    public Integer getMaxTestFailures() {
+        return maxTestFailures == null ? Integer.valueOf(0) : maxTestFailures;
+    }
+
+    @DataBoundSetter
+    public void setMaxTestFailures(Integer maxTestFailures) {
+        this.maxTestFailures = maxTestFailures;
+    }
+
+    public Boolean getParseOutputOnAgent() {
+        return parseOutputOnAgent == null ? Boolean.valueOf(false) : parseOutputOnAgent;
+    }
+
+    @DataBoundSetter
+    public void setParseOutputOnAgent(Boolean parseOutputOnAgent) {
+        this.parseOutputOnAgent = parseOutputOnAgent;
+    }
+
+    public Boolean getCondensedConsoleLog() {
+        return condensedConsoleLog == null ? Boolean.valueOf(false) : condensedConsoleLog;
+    }
+
+    @DataBoundSetter
+    public void setCondensedConsoleLog(Boolean condensedConsoleLog) {
+        this.condensedConsoleLog = condensedConsoleLog;
+    }
+
+    public Boolean getCompressLogfile() {
+        return compressLogfile == null ? Boolean.valueOf(false) : compressLogfile;
+    }
+
+    @DataBoundSetter
+    public void setCompressLogfile(Boolean compressLogfile) {
+        this.compressLogfile = compressLogfile;
+    }
+
+    public Boolean getExtractTestAttachments() {
+        return extractTestAttachments == null ? Boolean.valueOf(false) : extractTestAttachments;
+    }
+
+    @DataBoundSetter
+    public void setExtractTestAttachments(Boolean extractTestAttachments) {
+        this.extractTestAttachments = extractTestAttachments;
+    }
+
+    public Boolean getGenerateCoverageReport() {
+        return generateCoverageReport == null ? Boolean.valueOf(false) : generateCoverageReport;
+    }
+
+    @DataBoundSetter
+    public void setGenerateCoverageReport(Boolean generateCoverageReport) {
+        this.generateCoverageReport = generateCoverageReport;
+    }
+
+    public Integer getTestShardCount() {
+        return testShardCount;
+    }
+
+    @DataBoundSetter
+    public void setTestShardCount(Integer testShardCount) {
+        this.testShardCount = testShardCount;
+    }
+
+    public Integer getTestShardIndex() {
+        return testShardIndex;
+    }
+
+    @DataBoundSetter
+    public void setTestShardIndex(Integer testShardIndex) {
+        this.testShardIndex = testShardIndex;
+    }
+
+    public Integer getRetryFailedTests() {
+        return retryFailedTests;
+    }
+
+    @DataBoundSetter
+    public void setRetryFailedTests(Integer retryFailedTests) {
+        this.retryFailedTests = retryFailedTests;
+    }
+
+    public Boolean getOnlyImpactedTests() {
+        return onlyImpactedTests == null ? Boolean.valueOf(false) : onlyImpactedTests;
+    }
+
+    @DataBoundSetter
+    public void setOnlyImpactedTests(Boolean onlyImpactedTests) {
+        this.onlyImpactedTests = onlyImpactedTests;
+    }
+
     // Internally.
     public void setSkipBuildStep(Boolean skipBuildStep) {
         this.skipBuildStep = skipBuildStep;
@@ -1089,6 +1233,34 @@ public class XCodeBuilder extends Builder implements SimpleBuildStep {
 		return _perform(build, build.getWorkspace(), launcher, build.getEnvironment(listener), listener);
 	}
 
+    /**
+     * Writes the JUnit reports of the tests in a result bundle.
+     */
+    private void parseResultBundle(FilePath projectRoot, Launcher launcher, EnvVars envs, TaskListener listener, String resultBundlePath) throws InterruptedException, IOException {
+	XcodeTestSummariesParser testSummariesParser = new XcodeTestSummariesParser(projectRoot);
+	testSummariesParser.setExtractAttachments(BooleanUtils.isTrue(extractTestAttachments));
+	FilePath testSummariesPath = projectRoot.child(resultBundlePath + "/TestSummaries.plist");
+	if ( testSummariesPath.exists() ) {
+	    listener.getLogger().println(Messages.XCodeBuilder_ParseingTestSummariesPlist(testSummariesPath.absolutize().getRemote()));
+	    testSummariesParser.parseTestSummariesPlist(testSummariesPath);
+	}
+	else if ( projectRoot.child(resultBundlePath).isDirectory() || projectRoot.child(resultBundlePath + ".xcresult").isDirectory() ) {
+	    // Result bundles written by Xcode 11 or later have no TestSummaries.plist and are read with xcresulttool.
+	    // Xcode adds the .xcresult extension when the path does not have it.
+	    FilePath resultBundle = projectRoot.child(resultBundlePath);
+	    if ( !resultBundle.isDirectory() ) {
+		resultBundle = projectRoot.child(resultBundlePath + ".xcresult");
+	    }
+	    listener.getLogger().println(Messages.XCodeBuilder_ParsingResultBundle(resultBundle.absolutize().getRemote()));
+	    XcodeResultBundleParser resultBundleParser = new XcodeResultBundleParser(projectRoot, launcher, envs, getGlobalConfiguration().getXcrunPath());
+	    resultBundleParser.setExtractAttachments(BooleanUtils.isTrue(extractTestAttachments));
+	    resultBundleParser.parseResultBundle(resultBundle);
+	}
+	else {
+	    listener.getLogger().println(Messages.XCodeBuilder_TestSummariesPlistNotExists(testSummariesPath.absolutize().getRemote()));
+	}
+    }
+
     @SuppressFBWarnings("DM_DEFAULT_ENCODING")
     private boolean _perform(Run<?,?> build, FilePath projectRoot, Launcher launcher, EnvVars envs, TaskListener listener) throws InterruptedException, IOException {
 
@@ -1262,17 +1434,22 @@ public class XCodeBuilder extends Builder implements SimpleBuildStep {
 
 	String developmentTeamID = null;
         boolean archiveAutomaticSigning = false;
+	// The workspace, project directories, projects and schemes are all read on the agent in one call, shared by the signing and the test impact analysis.
+	XcodeDiscoveryCallable.Result discovery = null;
         if ( signingMethod != null && signingMethod.equals("readFromProject") ) {
 	    provisioningProfiles = new ArrayList<>();
 	    listener.getLogger().println(Messages.XCodeBuilder_ReadSigningInfoFromProject());
 	    XcodeProject xcodeProject = null;
 	    ArrayList<FilePath> projectLocations = new ArrayList<FilePath>();
+	    discovery = projectRoot.act(new XcodeDiscoveryCallable(xcodeProjectFile, xcodeWorkspaceFile));
 	    // Retrieve target from Xcode project.
 	    FilePath projectLocation = null;
+	    String projectPath = null;
 	    if ( !StringUtils.isEmpty(xcodeProjectFile) ) {
 		// Retrieve provisioning profile information from Xcode project file.
 		projectLocation = projectRoot.child(xcodeProjectFile);
-		if ( !projectLocation.exists() || !projectLocation.isDirectory() ) {
+		projectPath = xcodeProjectFile;
+		if ( !discovery.isProjectFileFound() ) {
 		    listener.getLogger().println(Messages.XCodeBuilder_CouldNotReadInfoFrom(projectLocation.absolutize().getRemote()));
 		    projectLocation = null;
 		}
@@ -1282,13 +1459,13 @@ public class XCodeBuilder extends Builder implements SimpleBuildStep {
 	    if ( !StringUtils.isEmpty(xcodeWorkspaceFile) ) {
 		// Retrieve target from Xcode workspace.
 		listener.getLogger().println(Messages.XCodeBuilder_ReadInfoFromWorkspace(xcodeWorkspaceFile));
-		List<String> projectList = XcodeProjectParser.parseXcodeWorkspace(projectRoot.child(xcodeWorkspaceFile + ".xcworkspace"));
+		List<String> projectList = discovery.getWorkspaceProjects();
 		if ( projectList == null ) {
 		    listener.getLogger().println("Empty or Invalid workspacefile: " + projectRoot.child(xcodeWorkspaceFile + ".xcworkspace").absolutize().getRemote());
 		}
 		else if ( projectList.size() > 0 && xcodeSchema != null && !StringUtils.isEmpty(xcodeSchema) ) {
 		    for ( String location : projectList ) {
-			HashMap<String, ProjectScheme> xcodeSchemes = XcodeProjectParser.listXcodeSchemes(projectRoot.child(location));
+			HashMap<String, ProjectScheme> xcodeSchemes = discovery.getSchemes(location);
 			// JENKINS-59523, JENKINS-59609
 			if ( xcodeSchemes == null ) {
 			    listener.getLogger().println("Skipping empty or invalid scheme file: " + location);
@@ -1300,8 +1477,11 @@ public class XCodeBuilder extends Builder implements SimpleBuildStep {
 			    listener.getLogger().println("Skipping undefined schema: " + xcodeSchema);
 			    continue;
 			}
-			String referencedContainerLocation = projectScheme.referencedContainer.replaceAll("^container:", "");
-			projectLocation = projectRoot.child(referencedContainerLocation);
+			// The container of a scheme is relative to the directory of its project, which is relative to the workspace.
+			String schemeProjectPath = XcodeProjectParser.normalizePath(XcodeProjectParser.parentPath(xcodeWorkspaceFile), location);
+			String referencedContainerLocation = XcodeProjectParser.resolveLocation(XcodeProjectParser.parentPath(schemeProjectPath), XcodeProjectParser.parentPath(schemeProjectPath), projectScheme.referencedContainer);
+			projectPath = referencedContainerLocation == null ? schemeProjectPath : referencedContainerLocation;
+			projectLocation = projectRoot.child(projectPath);
 			target = projectScheme.blueprintName;
 			break;
 		    }
@@ -1311,15 +1491,16 @@ public class XCodeBuilder extends Builder implements SimpleBuildStep {
 		    listener.fatalError(Messages.XCodeBuilder_MultipleProjectInWorkSpace());
 		    return false;
 		}
-		else {
+		else if ( projectList.size() == 1 ) {
 		    // Workspace file have only one project.
-		    projectLocation = projectRoot.child(projectList.get(0));
+		    projectPath = XcodeProjectParser.normalizePath(XcodeProjectParser.parentPath(xcodeWorkspaceFile), projectList.get(0));
+		    projectLocation = projectRoot.child(projectPath);
 		}
             }
 
 	    if ( projectLocation == null ) {
 		// Retrieve xcodeproj from current working directory.
-		List<FilePath> xcodeProjects = projectRoot.list(new XcodeProjectFileFilter());
+		List<String> xcodeProjects = discovery.getDirectoryProjects();
 		if ( xcodeProjects == null ) {
 		    listener.fatalError(Messages.XCodeBuilder_NoArchivesInBuildDirectory(projectRoot.absolutize().getRemote()));
 		    return false;
@@ -1330,17 +1511,22 @@ public class XCodeBuilder extends Builder implements SimpleBuildStep {
 		    listener.fatalError(Messages.XCodeBuilder_MultipleProjectInWorkSpace());
 		    return false;
 		}
-		projectLocation = xcodeProjects.get(0);
+		projectPath = xcodeProjects.get(0);
+		projectLocation = projectRoot.child(projectPath);
 	    }
 	   
 	    projectLocations.add(projectLocation); 
 	    for ( FilePath examineLocation : projectLocations ) {
-                // Parse Xcode project file.
-                xcodeProject = XcodeProjectParser.parseXcodeProject(examineLocation);
+                // Parsed on the agent, unless the scheme builds a project that is not in the workspace.
+                xcodeProject = discovery.getProject(projectPath);
+                if ( xcodeProject == null ) {
+                    xcodeProject = XcodeProjectParser.parseXcodeProject(examineLocation);
+                }
                 if ( xcodeProject == null ) {
 		    listener.getLogger().println(Messages.XCodeBuilder_CouldNotReadProjectInfoFrom(examineLocation.absolutize().getRemote()));
                     return false;      
                 }
+		BuildSettingsResolver buildSettings = new BuildSettingsResolver(examineLocation, xcodeProject);
 		// Examine all targets.
 		for ( String key : xcodeProject.projectTarget.keySet() ) {
 		    ProjectTarget projectTarget = xcodeProject.projectTarget.get(key);
@@ -1380,33 +1566,28 @@ public class XCodeBuilder extends Builder implements SimpleBuildStep {
 			    listener.getLogger().println(Messages.XCodeBuilder_UseingReleaseConfigFor());
 			}
 		    }
-		    if ( buildConfiguration.developmentTeamId != null ) {
-			developmentTeamID = buildConfiguration.developmentTeamId;
+		    // Settings may be set in the configuration of the project or in xcconfig files.
+		    String developmentTeamId = buildConfiguration.developmentTeamId;
+		    if ( developmentTeamId == null && buildSettings.resolve(key, exportConfiguration, "BUNDLE_LOADER").isEmpty() && buildSettings.resolve(key, exportConfiguration, "TEST_TARGET_NAME").isEmpty() ) {
+			developmentTeamId = StringUtils.defaultIfEmpty(buildSettings.resolve(key, exportConfiguration, "DEVELOPMENT_TEAM"), null);
+		    }
+		    if ( developmentTeamId != null ) {
+			developmentTeamID = developmentTeamId;
 			listener.getLogger().println(Messages.XCodeBuilder_FoundDevelopmentTeamID(developmentTeamID, examineLocation.absolutize().getRemote()));
 		    }
 		    if ( !automaticSigning ) {
-			String provisioningProfileUUID = buildConfiguration.provisioningProfileUUID;
-			String provisioningProfileSpecifier = buildConfiguration.provisioningProfileSpecifier;
-			String bundleIdentifier = null;
-			if ( buildConfiguration.bundleIdentifier != null ) {
-			    bundleIdentifier = buildConfiguration.bundleIdentifier;
-			}
-			else {
-			    // Placeholder replacement.
-			    // Currentry only support "${TARGET_NAME}" and "$(TARGET_NAME)"
-			    String productName = buildConfiguration.productName;
-			    productName = productName.replaceAll(Pattern.quote("${TARGET_NAME}"), key);
-			    productName = productName.replaceAll(Pattern.quote("$(TARGET_NAME)"), key);
-			    InfoPlist infoPlist = XcodeProjectParser.parseInfoPlist(projectRoot.child(buildConfiguration.infoPlistFile));
+			String provisioningProfileUUID = StringUtils.defaultIfEmpty(buildSettings.resolve(key, exportConfiguration, "PROVISIONING_PROFILE"), null);
+			String provisioningProfileSpecifier = StringUtils.defaultIfEmpty(buildSettings.resolve(key, exportConfiguration, "PROVISIONING_PROFILE_SPECIFIER"), null);
+			String bundleIdentifier = buildSettings.resolve(key, exportConfiguration, "PRODUCT_BUNDLE_IDENTIFIER");
+			if ( bundleIdentifier.isEmpty() ) {
+			    // Older projects only set the bundle identifier in the Info.plist, e.g. "$(PRODUCT_NAME:rfc1034identifier)".
+			    String infoPlistFile = buildSettings.resolve(key, exportConfiguration, "INFOPLIST_FILE");
+			    InfoPlist infoPlist = XcodeProjectParser.parseInfoPlist(projectRoot.child(infoPlistFile));
 			    if ( infoPlist == null ) {
-				listener.getLogger().println(Messages.XCodeBuilder_CouldNotReadInfoFrom(projectRoot.child(buildConfiguration.infoPlistFile).absolutize().getRemote()));
+				listener.getLogger().println(Messages.XCodeBuilder_CouldNotReadInfoFrom(projectRoot.child(infoPlistFile).absolutize().getRemote()));
 				return false;
 			    }
-			    // Placeholder replacement.
-			    // Currentry only support "$(PRODUCT_NAME:rfc1034identifier)"
-			    bundleIdentifier = infoPlist.getCfBundleIdentifier();
-			    productName = productName.replaceAll(" ", "-");
-			    bundleIdentifier = bundleIdentifier.replaceAll(Pattern.quote("$(PRODUCT_NAME:rfc1034identifier)"), productName);
+			    bundleIdentifier = buildSettings.expand(key, exportConfiguration, infoPlist.getCfBundleIdentifier());
 			}
 			// PROVISIONING_PROFILE(UUID) or PROVISIONING_PROFILE_SPECIFIER
 			String provisioningProfileIdentifier = null;
@@ -1706,20 +1887,81 @@ public class XCodeBuilder extends Builder implements SimpleBuildStep {
 	    if ( BooleanUtils.isTrue(noConsoleLog) ) {
 		xcodeReport.append(", consolelog:NO");
 		reportGenerator.setConsoleLog(false);
+	    }else if ( BooleanUtils.isTrue(condensedConsoleLog) ) {
+		xcodeReport.append(", consolelog:CONDENSED");
+		reportGenerator.setCondensedConsoleLog(CondensedConsoleLog.DEFAULT_TAIL_LINES);
 	    }else{
 		xcodeReport.append(", consolelog:YES");
 	    }
 	    if(!StringUtils.isEmpty(logfileOutputDirectory)) {
 		xcodeReport.append(", logfileOutputDirectory: ").append(logfileOutputDirectory);
-		reportGenerator.setLogfilePath(buildDirectory, logfileOutputDirectory);
+		if ( BooleanUtils.isTrue(compressLogfile) ) {
+		    xcodeReport.append(", compressLogfile: YES");
+		}
+		if ( BooleanUtils.isNotTrue(parseOutputOnAgent) ) {
+		    reportGenerator.setLogfilePath(buildDirectory, logfileOutputDirectory, BooleanUtils.isTrue(compressLogfile));
+		}
 	    }
 	    if ( !StringUtils.isEmpty(resultBundlePath) || BooleanUtils.isTrue(ignoreTestResults) ) {
 		reportGenerator.setIgnoreTestResults(true);
 	    }
+	    else {
+		XcodeTestResultsAction testResultsAction;
+		// Test shards running in parallel in a build add up their results in one action.
+		synchronized ( build ) {
+		    testResultsAction = build.getAction(XcodeTestResultsAction.class);
+		    if ( testResultsAction == null ) {
+			testResultsAction = new XcodeTestResultsAction();
+			build.addAction(testResultsAction);
+		    }
+		}
+		reportGenerator.setTestResultsAction(testResultsAction);
+		if ( maxTestFailures != null && maxTestFailures > 0 ) {
+		    xcodeReport.append(", maxTestFailures: ").append(maxTestFailures);
+		    reportGenerator.setMaxTestFailures(maxTestFailures);
+		}
+	    }
 	    if ( !StringUtils.isEmpty(resultBundlePath) ) {
 		commandLine.add("-resultBundlePath");
 		commandLine.add(resultBundlePath);
 		xcodeReport.append(", resultBundlePath: ").append(resultBundlePath);
+		if ( BooleanUtils.isTrue(generateCoverageReport) && !splitXcodeBuildArguments(xcodebuildArguments).contains("-enableCodeCoverage") ) {
+		    commandLine.add("-enableCodeCoverage");
+		    commandLine.add("YES");
+		}
+	    }
+
+	    if ( testShardCount != null && testShardCount > 1 ) {
+		int shardIndex = testShardIndex == null ? 0 : testShardIndex;
+		if ( shardIndex < 0 || shardIndex >= testShardCount ) {
+		    listener.fatalError(Messages.XCodeBuilder_InvalidTestShardIndex(shardIndex, testShardCount));
+		    return false;
+		}
+		// Every shard of a build is split from the same durations, the ones recorded before the build.
+		TestShards testShards = TestShards.partition(TestDurationStore.loadBefore(build), testShardCount);
+		if ( testShards.isEmpty(shardIndex) ) {
+		    listener.getLogger().println(Messages.XCodeBuilder_NoTestsInTestShard(shardIndex, testShardCount));
+		    return true;
+		}
+		listener.getLogger().println(Messages.XCodeBuilder_RunningTestShard(shardIndex, testShardCount,
+			testShards.getTestClasses(shardIndex).size(), Math.round(testShards.getDuration(shardIndex))));
+		commandLine.addAll(testShards.getArguments(shardIndex));
+		xcodeReport.append(", testShard: ").append(shardIndex).append('/').append(testShardCount);
+	    }
+	    else if ( BooleanUtils.isTrue(onlyImpactedTests) ) {
+		if ( discovery == null ) {
+		    discovery = projectRoot.act(new XcodeDiscoveryCallable(xcodeProjectFile, xcodeWorkspaceFile));
+		}
+		TestImpactAnalysis testImpactAnalysis = TestImpactAnalysis.load(discovery, xcodeProjectPath, xcodeWorkspaceFile, xcodeProjectFile);
+		Set<String> impactedTestTargets = testImpactAnalysis == null ? null : testImpactAnalysis.getImpactedTestTargets(TestImpactAnalysis.changedFiles(build));
+		if ( impactedTestTargets == null ) {
+		    listener.getLogger().println(Messages.XCodeBuilder_RunningAllTests());
+		}
+		else {
+		    listener.getLogger().println(Messages.XCodeBuilder_RunningImpactedTests(impactedTestTargets.size(), StringUtils.join(impactedTestTargets, ", ")));
+		    commandLine.addAll(testImpactAnalysis.getArguments(impactedTestTargets));
+		    xcodeReport.append(", impactedTestTargets: ").append(impactedTestTargets.size());
+		}
 	    }
     
 	    if (!StringUtils.isEmpty(symRootValue)) {
@@ -1807,23 +2049,133 @@ public class XCodeBuilder extends Builder implements SimpleBuildStep {
 		commandLine.add("-UseModernBuildSystem=NO");
 		xcodeReport.append(", useLegacyBuildSystem: YES");
 	    }
+	    if ( BooleanUtils.isTrue(parseOutputOnAgent) ) {
+		xcodeReport.append(", parseOutputOnAgent: YES");
+	    }
 
 	    listener.getLogger().println(xcodeReport.toString());
-	    returnCode = launcher.launch().envs(envs).cmds(commandLine).stdout(reportGenerator.getOutputStream()).pwd(projectRoot).join();
-            reportGenerator.closeLogfile();
+	    Map<String, Long> previousTestReports = TestDurationStore.listTestReports(projectRoot.child("test-reports"));
+	    boolean testFailureLimitReached;
+	    int xcodebuildExitCode;
+	    if ( BooleanUtils.isTrue(parseOutputOnAgent) ) {
+		// Only the console output and a summary of the results cross the remoting channel.
+		XcodebuildAgentCallable xcodebuild = new XcodebuildAgentCallable(listener, envs, commandLine, projectRoot.getRemote());
+		xcodebuild.setConsoleLog(BooleanUtils.isNotTrue(noConsoleLog));
+		if ( BooleanUtils.isNotTrue(noConsoleLog) && BooleanUtils.isTrue(condensedConsoleLog) ) {
+		    xcodebuild.setCondensedConsoleLog(CondensedConsoleLog.DEFAULT_TAIL_LINES);
+		}
+		xcodebuild.setIgnoreTestResults(!StringUtils.isEmpty(resultBundlePath) || BooleanUtils.isTrue(ignoreTestResults));
+		xcodebuild.setMaxTestFailures(maxTestFailures == null ? 0 : maxTestFailures);
+		if ( !StringUtils.isEmpty(logfileOutputDirectory) ) {
+		    xcodebuild.setLogfilePath(buildDirectory.getRemote(), logfileOutputDirectory, BooleanUtils.isTrue(compressLogfile));
+		}
+		XcodebuildAgentCallable.Result result;
+		try {
+		    result = launcher.getChannel().call(xcodebuild);
+		}
+		finally {
+		    reportGenerator.closeLogfile();
+		}
+		XcodeTestResultsAction testResultsAction = build.getAction(XcodeTestResultsAction.class);
+		if ( testResultsAction != null ) {
+		    testResultsAction.merge(result.getTestResults());
+		}
+		returnCode = result.getReturnCode();
+		xcodebuildExitCode = result.getExitCode();
+		testFailureLimitReached = result.isTestFailureLimitReached();
+	    }
+	    else {
+		try {
+		    Proc proc = launcher.launch().envs(envs).cmds(commandLine).stdout(reportGenerator.getOutputStream()).pwd(projectRoot).start();
+		    returnCode = reportGenerator.join(proc);
+		}
+		finally {
+		    // Also waits for the test reports still being written in the background.
+		    reportGenerator.closeLogfile();
+		}
+		xcodebuildExitCode = reportGenerator.getExitCode();
+		testFailureLimitReached = reportGenerator.isTestFailureLimitReached();
+		if ( returnCode != 0 || xcodebuildExitCode != 0 || testFailureLimitReached ) {
+		    reportGenerator.printConsoleTail();
+		}
+	    }
 	    if ( !StringUtils.isEmpty(resultBundlePath) ) {
-		XcodeTestSummariesParser testSummariesParser = new XcodeTestSummariesParser(projectRoot);
-		FilePath testSummariesPath = projectRoot.child(resultBundlePath + "/TestSummaries.plist");
-		if ( testSummariesPath.exists() ) {
-		    listener.getLogger().println(Messages.XCodeBuilder_ParseingTestSummariesPlist(testSummariesPath.absolutize().getRemote()));
-		    testSummariesParser.parseTestSummariesPlist(testSummariesPath);
+		parseResultBundle(projectRoot, launcher, envs, listener, resultBundlePath);
+		if ( BooleanUtils.isTrue(generateCoverageReport) ) {
+		    FilePath resultBundle = projectRoot.child(resultBundlePath);
+		    if ( !resultBundle.isDirectory() ) {
+			resultBundle = projectRoot.child(resultBundlePath + ".xcresult");
+		    }
+		    if ( resultBundle.isDirectory() ) {
+			listener.getLogger().println(Messages.XCodeBuilder_GeneratingCoverageReport(resultBundle.absolutize().getRemote()));
+			XcodeCoverageParser coverageParser = new XcodeCoverageParser(projectRoot, launcher, envs, getGlobalConfiguration().getXcrunPath());
+			coverageParser.parseCoverage(resultBundle);
+		    }
 		}
-		else {
-		    listener.getLogger().println(Messages.XCodeBuilder_TestSummariesPlistNotExists(testSummariesPath.absolutize().getRemote()));
+	    }
+	    if ( retryFailedTests != null && retryFailedTests > 0 && !testFailureLimitReached && (returnCode != 0 || xcodebuildExitCode != 0) ) {
+		FilePath testReportsDir = projectRoot.child("test-reports");
+		Map<String, TestSuite> testSuites = TestRetry.readTestReports(testReportsDir, previousTestReports);
+		for ( int attempt = 1; attempt <= retryFailedTests && (returnCode != 0 || xcodebuildExitCode != 0); attempt++ ) {
+		    List<String> failedTests = TestRetry.failedTests(testSuites.values());
+		    String retryResultBundlePath = StringUtils.isEmpty(resultBundlePath) ? null : resultBundlePath + "-retry" + attempt;
+		    List<String> retryCommandLine = failedTests == null || failedTests.isEmpty() ? null : TestRetry.retryCommandLine(commandLine, failedTests, retryResultBundlePath);
+		    if ( retryCommandLine == null ) {
+			listener.getLogger().println(Messages.XCodeBuilder_CannotRetryFailedTests());
+			break;
+		    }
+		    listener.getLogger().println(Messages.XCodeBuilder_RetryingFailedTests(failedTests.size(), attempt, retryFailedTests));
+		    if ( retryResultBundlePath != null ) {
+			projectRoot.child(retryResultBundlePath).deleteRecursive();
+			projectRoot.child(retryResultBundlePath + ".xcresult").deleteRecursive();
+		    }
+		    Map<String, Long> retryTestReports = TestDurationStore.listTestReports(testReportsDir);
+		    JenkinsXCodeBuildOutputParser retryOutputParser = new JenkinsXCodeBuildOutputParser(projectRoot, listener);
+		    if ( BooleanUtils.isTrue(noConsoleLog) ) {
+			retryOutputParser.setConsoleLog(false);
+		    }
+		    else if ( BooleanUtils.isTrue(condensedConsoleLog) ) {
+			retryOutputParser.setCondensedConsoleLog(CondensedConsoleLog.DEFAULT_TAIL_LINES);
+		    }
+		    retryOutputParser.setIgnoreTestResults(retryResultBundlePath != null);
+		    try {
+			Proc proc = launcher.launch().envs(envs).cmds(retryCommandLine).stdout(retryOutputParser.getOutputStream()).pwd(projectRoot).start();
+			returnCode = retryOutputParser.join(proc);
+		    }
+		    finally {
+			retryOutputParser.closeLogfile();
+		    }
+		    xcodebuildExitCode = retryOutputParser.getExitCode();
+		    if ( retryResultBundlePath != null ) {
+			parseResultBundle(projectRoot, launcher, envs, listener, retryResultBundlePath);
+		    }
+		    // The rerun rewrote the reports of the suites it ran with only the rerun tests.
+		    Map<String, TestSuite> retrySuites = TestRetry.readTestReports(testReportsDir, retryTestReports);
+		    TestRetry.writeTestReports(testReportsDir, TestRetry.merge(testSuites, retrySuites, build.getAction(XcodeTestResultsAction.class)));
+		    int failures = TestRetry.countFailures(testSuites.values());
+		    listener.getLogger().println(Messages.XCodeBuilder_RetriedFailedTests(TestRetry.countFlakyTests(testSuites.values()), failures));
+		    if ( failures == 0 && returnCode == 0 && xcodebuildExitCode == 0 ) {
+			break;
+		    }
+		    if ( returnCode != 0 || xcodebuildExitCode != 0 ) {
+			retryOutputParser.printConsoleTail();
+		    }
 		}
 	    }
+	    try {
+		int recordedTests = TestDurationStore.record(build, projectRoot.child("test-reports"), previousTestReports);
+		if ( recordedTests > 0 ) {
+		    listener.getLogger().println(Messages.XCodeBuilder_RecordedTestDurations(recordedTests));
+		}
+	    }
+	    catch ( IOException ex ) {
+		listener.getLogger().println(Messages.XCodeBuilder_FailedToRecordTestDurations(ex.toString()));
+	    }
+	    if ( testFailureLimitReached ) {
+		return false;
+	    }
 	    if ( BooleanUtils.isNotTrue(allowFailingBuildResults) ) {
-		if (reportGenerator.getExitCode() != 0) return false;
+		if (xcodebuildExitCode != 0) return false;
 		if (returnCode > 0) return false;
 	    }
 	}
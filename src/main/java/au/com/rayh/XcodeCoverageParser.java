@@ -0,0 +1,601 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011 Ray Yamamoto Hilton
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package au.com.rayh;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Proc;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Converts the code coverage of an Xcode result bundle to a Cobertura XML report at coverage-reports/coverage.xml.
+ * The targets, files and functions are read from the streamed output of "xcrun xccov view --report --json", and the
+ * hit count of each line from "xcrun xccov view --archive --json". Files are converted in batches on a fork/join
+ * pool, and each converted batch is written out to a temporary file per target before the next one is read, so
+ * memory use does not grow with the number of lines in the project.
+ */
+public class XcodeCoverageParser {
+    @SuppressFBWarnings("MS_SHOULD_BE_FINAL")
+    public static int PARALLELISM = Integer.getInteger(XcodeCoverageParser.class.getName() + ".parallelism", Runtime.getRuntime().availableProcessors());
+    @SuppressFBWarnings("MS_SHOULD_BE_FINAL")
+    public static int BATCH_SIZE = Integer.getInteger(XcodeCoverageParser.class.getName() + ".batchSize", 512);
+    // Files converted by one task before it stops splitting its range.
+    private static final int THRESHOLD = 16;
+
+    private final FilePath workspace;
+    private final FilePath coverageReportsDir;
+    private final Launcher launcher;
+    private final EnvVars envs;
+    private final String xcrunPath;
+
+    private interface DocumentReader {
+	void read(JsonStreamReader json) throws IOException, InterruptedException;
+    }
+
+    private static class FunctionCoverage {
+	String name;
+	int lineNumber;
+	long executionCount;
+	int coveredLines;
+	int executableLines;
+    }
+
+    private static class FileCoverage {
+	final TargetCoverage target;
+	String name;
+	String path;
+	int coveredLines;
+	int executableLines;
+	final List<FunctionCoverage> functions = new ArrayList<FunctionCoverage>();
+	// The executable lines and their hit counts, when they have been read from the archive.
+	int[] lines;
+	long[] hits;
+	String classElement;
+
+	FileCoverage(TargetCoverage target) {
+	    this.target = target;
+	}
+    }
+
+    private static class TargetCoverage {
+	String name;
+	File classes;
+	Writer writer;
+	long coveredLines;
+	long validLines;
+    }
+
+    private static class XccovException extends IOException {
+	XccovException(String message) {
+	    super(message);
+	}
+    }
+
+    /**
+     * Converts the files of a range of a batch, splitting it between workers while it is large.
+     */
+    private class ConvertTask extends RecursiveAction {
+	private final List<FileCoverage> files;
+	private final int from;
+	private final int to;
+
+	ConvertTask(List<FileCoverage> files, int from, int to) {
+	    this.files = files;
+	    this.from = from;
+	    this.to = to;
+	}
+
+	@Override
+	protected void compute() {
+	    if ( to - from <= THRESHOLD ) {
+		for ( int i = from; i < to; i++ ) {
+		    FileCoverage file = files.get(i);
+		    file.classElement = toClassElement(file);
+		}
+	    }
+	    else {
+		int middle = (from + to) >>> 1;
+		invokeAll(new ConvertTask(files, from, middle), new ConvertTask(files, middle, to));
+	    }
+	}
+    }
+
+    public XcodeCoverageParser(FilePath workspace, Launcher launcher, EnvVars envs, String xcrunPath) {
+	this.workspace = workspace;
+	coverageReportsDir = workspace.child("coverage-reports");
+	this.launcher = launcher;
+	this.envs = envs;
+	this.xcrunPath = xcrunPath;
+    }
+
+    protected OutputStream outputForReport() throws IOException, InterruptedException {
+	coverageReportsDir.mkdirs();
+	return coverageReportsDir.child("coverage.xml").write();
+    }
+
+    /**
+     * @param resultBundle The location of the result bundle output from Xcode.
+     */
+    public void parseCoverage(FilePath resultBundle) {
+	final ForkJoinPool pool = new ForkJoinPool(PARALLELISM);
+	final List<TargetCoverage> targets = new ArrayList<TargetCoverage>();
+	try {
+	    // Xcode 10 keeps the coverage of each action next to the TestSummaries.plist, and its archives can only
+	    // be read one file at a time, so only the functions are reported for them.
+	    boolean legacy = resultBundle.child("TestSummaries.plist").exists();
+	    FilePath report = resultBundle;
+	    if ( legacy ) {
+		FilePath[] reports = resultBundle.list("**/*.xccovreport");
+		if ( reports.length == 0 ) {
+		    return;
+		}
+		report = reports[0];
+	    }
+	    // Files of the same path in several targets share their lines.
+	    final Map<String, List<FileCoverage>> files = new LinkedHashMap<String, List<FileCoverage>>();
+	    view(report, legacy ? new String[] { "--json" } : new String[] { "--report", "--json" }, new DocumentReader() {
+		public void read(JsonStreamReader json) throws IOException {
+		    readReport(json, targets, files);
+		}
+	    });
+	    final List<FileCoverage> batch = new ArrayList<FileCoverage>();
+	    if ( !legacy ) {
+		try {
+		    view(resultBundle, new String[] { "--archive", "--json" }, new DocumentReader() {
+			public void read(JsonStreamReader json) throws IOException, InterruptedException {
+			    readArchive(json, files, batch, pool);
+			}
+		    });
+		}
+		catch ( XccovException ex ) {
+		    // The coverage of the functions is still reported.
+		    ex.printStackTrace();
+		    for ( FileCoverage file : batch ) {
+			file.lines = null;
+			file.hits = null;
+		    }
+		    for ( List<FileCoverage> remaining : files.values() ) {
+			for ( FileCoverage file : remaining ) {
+			    file.lines = null;
+			    file.hits = null;
+			}
+		    }
+		}
+	    }
+	    // Files that are not in the archive.
+	    for ( List<FileCoverage> remaining : files.values() ) {
+		batch.addAll(remaining);
+		if ( batch.size() >= BATCH_SIZE ) {
+		    convert(batch, pool);
+		}
+	    }
+	    convert(batch, pool);
+	    files.clear();
+	    writeReport(targets);
+	}
+	catch ( Exception ex ) {
+	    ex.printStackTrace();
+	}
+	finally {
+	    pool.shutdownNow();
+	    for ( TargetCoverage target : targets ) {
+		try {
+		    if ( target.writer != null ) {
+			target.writer.close();
+		    }
+		}
+		catch ( IOException ex ) {
+		    ex.printStackTrace();
+		}
+		if ( target.classes != null && !target.classes.delete() ) {
+		    target.classes.deleteOnExit();
+		}
+	    }
+	}
+    }
+
+    /**
+     * Runs xccov and reads its JSON output while it is being written.
+     */
+    private void view(FilePath path, String[] options, DocumentReader reader) throws IOException, InterruptedException {
+	List<String> commandLine = new ArrayList<String>();
+	commandLine.add(xcrunPath);
+	commandLine.add("xccov");
+	commandLine.add("view");
+	commandLine.addAll(Arrays.asList(options));
+	commandLine.add(path.getRemote());
+	ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+	Proc proc = launcher.launch().envs(envs).cmds(commandLine).readStdout().stderr(stderr).pwd(workspace).start();
+	try ( JsonStreamReader json = new JsonStreamReader(new InputStreamReader(proc.getStdout(), StandardCharsets.UTF_8)) ) {
+	    reader.read(json);
+	}
+	catch ( IOException ex ) {
+	    // Unreadable output usually means that xccov failed, which it explains on stderr.
+	    if ( proc.join() != 0 && stderr.size() > 0 ) {
+		throw new XccovException(stderr.toString("UTF-8").trim());
+	    }
+	    throw ex;
+	}
+	catch ( InterruptedException ex ) {
+	    proc.kill();
+	    throw ex;
+	}
+	int returnCode = proc.join();
+	if ( returnCode != 0 ) {
+	    throw new XccovException("xccov failed with exit code " + returnCode + ": " + stderr.toString("UTF-8").trim());
+	}
+    }
+
+    private static void readReport(JsonStreamReader json, List<TargetCoverage> targets, Map<String, List<FileCoverage>> files) throws IOException {
+	json.beginObject();
+	while ( json.hasNext() ) {
+	    if ( json.nextName().equals("targets") ) {
+		json.beginArray();
+		while ( json.hasNext() ) {
+		    TargetCoverage target = new TargetCoverage();
+		    targets.add(target);
+		    readTarget(json, target, files);
+		}
+		json.endArray();
+	    }
+	    else {
+		json.skipValue();
+	    }
+	}
+	json.endObject();
+    }
+
+    private static void readTarget(JsonStreamReader json, TargetCoverage target, Map<String, List<FileCoverage>> files) throws IOException {
+	json.beginObject();
+	while ( json.hasNext() ) {
+	    String name = json.nextName();
+	    if ( name.equals("name") ) {
+		target.name = json.nextString();
+	    }
+	    else if ( name.equals("files") ) {
+		json.beginArray();
+		while ( json.hasNext() ) {
+		    FileCoverage file = readFile(json, target);
+		    if ( file.path != null ) {
+			List<FileCoverage> sameFiles = files.get(file.path);
+			if ( sameFiles == null ) {
+			    sameFiles = new ArrayList<FileCoverage>(1);
+			    files.put(file.path, sameFiles);
+			}
+			sameFiles.add(file);
+		    }
+		}
+		json.endArray();
+	    }
+	    else {
+		json.skipValue();
+	    }
+	}
+	json.endObject();
+    }
+
+    private static FileCoverage readFile(JsonStreamReader json, TargetCoverage target) throws IOException {
+	FileCoverage file = new FileCoverage(target);
+	json.beginObject();
+	while ( json.hasNext() ) {
+	    switch ( json.nextName() ) {
+	    case "name":
+		file.name = json.nextString();
+		break;
+	    case "path":
+		file.path = json.nextString();
+		break;
+	    case "coveredLines":
+		file.coveredLines = Integer.parseInt(json.nextString());
+		break;
+	    case "executableLines":
+		file.executableLines = Integer.parseInt(json.nextString());
+		break;
+	    case "functions":
+		json.beginArray();
+		while ( json.hasNext() ) {
+		    file.functions.add(readFunction(json));
+		}
+		json.endArray();
+		break;
+	    default:
+		json.skipValue();
+		break;
+	    }
+	}
+	json.endObject();
+	return file;
+    }
+
+    private static FunctionCoverage readFunction(JsonStreamReader json) throws IOException {
+	FunctionCoverage function = new FunctionCoverage();
+	json.beginObject();
+	while ( json.hasNext() ) {
+	    switch ( json.nextName() ) {
+	    case "name":
+		function.name = json.nextString();
+		break;
+	    case "lineNumber":
+		function.lineNumber = Integer.parseInt(json.nextString());
+		break;
+	    case "executionCount":
+		function.executionCount = Long.parseLong(json.nextString());
+		break;
+	    case "coveredLines":
+		function.coveredLines = Integer.parseInt(json.nextString());
+		break;
+	    case "executableLines":
+		function.executableLines = Integer.parseInt(json.nextString());
+		break;
+	    default:
+		json.skipValue();
+		break;
+	    }
+	}
+	json.endObject();
+	return function;
+    }
+
+    /**
+     * Reads the lines of each file of the archive, which maps the path of each file to its lines, and converts the
+     * files whenever the batch is full.
+     */
+    private void readArchive(JsonStreamReader json, Map<String, List<FileCoverage>> files, List<FileCoverage> batch, ForkJoinPool pool) throws IOException {
+	json.beginObject();
+	while ( json.hasNext() ) {
+	    String path = json.nextName();
+	    List<FileCoverage> sameFiles = files.get(path);
+	    if ( sameFiles == null ) {
+		json.skipValue();
+		continue;
+	    }
+	    readLines(json, sameFiles);
+	    batch.addAll(sameFiles);
+	    files.remove(path);
+	    if ( batch.size() >= BATCH_SIZE ) {
+		convert(batch, pool);
+	    }
+	}
+	json.endObject();
+    }
+
+    private static void readLines(JsonStreamReader json, List<FileCoverage> sameFiles) throws IOException {
+	int[] lines = new int[64];
+	long[] hits = new long[64];
+	int count = 0;
+	json.beginArray();
+	while ( json.hasNext() ) {
+	    int line = 0;
+	    long executionCount = 0;
+	    boolean executable = false;
+	    json.beginObject();
+	    while ( json.hasNext() ) {
+		switch ( json.nextName() ) {
+		case "line":
+		    line = Integer.parseInt(json.nextString());
+		    break;
+		case "executionCount":
+		    String value = json.nextString();
+		    executionCount = value != null ? Long.parseLong(value) : 0;
+		    break;
+		case "isExecutable":
+		    executable = Boolean.parseBoolean(json.nextString());
+		    break;
+		default:
+		    json.skipValue();
+		    break;
+		}
+	    }
+	    json.endObject();
+	    if ( executable ) {
+		if ( count == lines.length ) {
+		    lines = Arrays.copyOf(lines, count * 2);
+		    hits = Arrays.copyOf(hits, count * 2);
+		}
+		lines[count] = line;
+		hits[count] = executionCount;
+		count++;
+	    }
+	}
+	json.endArray();
+	lines = Arrays.copyOf(lines, count);
+	hits = Arrays.copyOf(hits, count);
+	for ( FileCoverage file : sameFiles ) {
+	    file.lines = lines;
+	    file.hits = hits;
+	}
+    }
+
+    /**
+     * Converts a batch of files in parallel, then appends them to the classes of their targets in the order they
+     * were read, and empties the batch.
+     */
+    private void convert(List<FileCoverage> batch, ForkJoinPool pool) throws IOException {
+	if ( batch.isEmpty() ) {
+	    return;
+	}
+	pool.invoke(new ConvertTask(batch, 0, batch.size()));
+	for ( FileCoverage file : batch ) {
+	    TargetCoverage target = file.target;
+	    if ( target.writer == null ) {
+		target.classes = File.createTempFile("xccov", ".xml");
+		target.writer = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(target.classes.toPath()), StandardCharsets.UTF_8));
+	    }
+	    target.writer.write(file.classElement);
+	    target.validLines += file.executableLines;
+	    target.coveredLines += file.coveredLines;
+	}
+	batch.clear();
+    }
+
+    private String toClassElement(FileCoverage file) {
+	String fileName = file.name != null ? file.name : file.path.substring(file.path.lastIndexOf('/') + 1);
+	int extension = fileName.lastIndexOf('.');
+	String className = extension > 0 ? fileName.substring(0, extension) : fileName;
+	String workspacePath = workspace.getRemote() + "/";
+	String relativePath = file.path.startsWith(workspacePath) ? file.path.substring(workspacePath.length()) : file.path;
+	if ( file.lines != null ) {
+	    // The lines of the archive are counted in place of the totals of the report.
+	    file.executableLines = file.lines.length;
+	    file.coveredLines = coveredLines(file.hits);
+	}
+	StringBuilder xml = new StringBuilder();
+	xml.append("\t\t\t\t<class name=\"").append(escape(className)).append("\" filename=\"").append(escape(relativePath)).append("\" line-rate=\"");
+	xml.append(rate(file.coveredLines, file.executableLines));
+	xml.append("\" branch-rate=\"0\" complexity=\"0\">\n");
+	xml.append("\t\t\t\t\t<methods>\n");
+	for ( FunctionCoverage function : file.functions ) {
+	    xml.append("\t\t\t\t\t\t<method name=\"").append(escape(function.name)).append("\" signature=\"\" line-rate=\"")
+		.append(rate(function.coveredLines, function.executableLines)).append("\" branch-rate=\"0\" complexity=\"0\">\n");
+	    xml.append("\t\t\t\t\t\t\t<lines>\n");
+	    appendLine(xml, "\t\t\t\t\t\t\t\t", function.lineNumber, function.executionCount);
+	    xml.append("\t\t\t\t\t\t\t</lines>\n");
+	    xml.append("\t\t\t\t\t\t</method>\n");
+	}
+	xml.append("\t\t\t\t\t</methods>\n");
+	xml.append("\t\t\t\t\t<lines>\n");
+	if ( file.lines != null ) {
+	    for ( int i = 0; i < file.lines.length; i++ ) {
+		appendLine(xml, "\t\t\t\t\t\t", file.lines[i], file.hits[i]);
+	    }
+	}
+	else {
+	    for ( FunctionCoverage function : file.functions ) {
+		appendLine(xml, "\t\t\t\t\t\t", function.lineNumber, function.executionCount);
+	    }
+	}
+	xml.append("\t\t\t\t\t</lines>\n");
+	xml.append("\t\t\t\t</class>\n");
+	// The lines are not needed once they are written.
+	file.lines = null;
+	file.hits = null;
+	file.functions.clear();
+	return xml.toString();
+    }
+
+    private void writeReport(List<TargetCoverage> targets) throws IOException, InterruptedException {
+	long coveredLines = 0;
+	long validLines = 0;
+	for ( TargetCoverage target : targets ) {
+	    coveredLines += target.coveredLines;
+	    validLines += target.validLines;
+	}
+	try ( OutputStream out = outputForReport() ) {
+	    Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+	    writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+	    writer.write("<!DOCTYPE coverage SYSTEM \"http://cobertura.sourceforge.net/xml/coverage-04.dtd\">\n");
+	    writer.write("<coverage line-rate=\"" + rate(coveredLines, validLines) + "\" branch-rate=\"0\" lines-covered=\"" + coveredLines
+		    + "\" lines-valid=\"" + validLines + "\" branches-covered=\"0\" branches-valid=\"0\" complexity=\"0\" version=\"xccov\" timestamp=\""
+		    + System.currentTimeMillis() + "\">\n");
+	    writer.write("\t<sources>\n");
+	    writer.write("\t\t<source>" + escape(workspace.getRemote()) + "</source>\n");
+	    writer.write("\t</sources>\n");
+	    writer.write("\t<packages>\n");
+	    for ( TargetCoverage target : targets ) {
+		if ( target.writer == null ) {
+		    continue;
+		}
+		target.writer.close();
+		target.writer = null;
+		writer.write("\t\t<package name=\"" + escape(target.name != null ? target.name : "") + "\" line-rate=\""
+			+ rate(target.coveredLines, target.validLines) + "\" branch-rate=\"0\" complexity=\"0\">\n");
+		writer.write("\t\t\t<classes>\n");
+		writer.flush();
+		Files.copy(target.classes.toPath(), out);
+		writer.write("\t\t\t</classes>\n");
+		writer.write("\t\t</package>\n");
+	    }
+	    writer.write("\t</packages>\n");
+	    writer.write("</coverage>\n");
+	    writer.flush();
+	}
+    }
+
+    private static void appendLine(StringBuilder xml, String indent, int number, long hits) {
+	xml.append(indent).append("<line number=\"").append(number).append("\" hits=\"").append(hits).append("\" branch=\"false\"/>\n");
+    }
+
+    private static int coveredLines(long[] hits) {
+	int covered = 0;
+	for ( long hit : hits ) {
+	    if ( hit > 0 ) {
+		covered++;
+	    }
+	}
+	return covered;
+    }
+
+    private static String rate(long covered, long valid) {
+	return valid == 0 ? "1.0" : String.format(Locale.ROOT, "%.4f", (double)covered / valid);
+    }
+
+    private static String escape(String text) {
+	if ( text == null ) {
+	    return "";
+	}
+	StringBuilder escaped = new StringBuilder(text.length());
+	for ( int i = 0; i < text.length(); i++ ) {
+	    char c = text.charAt(i);
+	    switch ( c ) {
+	    case '&':
+		escaped.append("&amp;");
+		break;
+	    case '<':
+		escaped.append("&lt;");
+		break;
+	    case '>':
+		escaped.append("&gt;");
+		break;
+	    case '"':
+		escaped.append("&quot;");
+		break;
+	    default:
+		escaped.append(c);
+		break;
+	    }
+	}
+	return escaped.toString();
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011 Ray Yamamoto Hilton
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package au.com.rayh;
+
+import hudson.FilePath;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Finds the projects to build and their schemes in one call to the agent.
+ * The workspace, project directories, project files and scheme files are read and parsed where they are, only the
+ * {@link Result} goes back to the controller.
+ */
+public class XcodeDiscoveryCallable extends MasterToSlaveFileCallable<XcodeDiscoveryCallable.Result> {
+    private static final long serialVersionUID = 1L;
+
+    private final String xcodeProjectFile;
+    private final String xcodeWorkspaceFile;
+
+    /**
+     * @param xcodeProjectFile the project file, relative to the directory the callable is run on, or null
+     * @param xcodeWorkspaceFile the workspace without its .xcworkspace extension, or null
+     */
+    public XcodeDiscoveryCallable(String xcodeProjectFile, String xcodeWorkspaceFile) {
+        this.xcodeProjectFile = xcodeProjectFile;
+        this.xcodeWorkspaceFile = xcodeWorkspaceFile;
+    }
+
+    @Override
+    public Result invoke(File projectRoot, VirtualChannel channel) throws IOException, InterruptedException {
+        Result result = new Result(projectRoot.getAbsolutePath());
+        FilePath root = new FilePath(projectRoot);
+        if ( !StringUtils.isEmpty(xcodeProjectFile) ) {
+            result.projectFileFound = new File(projectRoot, xcodeProjectFile).isDirectory();
+            if ( result.projectFileFound ) {
+                result.projects.put(XcodeProjectParser.normalizePath("", xcodeProjectFile), XcodeProjectParser.parseXcodeProject(root.child(xcodeProjectFile)));
+            }
+        }
+        if ( !StringUtils.isEmpty(xcodeWorkspaceFile) ) {
+            // All projects of the workspace and their schemes, read at the same time.
+            result.workspace = XcodeProjectParser.parseXcodeWorkspaceProjects(root.child(xcodeWorkspaceFile + ".xcworkspace"));
+            if ( result.workspace != null ) {
+                for ( Map.Entry<String, XcodeProject> project : result.workspace.projects.entrySet() ) {
+                    // Locations are relative to the directory of the workspace, unless they are absolute.
+                    if ( !project.getKey().startsWith("/") ) {
+                        result.projects.put(XcodeProjectParser.normalizePath(XcodeProjectParser.parentPath(xcodeWorkspaceFile), project.getKey()), project.getValue());
+                    }
+                }
+            }
+        }
+        File[] xcodeProjects = projectRoot.listFiles(new XcodeProjectFileFilter());
+        if ( xcodeProjects != null ) {
+            result.directoryProjects = new ArrayList<String>();
+            for ( File xcodeProject : xcodeProjects ) {
+                result.directoryProjects.add(xcodeProject.getName());
+                // Already read when it is the project file or in the workspace.
+                if ( !result.projects.containsKey(xcodeProject.getName()) ) {
+                    result.projects.put(xcodeProject.getName(), XcodeProjectParser.parseXcodeProject(new FilePath(xcodeProject)));
+                }
+            }
+        }
+        return result;
+    }
+
+    public static class Result implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String projectRoot;
+        private boolean projectFileFound;
+        private XcodeWorkspace workspace;
+        private final Map<String, XcodeProject> projects = new HashMap<String, XcodeProject>();
+        private List<String> directoryProjects;
+
+        Result(String projectRoot) {
+            this.projectRoot = projectRoot;
+        }
+
+        /**
+         * @return the absolute path of the directory the projects were searched in
+         */
+        public String getProjectRoot() {
+            return projectRoot;
+        }
+
+        /**
+         * @return whether the project file is a directory
+         */
+        public boolean isProjectFileFound() {
+            return projectFileFound;
+        }
+
+        /**
+         * @return the projects and schemes of the workspace, see {@link XcodeProjectParser#parseXcodeWorkspaceProjects(FilePath)},
+         * or null when it could not be read
+         */
+        public XcodeWorkspace getWorkspace() {
+            return workspace;
+        }
+
+        /**
+         * @return the projects of the workspace relative to its directory, in the order of the workspace, or null when
+         * it could not be read
+         */
+        public List<String> getWorkspaceProjects() {
+            return workspace == null ? null : new ArrayList<String>(workspace.projects.keySet());
+        }
+
+        /**
+         * @return the schemes of a project of the workspace, see {@link XcodeProjectParser#listXcodeSchemes(FilePath)}, or
+         * null when they could not be read
+         */
+        public HashMap<String, ProjectScheme> getSchemes(String projectLocation) {
+            return workspace == null ? null : workspace.projectSchemes.get(projectLocation);
+        }
+
+        /**
+         * @param projectLocation the project file relative to the directory the projects were searched in
+         * @return the project when it is the project file, a project of the workspace or of the directory, or null
+         * when it was not read or could not be
+         */
+        public XcodeProject getProject(String projectLocation) {
+            return projects.get(XcodeProjectParser.normalizePath("", projectLocation));
+        }
+
+        /**
+         * @return the names of the projects in the directory, or null when it could not be listed
+         */
+        public List<String> getDirectoryProjects() {
+            return directoryProjects;
+        }
+    }
+}
@@ -1,20 +1,51 @@
 package au.com.rayh;
 
 //import org.kohsuke.stapler.DataBoundConstructor;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
-public class XcodeProject {
+public class XcodeProject implements Serializable {
+    private static final long serialVersionUID = 1L;
  
     //public String uuid;
     //public String name;
     //public String file;
-    public HashMap<String, ProjectTarget> projectTarget;
+    public Map<String, ProjectTarget> projectTarget;
+    // Every target of the project, including the ones that are not signed.
+    public Map<String, ProjectTarget> targets;
+    // Every file in the project navigator, relative to the directory of the project file.
+    public List<String> files;
+    // Build configurations of the project, inherited by its targets.
+    public Map<String, BuildConfiguration> buildConfiguration;
 
     XcodeProject() {
 	//uuid = null;
 	//name = null;
 	//file = null;
 	projectTarget = new HashMap<String, ProjectTarget>();
+	targets = new HashMap<String, ProjectTarget>();
+	files = new ArrayList<String>();
+	buildConfiguration = new HashMap<String, BuildConfiguration>();
+    }
+
+    /**
+     * Wraps every collection of the project, so that a project shared by several builds can not be changed by one of them.
+     */
+    void makeUnmodifiable() {
+	for ( ProjectTarget target : targets.values() ) {
+	    target.makeUnmodifiable();
+	}
+	for ( BuildConfiguration configuration : buildConfiguration.values() ) {
+	    configuration.makeUnmodifiable();
+	}
+	projectTarget = Collections.unmodifiableMap(projectTarget);
+	targets = Collections.unmodifiableMap(targets);
+	files = Collections.unmodifiableList(files);
+	buildConfiguration = Collections.unmodifiableMap(buildConfiguration);
     }
 }
 
@@ -2,20 +2,33 @@ package au.com.rayh;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.text.ParseException;
 import java.io.ByteArrayInputStream;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import hudson.FilePath;
+import org.apache.commons.lang.StringUtils;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 //import javax.xml.parsers.ParserException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import javax.xml.parsers.ParserConfigurationException;
 import java.lang.InterruptedException;
 
@@ -39,6 +52,39 @@ import com.dd.plist.PropertyListParser;
  */
 public class XcodeProjectParser {
 
+    /**
+     * Number of parsed projects kept in memory, by the digest of their project.pbxproj.
+     * The cached models are shared between builds, so their collections can not be modified.
+     */
+    @SuppressFBWarnings("MS_SHOULD_BE_FINAL")
+    public static int PROJECT_CACHE_SIZE = Integer.getInteger(XcodeProjectParser.class.getName() + ".projectCacheSize", 32);
+
+    /**
+     * Number of projects of a workspace read at the same time.
+     */
+    @SuppressFBWarnings("MS_SHOULD_BE_FINAL")
+    public static int PARALLELISM = Integer.getInteger(XcodeProjectParser.class.getName() + ".parallelism", 8);
+
+    // Least recently used projects first.
+    private static final LinkedHashMap<String, XcodeProject> projectCache = new LinkedHashMap<String, XcodeProject>(16, 0.75f, true);
+
+    private static XcodeProject getCachedProject(String digest) {
+	synchronized ( projectCache ) {
+	    return projectCache.get(digest);
+	}
+    }
+
+    private static void cacheProject(String digest, XcodeProject project) {
+	synchronized ( projectCache ) {
+	    projectCache.put(digest, project);
+	    Iterator<String> digests = projectCache.keySet().iterator();
+	    while ( projectCache.size() > PROJECT_CACHE_SIZE && digests.hasNext() ) {
+		digests.next();
+		digests.remove();
+	    }
+	}
+    }
+
     /**
      * Retrieve all Xcode scheme file from project directory.
      * @param projectLocation Xcode project file location (directory path)
@@ -90,99 +136,191 @@ public class XcodeProjectParser {
      * @return analysis result of Xcode projectscheme file. If analysis fails, it is null
      */
     public static ProjectScheme parseXcodeScheme(FilePath schemeFile) {
-	ProjectScheme projectScheme = new ProjectScheme();
-	try {
-	    DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-
-	    String FEATURE = null;
-	    FEATURE = "http://apache.org/xml/features/disallow-doctype-decl";
-	    factory.setFeature(FEATURE, true);
-	    FEATURE = "http://xml.org/sax/features/external-general-entities";
-	    factory.setFeature(FEATURE, false);
-	    FEATURE = "http://xml.org/sax/features/external-parameter-entities";
-	    factory.setFeature(FEATURE, false);
-	    FEATURE = "http://apache.org/xml/features/nonvalidating/load-external-dtd";
-	    factory.setFeature(FEATURE, false);
-	    factory.setXIncludeAware(false);
-	    factory.setExpandEntityReferences(false);
-
-	    DocumentBuilder documentBuilder = factory.newDocumentBuilder();
-	    Document document = documentBuilder.parse(schemeFile.read());
+	try ( InputStream in = schemeFile.read() ) {
+	    return parseXcodeScheme(in);
+	}
+	catch ( IOException ex ) {
+	    ex.printStackTrace();
+	    return null;
+	}
+	catch ( InterruptedException ex ) {
+	    ex.printStackTrace();
+	    return null;
+	}
+    }
 
-	    Element root = document.getDocumentElement();
-	    if ( root.getNodeName().equals("Scheme") ) {
-		NodeList schemeNodes = root.getChildNodes();
-		for ( int i = 0; i < schemeNodes.getLength(); i++ ) {
-		    Node node = schemeNodes.item(i);
-		    if ( node.getNodeType() == Node.ELEMENT_NODE ) {
-			Element element = (Element)node;
-			if ( element.getNodeName().equals("BuildAction") ) {
-			    //projectScheme.parallelizeBuildables = element.getAttribute("parallelizeBuildables");
-			    //projectScheme.buildImplicitDependencies = element.getAttribute("buildImplicitDependencies");
-			    NodeList buildActionNodes = element.getChildNodes();
-			    for ( int j = 0; j < buildActionNodes.getLength(); j++ ) {
-				node = buildActionNodes.item(j);
-				if ( node.getNodeType() == Node.ELEMENT_NODE ) {
-				    element = (Element)node;
-				    if ( element.getNodeName().equals("BuildActionEntries") ) {
-					NodeList buildActionEntriesNodes = element.getChildNodes();
-					for ( int k = 0; k < buildActionEntriesNodes.getLength(); k++ ) {
-					    node = buildActionEntriesNodes.item(k);
-					    if ( node.getNodeType() == Node.ELEMENT_NODE ) {
-						element = (Element)node;
-						if ( element.getNodeName().equals("BuildActionEntry") ) {
-						    //projectScheme.buildForTesting = element.getAttribute("buildForTesting");
-						    //projectScheme.buildForRunning = element.getAttribute("buildForRunning");
-						    //projectScheme.buildForProfiling = element.getAttribute("buildForProfiling");
-						    //projectScheme.buildForArchiving = element.getAttribute("buildForArchiving");
-						    //projectScheme.buildForAnalyzing = element.getAttribute("buildForAnalyzing");
-						    NodeList buildActionEntryNodes = element.getChildNodes();
-						    for ( int l = 0; l < buildActionEntryNodes.getLength(); l++ ) {
-							node = buildActionEntryNodes.item(l);
-							if ( node.getNodeType() == Node.ELEMENT_NODE ) {
-							    element = (Element)node;
-							    if ( element.getNodeName().equals("BuildableReference") ) {
-								//projectScheme.buildableIdentifier = element.getAttribute("BuildableIdentifier");
-								//projectScheme.blueprintIdentifier = element.getAttribute("BlueprintIdentifier");
-								//projectScheme.buildableName = element.getAttribute("BuildableName");
-								projectScheme.blueprintName = element.getAttribute("BlueprintName");
-								projectScheme.referencedContainer = element.getAttribute("ReferencedContainer");
-							    }
-							}
-						    }
-						}
-					    }
-					}
-				    }
-				}
-			    }
+    /**
+     * Reads a scheme in one pass, without building a document.
+     * @param in contents of an Xcode scheme file
+     * @return analysis result of Xcode projectscheme file. If analysis fails, it is null
+     */
+    static ProjectScheme parseXcodeScheme(InputStream in) {
+	XMLInputFactory factory = XMLInputFactory.newInstance();
+	factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+	factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+	try {
+	    XMLStreamReader reader = factory.createXMLStreamReader(in);
+	    try {
+		ProjectScheme projectScheme = new ProjectScheme();
+		ProjectScheme.BuildActionEntry buildActionEntry = null;
+		ProjectScheme.TestableReference testableReference = null;
+		List<String> tests = null;
+		int depth = 0;
+		while ( reader.hasNext() ) {
+		    int event = reader.next();
+		    if ( event == XMLStreamConstants.END_ELEMENT ) {
+			depth--;
+			String element = reader.getLocalName();
+			if ( element.equals("BuildActionEntry") ) {
+			    buildActionEntry = null;
+			}
+			else if ( element.equals("TestableReference") ) {
+			    testableReference = null;
+			}
+			else if ( element.equals("SkippedTests") || element.equals("SelectedTests") ) {
+			    tests = null;
 			}
+			continue;
+		    }
+		    if ( event != XMLStreamConstants.START_ELEMENT ) {
+			continue;
+		    }
+		    depth++;
+		    String element = reader.getLocalName();
+		    if ( depth == 1 && !element.equals("Scheme") ) {
+			// Not a scheme.
+			return projectScheme;
+		    }
+		    switch ( element ) {
+		    case "BuildAction":
+			projectScheme.parallelizeBuildables = booleanValue(reader, "parallelizeBuildables");
+			projectScheme.buildImplicitDependencies = booleanValue(reader, "buildImplicitDependencies");
+			break;
+		    case "BuildActionEntry":
+			buildActionEntry = new ProjectScheme.BuildActionEntry();
+			buildActionEntry.buildForTesting = booleanValue(reader, "buildForTesting");
+			buildActionEntry.buildForRunning = booleanValue(reader, "buildForRunning");
+			buildActionEntry.buildForProfiling = booleanValue(reader, "buildForProfiling");
+			buildActionEntry.buildForArchiving = booleanValue(reader, "buildForArchiving");
+			buildActionEntry.buildForAnalyzing = booleanValue(reader, "buildForAnalyzing");
+			projectScheme.buildActionEntries.add(buildActionEntry);
+			break;
+		    case "TestAction":
+			projectScheme.testBuildConfiguration = reader.getAttributeValue(null, "buildConfiguration");
+			projectScheme.codeCoverageEnabled = booleanValue(reader, "codeCoverageEnabled");
+			break;
+		    case "TestableReference":
+			testableReference = new ProjectScheme.TestableReference();
+			testableReference.skipped = booleanValue(reader, "skipped");
+			testableReference.parallelizable = booleanValue(reader, "parallelizable");
+			testableReference.testExecutionOrdering = reader.getAttributeValue(null, "testExecutionOrdering");
+			testableReference.useTestSelectionWhitelist = booleanValue(reader, "useTestSelectionWhitelist");
+			projectScheme.testables.add(testableReference);
+			break;
+		    case "SkippedTests":
+			tests = testableReference == null ? null : testableReference.skippedTests;
+			break;
+		    case "SelectedTests":
+			tests = testableReference == null ? null : testableReference.selectedTests;
+			break;
+		    case "Test":
+			if ( tests != null && reader.getAttributeValue(null, "Identifier") != null ) {
+			    tests.add(reader.getAttributeValue(null, "Identifier"));
+			}
+			break;
+		    case "BuildableReference":
+			// Only the references of build action entries and testables, not those of macro expansions or runnables.
+			if ( buildActionEntry != null && buildActionEntry.buildableReference == null ) {
+			    buildActionEntry.buildableReference = readBuildableReference(reader);
+			    projectScheme.blueprintName = buildActionEntry.buildableReference.blueprintName;
+			    projectScheme.referencedContainer = buildActionEntry.buildableReference.referencedContainer;
+			}
+			else if ( testableReference != null && testableReference.buildableReference == null ) {
+			    testableReference.buildableReference = readBuildableReference(reader);
+			}
+			break;
+		    default:
+			break;
 		    }
 		}
+		return projectScheme;
+	    }
+	    finally {
+		reader.close();
 	    }
 	}
-	catch (SAXException ex) {
+	catch ( XMLStreamException ex ) {
 	    ex.printStackTrace();
-	    projectScheme = null;
+	    return null;
 	}
-	catch (IOException ex) {
-	    ex.printStackTrace();
-	    projectScheme = null;
+    }
+
+    private static ProjectScheme.BuildableReference readBuildableReference(XMLStreamReader reader) {
+	ProjectScheme.BuildableReference buildableReference = new ProjectScheme.BuildableReference();
+	buildableReference.buildableIdentifier = reader.getAttributeValue(null, "BuildableIdentifier");
+	buildableReference.blueprintIdentifier = reader.getAttributeValue(null, "BlueprintIdentifier");
+	buildableReference.buildableName = reader.getAttributeValue(null, "BuildableName");
+	buildableReference.blueprintName = reader.getAttributeValue(null, "BlueprintName");
+	buildableReference.referencedContainer = reader.getAttributeValue(null, "ReferencedContainer");
+	return buildableReference;
+    }
+
+    private static boolean booleanValue(XMLStreamReader reader, String attribute) {
+	return "YES".equals(reader.getAttributeValue(null, attribute));
+    }
+    
+    /**
+     * @return the directory of a path, or an empty path
+     */
+    static String parentPath(String path) {
+	int slash = path.lastIndexOf('/');
+	return slash < 0 ? "" : path.substring(0, slash);
+    }
+
+    /**
+     * Resolve a location of a workspace or a scheme.
+     * @param groupPath the directory of the enclosing group, for "group:" locations
+     * @param containerPath the directory of the workspace or project, for "container:" locations
+     * @return the path, relative to the directory of the workspace or absolute, or null when the location is not a file
+     */
+    static String resolveLocation(String groupPath, String containerPath, String location) {
+	if ( location.startsWith("group:") ) {
+	    return normalizePath(groupPath, location.substring("group:".length()));
 	}
-	catch (ParserConfigurationException ex) {
-	    ex.printStackTrace();
-	    projectScheme = null;
+	if ( location.startsWith("container:") ) {
+	    return normalizePath(containerPath, location.substring("container:".length()));
 	}
-        catch ( InterruptedException ex ) {
-            ex.printStackTrace();
-            projectScheme = null;
-        }
-	return projectScheme;
+	if ( location.startsWith("absolute:") ) {
+	    return location.substring("absolute:".length());
+	}
+	// "self:" is the project holding the workspace, and "developer:" is in Xcode.
+	return null;
     }
-    
+
+    private static void parseWorkspaceGroup(Element group, String groupPath, List<String> projectList) {
+	NodeList children = group.getChildNodes();
+	for ( int i = 0; i < children.getLength(); i++ ) {
+	    Node node = children.item(i);
+	    if ( node.getNodeType() == Node.ELEMENT_NODE ) {
+		Element element = (Element)node;
+		String location = resolveLocation(groupPath, "", element.getAttribute("location"));
+		if ( location == null ) {
+		    continue;
+		}
+		if ( element.getNodeName().equals("FileRef") ) {
+		    projectList.add(location);
+		}
+		else if ( element.getNodeName().equals("Group") ) {
+		    parseWorkspaceGroup(element, location, projectList);
+		}
+	    }
+	}
+    }
+
     /**
      * @param workspaceFileLocation Xcode workspace file location (directory)
-     * @return list of project files obtained as a result of analyzing workspaceFile. If analysis fails, it is empty
+     * @return list of project files obtained as a result of analyzing workspaceFile, relative to the directory of the workspace file,
+     * also the ones in groups. If analysis fails, it is empty
      */
     public static List<String> parseXcodeWorkspace(FilePath workspaceFileLocation) {
 	List<String> projectList = new ArrayList<>();
@@ -207,21 +345,7 @@ public class XcodeProjectParser {
 
 	    Element root = document.getDocumentElement();
 	    if ( root.getNodeName().equals("Workspace") ) {
-		NodeList rootChildren = root.getChildNodes();
-
-		for ( int i = 0; i < rootChildren.getLength(); i++ ) {
-		    Node node = rootChildren.item(i);
-		    if ( node.getNodeType() == Node.ELEMENT_NODE ) {
-			Element element = (Element)node;
-			if ( element.getNodeName().equals("FileRef") ) {
-			    String projectLocation = element.getAttribute("location");
-			    if ( projectLocation.startsWith("group:") ) {
-				projectLocation = projectLocation.replaceAll("^group:", "");
-				projectList.add(projectLocation);
-			    }
-			}
-		    }
-		}
+		parseWorkspaceGroup(root, "", projectList);
 	    }
 	}
 	catch (SAXException ex) {
@@ -243,6 +367,90 @@ public class XcodeProjectParser {
 	return projectList;
     }
 
+    private static class ParseProjectsTask extends RecursiveAction {
+	private static final long serialVersionUID = 1L;
+	private final FilePath workspaceDirectory;
+	private final List<String> locations;
+	private final XcodeProject[] projects;
+	private final List<HashMap<String, ProjectScheme>> schemes;
+	private final int from;
+	private final int to;
+
+	ParseProjectsTask(FilePath workspaceDirectory, List<String> locations, XcodeProject[] projects, List<HashMap<String, ProjectScheme>> schemes, int from, int to) {
+	    this.workspaceDirectory = workspaceDirectory;
+	    this.locations = locations;
+	    this.projects = projects;
+	    this.schemes = schemes;
+	    this.from = from;
+	    this.to = to;
+	}
+
+	@Override
+	protected void compute() {
+	    if ( to - from == 1 ) {
+		FilePath projectLocation = workspaceDirectory.child(locations.get(from));
+		projects[from] = parseXcodeProject(projectLocation);
+		schemes.set(from, listXcodeSchemes(projectLocation));
+	    }
+	    else {
+		int middle = (from + to) >>> 1;
+		invokeAll(new ParseProjectsTask(workspaceDirectory, locations, projects, schemes, from, middle),
+			  new ParseProjectsTask(workspaceDirectory, locations, projects, schemes, middle, to));
+	    }
+	}
+    }
+
+    /**
+     * Read every project of a workspace and its schemes, several at the same time.
+     * @param workspaceFileLocation Xcode workspace file location (directory)
+     * @return the projects and schemes of the workspace. If the workspace file can not be read, it is null
+     */
+    public static XcodeWorkspace parseXcodeWorkspaceProjects(FilePath workspaceFileLocation) {
+	List<String> projectList = parseXcodeWorkspace(workspaceFileLocation);
+	if ( projectList == null ) {
+	    return null;
+	}
+	List<String> locations = new ArrayList<String>();
+	for ( String location : projectList ) {
+	    if ( location.endsWith(".xcodeproj") && !locations.contains(location) ) {
+		locations.add(location);
+	    }
+	}
+	XcodeWorkspace workspace = new XcodeWorkspace();
+	if ( locations.isEmpty() ) {
+	    return workspace;
+	}
+	XcodeProject[] projects = new XcodeProject[locations.size()];
+	List<HashMap<String, ProjectScheme>> schemes = new ArrayList<HashMap<String, ProjectScheme>>(Collections.<HashMap<String, ProjectScheme>>nCopies(locations.size(), null));
+	ForkJoinPool pool = new ForkJoinPool(Math.max(1, Math.min(PARALLELISM, locations.size())));
+	try {
+	    pool.invoke(new ParseProjectsTask(workspaceFileLocation.getParent(), locations, projects, schemes, 0, locations.size()));
+	}
+	finally {
+	    pool.shutdown();
+	}
+	// Merged in the order of the workspace, whatever order they were read in.
+	for ( int i = 0; i < locations.size(); i++ ) {
+	    String location = locations.get(i);
+	    workspace.projects.put(location, projects[i]);
+	    workspace.projectSchemes.put(location, schemes.get(i));
+	    if ( schemes.get(i) == null ) {
+		continue;
+	    }
+	    for ( String schemeName : schemes.get(i).keySet() ) {
+		ProjectScheme projectScheme = schemes.get(i).get(schemeName);
+		if ( projectScheme == null || workspace.schemes.containsKey(schemeName) ) {
+		    continue;
+		}
+		workspace.schemes.put(schemeName, projectScheme);
+		// The container of a scheme is relative to the directory of its project.
+		String schemeProject = projectScheme.referencedContainer == null ? null : resolveLocation(parentPath(location), parentPath(location), projectScheme.referencedContainer);
+		workspace.schemeProjects.put(schemeName, schemeProject == null ? location : schemeProject);
+	    }
+	}
+	return workspace;
+    }
+
     /**
      * @param infoPlistFile Xcode Info.plist file location
      * @return analysis result of Info.plist file. If analysis fails, it is null
@@ -262,6 +470,155 @@ public class XcodeProjectParser {
 	return infoPlist;
     }
 
+    private static String stringValue(NSDictionary dict, String key) {
+	NSObject value = dict.objectForKey(key);
+	return value == null ? null : value.toString();
+    }
+
+    /**
+     * Joins a path to a base path, resolving "." and ".." segments.
+     * @return the path, relative to the same directory as the base path, or absolute when the path is
+     */
+    static String normalizePath(String basePath, String path) {
+	List<String> segments = new ArrayList<String>();
+	String joined = StringUtils.isEmpty(path) ? basePath : StringUtils.isEmpty(basePath) || path.startsWith("/") ? path : basePath + "/" + path;
+	for ( String segment : joined.split("/") ) {
+	    if ( segment.isEmpty() || segment.equals(".") ) {
+		continue;
+	    }
+	    if ( segment.equals("..") && !segments.isEmpty() && !segments.get(segments.size() - 1).equals("..") ) {
+		segments.remove(segments.size() - 1);
+	    }
+	    else {
+		segments.add(segment);
+	    }
+	}
+	return (joined.startsWith("/") ? "/" : "") + StringUtils.join(segments, "/");
+    }
+
+    /**
+     * Resolve the paths of the files in a group of the project navigator, relative to the directory of the project file.
+     * Only files relative to their group or to the project are resolved, not the ones in the SDK or the build products.
+     */
+    private static void resolveFilePaths(PbxprojReader pbxproj, String uuid, String groupPath, String sourceRoot, HashMap<String, List<String>> filePaths, List<String> files) throws ParseException {
+	NSDictionary referenceDict = pbxproj.getObject(uuid);
+	if ( referenceDict == null ) {
+	    return;
+	}
+	String sourceTree = stringValue(referenceDict, "sourceTree");
+	String path;
+	if ( sourceTree == null || sourceTree.equals("<group>") ) {
+	    path = normalizePath(groupPath, stringValue(referenceDict, "path"));
+	}
+	else if ( sourceTree.equals("SOURCE_ROOT") ) {
+	    path = normalizePath(sourceRoot, stringValue(referenceDict, "path"));
+	}
+	else {
+	    return;
+	}
+	NSObject children = referenceDict.objectForKey("children");
+	if ( children instanceof NSArray ) {
+	    List<String> childPaths = new ArrayList<String>();
+	    for ( NSObject child : ((NSArray)children).getArray() ) {
+		resolveFilePaths(pbxproj, child.toString(), path, sourceRoot, filePaths, files);
+		if ( filePaths.get(child.toString()) != null ) {
+		    childPaths.addAll(filePaths.get(child.toString()));
+		}
+	    }
+	    // Variant groups, e.g. localized storyboards, and versioned Core Data models are added to build phases as one file.
+	    if ( !"PBXGroup".equals(stringValue(referenceDict, "isa")) ) {
+		filePaths.put(uuid, childPaths);
+	    }
+	}
+	else {
+	    // Also folder references and folders synchronized with the file system.
+	    filePaths.put(uuid, Collections.singletonList(path));
+	    files.add(path);
+	}
+    }
+
+    /**
+     * Collect the files in the build phases of a target and the targets it depends on.
+     */
+    private static void parseTargetMembership(PbxprojReader pbxproj, NSDictionary projectTargetDict, HashMap<String, List<String>> filePaths, HashMap<String, String> productTargets, ProjectTarget target) throws ParseException {
+	NSObject buildPhases = projectTargetDict.objectForKey("buildPhases");
+	if ( buildPhases instanceof NSArray ) {
+	    for ( NSObject buildPhaseUUID : ((NSArray)buildPhases).getArray() ) {
+		NSDictionary buildPhaseDict = pbxproj.getObject(buildPhaseUUID.toString());
+		if ( buildPhaseDict == null || !(buildPhaseDict.objectForKey("files") instanceof NSArray) ) {
+		    continue;
+		}
+		boolean frameworks = "PBXFrameworksBuildPhase".equals(stringValue(buildPhaseDict, "isa"));
+		for ( NSObject buildFileUUID : ((NSArray)buildPhaseDict.objectForKey("files")).getArray() ) {
+		    NSDictionary buildFileDict = pbxproj.getObject(buildFileUUID.toString());
+		    String fileRef = buildFileDict == null ? null : stringValue(buildFileDict, "fileRef");
+		    if ( fileRef == null ) {
+			continue;
+		    }
+		    if ( frameworks && productTargets.containsKey(fileRef) && !target.dependencies.contains(productTargets.get(fileRef)) ) {
+			// Linking the product of another target makes it an implicit dependency.
+			target.dependencies.add(productTargets.get(fileRef));
+		    }
+		    if ( filePaths.get(fileRef) != null ) {
+			target.sourceFiles.addAll(filePaths.get(fileRef));
+		    }
+		}
+	    }
+	}
+	// Xcode 16 folders that are synchronized with the file system belong to the target as a whole.
+	NSObject synchronizedGroups = projectTargetDict.objectForKey("fileSystemSynchronizedGroups");
+	if ( synchronizedGroups instanceof NSArray ) {
+	    for ( NSObject groupUUID : ((NSArray)synchronizedGroups).getArray() ) {
+		if ( filePaths.get(groupUUID.toString()) != null ) {
+		    target.sourceFiles.addAll(filePaths.get(groupUUID.toString()));
+		}
+	    }
+	}
+	NSObject dependencies = projectTargetDict.objectForKey("dependencies");
+	if ( dependencies instanceof NSArray ) {
+	    for ( NSObject dependencyUUID : ((NSArray)dependencies).getArray() ) {
+		NSDictionary dependencyDict = pbxproj.getObject(dependencyUUID.toString());
+		if ( dependencyDict == null ) {
+		    continue;
+		}
+		String dependency = null;
+		NSDictionary dependencyTargetDict = dependencyDict.objectForKey("target") == null ? null : pbxproj.getObject(dependencyDict.objectForKey("target").toString());
+		if ( dependencyTargetDict != null ) {
+		    dependency = stringValue(dependencyTargetDict, "name");
+		}
+		else {
+		    // A target in another project of the workspace.
+		    dependency = stringValue(dependencyDict, "name");
+		}
+		if ( dependency != null && !target.dependencies.contains(dependency) ) {
+		    target.dependencies.add(dependency);
+		}
+	    }
+	}
+    }
+
+    /**
+     * Parse each build configurations of a configuration list, with the path of the xcconfig file they are based on.
+     * @return the default configuration name, or null
+     */
+    private static String parseBuildConfigurationList(PbxprojReader pbxproj, String buildConfigurationListUUID, boolean automatic, HashMap<String, List<String>> filePaths, Map<String, BuildConfiguration> buildConfigurations) throws ParseException {
+	NSDictionary buildConfigurationList = pbxproj.getObject(buildConfigurationListUUID);
+	if ( buildConfigurationList == null ) {
+	    return null;
+	}
+	NSObject[] buildConfigurationUUIDs = ((NSArray)buildConfigurationList.objectForKey("buildConfigurations")).getArray();
+	for ( NSObject buildConfigurationUUID : buildConfigurationUUIDs ) {
+	    NSDictionary buildConfigurationDict = pbxproj.getObject(buildConfigurationUUID.toString());
+	    BuildConfiguration buildConfiguration = new BuildConfiguration(buildConfigurationDict, buildConfigurationUUID.toString(), automatic);
+	    String baseConfigurationReference = stringValue(buildConfigurationDict, "baseConfigurationReference");
+	    if ( baseConfigurationReference != null && filePaths.get(baseConfigurationReference) != null && !filePaths.get(baseConfigurationReference).isEmpty() ) {
+		buildConfiguration.baseConfigurationFile = filePaths.get(baseConfigurationReference).get(0);
+	    }
+	    buildConfigurations.put(buildConfiguration.name, buildConfiguration);
+	}
+	return stringValue(buildConfigurationList, "defaultConfigurationName");
+    }
+
     /**
      * @param projectLocation Xcode project file location (directory)
      * @return analysis result of Xcode project file. If analysis fails, it is null
@@ -269,22 +626,51 @@ public class XcodeProjectParser {
     public static XcodeProject parseXcodeProject(FilePath projectLocation) {
 	XcodeProject project = new XcodeProject();
 	FilePath xcodeProjectFile = projectLocation.child("project.pbxproj");
+	String digest = null;
 	try {
-	    NSDictionary rootDict = (NSDictionary)PropertyListParser.parse(xcodeProjectFile.read());
-	    String rootObjectsUUID = rootDict.objectForKey("rootObject").toString();
-	    NSDictionary objectsDict = ((NSDictionary)rootDict.objectForKey("objects"));
-	    NSDictionary pbxProjectSectionDict = ((NSDictionary)objectsDict.objectForKey(rootObjectsUUID));
+	    // The digest is computed on the agent, so an unchanged project is neither transferred nor parsed again.
+	    digest = xcodeProjectFile.digest();
+	    XcodeProject cachedProject = getCachedProject(digest);
+	    if ( cachedProject != null ) {
+		return cachedProject;
+	    }
+	    // Objects are only decoded when they are followed from the project object.
+	    PbxprojReader pbxproj;
+	    try ( InputStream in = xcodeProjectFile.read() ) {
+		pbxproj = PbxprojReader.read(in);
+	    }
+	    NSDictionary pbxProjectSectionDict = pbxproj.getObject(pbxproj.getRootObject());
 	    NSObject[] projectTargetUUIDs = ((NSArray)pbxProjectSectionDict.objectForKey("targets")).getArray();
+	    // Paths of the files in the project navigator by the UUID of their reference.
+	    HashMap<String, List<String>> filePaths = new HashMap<String, List<String>>();
+	    String sourceRoot = normalizePath("", stringValue(pbxProjectSectionDict, "projectDirPath"));
+	    if ( pbxProjectSectionDict.objectForKey("mainGroup") != null ) {
+		resolveFilePaths(pbxproj, pbxProjectSectionDict.objectForKey("mainGroup").toString(), "", sourceRoot, filePaths, project.files);
+	    }
+	    // Target names by the UUID of their product, to find the targets linked by other targets.
+	    HashMap<String, String> productTargets = new HashMap<String, String>();
+	    for ( NSObject projectTargetUUID:projectTargetUUIDs ) {
+		NSDictionary projectTargetDict = pbxproj.getObject(projectTargetUUID.toString());
+		if ( projectTargetDict.objectForKey("productReference") != null ) {
+		    productTargets.put(projectTargetDict.objectForKey("productReference").toString(), projectTargetDict.objectForKey("name").toString());
+		}
+	    }
 	    // In case Project has buildConfigurationList.
+	    if ( pbxProjectSectionDict.objectForKey("buildConfigurationList") != null ) {
+		parseBuildConfigurationList(pbxproj, pbxProjectSectionDict.objectForKey("buildConfigurationList").toString(), true, filePaths, project.buildConfiguration);
+	    }
 	    // Parse each targets.
 	    for ( NSObject projectTargetUUID:projectTargetUUIDs ) {
 		ProjectTarget target = new ProjectTarget();
-		NSDictionary projectTargetDict = ((NSDictionary)objectsDict.objectForKey(projectTargetUUID.toString()));
+		NSDictionary projectTargetDict = pbxproj.getObject(projectTargetUUID.toString());
 		target.uuid = projectTargetUUID.toString();
 		String targetName = projectTargetDict.objectForKey("name").toString();
 		// Target has buildConfigurationList.
 		String buildConfigurationListUUID = projectTargetDict.objectForKey("buildConfigurationList").toString();
-		target.productType = projectTargetDict.objectForKey("productType").toString();
+		// Aggregate and legacy targets have no product.
+		target.productType = projectTargetDict.objectForKey("productType") == null ? "" : projectTargetDict.objectForKey("productType").toString();
+		parseTargetMembership(pbxproj, projectTargetDict, filePaths, productTargets, target);
+		project.targets.put(targetName, target);
 		if ( target.productType.equals("com.apple.product-type.application") ||
 		     target.productType.equals("com.apple.product-type.bundle.unit-test") ||
 		     target.productType.equals("com.apple.product-type.bundle.ui-testing") ||
@@ -305,22 +691,12 @@ public class XcodeProjectParser {
                     if ( attributeDict.objectForKey("TestTargetID") != null ) {
                         target.testTargetID = attributeDict.objectForKey("TestTargetID").toString();
                     }
-		    NSDictionary buildConfigurationList = ((NSDictionary)objectsDict.objectForKey(buildConfigurationListUUID));
-		    if ( buildConfigurationList != null ) {
-			if ( buildConfigurationList.objectForKey("defaultConfigurationName") != null ) {
-			    target.defaultConfigurationName = buildConfigurationList.objectForKey("defaultConfigurationName").toString();
-			}
-			NSObject[] buildConfigurationUUIDs = ((NSArray)buildConfigurationList.objectForKey("buildConfigurations")).getArray();
-			// Parse each build configurations.
-			for ( NSObject buildConfigurationUUID : buildConfigurationUUIDs ) {
-			    BuildConfiguration buildConfiguration = new BuildConfiguration(objectsDict, buildConfigurationUUID.toString(), target.provisioningStyle.equals("Automatic"));
-			    target.buildConfiguration.put(buildConfiguration.name, buildConfiguration);
-			}
-		    }
 		    project.projectTarget.put(targetName, target);
 		}
 		else if ( target.productType.equals("com.apple.product-type.framework" ) ) {
 		}
+		// Other targets have no provisioning style and are parsed like automatically signed ones.
+		target.defaultConfigurationName = parseBuildConfigurationList(pbxproj, buildConfigurationListUUID, target.provisioningStyle == null || target.provisioningStyle.equals("Automatic"), filePaths, target.buildConfiguration);
 	    }
 	}
 	catch ( IOException ex ) {
@@ -347,6 +723,10 @@ public class XcodeProjectParser {
 	    ex.printStackTrace();
 	    project = null;
 	}
+	if ( project != null ) {
+	    project.makeUnmodifiable();
+	    cacheProject(digest, project);
+	}
 	return project;
     }
 }
@@ -0,0 +1,586 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011 Ray Yamamoto Hilton
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package au.com.rayh;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Proc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import javax.xml.bind.JAXBException;
+
+import au.com.rayh.report.TestCase;
+import au.com.rayh.report.TestFailure;
+import au.com.rayh.report.TestReportWriter;
+import au.com.rayh.report.TestSuite;
+
+/**
+ * Converts the tests of an Xcode 11 or later result bundle (.xcresult), which no longer has a TestSummaries.plist,
+ * to JUnit compatible XML files.
+ * The bundle is read with "xcrun xcresulttool get --format json" and its JSON output is streamed.
+ * The test plan summaries referenced by the actions are read one after the other, and the summaries of the failed
+ * tests, which hold the failure messages, are fetched in parallel. Passed tests are never looked up.
+ */
+public class XcodeResultBundleParser {
+    @SuppressFBWarnings("MS_SHOULD_BE_FINAL")
+    public static int PARALLELISM = Integer.getInteger(XcodeResultBundleParser.class.getName() + ".parallelism", 4);
+
+    private final FilePath testReportsDir;
+    private final Launcher launcher;
+    private final EnvVars envs;
+    private final String xcrunPath;
+    private volatile boolean legacy;
+    private boolean extractAttachments;
+    private TestAttachmentExtractor attachmentExtractor;
+    // Attachment payloads are stored by content, so the same screenshot always has the same id.
+    private final Map<String, Future<FilePath>> exportedAttachments = new HashMap<String, Future<FilePath>>();
+
+    private interface DocumentReader<T> {
+	T read(JsonStreamReader json) throws IOException, InterruptedException;
+    }
+
+    private interface ElementReader {
+	void read(JsonStreamReader json) throws IOException, InterruptedException;
+    }
+
+    /**
+     * A test summary group, or a test when it has no subtests.
+     */
+    private static class TestNode {
+	String name;
+	String duration;
+	String testStatus;
+	String summaryRef;
+	boolean group;
+	List<TestNode> tests = new ArrayList<TestNode>();
+    }
+
+    /**
+     * What is read from the summary of a failed test.
+     */
+    private static class TestSummary {
+	final List<TestFailure> failures = new ArrayList<TestFailure>();
+	final List<Future<FilePath>> attachments = new ArrayList<Future<FilePath>>();
+    }
+
+    private static class PendingTestSuite {
+	final TestSuite testSuite;
+	final Map<TestCase, Future<TestSummary>> failures;
+
+	PendingTestSuite(TestSuite testSuite, Map<TestCase, Future<TestSummary>> failures) {
+	    this.testSuite = testSuite;
+	    this.failures = failures;
+	}
+    }
+
+    private static class XcresulttoolException extends IOException {
+	XcresulttoolException(String message) {
+	    super(message);
+	}
+    }
+
+    public XcodeResultBundleParser(FilePath workspace, Launcher launcher, EnvVars envs, String xcrunPath) throws IOException, InterruptedException {
+	testReportsDir = workspace.child("test-reports");
+	testReportsDir.mkdirs();
+	this.launcher = launcher;
+	this.envs = envs;
+	this.xcrunPath = xcrunPath;
+    }
+
+    /**
+     * @param extractAttachments whether to export the attachments of failed tests and link them from the reports
+     */
+    public void setExtractAttachments(boolean extractAttachments) {
+	this.extractAttachments = extractAttachments;
+    }
+
+    private void writeTestReport(TestSuite currentTestSuite) throws IOException, InterruptedException,
+            JAXBException {
+        try (OutputStream testReportOutputStream = outputForSuite(currentTestSuite)) {
+            TestReportWriter.write(currentTestSuite, testReportOutputStream);
+        }
+    }
+
+    protected OutputStream outputForSuite(TestSuite currentTestSuite) throws IOException, InterruptedException {
+	return testReportsDir.child("TEST-" + currentTestSuite.getName() + ".xml").write();
+    }
+
+    /**
+     * @param resultBundle The location of the .xcresult bundle output from Xcode.
+     */
+    public void parseResultBundle(final FilePath resultBundle) {
+	ExecutorService executor = Executors.newFixedThreadPool(PARALLELISM, new ThreadFactory() {
+	    public Thread newThread(Runnable runnable) {
+		Thread thread = new Thread(runnable, "xcresulttool reader");
+		thread.setDaemon(true);
+		return thread;
+	    }
+	});
+	if ( extractAttachments ) {
+	    attachmentExtractor = new TestAttachmentExtractor(testReportsDir);
+	}
+	try {
+	    DocumentReader<List<String>> actionsInvocationRecord = new DocumentReader<List<String>>() {
+		public List<String> read(JsonStreamReader json) throws IOException, InterruptedException {
+		    return readActionsInvocationRecord(json);
+		}
+	    };
+	    List<String> testsRefs;
+	    try {
+		testsRefs = get(resultBundle, null, actionsInvocationRecord);
+	    }
+	    catch ( XcresulttoolException ex ) {
+		// Xcode 16 only keeps this JSON format behind a flag.
+		if ( !ex.getMessage().contains("--legacy") ) {
+		    throw ex;
+		}
+		legacy = true;
+		testsRefs = get(resultBundle, null, actionsInvocationRecord);
+	    }
+	    final List<PendingTestSuite> pendingTestSuites = new ArrayList<PendingTestSuite>();
+	    for ( String testsRef : testsRefs ) {
+		get(resultBundle, testsRef, new DocumentReader<Void>() {
+		    public Void read(JsonStreamReader json) throws IOException, InterruptedException {
+			readTestNode(json, null, resultBundle, executor, pendingTestSuites);
+			return null;
+		    }
+		});
+	    }
+	    for ( PendingTestSuite pendingTestSuite : pendingTestSuites ) {
+		for ( Map.Entry<TestCase, Future<TestSummary>> failure : pendingTestSuite.failures.entrySet() ) {
+		    try {
+			TestSummary testSummary = failure.getValue().get();
+			failure.getKey().getFailures().addAll(testSummary.failures);
+			TestAttachmentExtractor.link(failure.getKey(), testSummary.attachments);
+		    }
+		    catch ( ExecutionException ex ) {
+			ex.getCause().printStackTrace();
+		    }
+		    if ( failure.getKey().getFailures().isEmpty() ) {
+			failure.getKey().getFailures().add(new TestFailure("Test failed", null));
+		    }
+		}
+		writeTestReport(pendingTestSuite.testSuite);
+	    }
+	}
+	catch ( Exception ex ) {
+	    ex.printStackTrace();
+	}
+	finally {
+	    executor.shutdownNow();
+	    if ( attachmentExtractor != null ) {
+		try {
+		    attachmentExtractor.close();
+		}
+		catch ( InterruptedException ex ) {
+		    Thread.currentThread().interrupt();
+		}
+		attachmentExtractor = null;
+		exportedAttachments.clear();
+	    }
+	}
+    }
+
+    private List<String> command(String subcommand) {
+	List<String> commandLine = new ArrayList<String>();
+	commandLine.add(xcrunPath);
+	commandLine.add("xcresulttool");
+	commandLine.add(subcommand);
+	if ( legacy ) {
+	    commandLine.add("--legacy");
+	}
+	return commandLine;
+    }
+
+    /**
+     * Runs xcresulttool and reads its JSON output while it is being written.
+     * @param id the reference to get, or null for the root of the bundle
+     */
+    private <T> T get(FilePath resultBundle, String id, DocumentReader<T> reader) throws IOException, InterruptedException {
+	List<String> commandLine = command("get");
+	commandLine.add("--format");
+	commandLine.add("json");
+	commandLine.add("--path");
+	commandLine.add(resultBundle.getRemote());
+	if ( id != null ) {
+	    commandLine.add("--id");
+	    commandLine.add(id);
+	}
+	ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+	Proc proc = launcher.launch().envs(envs).cmds(commandLine).readStdout().stderr(stderr).pwd(resultBundle.getParent()).start();
+	T result;
+	try ( JsonStreamReader json = new JsonStreamReader(new InputStreamReader(proc.getStdout(), StandardCharsets.UTF_8)) ) {
+	    result = reader.read(json);
+	}
+	catch ( IOException ex ) {
+	    // Unreadable output usually means that xcresulttool failed, which it explains on stderr.
+	    if ( proc.join() != 0 && stderr.size() > 0 ) {
+		throw new XcresulttoolException(stderr.toString("UTF-8").trim());
+	    }
+	    throw ex;
+	}
+	catch ( InterruptedException ex ) {
+	    proc.kill();
+	    throw ex;
+	}
+	int returnCode = proc.join();
+	if ( returnCode != 0 ) {
+	    throw new XcresulttoolException("xcresulttool failed with exit code " + returnCode + ": " + stderr.toString("UTF-8").trim());
+	}
+	return result;
+    }
+
+    private static List<String> readActionsInvocationRecord(JsonStreamReader json) throws IOException, InterruptedException {
+	final List<String> testsRefs = new ArrayList<String>();
+	json.beginObject();
+	while ( json.hasNext() ) {
+	    if ( json.nextName().equals("actions") ) {
+		readArray(json, new ElementReader() {
+		    public void read(JsonStreamReader json) throws IOException, InterruptedException {
+			json.beginObject();
+			while ( json.hasNext() ) {
+			    if ( json.nextName().equals("actionResult") ) {
+				json.beginObject();
+				while ( json.hasNext() ) {
+				    if ( json.nextName().equals("testsRef") ) {
+					testsRefs.add(readReference(json));
+				    }
+				    else {
+					json.skipValue();
+				    }
+				}
+				json.endObject();
+			    }
+			    else {
+				json.skipValue();
+			    }
+			}
+			json.endObject();
+		    }
+		});
+	    }
+	    else {
+		json.skipValue();
+	    }
+	}
+	json.endObject();
+	return testsRefs;
+    }
+
+    /**
+     * Reads a node of the test plan run summaries. Run summaries, testable summaries and test summary groups all
+     * have their children under one key, and tests have none.
+     */
+    private void readTestNode(JsonStreamReader json, final TestNode parent, final FilePath resultBundle, final ExecutorService executor,
+	    final List<PendingTestSuite> pendingTestSuites) throws IOException, InterruptedException {
+	final TestNode node = new TestNode();
+	json.beginObject();
+	while ( json.hasNext() ) {
+	    String name = json.nextName();
+	    switch ( name ) {
+	    case "name":
+		node.name = readValue(json);
+		break;
+	    case "duration":
+		node.duration = readValue(json);
+		break;
+	    case "testStatus":
+		node.testStatus = readValue(json);
+		break;
+	    case "summaryRef":
+		node.summaryRef = readReference(json);
+		break;
+	    case "summaries":
+	    case "testableSummaries":
+	    case "tests":
+	    case "subtests":
+		node.group = true;
+		readArray(json, new ElementReader() {
+		    public void read(JsonStreamReader json) throws IOException, InterruptedException {
+			readTestNode(json, node, resultBundle, executor, pendingTestSuites);
+		    }
+		});
+		break;
+	    default:
+		json.skipValue();
+		break;
+	    }
+	}
+	json.endObject();
+	if ( node.group ) {
+	    if ( !node.tests.isEmpty() ) {
+		addTestSuite(node, resultBundle, executor, pendingTestSuites);
+	    }
+	}
+	else if ( parent != null ) {
+	    parent.tests.add(node);
+	}
+    }
+
+    private void addTestSuite(TestNode group, final FilePath resultBundle, ExecutorService executor, List<PendingTestSuite> pendingTestSuites)
+	    throws IOException, InterruptedException {
+	TestSuite currentTestSuite = new TestSuite(InetAddress.getLocalHost().getHostName(), group.name, null);
+	if ( group.duration != null ) {
+	    currentTestSuite.setDuration(Float.parseFloat(group.duration));
+	}
+	Map<TestCase, Future<TestSummary>> failures = new LinkedHashMap<TestCase, Future<TestSummary>>();
+	for ( TestNode test : group.tests ) {
+	    TestCase currentTestCase = new TestCase(group.name, test.name);
+	    if ( test.duration != null ) {
+		currentTestCase.setTime(Float.parseFloat(test.duration));
+	    }
+	    currentTestSuite.getTestCases().add(currentTestCase);
+	    currentTestSuite.addTest();
+	    if ( "Failure".equals(test.testStatus) ) {
+		currentTestSuite.addFailure();
+		if ( test.summaryRef != null ) {
+		    final String summaryRef = test.summaryRef;
+		    failures.put(currentTestCase, executor.submit(new Callable<TestSummary>() {
+			public TestSummary call() throws IOException, InterruptedException {
+			    return get(resultBundle, summaryRef, new DocumentReader<TestSummary>() {
+				public TestSummary read(JsonStreamReader json) throws IOException, InterruptedException {
+				    return readTestSummary(json, resultBundle);
+				}
+			    });
+			}
+		    }));
+		}
+		else {
+		    currentTestCase.getFailures().add(new TestFailure("Test failed", null));
+		}
+	    }
+	}
+	if ( failures.isEmpty() ) {
+	    try {
+		writeTestReport(currentTestSuite);
+	    }
+	    catch ( JAXBException ex ) {
+		throw new IOException(ex);
+	    }
+	}
+	else {
+	    // Written once the failure summaries have been fetched.
+	    pendingTestSuites.add(new PendingTestSuite(currentTestSuite, failures));
+	}
+    }
+
+    /**
+     * Reads the failures of an ActionTestSummary, and the attachments of its activities when they are extracted.
+     * Otherwise the activity summaries, which can be large, are skipped.
+     */
+    private TestSummary readTestSummary(JsonStreamReader json, final FilePath resultBundle) throws IOException, InterruptedException {
+	final TestSummary testSummary = new TestSummary();
+	json.beginObject();
+	while ( json.hasNext() ) {
+	    String name = json.nextName();
+	    if ( name.equals("failureSummaries") ) {
+		readArray(json, new ElementReader() {
+		    public void read(JsonStreamReader json) throws IOException {
+			String message = null;
+			String fileName = null;
+			String lineNumber = null;
+			json.beginObject();
+			while ( json.hasNext() ) {
+			    switch ( json.nextName() ) {
+			    case "message":
+				message = readValue(json);
+				break;
+			    case "fileName":
+				fileName = readValue(json);
+				break;
+			    case "lineNumber":
+				lineNumber = readValue(json);
+				break;
+			    default:
+				json.skipValue();
+				break;
+			    }
+			}
+			json.endObject();
+			String location = null;
+			if ( fileName != null ) {
+			    location = lineNumber != null ? fileName + ":" + lineNumber : fileName;
+			}
+			testSummary.failures.add(new TestFailure(message, location));
+		    }
+		});
+	    }
+	    else if ( name.equals("activitySummaries") && attachmentExtractor != null ) {
+		readActivities(json, resultBundle, testSummary.attachments);
+	    }
+	    else {
+		json.skipValue();
+	    }
+	}
+	json.endObject();
+	return testSummary;
+    }
+
+    private void readActivities(JsonStreamReader json, final FilePath resultBundle, final List<Future<FilePath>> attachments) throws IOException, InterruptedException {
+	readArray(json, new ElementReader() {
+	    public void read(JsonStreamReader json) throws IOException, InterruptedException {
+		json.beginObject();
+		while ( json.hasNext() ) {
+		    String name = json.nextName();
+		    if ( name.equals("attachments") ) {
+			readArray(json, new ElementReader() {
+			    public void read(JsonStreamReader json) throws IOException {
+				String fileName = null;
+				String payloadRef = null;
+				json.beginObject();
+				while ( json.hasNext() ) {
+				    switch ( json.nextName() ) {
+				    case "filename":
+					fileName = readValue(json);
+					break;
+				    case "payloadRef":
+					payloadRef = readReference(json);
+					break;
+				    default:
+					json.skipValue();
+					break;
+				    }
+				}
+				json.endObject();
+				if ( payloadRef != null ) {
+				    attachments.add(exportAttachment(resultBundle, payloadRef, fileName != null ? fileName : payloadRef));
+				}
+			    }
+			});
+		    }
+		    else if ( name.equals("subactivities") ) {
+			readActivities(json, resultBundle, attachments);
+		    }
+		    else {
+			json.skipValue();
+		    }
+		}
+		json.endObject();
+	    }
+	});
+    }
+
+    private synchronized Future<FilePath> exportAttachment(final FilePath resultBundle, final String payloadRef, String fileName) {
+	Future<FilePath> attachment = exportedAttachments.get(payloadRef);
+	if ( attachment != null ) {
+	    return attachment;
+	}
+	attachment = attachmentExtractor.extract(fileName, new TestAttachmentExtractor.Exporter() {
+	    public void export(FilePath target) throws IOException, InterruptedException {
+		List<String> commandLine = command("export");
+		commandLine.add("--type");
+		commandLine.add("file");
+		commandLine.add("--path");
+		commandLine.add(resultBundle.getRemote());
+		commandLine.add("--id");
+		commandLine.add(payloadRef);
+		commandLine.add("--output-path");
+		commandLine.add(target.getRemote());
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		int returnCode = launcher.launch().envs(envs).cmds(commandLine).stdout(output).pwd(resultBundle.getParent()).join();
+		if ( returnCode != 0 ) {
+		    throw new XcresulttoolException("xcresulttool failed with exit code " + returnCode + ": " + output.toString("UTF-8").trim());
+		}
+	    }
+	});
+	exportedAttachments.put(payloadRef, attachment);
+	return attachment;
+    }
+
+    /**
+     * Reads the elements of an xcresulttool array, which wraps them as {"_type":..., "_values":[...]}.
+     */
+    private static void readArray(JsonStreamReader json, ElementReader reader) throws IOException, InterruptedException {
+	json.beginObject();
+	while ( json.hasNext() ) {
+	    if ( json.nextName().equals("_values") ) {
+		json.beginArray();
+		while ( json.hasNext() ) {
+		    reader.read(json);
+		}
+		json.endArray();
+	    }
+	    else {
+		json.skipValue();
+	    }
+	}
+	json.endObject();
+    }
+
+    /**
+     * Reads an xcresulttool value, which wraps it as {"_type":..., "_value":"..."}.
+     */
+    private static String readValue(JsonStreamReader json) throws IOException {
+	String value = null;
+	json.beginObject();
+	while ( json.hasNext() ) {
+	    if ( json.nextName().equals("_value") ) {
+		value = json.nextString();
+	    }
+	    else {
+		json.skipValue();
+	    }
+	}
+	json.endObject();
+	return value;
+    }
+
+    /**
+     * @return the id of an xcresulttool Reference
+     */
+    private static String readReference(JsonStreamReader json) throws IOException {
+	String id = null;
+	json.beginObject();
+	while ( json.hasNext() ) {
+	    if ( json.nextName().equals("id") ) {
+		id = readValue(json);
+	    }
+	    else {
+		json.skipValue();
+	    }
+	}
+	json.endObject();
+	return id;
+    }
+}
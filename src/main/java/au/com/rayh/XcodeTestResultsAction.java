@@ -0,0 +1,170 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011 Ray Yamamoto Hilton
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package au.com.rayh;
+
+import hudson.model.Api;
+import hudson.model.Run;
+import jenkins.model.RunAction2;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+import au.com.rayh.report.TestCase;
+import au.com.rayh.report.TestSuite;
+
+/**
+ * Test results of a build, updated while xcodebuild is still running.
+ * Poll <code>xcodeTestResults/api/json</code> to follow a running build.
+ */
+@ExportedBean
+public class XcodeTestResultsAction implements RunAction2, Serializable {
+    private static final long serialVersionUID = 1L;
+    // Only the first failures are listed, the counts are always complete.
+    static final int MAX_FAILED_TESTS = 100;
+
+    private transient Run<?, ?> run;
+    // The action is shared by the test shards and steps running in parallel in a build, each of them has a parser.
+    private int runningParsers;
+    private int suites;
+    private int tests;
+    private int failures;
+    private final List<String> failedTests = new ArrayList<String>();
+
+    public XcodeTestResultsAction() {
+    }
+
+    @Override
+    public String getIconFileName() {
+        return "clipboard.png";
+    }
+
+    @Override
+    public String getDisplayName() {
+        return Messages.XcodeTestResultsAction_DisplayName();
+    }
+
+    @Override
+    public String getUrlName() {
+        return "xcodeTestResults";
+    }
+
+    @Override
+    public void onAttached(Run<?, ?> run) {
+        this.run = run;
+    }
+
+    @Override
+    public void onLoad(Run<?, ?> run) {
+        this.run = run;
+        // No parser is left after a restart.
+        runningParsers = 0;
+    }
+
+    public Run<?, ?> getRun() {
+        return run;
+    }
+
+    public Api getApi() {
+        return new Api(this);
+    }
+
+    public synchronized void testingStarted() {
+        runningParsers++;
+    }
+
+    public synchronized void testingFinished() {
+        if ( runningParsers > 0 ) {
+            runningParsers--;
+        }
+    }
+
+    public synchronized void addTestCase(TestSuite testSuite, TestCase testCase, boolean failed) {
+        tests++;
+        if ( failed ) {
+            failures++;
+            if ( failedTests.size() < MAX_FAILED_TESTS ) {
+                failedTests.add(testSuite.getName() + "." + testCase.getName());
+            }
+        }
+    }
+
+    public synchronized void addTestSuite(TestSuite testSuite) {
+        suites++;
+    }
+
+    /**
+     * Count a failed test as passed after it passed when it was run again.
+     */
+    public synchronized void passedOnRerun(TestSuite testSuite, TestCase testCase) {
+        if ( failures > 0 ) {
+            failures--;
+        }
+        failedTests.remove(testSuite.getName() + "." + testCase.getName());
+    }
+
+    /**
+     * Add the results collected elsewhere, e.g. by the parser running on the agent.
+     */
+    public synchronized void merge(XcodeTestResultsAction other) {
+        suites += other.getSuites();
+        tests += other.getTests();
+        failures += other.getFailures();
+        for ( String failedTest : other.getFailedTests() ) {
+            if ( failedTests.size() >= MAX_FAILED_TESTS ) {
+                break;
+            }
+            failedTests.add(failedTest);
+        }
+    }
+
+    @Exported
+    public synchronized boolean isRunning() {
+        return runningParsers > 0;
+    }
+
+    @Exported
+    public synchronized int getSuites() {
+        return suites;
+    }
+
+    @Exported
+    public synchronized int getTests() {
+        return tests;
+    }
+
+    @Exported
+    public synchronized int getFailures() {
+        return failures;
+    }
+
+    @Exported
+    public synchronized List<String> getFailedTests() {
+        return new ArrayList<String>(failedTests);
+    }
+}
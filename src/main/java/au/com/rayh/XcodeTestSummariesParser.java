@@ -3,6 +3,16 @@ package au.com.rayh;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.InetAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.text.ParseException;
@@ -12,15 +22,13 @@ import com.dd.plist.NSDictionary;
 import com.dd.plist.NSArray;
 import com.dd.plist.NSNumber;
 import com.dd.plist.NSObject;
-import com.dd.plist.PropertyListParser;
 
-import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
-import javax.xml.bind.Marshaller;
 
 import au.com.rayh.report.TestCase;
 import au.com.rayh.report.TestError;
 import au.com.rayh.report.TestFailure;
+import au.com.rayh.report.TestReportWriter;
 import au.com.rayh.report.TestSuite;
 
 /**
@@ -31,6 +39,15 @@ public class XcodeTestSummariesParser {
     private FilePath testReportsDir;
     //private static Pattern ASSERTION_FAILURE = Pattern.compile("(Assertion Failure: .*?)\\{\\(\\n(.*?)\\n\\)\\}", Pattern.DOTALL);
     private static Pattern FAILED_MESSAGE = Pattern.compile("(failed: .*?)\\n\\((.*?)\\n\\)", Pattern.DOTALL);
+    // The test hierarchy is streamed, and the activities and performance metrics are not used.
+    private static final Set<String> STREAMED_KEYS = new HashSet<String>(Arrays.asList("TestableSummaries", "Tests", "Subtests"));
+    private static final Set<String> SKIPPED_KEYS = new HashSet<String>(Arrays.asList("ActivitySummaries", "PerformanceMetrics"));
+    private static final Set<String> SKIPPED_KEYS_WITH_ATTACHMENTS = new HashSet<String>(Arrays.asList("PerformanceMetrics"));
+    private boolean extractAttachments;
+    private TestAttachmentExtractor attachmentExtractor;
+    private FilePath attachmentsDir;
+    // Attachments of the failed tests read by the streaming handler, until their suite is written.
+    private final Map<NSObject, List<Future<FilePath>>> pendingAttachments = new IdentityHashMap<NSObject, List<Future<FilePath>>>();
 
     public XcodeTestSummariesParser(FilePath workspace) throws IOException, InterruptedException {
 	super();
@@ -38,20 +55,17 @@ public class XcodeTestSummariesParser {
 	testReportsDir.mkdirs();
     }
 
+    /**
+     * @param extractAttachments whether to copy the attachments of failed tests and link them from the reports
+     */
+    public void setExtractAttachments(boolean extractAttachments) {
+	this.extractAttachments = extractAttachments;
+    }
+
     private void writeTestReport(TestSuite currentTestSuite) throws IOException, InterruptedException,
             JAXBException {
         try (OutputStream testReportOutputStream = outputForSuite(currentTestSuite)) {
-            JAXBContext jaxbContext;
-            Thread t = Thread.currentThread();
-            ClassLoader orig = t.getContextClassLoader();
-            t.setContextClassLoader(XcodeTestSummariesParser.class.getClassLoader());
-            try {
-                jaxbContext = JAXBContext.newInstance(TestSuite.class);
-            } finally {
-                t.setContextClassLoader(orig);
-            }
-            Marshaller marshaller = jaxbContext.createMarshaller();
-            marshaller.marshal(currentTestSuite, testReportOutputStream);
+            TestReportWriter.write(currentTestSuite, testReportOutputStream);
         }
     }
 
@@ -82,6 +96,26 @@ public class XcodeTestSummariesParser {
 	}
     }
 
+    private List<Future<FilePath>> extractAttachments(NSObject activitySummaries) {
+	List<Future<FilePath>> attachments = new ArrayList<Future<FilePath>>();
+	if ( activitySummaries != null ) {
+	    for ( NSObject object:((NSArray)activitySummaries).getArray() ) {
+		NSDictionary activity = (NSDictionary)object;
+		NSObject value = activity.objectForKey("Attachments");
+		if ( value != null ) {
+		    for ( NSObject attachment:((NSArray)value).getArray() ) {
+			NSObject fileName = ((NSDictionary)attachment).objectForKey("Filename");
+			if ( fileName != null ) {
+			    attachments.add(attachmentExtractor.extract(attachmentsDir.child(fileName.toString())));
+			}
+		    }
+		}
+		attachments.addAll(extractAttachments(activity.objectForKey("SubActivities")));
+	    }
+	}
+	return attachments;
+    }
+
     /*
     private static void addActivitySummaries(NSObject[] activitySummaries, TestCase currentTestCase) {
         for ( NSObject object:activitySummaries ) {
@@ -106,6 +140,9 @@ public class XcodeTestSummariesParser {
      * @param parentTestSuite An instance of the parent test result including this subtests.
      */
     public void parseSubTests(NSObject[] tests, TestSuite parentTestSuite) throws ParseException, IOException, InterruptedException, JAXBException {
+	// The report of a suite is written once, after all of its test cases have been collected.
+	// Rewriting it for every test case made the conversion quadratic in the size of the suite.
+	boolean hasTestCases = false;
 	for ( NSObject object:tests ) {
             NSDictionary test = (NSDictionary)object;
 	    Float duration = ((NSNumber)test.objectForKey("Duration")).floatValue();
@@ -129,6 +166,13 @@ public class XcodeTestSummariesParser {
 			addActivitySummaries(activitySummaries, currentTestCase);
 		    }
 		    */
+		    if ( attachmentExtractor != null ) {
+			List<Future<FilePath>> attachments = pendingAttachments.remove(test);
+			if ( attachments == null ) {
+			    attachments = extractAttachments(test.objectForKey("ActivitySummaries"));
+			}
+			TestAttachmentExtractor.link(currentTestCase, attachments);
+		    }
 		    currentTestCase.setTime(duration);
 		    parentTestSuite.getTestCases().add(currentTestCase);
 		    parentTestSuite.addFailure();
@@ -138,7 +182,7 @@ public class XcodeTestSummariesParser {
 		    parentTestSuite.getTestCases().add(currentTestCase);
 		    parentTestSuite.addTest();
 		}
-		writeTestReport(parentTestSuite);
+		hasTestCases = true;
 	    }
 	    else {
 		TestSuite currentTestSuite = new TestSuite(InetAddress.getLocalHost().getHostName(), testName, null);
@@ -147,30 +191,76 @@ public class XcodeTestSummariesParser {
 		parseSubTests(subTests, currentTestSuite);
             }
 	}
+	if ( hasTestCases ) {
+	    writeTestReport(parentTestSuite);
+	}
     }
 
     /**
-     * @param testSummariesPlistFile The location of the TestSummaries.plist file output from Xcode.
+     * Turns the test groups of a TestSummaries.plist into test suites while the plist is being read.
+     * Only the leaf tests of the groups that are still open are kept in memory.
      */
-    public void parseTestSummariesPlist(FilePath testSummariesPlistFile) {
-	try {
-	    NSDictionary rootDict = (NSDictionary)PropertyListParser.parse(testSummariesPlistFile.read());
-	    NSObject[] testableSummaries = ((NSArray)rootDict.objectForKey("TestableSummaries")).getArray();
-	    for ( NSObject object:testableSummaries ) {
-		NSDictionary testSummarie = (NSDictionary)object;
-		String diagnosticsDirectory = testSummarie.objectForKey("DiagnosticsDirectory").toString();
-		String testName = testSummarie.objectForKey("TestName").toString();
-		String projectPath = testSummarie.objectForKey("ProjectPath").toString();
-		String targetName = testSummarie.objectForKey("TargetName").toString();
-		TestSuite currentTestSuite = new TestSuite(InetAddress.getLocalHost().getHostName(), testName, null);
-		NSObject[] tests = ((NSArray)testSummarie.objectForKey("Tests")).getArray();
-		if ( tests != null ) {
-		    parseSubTests(tests, currentTestSuite);
+    private class TestSummariesHandler implements PlistStreamReader.Handler {
+	private final Deque<List<NSObject>> leafTests = new ArrayDeque<List<NSObject>>();
+
+	@Override
+	public void startDictionary() {
+	    leafTests.push(new ArrayList<NSObject>());
+	}
+
+	@Override
+	public void endDictionary(NSDictionary test) throws IOException, InterruptedException {
+	    List<NSObject> tests = leafTests.pop();
+	    if ( test.objectForKey("Tests") != null || test.objectForKey("Subtests") != null ) {
+		TestSuite currentTestSuite = new TestSuite(InetAddress.getLocalHost().getHostName(), test.objectForKey("TestName").toString(), null);
+		NSObject duration = test.objectForKey("Duration");
+		if ( duration != null ) {
+		    currentTestSuite.setDuration(((NSNumber)duration).floatValue());
+		}
+		try {
+		    parseSubTests(tests.toArray(new NSObject[tests.size()]), currentTestSuite);
+		}
+		catch ( ParseException | JAXBException e ) {
+		    throw new IOException(e);
+		}
+	    }
+	    else if ( leafTests.size() > 1 ) {
+		// A test of the enclosing group, below the root dictionary and the testable summaries.
+		NSObject activitySummaries = test.remove("ActivitySummaries");
+		if ( attachmentExtractor != null && activitySummaries != null && "Failure".equals(String.valueOf(test.objectForKey("TestStatus"))) ) {
+		    // Starts copying while the rest of the group is read.
+		    pendingAttachments.put(test, extractAttachments(activitySummaries));
 		}
+		leafTests.peek().add(test);
 	    }
 	}
+    }
+
+    /**
+     * @param testSummariesPlistFile The location of the TestSummaries.plist file output from Xcode.
+     */
+    public void parseTestSummariesPlist(FilePath testSummariesPlistFile) {
+	if ( extractAttachments ) {
+	    attachmentExtractor = new TestAttachmentExtractor(testReportsDir);
+	    attachmentsDir = testSummariesPlistFile.getParent().child("Attachments");
+	}
+	try ( PlistStreamReader reader = PlistStreamReader.open(testSummariesPlistFile, STREAMED_KEYS, extractAttachments ? SKIPPED_KEYS_WITH_ATTACHMENTS : SKIPPED_KEYS) ) {
+	    reader.read(new TestSummariesHandler());
+	}
 	catch ( Exception ex ) {
 	    ex.printStackTrace();
 	}
+	finally {
+	    if ( attachmentExtractor != null ) {
+		try {
+		    attachmentExtractor.close();
+		}
+		catch ( InterruptedException ex ) {
+		    Thread.currentThread().interrupt();
+		}
+		attachmentExtractor = null;
+		pendingAttachments.clear();
+	    }
+	}
     }
 }
@@ -0,0 +1,26 @@
+package au.com.rayh;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+
+public class XcodeWorkspace implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    // The projects of the workspace by their location, relative to the directory of the workspace file.
+    // Projects that could not be read are null.
+    public LinkedHashMap<String, XcodeProject> projects;
+    // The schemes of all projects by name, the first project having a scheme wins like in Xcode.
+    public LinkedHashMap<String, ProjectScheme> schemes;
+    // The location of the project built by each scheme, from its referenced container.
+    public HashMap<String, String> schemeProjects;
+    // The schemes of each project by its location, null when they could not be read.
+    public LinkedHashMap<String, HashMap<String, ProjectScheme>> projectSchemes;
+
+    XcodeWorkspace() {
+	projects = new LinkedHashMap<String, XcodeProject>();
+	schemes = new LinkedHashMap<String, ProjectScheme>();
+	schemeProjects = new HashMap<String, String>();
+	projectSchemes = new LinkedHashMap<String, HashMap<String, ProjectScheme>>();
+    }
+}
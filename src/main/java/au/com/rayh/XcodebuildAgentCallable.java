@@ -0,0 +1,171 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011 Ray Yamamoto Hilton
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package au.com.rayh;
+
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Proc;
+import hudson.model.TaskListener;
+import jenkins.security.MasterToSlaveCallable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs xcodebuild on the agent and parses its output there, next to the process.
+ * Test reports and the log file are written to the agent workspace directly, only the console output
+ * and a {@link Result} go back to the controller.
+ */
+public class XcodebuildAgentCallable extends MasterToSlaveCallable<XcodebuildAgentCallable.Result, IOException> {
+    private static final long serialVersionUID = 1L;
+
+    private final TaskListener listener;
+    private final EnvVars envs;
+    private final List<String> commandLine;
+    private final String workspace;
+    private boolean consoleLog = true;
+    private boolean ignoreTestResults;
+    private boolean boundedMemory = JenkinsXCodeBuildOutputParser.BOUNDED_MEMORY;
+    private int maxTestFailures;
+    private int condensedConsoleTailLines;
+    private String buildDirectory;
+    private String logfileOutputDirectory;
+    private boolean compressLogfile;
+
+    public XcodebuildAgentCallable(TaskListener listener, EnvVars envs, List<String> commandLine, String workspace) {
+        this.listener = listener;
+        this.envs = envs;
+        this.commandLine = new ArrayList<String>(commandLine);
+        this.workspace = workspace;
+    }
+
+    public void setConsoleLog(boolean consoleLog) {
+        this.consoleLog = consoleLog;
+    }
+
+    public void setIgnoreTestResults(boolean ignoreTestResults) {
+        this.ignoreTestResults = ignoreTestResults;
+    }
+
+    /**
+     * @param tailLines raw lines printed if xcodebuild fails, see {@link JenkinsXCodeBuildOutputParser#setCondensedConsoleLog(int)}
+     */
+    public void setCondensedConsoleLog(int tailLines) {
+        this.condensedConsoleTailLines = tailLines;
+    }
+
+    public void setMaxTestFailures(int maxTestFailures) {
+        this.maxTestFailures = maxTestFailures;
+    }
+
+    public void setLogfilePath(String buildDirectory, String logfileOutputDirectory, boolean compressLogfile) {
+        this.buildDirectory = buildDirectory;
+        this.logfileOutputDirectory = logfileOutputDirectory;
+        this.compressLogfile = compressLogfile;
+    }
+
+    @Override
+    public Result call() throws IOException {
+        try {
+            return run();
+        } catch(InterruptedException e) {
+            throw (InterruptedIOException)new InterruptedIOException(e.getMessage()).initCause(e);
+        }
+    }
+
+    private Result run() throws IOException, InterruptedException {
+        FilePath workspacePath = new FilePath(new File(workspace));
+        JenkinsXCodeBuildOutputParser parser = new JenkinsXCodeBuildOutputParser(workspacePath, listener);
+        XcodeTestResultsAction testResults = new XcodeTestResultsAction();
+        parser.setConsoleLog(consoleLog);
+        parser.setIgnoreTestResults(ignoreTestResults);
+        parser.setBoundedMemory(boundedMemory);
+        parser.setMaxTestFailures(maxTestFailures);
+        parser.setTestResultsAction(testResults);
+        if ( condensedConsoleTailLines > 0 ) {
+            parser.setCondensedConsoleLog(condensedConsoleTailLines);
+        }
+        if ( logfileOutputDirectory != null ) {
+            parser.setLogfilePath(new FilePath(new File(buildDirectory)), logfileOutputDirectory, compressLogfile);
+        }
+        int returnCode;
+        try {
+            Proc proc = new Launcher.LocalLauncher(listener).launch().envs(envs).cmds(commandLine).stdout(parser.getOutputStream()).pwd(workspacePath).start();
+            returnCode = parser.join(proc);
+        } finally {
+            parser.closeLogfile();
+        }
+        if ( returnCode != 0 || parser.getExitCode() != 0 || parser.isTestFailureLimitReached() ) {
+            parser.printConsoleTail();
+        }
+        return new Result(returnCode, parser.getExitCode(), parser.isTestFailureLimitReached(), testResults);
+    }
+
+    /**
+     * What the controller needs to know about an xcodebuild run on the agent.
+     */
+    public static class Result implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final int returnCode;
+        private final int exitCode;
+        private final boolean testFailureLimitReached;
+        private final XcodeTestResultsAction testResults;
+
+        public Result(int returnCode, int exitCode, boolean testFailureLimitReached, XcodeTestResultsAction testResults) {
+            this.returnCode = returnCode;
+            this.exitCode = exitCode;
+            this.testFailureLimitReached = testFailureLimitReached;
+            this.testResults = testResults;
+        }
+
+        /**
+         * @return the exit code of the xcodebuild process
+         */
+        public int getReturnCode() {
+            return returnCode;
+        }
+
+        /**
+         * @return the exit code found in the xcodebuild output, see {@link XCodeBuildOutputParser#getExitCode()}
+         */
+        public int getExitCode() {
+            return exitCode;
+        }
+
+        public boolean isTestFailureLimitReached() {
+            return testFailureLimitReached;
+        }
+
+        public XcodeTestResultsAction getTestResults() {
+            return testResults;
+        }
+    }
+}
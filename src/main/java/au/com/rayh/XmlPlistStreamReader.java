@@ -0,0 +1,187 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011 Ray Yamamoto Hilton
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package au.com.rayh;
+
+import com.dd.plist.NSArray;
+import com.dd.plist.NSData;
+import com.dd.plist.NSDate;
+import com.dd.plist.NSDictionary;
+import com.dd.plist.NSNumber;
+import com.dd.plist.NSObject;
+import com.dd.plist.NSString;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Set;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Streams an XML property list with StAX.
+ * DTDs and external entities are not processed.
+ */
+class XmlPlistStreamReader extends PlistStreamReader {
+    private final InputStream in;
+
+    XmlPlistStreamReader(InputStream in, Set<String> streamedKeys, Set<String> skippedKeys) {
+	super(streamedKeys, skippedKeys);
+	this.in = in;
+    }
+
+    @Override
+    public void read(Handler handler) throws IOException, InterruptedException {
+	XMLInputFactory factory = XMLInputFactory.newInstance();
+	factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+	factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+	try {
+	    XMLStreamReader reader = factory.createXMLStreamReader(in);
+	    try {
+		// Skips the prolog, which has the DOCTYPE of the property list.
+		int event = reader.getEventType();
+		while ( event != XMLStreamConstants.START_ELEMENT && event != XMLStreamConstants.END_DOCUMENT ) {
+		    event = reader.next();
+		}
+		if ( event != XMLStreamConstants.START_ELEMENT || !reader.getLocalName().equals("plist") ) {
+		    throw new IOException("Not an XML property list");
+		}
+		if ( reader.nextTag() == XMLStreamConstants.START_ELEMENT ) {
+		    if ( reader.getLocalName().equals("dict") ) {
+			streamDictionary(reader, handler);
+		    }
+		    else {
+			skipElement(reader);
+		    }
+		}
+	    }
+	    finally {
+		reader.close();
+	    }
+	}
+	catch ( XMLStreamException e ) {
+	    throw new IOException(e);
+	}
+    }
+
+    @Override
+    public void close() throws IOException {
+	in.close();
+    }
+
+    private void streamDictionary(XMLStreamReader reader, Handler handler) throws XMLStreamException, IOException, InterruptedException {
+	handler.startDictionary();
+	NSDictionary properties = new NSDictionary();
+	while ( reader.nextTag() == XMLStreamConstants.START_ELEMENT ) {
+	    String key = reader.getElementText();
+	    reader.nextTag();
+	    if ( skippedKeys.contains(key) ) {
+		skipElement(reader);
+	    }
+	    else if ( streamedKeys.contains(key) && reader.getLocalName().equals("array") ) {
+		while ( reader.nextTag() == XMLStreamConstants.START_ELEMENT ) {
+		    if ( reader.getLocalName().equals("dict") ) {
+			streamDictionary(reader, handler);
+		    }
+		    else {
+			skipElement(reader);
+		    }
+		}
+		properties.put(key, new NSArray(0));
+	    }
+	    else {
+		NSObject value = readValue(reader);
+		if ( value != null ) {
+		    properties.put(key, value);
+		}
+	    }
+	}
+	handler.endDictionary(properties);
+    }
+
+    private static NSObject readValue(XMLStreamReader reader) throws XMLStreamException, IOException {
+	String type = reader.getLocalName();
+	switch ( type ) {
+	case "dict":
+	    NSDictionary dictionary = new NSDictionary();
+	    while ( reader.nextTag() == XMLStreamConstants.START_ELEMENT ) {
+		String key = reader.getElementText();
+		reader.nextTag();
+		NSObject value = readValue(reader);
+		if ( value != null ) {
+		    dictionary.put(key, value);
+		}
+	    }
+	    return dictionary;
+	case "array":
+	    List<NSObject> objects = new ArrayList<NSObject>();
+	    while ( reader.nextTag() == XMLStreamConstants.START_ELEMENT ) {
+		NSObject value = readValue(reader);
+		if ( value != null ) {
+		    objects.add(value);
+		}
+	    }
+	    return new NSArray(objects.toArray(new NSObject[objects.size()]));
+	case "string":
+	    return new NSString(reader.getElementText());
+	case "integer":
+	    return new NSNumber(Long.parseLong(reader.getElementText().trim()));
+	case "real":
+	    return new NSNumber(Double.parseDouble(reader.getElementText().trim()));
+	case "true":
+	case "false":
+	    reader.nextTag();
+	    return new NSNumber(type.equals("true"));
+	case "date":
+	    try {
+		return new NSDate(reader.getElementText().trim());
+	    }
+	    catch ( ParseException e ) {
+		throw new IOException(e);
+	    }
+	case "data":
+	    return new NSData(Base64.getMimeDecoder().decode(reader.getElementText()));
+	default:
+	    skipElement(reader);
+	    return null;
+	}
+    }
+
+    private static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+	int depth = 1;
+	while ( depth > 0 ) {
+	    int event = reader.next();
+	    if ( event == XMLStreamConstants.START_ELEMENT ) {
+		depth++;
+	    }
+	    else if ( event == XMLStreamConstants.END_ELEMENT ) {
+		depth--;
+	    }
+	}
+    }
+}
@@ -52,6 +52,17 @@ public class TestCase {
     @XmlElement(name="error")
     List<TestError> errors = new ArrayList<>();
 
+    // The failures of the earlier runs of a test that passed or failed again when it was rerun, as written by
+    // the Maven Surefire plugin.
+    @XmlElement(name="flakyFailure")
+    List<TestFailure> flakyFailures = new ArrayList<>();
+
+    @XmlElement(name="rerunFailure")
+    List<TestFailure> rerunFailures = new ArrayList<>();
+
+    @XmlElement(name="system-out")
+    String systemOut;
+
     public TestCase() {
     }
 
@@ -61,6 +72,10 @@ public class TestCase {
         this.name = name;
     }
 
+    public String getClassname() {
+        return classname;
+    }
+
     public String getName() {
         return name;
     }
@@ -80,4 +95,20 @@ public class TestCase {
     public List<TestError> getErrors() {
         return errors;
     }
+
+    public List<TestFailure> getFlakyFailures() {
+        return flakyFailures;
+    }
+
+    public List<TestFailure> getRerunFailures() {
+        return rerunFailures;
+    }
+
+    public String getSystemOut() {
+        return systemOut;
+    }
+
+    public void appendSystemOut(String line) {
+        systemOut = systemOut == null ? line : systemOut + "\n" + line;
+    }
 }
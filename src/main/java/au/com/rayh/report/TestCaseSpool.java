@@ -0,0 +1,203 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011 Ray Yamamoto Hilton
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package au.com.rayh.report;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+
+/**
+ * Finished test cases of a suite, already marshalled to a temporary file so they no longer take up heap
+ * while the suite is still running. {@link TestReportWriter} copies them into the report of the suite.
+ * Not thread-safe, a spool belongs to the parser that fills it.
+ */
+public class TestCaseSpool implements Closeable {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File file;
+    private final CountingOutputStream out;
+    private final Marshaller marshaller;
+    private int size;
+    // Where each test case starts in the file, by its position in the spool.
+    private long[] offsets = new long[16];
+    // Position of each test case by name, so that failures reported after it was spooled still reach it.
+    private final Map<String, Integer> positions = new HashMap<String, Integer>();
+    private final TreeMap<Integer, List<TestFailure>> lateFailures = new TreeMap<Integer, List<TestFailure>>();
+
+    public TestCaseSpool() throws IOException, JAXBException {
+        this.marshaller = TestReportWriter.createFragmentMarshaller();
+        this.file = File.createTempFile("xcode-test-cases", ".xml");
+        this.out = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+    }
+
+    public void append(TestCase testCase) throws JAXBException {
+        if ( size == offsets.length ) {
+            offsets = Arrays.copyOf(offsets, size * 2);
+        }
+        offsets[size] = out.count;
+        positions.put(testCase.getName(), size);
+        TestReportWriter.writeTestCase(marshaller, testCase, out);
+        size++;
+    }
+
+    /**
+     * @return the number of test cases in this spool
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Add a failure to a test case that was already spooled, e.g. an error logged after the test case ended.
+     * The failure is added when the spool is written.
+     * @return false when no test case with this name was spooled
+     */
+    public boolean addFailure(String name, TestFailure failure) {
+        Integer position = positions.get(name);
+        if ( position == null ) {
+            return false;
+        }
+        List<TestFailure> failures = lateFailures.get(position);
+        if ( failures == null ) {
+            failures = new ArrayList<TestFailure>();
+            lateFailures.put(position, failures);
+        }
+        failures.add(failure);
+        return true;
+    }
+
+    void writeTo(OutputStream target) throws IOException, JAXBException {
+        out.flush();
+        if ( lateFailures.isEmpty() ) {
+            Files.copy(file.toPath(), target);
+            return;
+        }
+        try ( InputStream in = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE) ) {
+            long position = 0;
+            for ( Map.Entry<Integer, List<TestFailure>> failures : lateFailures.entrySet() ) {
+                long start = offsets[failures.getKey()];
+                long end = failures.getKey() + 1 < size ? offsets[failures.getKey() + 1] : out.count;
+                copy(in, target, start - position);
+                byte[] testCase = new byte[(int)(end - start)];
+                readFully(in, testCase);
+                target.write(addFailures(new String(testCase, StandardCharsets.UTF_8), failures.getValue()).getBytes(StandardCharsets.UTF_8));
+                position = end;
+            }
+            copy(in, target, out.count - position);
+        }
+    }
+
+    /**
+     * Insert the failures after the start tag of a marshalled test case, where the failures of a test case go.
+     * Attribute values are escaped, so the first '>' ends the start tag.
+     */
+    private String addFailures(String testCase, List<TestFailure> failures) throws JAXBException {
+        ByteArrayOutputStream failuresXml = new ByteArrayOutputStream();
+        for ( TestFailure failure : failures ) {
+            TestReportWriter.writeFailure(marshaller, failure, failuresXml);
+        }
+        String failuresString = new String(failuresXml.toByteArray(), StandardCharsets.UTF_8);
+        int startTagEnd = testCase.indexOf('>');
+        if ( startTagEnd > 0 && testCase.charAt(startTagEnd - 1) == '/' ) {
+            return testCase.substring(0, startTagEnd - 1) + ">" + failuresString + "</testcase>" + testCase.substring(startTagEnd + 1);
+        }
+        return testCase.substring(0, startTagEnd + 1) + failuresString + testCase.substring(startTagEnd + 1);
+    }
+
+    private static void copy(InputStream in, OutputStream target, long length) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        while ( length > 0 ) {
+            int read = in.read(buffer, 0, (int)Math.min(buffer.length, length));
+            if ( read < 0 ) {
+                throw new EOFException("Test case spool is shorter than written: " + length + " bytes missing");
+            }
+            target.write(buffer, 0, read);
+            length -= read;
+        }
+    }
+
+    private static void readFully(InputStream in, byte[] bytes) throws IOException {
+        int offset = 0;
+        while ( offset < bytes.length ) {
+            int read = in.read(bytes, offset, bytes.length - offset);
+            if ( read < 0 ) {
+                throw new EOFException("Test case spool is shorter than written");
+            }
+            offset += read;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            out.close();
+        } finally {
+            Files.deleteIfExists(file.toPath());
+        }
+    }
+
+    /**
+     * Counts the bytes written, to know where each test case starts.
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+        long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011 Ray Yamamoto Hilton
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package au.com.rayh.report;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBElement;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.namespace.QName;
+
+/**
+ * Writes {@link TestSuite} results as JUnit-style xml.
+ * The JAXBContext is expensive to create, so a single thread-safe instance is shared by every parser for the life
+ * of the plugin. Marshallers are not thread-safe and are created per report, which is cheap once the context exists.
+ */
+public final class TestReportWriter {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final String SUITE_END_TAG = "</testsuite>";
+    private static final QName TEST_CASE = new QName("testcase");
+    private static final QName FAILURE = new QName("failure");
+    private static volatile JAXBContext jaxbContext;
+
+    private TestReportWriter() {
+    }
+
+    /**
+     * Marshal a test suite into the given stream. The stream is buffered, so callers may pass an unbuffered
+     * (possibly remote) stream directly. The stream is flushed but not closed.
+     * @param testSuite the test suite to write
+     * @param out the stream receiving the JUnit xml
+     */
+    public static void write(TestSuite testSuite, OutputStream out) throws IOException, JAXBException {
+        BufferedOutputStream bufferedOut = new BufferedOutputStream(out, BUFFER_SIZE);
+        Marshaller marshaller = getContext().createMarshaller();
+        TestCaseSpool spool = testSuite.getSpool();
+        if ( spool == null || spool.size() == 0 ) {
+            marshaller.marshal(testSuite, bufferedOut);
+        }
+        else {
+            // Marshal the suite with the test cases still in memory, then put the spooled ones in front of them.
+            ByteArrayOutputStream suite = new ByteArrayOutputStream();
+            marshaller.marshal(testSuite, suite);
+            String xml = suite.toString("UTF-8").trim();
+            String head;
+            String tail;
+            if ( xml.endsWith("/>") ) {
+                head = xml.substring(0, xml.length() - 2) + ">";
+                tail = SUITE_END_TAG;
+            }
+            else {
+                int testCases = xml.indexOf("<testcase");
+                if ( testCases < 0 ) {
+                    testCases = xml.lastIndexOf(SUITE_END_TAG);
+                }
+                if ( testCases < 0 ) {
+                    throw new IllegalStateException("Unexpected test suite xml: " + xml);
+                }
+                head = xml.substring(0, testCases);
+                tail = xml.substring(testCases);
+            }
+            bufferedOut.write(head.getBytes(StandardCharsets.UTF_8));
+            spool.writeTo(bufferedOut);
+            bufferedOut.write(tail.getBytes(StandardCharsets.UTF_8));
+        }
+        bufferedOut.flush();
+    }
+
+    static Marshaller createFragmentMarshaller() throws JAXBException {
+        Marshaller marshaller = getContext().createMarshaller();
+        marshaller.setProperty(Marshaller.JAXB_FRAGMENT, Boolean.TRUE);
+        return marshaller;
+    }
+
+    static void writeTestCase(Marshaller marshaller, TestCase testCase, OutputStream out) throws JAXBException {
+        marshaller.marshal(new JAXBElement<TestCase>(TEST_CASE, TestCase.class, testCase), out);
+    }
+
+    static void writeFailure(Marshaller marshaller, TestFailure failure, OutputStream out) throws JAXBException {
+        marshaller.marshal(new JAXBElement<TestFailure>(FAILURE, TestFailure.class, failure), out);
+    }
+
+    private static JAXBContext getContext() throws JAXBException {
+        JAXBContext context = jaxbContext;
+        if ( context == null ) {
+            synchronized ( TestReportWriter.class ) {
+                context = jaxbContext;
+                if ( context == null ) {
+                    Thread t = Thread.currentThread();
+                    ClassLoader orig = t.getContextClassLoader();
+                    t.setContextClassLoader(TestReportWriter.class.getClassLoader());
+                    try {
+                        context = JAXBContext.newInstance(TestSuite.class);
+                    } finally {
+                        t.setContextClassLoader(orig);
+                    }
+                    jaxbContext = context;
+                }
+            }
+        }
+        return context;
+    }
+}
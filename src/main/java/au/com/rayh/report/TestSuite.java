@@ -69,6 +69,8 @@ public class TestSuite {
 
     HashMap <String, TestCase> testCasesHash = new HashMap <String, TestCase>();
 
+    TestCaseSpool spool;
+
     public TestSuite() {
     }
     
@@ -91,6 +93,14 @@ public class TestSuite {
 	this.testCasesHash = testCasesHash;
     }
 
+    public TestCaseSpool getSpool() {
+        return spool;
+    }
+
+    public void setSpool(TestCaseSpool spool) {
+        this.spool = spool;
+    }
+
     public int getFailures() {
         return failures;
     }
@@ -119,6 +129,39 @@ public class TestSuite {
         return name;
     }
 
+    public String getHostname() {
+        return hostname;
+    }
+
+    public float getTime() {
+        return time;
+    }
+
+    /**
+     * Sets the end time of a suite read back from a report, which has no start time.
+     */
+    @SuppressFBWarnings("EI_EXPOSE_REP2")
+    public void setTimestamp(Date timestamp) {
+        this.endTime = timestamp;
+    }
+
+    /**
+     * Counts the tests, failures and errors again after the test cases were changed.
+     */
+    public void updateCounts() {
+        tests = testcases.size();
+        failures = 0;
+        errors = 0;
+        for ( TestCase testCase : testcases ) {
+            if ( !testCase.getFailures().isEmpty() ) {
+                failures++;
+            }
+            else if ( !testCase.getErrors().isEmpty() ) {
+                errors++;
+            }
+        }
+    }
+
     @SuppressFBWarnings("EI_EXPOSE_REP")
     public Date getStartTime() {
         return startTime;
@@ -0,0 +1,86 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011 Ray Yamamoto Hilton
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package au.com.rayh;
+
+import hudson.FilePath;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+public class BuildSettingsResolverTest {
+    private BuildSettingsResolver resolver;
+
+    @Before
+    public void setUp() throws Exception {
+        FilePath projectLocation = new FilePath(new File(getClass().getResource("/BuildSettingsProject/App.xcodeproj").toURI()));
+        XcodeProject xcodeProject = XcodeProjectParser.parseXcodeProject(projectLocation);
+        assertNotNull(xcodeProject);
+        assertEquals("Configs/Project.xcconfig", xcodeProject.buildConfiguration.get("Debug").baseConfigurationFile);
+        assertEquals("Configs/App.xcconfig", xcodeProject.projectTarget.get("My App").buildConfiguration.get("Release").baseConfigurationFile);
+        resolver = new BuildSettingsResolver(projectLocation, xcodeProject);
+    }
+
+    @Test
+    public void shouldLayerProjectXcconfigAndTargetSettings() throws Exception {
+        // PRODUCT_NAME is set by the project, but refers to the target.
+        assertEquals("My App", resolver.resolve("My App", "Debug", "PRODUCT_NAME"));
+        assertEquals("com.example.My-App", resolver.resolve("My App", "Debug", "PRODUCT_BUNDLE_IDENTIFIER"));
+        assertEquals("My App DEBUG", resolver.resolve("My App", "Debug", "PROVISIONING_PROFILE_SPECIFIER"));
+        assertEquals("My App RELEASE", resolver.resolve("My App", "Release", "PROVISIONING_PROFILE_SPECIFIER"));
+        assertEquals("ABCDE12345", resolver.resolve("My App", "Release", "DEVELOPMENT_TEAM"));
+        assertEquals("App/Info.plist", resolver.resolve("My App", "Release", "INFOPLIST_FILE"));
+        assertEquals("-DBASE -DPROJECT -DAPP", resolver.resolve("My App", "Debug", "OTHER_SWIFT_FLAGS"));
+        assertEquals("-DBASE -DPROJECT", resolver.resolve("My App", "Release", "OTHER_SWIFT_FLAGS"));
+        assertEquals("-DBASE -DPROJECT", resolver.resolve(null, "Debug", "OTHER_SWIFT_FLAGS"));
+        // Not applied.
+        assertEquals("", resolver.resolve("My App", "Debug", "CODE_SIGN_IDENTITY"));
+        assertEquals("", resolver.resolve("My App", "Debug", "UNDEFINED"));
+    }
+
+    @Test
+    public void shouldExpandNestedReferencesAndModifiers() throws Exception {
+        assertEquals("staging", resolver.resolve("My App", "Debug", "ENVIRONMENT"));
+        assertEquals("production", resolver.resolve("My App", "Release", "ENVIRONMENT"));
+        assertEquals("My_App my app", resolver.expand("My App", "Debug", "${TARGET_NAME:c99extidentifier} $(PRODUCT_NAME:lower)"));
+        assertEquals("Info.plist Info App .plist", resolver.expand("My App", "Debug", "$(INFOPLIST_FILE:file) $(INFOPLIST_FILE:base) $(INFOPLIST_FILE:dir) $(INFOPLIST_FILE:suffix)"));
+        assertEquals("com.example.$(", resolver.expand("My App", "Debug", "$(BUNDLE_PREFIX).$("));
+        assertEquals("a", resolver.resolve("My App", "Debug", "CYCLE_B"));
+    }
+
+    @Test
+    public void shouldApplyModifiers() {
+        assertEquals("My-App-2.0", BuildSettingsResolver.applyModifier("My App_2.0", "rfc1034identifier"));
+        assertEquals("_2_App", BuildSettingsResolver.applyModifier("2-App", "identifier"));
+        assertEquals("My\\ App", BuildSettingsResolver.applyModifier("My App", "quote"));
+        assertEquals("Sources/App", BuildSettingsResolver.applyModifier("Sources/./Lib/../App", "standardizepath"));
+        assertEquals(Arrays.asList("VAR_$(A:upper)", "lower", "default=x:y"), BuildSettingsResolver.splitReference("VAR_$(A:upper):lower:default=x:y"));
+    }
+}
@@ -32,22 +32,37 @@ package au.com.rayh;
 import hudson.FilePath;
 import hudson.console.ConsoleNote;
 import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import hudson.util.IOUtils;
+import hudson.util.StreamTaskListener;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 
 import org.junit.After;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 /**
  *
  * @author ray
  */
 public class JenkinsXCodeBuildOutputParserTest {
+    @Rule public TemporaryFolder tmp = new TemporaryFolder();
     OutputParserTests test;
 
     @Before
@@ -127,4 +142,143 @@ public class JenkinsXCodeBuildOutputParserTest {
     public void shouldParseFailedTestCase() throws Exception {
     	test.shouldParseFailedTestCase();
     }
+
+    @Test
+    public void shouldWriteAllTestReportsInBackgroundBeforeLogfileIsClosed() throws Exception {
+        File workspace = tmp.newFolder();
+        JenkinsXCodeBuildOutputParser parser = new JenkinsXCodeBuildOutputParser(new FilePath(workspace), StreamTaskListener.fromStdout());
+        IOUtils.copy(getClass().getResourceAsStream("/XCTest_output_failing_2.txt"), parser.getOutputStream());
+        parser.closeLogfile();
+
+        File expected = tmp.newFolder();
+        XCodeBuildOutputParser synchronousParser = new XCodeBuildOutputParser(expected, new ByteArrayOutputStream());
+        IOUtils.copy(getClass().getResourceAsStream("/XCTest_output_failing_2.txt"), synchronousParser.getOutputStream());
+
+        String[] reports = new File(workspace, "test-reports").list();
+        assertTrue(reports.length > 0);
+        assertEquals(expected.list().length, reports.length);
+        assertEquals(0, parser.getTestReportWriter().getQueueDepth());
+        assertTrue(parser.getTestReportWriter().getMaxQueueDepth() > 0);
+        assertTrue(parser.getTestReportWriter().getReportsWritten() >= reports.length);
+    }
+
+    @Test
+    public void shouldPublishResultsAndReachFailureLimitWhileParsing() throws Exception {
+        JenkinsXCodeBuildOutputParser parser = new JenkinsXCodeBuildOutputParser(new FilePath(tmp.newFolder()), StreamTaskListener.fromStdout());
+        XcodeTestResultsAction action = new XcodeTestResultsAction();
+        parser.setTestResultsAction(action);
+        parser.setMaxTestFailures(1);
+        assertTrue(action.isRunning());
+        assertFalse(parser.isTestFailureLimitReached());
+
+        IOUtils.copy(getClass().getResourceAsStream("/XCTest_output_failing_1.txt"), parser.getOutputStream());
+        assertTrue(parser.isTestFailureLimitReached());
+        assertEquals(1, parser.getTestFailures());
+        assertEquals(12, action.getTests());
+        assertEquals(1, action.getFailures());
+        assertEquals(1, action.getFailedTests().size());
+        assertTrue(action.getFailedTests().get(0).startsWith("PlayingCardTestCase."));
+
+        parser.closeLogfile();
+        assertFalse(action.isRunning());
+        assertEquals(6, action.getSuites());
+    }
+
+    @Test
+    public void shouldRunUntilEveryParserOfTheActionIsClosed() throws Exception {
+        // Like test shards running in parallel in one build.
+        XcodeTestResultsAction action = new XcodeTestResultsAction();
+        JenkinsXCodeBuildOutputParser first = new JenkinsXCodeBuildOutputParser(new FilePath(tmp.newFolder()), StreamTaskListener.fromStdout());
+        JenkinsXCodeBuildOutputParser second = new JenkinsXCodeBuildOutputParser(new FilePath(tmp.newFolder()), StreamTaskListener.fromStdout());
+        first.setTestResultsAction(action);
+        second.setTestResultsAction(action);
+
+        first.closeLogfile();
+        assertTrue(action.isRunning());
+        // Closing a parser twice does not count for another one.
+        first.closeLogfile();
+        assertTrue(action.isRunning());
+        second.closeLogfile();
+        assertFalse(action.isRunning());
+    }
+
+    @Test
+    public void shouldCondenseConsoleAndPrintTailOnRequest() throws Exception {
+        File workspace = tmp.newFolder();
+        ByteArrayOutputStream console = new ByteArrayOutputStream();
+        JenkinsXCodeBuildOutputParser parser = new JenkinsXCodeBuildOutputParser(new FilePath(workspace), new StreamTaskListener(console));
+        parser.setCondensedConsoleLog(5);
+        parser.setLogfilePath(new FilePath(workspace), "logs");
+        IOUtils.copy(getClass().getResourceAsStream("/xcodebuild_output_build_1.txt"), parser.getOutputStream());
+        parser.closeLogfile();
+
+        String condensed = console.toString("UTF-8");
+        assertTrue(condensed.contains("=== BUILD TARGET UnitTestsCardExampleTests OF PROJECT UnitTestsCardExample WITH CONFIGURATION Debug ===\n"));
+        assertTrue(condensed.contains("CompileC: 4 steps\n"));
+        assertTrue(condensed.contains("Deck.m:31:9: warning: unused variable 'index' [-Wunused-variable]\n"));
+        assertTrue(condensed.contains("Test Case '-[CardTestCase testMatchesDifferentCardWithSameContents]' failed (0.001 seconds).\n"));
+        assertTrue(condensed.contains("** TEST FAILED **\n"));
+        assertFalse(condensed.contains("export LANG=en_US.US-ASCII"));
+        assertEquals(3, new File(workspace, "test-reports").list().length);
+        assertEquals(new File(getClass().getResource("/xcodebuild_output_build_1.txt").toURI()).length(),
+                new File(workspace, "logs/xcodebuild.log").length());
+
+        console.reset();
+        parser.printConsoleTail();
+        String[] tail = console.toString("UTF-8").split("\n");
+        assertEquals(6, tail.length);
+        assertEquals("** TEST FAILED **", tail[5]);
+    }
+
+    @Test(timeout = 10000)
+    public void shouldReportUncheckedWriteFailureAndKeepDraining() throws Exception {
+        AsyncTestReportWriter writer = new AsyncTestReportWriter(1);
+        writer.submit(new FilePath(brokenChannel(new IllegalStateException("channel is closing")), "/reports/TEST-Broken.xml"), new byte[0]);
+        try {
+            // More reports than the queue holds, none of them may block once the writer failed.
+            for ( int i = 0; i < 5; i++ ) {
+                writer.submit(new FilePath(new File(tmp.getRoot(), "TEST-" + i + ".xml")), new byte[0]);
+            }
+        }
+        catch ( IOException ex ) {
+            assertTrue(ex.getCause() instanceof IllegalStateException);
+        }
+        try {
+            writer.close();
+            fail();
+        }
+        catch ( IOException ex ) {
+            assertTrue(ex.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void shouldNotBlockWhenTheWriterThreadHasDied() throws Exception {
+        AsyncTestReportWriter writer = new AsyncTestReportWriter(1);
+        writer.submit(new FilePath(brokenChannel(new NoClassDefFoundError("hudson/remoting/Pipe")), "/reports/TEST-Broken.xml"), new byte[0]);
+        try {
+            for ( int i = 0; i < 5; i++ ) {
+                writer.submit(new FilePath(new File(tmp.getRoot(), "TEST-" + i + ".xml")), new byte[0]);
+            }
+            writer.close();
+            fail();
+        }
+        catch ( IOException ex ) {
+            assertTrue(ex.getCause() instanceof NoClassDefFoundError);
+        }
+    }
+
+    /**
+     * A channel to an agent which throws on every call, e.g. while it is disconnecting.
+     */
+    private static VirtualChannel brokenChannel(final Throwable error) {
+        return (VirtualChannel)Proxy.newProxyInstance(JenkinsXCodeBuildOutputParserTest.class.getClassLoader(), new Class<?>[] { VirtualChannel.class }, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if ( method.getDeclaringClass() == Object.class ) {
+                    return method.invoke(this, args);
+                }
+                throw error;
+            }
+        });
+    }
 }
@@ -0,0 +1,265 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011 Ray Yamamoto Hilton
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package au.com.rayh;
+
+import com.dd.plist.NSArray;
+import com.dd.plist.NSDictionary;
+import com.dd.plist.NSObject;
+import com.dd.plist.PropertyListParser;
+
+import hudson.FilePath;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.ParseException;
+import java.util.Arrays;
+
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class PbxprojReaderTest {
+    @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static String uuid(int kind, int i) {
+        return String.format("%02X%022X", kind, i);
+    }
+
+    /**
+     * Writes a project in the format of Xcode, with an application target and frameworks that share the files.
+     */
+    private File generateProject(int files, int targets) throws Exception {
+        File projectLocation = tmp.newFolder("Generated.xcodeproj");
+        File project = new File(projectLocation, "project.pbxproj");
+        int groups = (files + 999) / 1000;
+        try ( Writer out = Files.newBufferedWriter(project.toPath(), StandardCharsets.UTF_8) ) {
+            out.write("// !$*UTF8*$!\n{\n\tarchiveVersion = 1;\n\tclasses = {\n\t};\n\tobjectVersion = 50;\n\tobjects = {\n\n/* Begin PBXBuildFile section */\n");
+            for ( int i = 0; i < files; i++ ) {
+                out.write("\t\t" + uuid(0xB0, i) + " /* File" + i + ".swift in Sources */ = {isa = PBXBuildFile; fileRef = " + uuid(0xF0, i) + " /* File" + i + ".swift */; };\n");
+            }
+            out.write("/* End PBXBuildFile section */\n\n/* Begin PBXFileReference section */\n");
+            for ( int i = 0; i < files; i++ ) {
+                String path = i == 0 ? "\"Café \\\"0\\\".swift\"" : "File" + i + ".swift";
+                out.write("\t\t" + uuid(0xF0, i) + " /* File" + i + ".swift */ = {isa = PBXFileReference; lastKnownFileType = sourcecode.swift; path = " + path + "; sourceTree = \"<group>\"; };\n");
+            }
+            out.write("/* End PBXFileReference section */\n\n/* Begin PBXGroup section */\n");
+            out.write("\t\t" + uuid(0xA0, 0) + " = {\n\t\t\tisa = PBXGroup;\n\t\t\tchildren = (\n");
+            for ( int g = 0; g < groups; g++ ) {
+                out.write("\t\t\t\t" + uuid(0xA1, g) + " /* Group" + g + " */,\n");
+            }
+            out.write("\t\t\t);\n\t\t\tsourceTree = \"<group>\";\n\t\t};\n");
+            for ( int g = 0; g < groups; g++ ) {
+                out.write("\t\t" + uuid(0xA1, g) + " /* Group" + g + " */ = {\n\t\t\tisa = PBXGroup;\n\t\t\tchildren = (\n");
+                for ( int i = g * 1000; i < Math.min(files, (g + 1) * 1000); i++ ) {
+                    out.write("\t\t\t\t" + uuid(0xF0, i) + ",\n");
+                }
+                out.write("\t\t\t);\n\t\t\tpath = Group" + g + ";\n\t\t\tsourceTree = \"<group>\";\n\t\t};\n");
+            }
+            out.write("/* End PBXGroup section */\n\n/* Begin PBXNativeTarget section */\n");
+            for ( int t = 0; t < targets; t++ ) {
+                out.write("\t\t" + uuid(0xC0, t) + " /* Target" + t + " */ = {\n\t\t\tisa = PBXNativeTarget;\n\t\t\tbuildConfigurationList = " + uuid(0xD0, t + 1) + ";\n"
+                        + "\t\t\tbuildPhases = (\n\t\t\t\t" + uuid(0xE0, t) + " /* Sources */,\n\t\t\t);\n\t\t\tdependencies = (\n\t\t\t);\n"
+                        + "\t\t\tname = Target" + t + ";\n\t\t\tproductType = \"com.apple.product-type." + (t == 0 ? "application" : "framework") + "\";\n\t\t};\n");
+                out.write("\t\t" + uuid(0xE0, t) + " /* Sources */ = {\n\t\t\tisa = PBXSourcesBuildPhase;\n\t\t\tfiles = (\n");
+                for ( int i = t; i < files; i += targets ) {
+                    out.write("\t\t\t\t" + uuid(0xB0, i) + " /* File" + i + ".swift in Sources */,\n");
+                }
+                out.write("\t\t\t);\n\t\t};\n");
+            }
+            out.write("/* End PBXNativeTarget section */\n\n");
+            out.write("\t\t" + uuid(0x90, 0) + " /* Project object */ = {\n\t\t\tisa = PBXProject;\n\t\t\tattributes = {\n\t\t\t\tTargetAttributes = {\n"
+                    + "\t\t\t\t\t" + uuid(0xC0, 0) + " = {\n\t\t\t\t\t\tProvisioningStyle = Automatic;\n\t\t\t\t\t};\n\t\t\t\t};\n\t\t\t};\n"
+                    + "\t\t\tbuildConfigurationList = " + uuid(0xD0, 0) + ";\n\t\t\tmainGroup = " + uuid(0xA0, 0) + ";\n\t\t\tprojectDirPath = \"\";\n\t\t\ttargets = (\n");
+            for ( int t = 0; t < targets; t++ ) {
+                out.write("\t\t\t\t" + uuid(0xC0, t) + ",\n");
+            }
+            out.write("\t\t\t);\n\t\t};\n");
+            for ( int l = 0; l <= targets; l++ ) {
+                out.write("\t\t" + uuid(0xD0, l) + " = {\n\t\t\tisa = XCConfigurationList;\n\t\t\tbuildConfigurations = (\n\t\t\t\t" + uuid(0xD1, l * 2) + ",\n\t\t\t\t" + uuid(0xD1, l * 2 + 1)
+                        + ",\n\t\t\t);\n\t\t\tdefaultConfigurationName = Release;\n\t\t};\n");
+                for ( int c = 0; c < 2; c++ ) {
+                    out.write("\t\t" + uuid(0xD1, l * 2 + c) + " = {\n\t\t\tisa = XCBuildConfiguration;\n\t\t\tbuildSettings = {\n\t\t\t\tINFOPLIST_FILE = \"Info.plist\";\n"
+                            + "\t\t\t\tOTHER_LDFLAGS = (\n\t\t\t\t\t\"$(inherited)\",\n\t\t\t\t\t\"-ObjC\",\n\t\t\t\t);\n\t\t\t\tPRODUCT_BUNDLE_IDENTIFIER = \"com.example.$(PRODUCT_NAME:rfc1034identifier)\";\n"
+                            + "\t\t\t};\n\t\t\tname = " + (c == 0 ? "Debug" : "Release") + ";\n\t\t};\n");
+                }
+            }
+            out.write("\t};\n\trootObject = " + uuid(0x90, 0) + " /* Project object */;\n}\n");
+        }
+        return projectLocation;
+    }
+
+    private static PbxprojReader read(File project) throws Exception {
+        try ( InputStream in = Files.newInputStream(project.toPath()) ) {
+            return PbxprojReader.read(in);
+        }
+    }
+
+    @Test
+    public void shouldDecodeObjectsLikeDdPlist() throws Exception {
+        File project = new File(generateProject(1000, 4), "project.pbxproj");
+        PbxprojReader reader = read(project);
+        NSDictionary objects = (NSDictionary)((NSDictionary)PropertyListParser.parse(project)).objectForKey("objects");
+
+        assertEquals(uuid(0x90, 0), reader.getRootObject());
+        assertEquals(objects.count(), reader.getObjectCount());
+        for ( String uuid : objects.allKeys() ) {
+            assertEquals(uuid, objects.objectForKey(uuid), reader.getObject(uuid));
+        }
+        assertEquals("Café \"0\".swift", reader.getObject(uuid(0xF0, 0)).objectForKey("path").toString());
+        assertNull(reader.getObject("MISSING"));
+    }
+
+    @Test
+    public void shouldReadProjectsInOtherFormats() throws Exception {
+        File project = new File(generateProject(10, 2), "project.pbxproj");
+        File xmlProject = tmp.newFile("project.xml");
+        NSObject root = PropertyListParser.parse(project);
+        PropertyListParser.saveAsXML(root, xmlProject);
+
+        PbxprojReader reader = read(xmlProject);
+        assertEquals(uuid(0x90, 0), reader.getRootObject());
+        NSObject targets = reader.getObject(reader.getRootObject()).objectForKey("targets");
+        assertEquals(2, ((NSArray)targets).count());
+        assertEquals(((NSDictionary)((NSDictionary)root).objectForKey("objects")).objectForKey(uuid(0xE0, 1)), reader.getObject(uuid(0xE0, 1)));
+    }
+
+    @Test
+    public void shouldRejectTruncatedProject() throws Exception {
+        byte[] data = Files.readAllBytes(new File(generateProject(10, 2), "project.pbxproj").toPath());
+        try {
+            PbxprojReader.read(new ByteArrayInputStream(Arrays.copyOf(data, data.length / 2)));
+            fail();
+        }
+        catch ( ParseException ex ) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void shouldFailOnObjectThatCannotBeDecoded() throws Exception {
+        File projectLocation = generateProject(10, 2);
+        File project = new File(projectLocation, "project.pbxproj");
+        // Skipped when the objects are indexed, only decoding the project object finds it is not hexadecimal.
+        Files.write(project.toPath(), new String(Files.readAllBytes(project.toPath()), StandardCharsets.UTF_8)
+                .replace("isa = PBXProject;", "isa = PBXProject;\n\t\t\tbroken = <zz>;").getBytes(StandardCharsets.UTF_8));
+        PbxprojReader reader = read(project);
+        try {
+            reader.getObject(reader.getRootObject());
+            fail();
+        }
+        catch ( ParseException ex ) {
+            // Expected.
+        }
+        assertNull(XcodeProjectParser.parseXcodeProject(new FilePath(projectLocation)));
+    }
+
+    @Test
+    public void shouldParseGeneratedProject() throws Exception {
+        XcodeProject xcodeProject = XcodeProjectParser.parseXcodeProject(new FilePath(generateProject(2500, 5)));
+        assertEquals(5, xcodeProject.targets.size());
+        assertEquals(1, xcodeProject.projectTarget.size());
+        assertEquals(2500, xcodeProject.files.size());
+        assertEquals(500, xcodeProject.targets.get("Target3").sourceFiles.size());
+        assertEquals("Group0/File5.swift", xcodeProject.targets.get("Target0").sourceFiles.get(1));
+        assertEquals("Release", xcodeProject.projectTarget.get("Target0").defaultConfigurationName);
+        assertEquals("com.example.$(PRODUCT_NAME:rfc1034identifier)", xcodeProject.projectTarget.get("Target0").buildConfiguration.get("Debug").bundleIdentifier);
+    }
+
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        for ( int i = 0; i < 3; i++ ) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Compares reading the targets of a project with 50,000 files, and the memory held while they are read,
+     * with dd-plist and on demand.
+     * Only runs with -Dbenchmark=true, e.g. mvn test -Dtest=PbxprojReaderTest -Dbenchmark=true.
+     */
+    @Test
+    public void benchmarkReadingTargets() throws Exception {
+        Assume.assumeTrue(Boolean.getBoolean("benchmark"));
+        File projectLocation = generateProject(50000, 20);
+        File project = new File(projectLocation, "project.pbxproj");
+        System.out.println("project.pbxproj: " + project.length() / 1024 + " KiB");
+        int projectCacheSize = XcodeProjectParser.PROJECT_CACHE_SIZE;
+        // Parsed again by every run.
+        XcodeProjectParser.PROJECT_CACHE_SIZE = 0;
+        try {
+            for ( int run = 0; run < 5; run++ ) {
+                long baseline = usedMemory();
+                long start = System.nanoTime();
+                NSDictionary objects = (NSDictionary)((NSDictionary)PropertyListParser.parse(project)).objectForKey("objects");
+                int touched = 0;
+                NSDictionary projectDict = (NSDictionary)objects.objectForKey(uuid(0x90, 0));
+                for ( NSObject target : ((NSArray)projectDict.objectForKey("targets")).getArray() ) {
+                    NSDictionary targetDict = (NSDictionary)objects.objectForKey(target.toString());
+                    NSDictionary configurationList = (NSDictionary)objects.objectForKey(targetDict.objectForKey("buildConfigurationList").toString());
+                    touched += 2 + ((NSArray)configurationList.objectForKey("buildConfigurations")).count();
+                }
+                long ddPlistTime = System.nanoTime() - start;
+                long ddPlistMemory = usedMemory() - baseline;
+                assertEquals(80, touched);
+                assertEquals(2 * 50000 + 50 + 1 + 2 * 20 + 1 + 3 * 21, objects.count());
+                objects = null;
+
+                baseline = usedMemory();
+                start = System.nanoTime();
+                PbxprojReader reader = read(project);
+                touched = 0;
+                projectDict = reader.getObject(reader.getRootObject());
+                for ( NSObject target : ((NSArray)projectDict.objectForKey("targets")).getArray() ) {
+                    NSDictionary targetDict = reader.getObject(target.toString());
+                    NSDictionary configurationList = reader.getObject(targetDict.objectForKey("buildConfigurationList").toString());
+                    touched += 2 + ((NSArray)configurationList.objectForKey("buildConfigurations")).count();
+                }
+                long lazyTime = System.nanoTime() - start;
+                long lazyMemory = usedMemory() - baseline;
+                assertEquals(80, touched);
+                assertEquals(2 * 50000 + 50 + 1 + 2 * 20 + 1 + 3 * 21, reader.getObjectCount());
+
+                start = System.nanoTime();
+                XcodeProjectParser.parseXcodeProject(new FilePath(projectLocation));
+                long parseTime = System.nanoTime() - start;
+                System.out.println(String.format("run %d: dd-plist %d ms, %d KiB held; on demand %d ms, %d KiB held; parseXcodeProject %d ms",
+                        run, ddPlistTime / 1000000, ddPlistMemory / 1024, lazyTime / 1000000, lazyMemory / 1024, parseTime / 1000000));
+            }
+        }
+        finally {
+            XcodeProjectParser.PROJECT_CACHE_SIZE = projectCacheSize;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011 Ray Yamamoto Hilton
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package au.com.rayh;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SegmentedLogOutputStreamTest {
+    @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static String line(int number) {
+        return "CompileC /Users/jenkins/workspace/build/Objects-normal/arm64/File" + number + ".o File" + number + ".m normal arm64 objective-c";
+    }
+
+    @Test
+    public void shouldWriteGzipSegmentsThatCanBeReadFromAnyLine() throws Exception {
+        File log = tmp.newFile("xcodebuild.log.gz");
+        File index = tmp.newFile("xcodebuild.log.idx");
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        try (OutputStream out = new SegmentedLogOutputStream(new FileOutputStream(log), new FileOutputStream(index), 16 * 1024)) {
+            for ( int i = 1; i <= 20000; i++ ) {
+                byte[] bytes = (line(i) + "\n").getBytes(StandardCharsets.UTF_8);
+                // Uneven writes, so lines and segments do not line up with them.
+                int half = bytes.length / 3;
+                out.write(bytes, 0, half);
+                out.write(bytes, half, bytes.length - half);
+                expected.write(bytes);
+            }
+            out.write("no newline at the end".getBytes(StandardCharsets.UTF_8));
+            expected.write("no newline at the end".getBytes(StandardCharsets.UTF_8));
+        }
+
+        // Still one valid gzip file.
+        try (InputStream in = new GZIPInputStream(new FileInputStream(log))) {
+            assertArrayEquals(expected.toByteArray(), IOUtils.toByteArray(in));
+        }
+
+        SegmentedLogReader reader = new SegmentedLogReader(log, index);
+        assertTrue(reader.getSegmentCount() > 50);
+        assertEquals(Arrays.asList(line(1), line(2)), reader.readLines(1, 2));
+        assertEquals(Arrays.asList(line(12345), line(12346), line(12347)), reader.readLines(12345, 3));
+        assertEquals(Arrays.asList(line(20000), "no newline at the end"), reader.readLines(20000, 10));
+    }
+
+    @Test
+    public void shouldStartEverySegmentAtTheBeginningOfALine() throws Exception {
+        File log = tmp.newFile("xcodebuild.log.gz");
+        File index = tmp.newFile("xcodebuild.log.idx");
+        try (OutputStream out = new SegmentedLogOutputStream(new FileOutputStream(log), new FileOutputStream(index), 100)) {
+            for ( int i = 1; i <= 1000; i++ ) {
+                out.write((line(i) + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        SegmentedLogReader reader = new SegmentedLogReader(log, index);
+        assertEquals(1000, reader.getSegmentCount());
+        for ( int i = 1; i <= 1000; i += 111 ) {
+            assertEquals(i - 1, reader.segmentOf(i));
+            assertEquals(Arrays.asList(line(i)), reader.readLines(i, 1));
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011 Ray Yamamoto Hilton
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package au.com.rayh;
+
+import hudson.FilePath;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestAttachmentExtractorTest {
+    @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void shouldCancelAttachmentsNotStoredInTime() throws Exception {
+        int parallelism = TestAttachmentExtractor.PARALLELISM;
+        int timeout = TestAttachmentExtractor.TIMEOUT;
+        TestAttachmentExtractor.PARALLELISM = 1;
+        TestAttachmentExtractor.TIMEOUT = 1;
+        try {
+            FilePath testReportsDir = new FilePath(tmp.newFolder("test-reports"));
+            TestAttachmentExtractor extractor = new TestAttachmentExtractor(testReportsDir);
+            FilePath screenshot = new FilePath(tmp.newFile("Screenshot.png"));
+            screenshot.write("screenshot", "UTF-8");
+            Future<FilePath> stored = extractor.extract(screenshot);
+            assertTrue(stored.get().exists());
+            // An export that hangs, and one still queued behind it.
+            Future<FilePath> hung = extractor.extract("Hung.png", new TestAttachmentExtractor.Exporter() {
+                public void export(FilePath target) throws IOException, InterruptedException {
+                    Thread.sleep(60000);
+                }
+            });
+            Future<FilePath> queued = extractor.extract("Queued.png", new TestAttachmentExtractor.Exporter() {
+                public void export(FilePath target) throws IOException, InterruptedException {
+                    target.write("queued", "UTF-8");
+                }
+            });
+
+            long start = System.currentTimeMillis();
+            assertEquals(Arrays.asList("Hung.png", "Queued.png"), sorted(extractor.close()));
+            assertTrue(System.currentTimeMillis() - start < 30000);
+            assertTrue(hung.isCancelled());
+            assertTrue(queued.isCancelled());
+            assertTrue(stored.get().exists());
+        }
+        finally {
+            TestAttachmentExtractor.PARALLELISM = parallelism;
+            TestAttachmentExtractor.TIMEOUT = timeout;
+        }
+    }
+
+    private static List<String> sorted(List<String> names) {
+        List<String> sorted = new ArrayList<String>(names);
+        Collections.sort(sorted);
+        return sorted;
+    }
+}
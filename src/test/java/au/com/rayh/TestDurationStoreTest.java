@@ -0,0 +1,155 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011 Ray Yamamoto Hilton
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package au.com.rayh;
+
+import hudson.FilePath;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestDurationStoreTest {
+    @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static Map<String, Float> durations(Object... testsAndDurations) {
+        Map<String, Float> durations = new HashMap<String, Float>();
+        for ( int i = 0; i < testsAndDurations.length; i += 2 ) {
+            durations.put((String) testsAndDurations[i], ((Number) testsAndDurations[i + 1]).floatValue());
+        }
+        return durations;
+    }
+
+    @Test
+    public void shouldKeepDurationsOfEachBuildAcrossSaves() throws Exception {
+        File file = new File(tmp.getRoot(), TestDurationStore.FILE_NAME);
+        TestDurationStore store = TestDurationStore.load(file);
+        store.record(1, durations("CalculatorTests.testAddition", 1.0f, "CalculatorTests.testDivision", 4.0f));
+        store.save(file);
+        store = TestDurationStore.load(file);
+        store.record(2, durations("CalculatorTests.testAddition", 2.0f, "NetworkTests.testDownload", 10.0f));
+        store.save(file);
+        store = TestDurationStore.load(file);
+        store.record(3, durations("CalculatorTests.testAddition", 3.0f));
+        // A second step of the same build.
+        store.record(3, durations("CalculatorTests.testDivision", 5.0f));
+        store.save(file);
+
+        store = TestDurationStore.load(file);
+        assertEquals(3, store.getBuilds().size());
+        assertEquals(3, store.getTests().size());
+        assertArrayEquals(new float[] { 1.0f, 2.0f, 3.0f }, store.getDurations("CalculatorTests.testAddition"), 0.0f);
+        assertArrayEquals(new float[] { 4.0f, 5.0f }, store.getDurations("CalculatorTests.testDivision"), 0.0f);
+        assertArrayEquals(new float[] { 10.0f }, store.getDurations("NetworkTests.testDownload"), 0.0f);
+        assertEquals(0, store.getDurations("UnknownTests.testUnknown").length);
+    }
+
+    @Test
+    public void shouldComputePercentilesAndTrends() throws Exception {
+        TestDurationStore store = new TestDurationStore();
+        for ( int build = 1; build <= 5; build++ ) {
+            store.record(build, durations("CalculatorTests.testAddition", build * 0.5f, "NetworkTests.testDownload", 8.0f));
+        }
+
+        assertEquals(1.5f, store.getPercentile("CalculatorTests.testAddition", 50), 0.0001f);
+        assertEquals(2.3f, store.getPercentile("CalculatorTests.testAddition", 90), 0.0001f);
+        assertEquals(0.5f, store.getPercentile("CalculatorTests.testAddition", 0), 0.0001f);
+        assertEquals(0.5f, store.getTrend("CalculatorTests.testAddition"), 0.0001f);
+        assertEquals(0.0f, store.getTrend("NetworkTests.testDownload"), 0.0001f);
+        assertTrue(Float.isNaN(store.getPercentile("UnknownTests.testUnknown", 50)));
+        assertEquals("NetworkTests.testDownload", store.getSlowestTests(1, 50).get(0));
+    }
+
+    @Test
+    public void shouldForgetTestsOlderThanHistory() throws Exception {
+        int history = TestDurationStore.HISTORY;
+        TestDurationStore.HISTORY = 3;
+        try {
+            TestDurationStore store = new TestDurationStore();
+            store.record(1, durations("RemovedTests.testRemoved", 1.0f, "CalculatorTests.testAddition", 1.0f));
+            for ( int build = 2; build <= 4; build++ ) {
+                store.record(build, durations("CalculatorTests.testAddition", (float) build));
+            }
+
+            assertEquals(3, store.getBuilds().size());
+            assertEquals(2, (int) store.getBuilds().get(0));
+            assertEquals(1, store.getTests().size());
+            assertArrayEquals(new float[] { 2.0f, 3.0f, 4.0f }, store.getDurations("CalculatorTests.testAddition"), 0.0f);
+        }
+        finally {
+            TestDurationStore.HISTORY = history;
+        }
+    }
+
+    @Test
+    public void shouldKeepBuildsInOrderWhenTheyFinishOutOfOrder() throws Exception {
+        int history = TestDurationStore.HISTORY;
+        TestDurationStore.HISTORY = 2;
+        try {
+            TestDurationStore store = new TestDurationStore();
+            store.record(3, durations("CalculatorTests.testAddition", 3.0f));
+            // Build 2 ran in parallel with build 3 and finished last.
+            store.record(2, durations("CalculatorTests.testAddition", 2.0f, "CalculatorTests.testDivision", 2.0f));
+            assertEquals(Arrays.asList(2, 3), store.getBuilds());
+            assertTrue(store.ranInLastBuild("CalculatorTests.testAddition"));
+            assertFalse(store.ranInLastBuild("CalculatorTests.testDivision"));
+
+            // The oldest build is dropped, not the one recorded first.
+            store.record(4, durations("CalculatorTests.testAddition", 4.0f));
+            assertEquals(Arrays.asList(3, 4), store.getBuilds());
+            assertEquals(1, store.getTests().size());
+            assertArrayEquals(new float[] { 3.0f, 4.0f }, store.getDurations("CalculatorTests.testAddition"), 0.0f);
+        }
+        finally {
+            TestDurationStore.HISTORY = history;
+        }
+    }
+
+    @Test
+    public void shouldOnlyReadReportsWrittenSinceListed() throws Exception {
+        FilePath testReportsDir = new FilePath(tmp.newFolder("test-reports"));
+        testReportsDir.child("TEST-OldTests.xml").write("<testsuite name=\"OldTests\"><testcase classname=\"OldTests\" name=\"testOld\" time=\"1.0\"/></testsuite>", "UTF-8");
+        Map<String, Long> previousTestReports = TestDurationStore.listTestReports(testReportsDir);
+        testReportsDir.child("TEST-CalculatorTests.xml").write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<testsuite name=\"CalculatorTests\" tests=\"2\" failures=\"1\">"
+                + "<testcase classname=\"CalculatorTests\" name=\"testAddition()\" time=\"0.0051\"><failure message=\"failed\"/></testcase>"
+                + "<testcase classname=\"CalculatorTests\" name=\"testDivision()\" time=\"1.25\"/>"
+                + "</testsuite>", "UTF-8");
+
+        Map<String, Float> durations = TestDurationStore.readDurations(testReportsDir, previousTestReports);
+        assertEquals(2, durations.size());
+        assertEquals(0.0051f, durations.get("CalculatorTests.testAddition()"), 0.0f);
+        assertEquals(1.25f, durations.get("CalculatorTests.testDivision()"), 0.0f);
+    }
+}
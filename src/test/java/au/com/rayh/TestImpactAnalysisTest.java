@@ -0,0 +1,104 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011 Ray Yamamoto Hilton
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package au.com.rayh;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class TestImpactAnalysisTest {
+    private static ProjectTarget target(XcodeProject project, String name, String productType, String... sourceFiles) {
+        ProjectTarget target = new ProjectTarget();
+        target.uuid = "UUID-" + name;
+        target.productType = productType;
+        target.sourceFiles.addAll(Arrays.asList(sourceFiles));
+        project.targets.put(name, target);
+        project.files.addAll(Arrays.asList(sourceFiles));
+        return target;
+    }
+
+    /**
+     * App links Feature, which links Core. AppTests are hosted by App and AppUITests depend on it.
+     */
+    private static TestImpactAnalysis analysis() {
+        XcodeProject project = new XcodeProject();
+        target(project, "Core", "com.apple.product-type.framework", "Core/Model.swift");
+        target(project, "Feature", "com.apple.product-type.framework", "Feature/View.swift").dependencies.add("Core");
+        target(project, "App", "com.apple.product-type.application", "App/AppDelegate.m", "App/Assets.xcassets").dependencies.add("Feature");
+        project.files.add("App/AppDelegate.h");
+        project.files.add("Shared/Unused.swift");
+        target(project, "CoreTests", "com.apple.product-type.bundle.unit-test", "CoreTests/ModelTests.swift").dependencies.add("Core");
+        target(project, "AppTests", "com.apple.product-type.bundle.unit-test", "AppTests/AppTests.swift").testTargetID = "UUID-App";
+        target(project, "AppUITests", "com.apple.product-type.bundle.ui-testing", "AppUITests/AppUITests.swift").dependencies.add("App");
+        TestImpactAnalysis analysis = new TestImpactAnalysis();
+        analysis.addProject("ios", project);
+        return analysis;
+    }
+
+    private static Set<String> set(String... values) {
+        return new TreeSet<String>(Arrays.asList(values));
+    }
+
+    @Test
+    public void shouldRunTestsOfDependentTargets() {
+        TestImpactAnalysis analysis = analysis();
+        assertEquals(set("AppTests", "AppUITests", "CoreTests"), analysis.getImpactedTestTargets(Arrays.asList("ios/Core/Model.swift")));
+        assertEquals(set("AppTests", "AppUITests"), analysis.getImpactedTestTargets(Arrays.asList("ios/Feature/View.swift", "README.md")));
+        assertEquals(set("CoreTests"), analysis.getImpactedTestTargets(Arrays.asList("ios/CoreTests/ModelTests.swift")));
+        // In a folder reference.
+        assertEquals(set("AppTests", "AppUITests"), analysis.getImpactedTestTargets(Arrays.asList("ios/App/Assets.xcassets/AppIcon.appiconset/Contents.json")));
+        // Headers belong to the targets of the files next to them.
+        assertEquals(set("AppTests", "AppUITests"), analysis.getImpactedTestTargets(Arrays.asList("ios/App/AppDelegate.h")));
+    }
+
+    @Test
+    public void shouldRunAllTestsWhenChangesCannotBeMapped() {
+        TestImpactAnalysis analysis = analysis();
+        assertNull(analysis.getImpactedTestTargets(Collections.<String>emptyList()));
+        assertNull(analysis.getImpactedTestTargets(Arrays.asList("ios/App.xcodeproj/project.pbxproj")));
+        assertNull(analysis.getImpactedTestTargets(Arrays.asList("ios/Podfile.lock")));
+        assertNull(analysis.getImpactedTestTargets(Arrays.asList("ios/Config/Debug.xcconfig")));
+        assertNull(analysis.getImpactedTestTargets(Arrays.asList("ios/Shared/Unused.swift")));
+        assertNull(analysis.getImpactedTestTargets(null));
+        // Sources of a local Swift package, which are not in the project.
+        assertNull(analysis.getImpactedTestTargets(Arrays.asList("ios/Packages/Networking/Sources/Networking/Client.swift", "README.md")));
+        // A checkout that does not line up with the project.
+        assertNull(analysis.getImpactedTestTargets(Arrays.asList("checkout/ios/Core/Model.swift")));
+    }
+
+    @Test
+    public void shouldOnlyBuildTestsWhenNoneAreImpacted() {
+        TestImpactAnalysis analysis = analysis();
+        Set<String> impactedTestTargets = analysis.getImpactedTestTargets(Arrays.asList("docs/index.md", "docs/images/Screenshot.PNG", ".github/workflows/ci.yml", "LICENSE"));
+        assertEquals(set(), impactedTestTargets);
+        assertEquals(Arrays.asList("-skip-testing:AppTests", "-skip-testing:AppUITests", "-skip-testing:CoreTests"), analysis.getArguments(impactedTestTargets));
+        assertEquals(Arrays.asList("-only-testing:CoreTests"), analysis.getArguments(set("CoreTests")));
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011 Ray Yamamoto Hilton
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package au.com.rayh;
+
+import hudson.FilePath;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import au.com.rayh.report.TestCase;
+import au.com.rayh.report.TestFailure;
+import au.com.rayh.report.TestReportWriter;
+import au.com.rayh.report.TestSuite;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestRetryTest {
+    @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static TestSuite suite(String name, String... failedTests) {
+        TestSuite testSuite = new TestSuite("localhost", name, null);
+        for ( String test : new String[] { "testPasses()", "testFlaky()", "testBroken()" } ) {
+            TestCase testCase = new TestCase("App." + name, test);
+            testCase.setTime(1.5f);
+            if ( Arrays.asList(failedTests).contains(test) ) {
+                testCase.getFailures().add(new TestFailure("XCTAssertTrue failed", "AppTests.swift:12"));
+            }
+            testSuite.getTestCases().add(testCase);
+        }
+        testSuite.updateCounts();
+        return testSuite;
+    }
+
+    private static Map<String, TestSuite> suites(TestSuite... testSuites) {
+        Map<String, TestSuite> suites = new HashMap<String, TestSuite>();
+        for ( TestSuite testSuite : testSuites ) {
+            suites.put(testSuite.getName(), testSuite);
+        }
+        return suites;
+    }
+
+    private static TestCase testCase(TestSuite testSuite, String name) {
+        for ( TestCase testCase : testSuite.getTestCases() ) {
+            if ( testCase.getName().equals(name) ) {
+                return testCase;
+            }
+        }
+        throw new AssertionError("No test " + name);
+    }
+
+    @Test
+    public void shouldNameFailedTestsForOnlyTesting() {
+        TestSuite testSuite = suite("CalculatorTests", "testFlaky()", "testBroken()");
+        assertEquals(Arrays.asList("App/CalculatorTests/testFlaky", "App/CalculatorTests/testBroken"), TestRetry.failedTests(Collections.singletonList(testSuite)));
+
+        TestSuite objectiveC = new TestSuite("localhost", "LegacyTests", null);
+        TestCase testCase = new TestCase("LegacyTests", "testSomething");
+        testCase.getFailures().add(new TestFailure("failed", null));
+        objectiveC.getTestCases().add(testCase);
+        assertNull(TestRetry.failedTests(Arrays.asList(testSuite, objectiveC)));
+    }
+
+    @Test
+    public void shouldRerunOnlyFailedTestsWithoutBuilding() {
+        List<String> commandLine = Arrays.asList("/usr/bin/xcodebuild", "-scheme", "App", "-configuration", "Debug", "-derivedDataPath", "build",
+                "clean", "build", "-resultBundlePath", "Test.xcresult", "-enableCodeCoverage", "YES", "-skip-testing:App/SlowTests", "test");
+        assertEquals(Arrays.asList("/usr/bin/xcodebuild", "-scheme", "App", "-configuration", "Debug", "-derivedDataPath", "build",
+                "test-without-building", "-resultBundlePath", "Test.xcresult-retry1", "-only-testing:App/CalculatorTests/testBroken"),
+                TestRetry.retryCommandLine(commandLine, Collections.singletonList("App/CalculatorTests/testBroken"), "Test.xcresult-retry1"));
+
+        assertNull(TestRetry.retryCommandLine(Arrays.asList("/usr/bin/xcodebuild", "-scheme", "App", "archive", "-archivePath", "App.xcarchive"),
+                Collections.singletonList("App/CalculatorTests/testBroken"), null));
+    }
+
+    @Test
+    public void shouldMarkTestsPassingOnRerunAsFlaky() {
+        Map<String, TestSuite> testSuites = suites(suite("CalculatorTests", "testFlaky()", "testBroken()"), suite("ParserTests"));
+        XcodeTestResultsAction testResultsAction = new XcodeTestResultsAction();
+        for ( TestCase testCase : testSuites.get("CalculatorTests").getTestCases() ) {
+            testResultsAction.addTestCase(testSuites.get("CalculatorTests"), testCase, !testCase.getFailures().isEmpty());
+        }
+
+        TestSuite retrySuite = new TestSuite("localhost", "CalculatorTests", null);
+        TestCase flaky = new TestCase("App.CalculatorTests", "testFlaky()");
+        flaky.setTime(0.5f);
+        retrySuite.getTestCases().add(flaky);
+        TestCase broken = new TestCase("App.CalculatorTests", "testBroken()");
+        broken.getFailures().add(new TestFailure("XCTAssertEqual failed", "AppTests.swift:20"));
+        retrySuite.getTestCases().add(broken);
+
+        List<TestSuite> merged = TestRetry.merge(testSuites, suites(retrySuite), testResultsAction);
+
+        assertEquals(Collections.singletonList(testSuites.get("CalculatorTests")), merged);
+        TestSuite testSuite = merged.get(0);
+        assertEquals(3, testSuite.getTests());
+        assertEquals(1, testSuite.getFailures());
+        TestCase flakyCase = testCase(testSuite, "testFlaky()");
+        assertTrue(flakyCase.getFailures().isEmpty());
+        assertEquals(1, flakyCase.getFlakyFailures().size());
+        assertEquals(0.5f, flakyCase.getTime(), 0.0f);
+        TestCase brokenCase = testCase(testSuite, "testBroken()");
+        assertEquals(1, brokenCase.getFailures().size());
+        assertEquals("XCTAssertEqual failed", brokenCase.getRerunFailures().get(0).getMessage());
+        assertEquals(1, TestRetry.countFlakyTests(testSuites.values()));
+        assertEquals(1, TestRetry.countFailures(testSuites.values()));
+        assertEquals(1, testResultsAction.getFailures());
+        assertEquals(Collections.singletonList("CalculatorTests.testBroken()"), testResultsAction.getFailedTests());
+    }
+
+    @Test
+    public void shouldWriteAndReadMergedReports() throws Exception {
+        Map<String, TestSuite> testSuites = suites(suite("CalculatorTests", "testFlaky()"));
+        TestSuite retrySuite = suite("CalculatorTests");
+        TestRetry.merge(testSuites, suites(retrySuite), null);
+        FilePath testReportsDir = new FilePath(tmp.newFolder("test-reports"));
+        TestRetry.writeTestReports(testReportsDir, testSuites.values());
+
+        Map<String, TestSuite> read = TestRetry.readTestReports(testReportsDir, new HashMap<String, Long>());
+        TestSuite testSuite = read.get("CalculatorTests");
+        assertEquals(3, testSuite.getTests());
+        assertEquals(0, testSuite.getFailures());
+        TestCase flakyCase = testCase(testSuite, "testFlaky()");
+        assertEquals("App.CalculatorTests", flakyCase.getClassname());
+        assertEquals("XCTAssertTrue failed", flakyCase.getFlakyFailures().get(0).getMessage());
+
+        ByteArrayOutputStream report = new ByteArrayOutputStream();
+        TestReportWriter.write(testSuite, report);
+        assertTrue(new String(report.toByteArray(), StandardCharsets.UTF_8).contains("<flakyFailure"));
+        assertEquals(3, TestRetry.readTestReport(new ByteArrayInputStream(report.toByteArray())).getTests());
+    }
+
+    @Test
+    public void shouldRewriteReportOfSuiteWhoseRerunMatchedNoTestCase() throws Exception {
+        Map<String, TestSuite> testSuites = suites(suite("CalculatorTests", "testBroken()"));
+        FilePath testReportsDir = new FilePath(tmp.newFolder("test-reports"));
+        // The rerun ran a test case under another name, e.g. a parameterized test, and replaced the report with it.
+        TestSuite retrySuite = new TestSuite("localhost", "CalculatorTests", null);
+        TestCase renamed = new TestCase("App.CalculatorTests", "testBroken(value: 2)");
+        renamed.getFailures().add(new TestFailure("XCTAssertEqual failed", "AppTests.swift:20"));
+        retrySuite.getTestCases().add(renamed);
+        retrySuite.updateCounts();
+        TestRetry.writeTestReports(testReportsDir, Collections.singletonList(retrySuite));
+
+        List<TestSuite> merged = TestRetry.merge(testSuites, suites(retrySuite), null);
+        TestRetry.writeTestReports(testReportsDir, merged);
+
+        assertEquals(Collections.singletonList(testSuites.get("CalculatorTests")), merged);
+        TestSuite testSuite = TestRetry.readTestReports(testReportsDir, new HashMap<String, Long>()).get("CalculatorTests");
+        assertEquals(3, testSuite.getTests());
+        assertEquals(1, testSuite.getFailures());
+        assertTrue(testCase(testSuite, "testBroken()").getRerunFailures().isEmpty());
+    }
+}
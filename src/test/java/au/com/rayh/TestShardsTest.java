@@ -0,0 +1,139 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011 Ray Yamamoto Hilton
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package au.com.rayh;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestShardsTest {
+    @Test
+    public void shouldTakeTestTargetFromSwiftClassNames() {
+        assertEquals("CalculatorTests/CalculatorTests", TestShards.testClassIdentifier("CalculatorTests.CalculatorTests.testAddition"));
+        assertEquals("AppUITests/LoginTests", TestShards.testClassIdentifier("AppUITests.LoginTests.testLogin()"));
+        assertNull(TestShards.testClassIdentifier("CalculatorTests.testAddition"));
+        assertNull(TestShards.testClassIdentifier("testAddition"));
+    }
+
+    @Test
+    public void shouldBalanceSyntheticDurations() {
+        Random random = new Random(17);
+        Map<String, Float> testClasses = new LinkedHashMap<String, Float>();
+        float total = 0;
+        for ( int i = 0; i < 2000; i++ ) {
+            // Mostly short classes and a few slow UI test classes.
+            float duration = i % 100 == 0 ? 60 + random.nextFloat() * 120 : random.nextFloat() * 5;
+            testClasses.put("AppTests/Class" + i, duration);
+            total += duration;
+        }
+        TestShards testShards = TestShards.partition(testClasses, 8);
+
+        Set<String> assigned = new HashSet<String>();
+        for ( int shard = 0; shard < 8; shard++ ) {
+            for ( String testClass : testShards.getTestClasses(shard) ) {
+                assertTrue(assigned.add(testClass));
+            }
+            assertEquals(total / 8, testShards.getDuration(shard), total / 8 * 0.01f);
+        }
+        assertEquals(testClasses.size(), assigned.size());
+
+        // The same durations give the same shards, whatever order they are read in.
+        Map<String, Float> reversed = new LinkedHashMap<String, Float>();
+        List<String> keys = new ArrayList<String>(testClasses.keySet());
+        Collections.reverse(keys);
+        for ( String key : keys ) {
+            reversed.put(key, testClasses.get(key));
+        }
+        TestShards again = TestShards.partition(reversed, 8);
+        for ( int shard = 0; shard < 8; shard++ ) {
+            assertEquals(testShards.getTestClasses(shard), again.getTestClasses(shard));
+        }
+    }
+
+    @Test
+    public void shouldRunEverythingElseInFirstShard() {
+        Map<String, Float> testClasses = new HashMap<String, Float>();
+        testClasses.put("AppTests/SlowTests", 30f);
+        testClasses.put("AppTests/FastTests", 10f);
+        testClasses.put("AppUITests/LoginTests", 20f);
+        TestShards testShards = TestShards.partition(testClasses, 2);
+
+        assertEquals(Arrays.asList("AppTests/SlowTests"), testShards.getTestClasses(0));
+        assertEquals(Arrays.asList("AppTests/FastTests", "AppUITests/LoginTests"), testShards.getTestClasses(1));
+        assertEquals(Arrays.asList("-skip-testing:AppTests/FastTests", "-skip-testing:AppUITests/LoginTests"), testShards.getArguments(0));
+        assertEquals(Arrays.asList("-only-testing:AppTests/FastTests", "-only-testing:AppUITests/LoginTests"), testShards.getArguments(1));
+    }
+
+    @Test
+    public void shouldRunAllTestsInFirstShardWithoutDurations() {
+        TestShards testShards = TestShards.partition(new TestDurationStore(), 3);
+
+        assertFalse(testShards.isEmpty(0));
+        assertTrue(testShards.getArguments(0).isEmpty());
+        assertTrue(testShards.isEmpty(1));
+        assertTrue(testShards.isEmpty(2));
+    }
+
+    @Test
+    public void shouldSplitRecordedTestClassesOfPreviousBuilds() {
+        TestDurationStore store = new TestDurationStore();
+        Map<String, Float> build1 = new HashMap<String, Float>();
+        build1.put("AppTests.RemovedTests.testRemoved", 100f);
+        build1.put("AppTests.CalculatorTests.testAddition", 1f);
+        store.record(1, build1);
+        Map<String, Float> build2 = new HashMap<String, Float>();
+        build2.put("AppTests.CalculatorTests.testAddition", 3f);
+        build2.put("AppTests.CalculatorTests.testDivision", 4f);
+        build2.put("AppTests.NetworkTests.testDownload", 6f);
+        build2.put("LegacyTests.testObjectiveC", 50f);
+        store.record(2, build2);
+        // A shard of the running build that finished first.
+        Map<String, Float> build3 = new HashMap<String, Float>();
+        build3.put("AppTests.NetworkTests.testDownload", 1000f);
+        store.record(3, build3);
+
+        Map<String, Float> testClasses = TestShards.testClassDurations(store.before(3));
+        assertEquals(2, testClasses.size());
+        assertEquals(6f, testClasses.get("AppTests/CalculatorTests"), 0.0001f);
+        assertEquals(6f, testClasses.get("AppTests/NetworkTests"), 0.0001f);
+        TestShards testShards = TestShards.partition(store.before(3), 2);
+        assertEquals(Arrays.asList("AppTests/CalculatorTests"), testShards.getTestClasses(0));
+        assertEquals(Arrays.asList("AppTests/NetworkTests"), testShards.getTestClasses(1));
+    }
+}
@@ -32,20 +32,38 @@ package au.com.rayh;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
 
+import au.com.rayh.report.TestCase;
+import au.com.rayh.report.TestSuite;
 import hudson.util.IOUtils;
 import org.junit.After;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 /**
  *
  * @author ray
  */
 public class XCodeBuildOutputParserTest {
+    @Rule public TemporaryFolder tmp = new TemporaryFolder();
     OutputParserTests test;
 
     @Before
@@ -153,4 +171,232 @@ public class XCodeBuildOutputParserTest {
 	XCodeBuildOutputParser parser = parseTestOutput("/XCTest_output_complex_2.txt");
 	assertEquals(-1, parser.getExitCode());
     }
+
+    @Test
+    public void shouldParseInterleavedParallelTestOutput() throws Exception {
+        final Map<String, TestSuite> suites = new LinkedHashMap<String, TestSuite>();
+        XCodeBuildOutputParser parser = new XCodeBuildOutputParser(tmp.newFolder(), new ByteArrayOutputStream()) {
+            @Override
+            protected void writeTestReport(TestSuite testSuite) {
+                suites.put(testSuite.getName(), testSuite);
+            }
+        };
+        OutputStream stream = parser.getOutputStream();
+        IOUtils.copy(getClass().getResourceAsStream("/XCTest_output_parallel_1.txt"), stream);
+        // Results only arrive with the last line of each test, the suites are written once the output ends.
+        assertTrue(suites.isEmpty());
+        stream.close();
+
+        assertEquals(Arrays.asList("CardTestCase", "DeckTestCase", "PlayingCardTests"), new ArrayList<String>(suites.keySet()));
+        TestSuite card = suites.get("CardTestCase");
+        assertEquals(2, card.getTests());
+        assertEquals(0, card.getFailures());
+        TestSuite deck = suites.get("DeckTestCase");
+        assertEquals(2, deck.getTests());
+        assertEquals(1, deck.getFailures());
+        TestCase drawn = deck.getTestCases().get(0);
+        assertEquals("testDrawnRandomCardsAreDifferent", drawn.getName());
+        assertEquals(1, drawn.getFailures().size());
+        assertEquals("/Users/jenkins/workspace/UnitTestsCardExampleTests/DeckTestCase.m:42", drawn.getFailures().get(0).getLocation());
+        assertEquals(0, deck.getTestCases().get(1).getFailures().size());
+        TestSuite swift = suites.get("PlayingCardTests");
+        assertEquals(2, swift.getTests());
+        assertEquals(1, swift.getFailures());
+        assertEquals("testRankIsValid", swift.getTestCases().get(1).getName());
+        assertEquals("XCTAssertTrue failed", swift.getTestCases().get(1).getFailures().get(0).getMessage());
+        assertEquals(-1, parser.getExitCode());
+    }
+
+    @Test
+    public void shouldWriteSuiteStartedByEveryParallelRunnerOnlyOnce() throws Exception {
+        final List<String> written = new ArrayList<String>();
+        XCodeBuildOutputParser parser = new XCodeBuildOutputParser(tmp.newFolder(), new ByteArrayOutputStream()) {
+            @Override
+            protected void writeTestReport(TestSuite testSuite) {
+                written.add(testSuite.getName());
+            }
+        };
+        parser.handleLine("Test Suite 'All tests' started at 2014-12-12 05:02:01 +0000");
+        parser.handleLine("Test Suite 'All tests' started at 2014-12-12 05:02:01 +0000");
+        parser.handleLine("Test Suite 'All tests' passed at 2014-12-12 05:02:02 +0000.");
+        assertTrue(written.isEmpty());
+        parser.handleLine("Test Suite 'All tests' passed at 2014-12-12 05:02:03 +0000.");
+        assertEquals(Arrays.asList("All tests"), written);
+    }
+
+    @Test
+    public void shouldDecodeMultiByteLinesSplitAcrossWrites() throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        XCodeBuildOutputParser parser = new XCodeBuildOutputParser(new File("."), output);
+        parser.handleLine("Test Suite 'PisClientTestCase' started at 2010-10-02 13:39:23 GMT 0000");
+        parser.handleLine("Test Case '-[PisClientTestCase testThatFails]' started.");
+        byte[] line = "/tmp/PisClientTestCase.m:21: error: -[PisClientTestCase testThatFails] : \u65e5\u672c\u8a9e\u306e\u30e1\u30c3\u30bb\u30fc\u30b8\n".getBytes(StandardCharsets.UTF_8);
+        // Feed the line one byte at a time and in two uneven halves so that multi-byte characters are split.
+        OutputStream stream = parser.getOutputStream();
+        int half = line.length / 2 + 1;
+        stream.write(line, 0, half);
+        stream.write(line, half, line.length - half);
+        for ( byte b : line ) {
+            stream.write(b);
+        }
+        assertEquals(2, parser.currentTestCase.getFailures().size());
+        assertEquals("\u65e5\u672c\u8a9e\u306e\u30e1\u30c3\u30bb\u30fc\u30b8", parser.currentTestCase.getFailures().get(0).getMessage());
+        assertEquals("\u65e5\u672c\u8a9e\u306e\u30e1\u30c3\u30bb\u30fc\u30b8", parser.currentTestCase.getFailures().get(1).getMessage());
+        byte[] expected = new byte[line.length * 2];
+        System.arraycopy(line, 0, expected, 0, line.length);
+        System.arraycopy(line, 0, expected, line.length, line.length);
+        assertArrayEquals(expected, output.toByteArray());
+    }
+
+    @Test
+    public void shouldParseLargeLogInBulkLikePerByte() throws Exception {
+        byte[] log = generateSyntheticLog(100000);
+
+        ByteArrayOutputStream bulkOutput = new ByteArrayOutputStream(log.length);
+        File bulkReportsDir = tmp.newFolder();
+        XCodeBuildOutputParser bulkParser = new XCodeBuildOutputParser(bulkReportsDir, bulkOutput);
+        OutputStream bulkStream = bulkParser.getOutputStream();
+        for ( int off = 0; off < log.length; off += 8192 ) {
+            bulkStream.write(log, off, Math.min(8192, log.length - off));
+        }
+
+        ByteArrayOutputStream perByteOutput = new ByteArrayOutputStream(log.length);
+        File perByteReportsDir = tmp.newFolder();
+        XCodeBuildOutputParser perByteParser = new XCodeBuildOutputParser(perByteReportsDir, perByteOutput);
+        OutputStream perByteStream = perByteParser.getOutputStream();
+        for ( byte b : log ) {
+            perByteStream.write(b);
+        }
+
+        assertArrayEquals(log, bulkOutput.toByteArray());
+        assertArrayEquals(log, perByteOutput.toByteArray());
+        assertEquals(perByteParser.getExitCode(), bulkParser.getExitCode());
+        String bulkReport = new String(java.nio.file.Files.readAllBytes(new File(bulkReportsDir, "TEST-SyntheticTests.xml").toPath()), StandardCharsets.UTF_8);
+        String perByteReport = new String(java.nio.file.Files.readAllBytes(new File(perByteReportsDir, "TEST-SyntheticTests.xml").toPath()), StandardCharsets.UTF_8);
+        assertEquals(100, bulkReport.split("<testcase ", -1).length - 1);
+        assertEquals(perByteReport, bulkReport);
+    }
+
+    @Test
+    public void shouldNotRejectAnyLineMatchedByTheParserPatterns() throws IOException {
+        Pattern[] patterns = {
+            XCodeBuildOutputParser.START_SUITE, XCodeBuildOutputParser.END_SUITE,
+            XCodeBuildOutputParser.START_TESTCASE, XCodeBuildOutputParser.END_TESTCASE,
+            XCodeBuildOutputParser.ERROR_TESTCASE, XCodeBuildOutputParser.ERROR_UI_TESTCASE,
+            XCodeBuildOutputParser.FAILED_TESTCASE, XCodeBuildOutputParser.FAILED_WITH_EXIT_CODE,
+            XCodeBuildOutputParser.TERMINATING_EXCEPTION,
+            XCodeBuildOutputParser.PARALLEL_START_SUITE, XCodeBuildOutputParser.PARALLEL_TESTCASE
+        };
+        String[] outputFileNames = {
+            "/XCTest_output_passing_1.txt", "/XCTest_output_failing_1.txt", "/XCTest_output_failing_2.txt",
+            "/XCTest_output_crashing_1.txt", "/XCTest_output_complex_1.txt", "/XCTest_output_complex_2.txt",
+            "/XCTest_output_parallel_1.txt"
+        };
+        int candidateLines = 0;
+        for ( String outputFileName : outputFileNames ) {
+            List<String> lines = org.apache.commons.io.IOUtils.readLines(getClass().getResourceAsStream(outputFileName), StandardCharsets.UTF_8);
+            for ( String line : lines ) {
+                int candidates = XCodeBuildOutputParser.classifyLine(line);
+                if ( candidates != 0 ) {
+                    candidateLines++;
+                    continue;
+                }
+                for ( Pattern pattern : patterns ) {
+                    assertFalse(outputFileName + ": " + line, pattern.matcher(line).matches());
+                }
+                assertFalse(outputFileName + ": " + line, line.equals("BUILD FAILED") || line.equals("** TEST FAILED **"));
+            }
+        }
+        assertNotEquals(0, candidateLines);
+        assertEquals(0, XCodeBuildOutputParser.classifyLine("CompileC /Users/jenkins/build/File.o File.m normal arm64 objective-c com.apple.compilers.llvm.clang.1_0.compiler"));
+    }
+
+    @Test
+    public void shouldOnlyRetainTheLastTestCaseInBoundedMemoryMode() throws Exception {
+        File reportsDir = tmp.newFolder();
+        XCodeBuildOutputParser parser = new XCodeBuildOutputParser(reportsDir, new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        });
+        parser.setBoundedMemory(true);
+        OutputStream stream = parser.getOutputStream();
+        stream.write("Test Suite 'All tests' started at 2014-12-12 05:12:52 +0000\n".getBytes(StandardCharsets.UTF_8));
+        stream.write("Test Suite 'LargeTests' started at 2014-12-12 05:12:52 +0000\n".getBytes(StandardCharsets.UTF_8));
+        TestSuite testSuite = parser.testSuitesHash.get("LargeTests");
+        for ( int i = 0; i < 100000; i++ ) {
+            StringBuilder lines = new StringBuilder();
+            lines.append("Test Case '-[LargeTests test").append(i).append("]' started.\n");
+            if ( i % 10 == 0 ) {
+                lines.append("/tmp/LargeTests.m:").append(i).append(": error: -[LargeTests test").append(i).append("] : XCTAssertEqual failed: (\"").append(i).append("\") is not equal to (\"0\")\n");
+                lines.append("Test Case '-[LargeTests test").append(i).append("]' failed (0.001 seconds).\n");
+            }
+            else {
+                lines.append("Test Case '-[LargeTests test").append(i).append("]' passed (0.001 seconds).\n");
+            }
+            stream.write(lines.toString().getBytes(StandardCharsets.UTF_8));
+            // Only the last finished test case is kept, for errors logged after it ended, the others are spooled to disk.
+            assertEquals(1, testSuite.getTestCasesHash().size());
+            assertEquals(0, testSuite.getTestCases().size());
+            assertEquals(i, testSuite.getSpool() == null ? 0 : testSuite.getSpool().size());
+        }
+
+        stream.write("Test Suite 'LargeTests' failed at 2014-12-12 05:12:53 +0000.\n".getBytes(StandardCharsets.UTF_8));
+        assertNull(testSuite.getSpool());
+        String report = new String(java.nio.file.Files.readAllBytes(new File(reportsDir, "TEST-LargeTests.xml").toPath()), StandardCharsets.UTF_8);
+        assertEquals(100000, report.split("<testcase ", -1).length - 1);
+        assertTrue(report.contains("tests=\"100000\""));
+        assertTrue(report.contains("failures=\"10000\""));
+        assertTrue(report.endsWith("</testsuite>"));
+    }
+
+    @Test
+    public void shouldKeepSuiteReportWholeWhenErrorIsLoggedAfterLaterTestCases() throws Exception {
+        for ( boolean boundedMemory : new boolean[] { false, true } ) {
+            File reportsDir = tmp.newFolder();
+            XCodeBuildOutputParser parser = new XCodeBuildOutputParser(reportsDir, new ByteArrayOutputStream());
+            parser.setBoundedMemory(boundedMemory);
+            String log = "Test Suite 'All tests' started at 2014-12-12 05:12:52 +0000\n"
+                    + "Test Suite 'LoginTests' started at 2014-12-12 05:12:52 +0000\n"
+                    + "Test Case '-[LoginTests testLogin]' started.\n"
+                    + "Test Case '-[LoginTests testLogin]' passed (0.001 seconds).\n"
+                    + "Test Case '-[LoginTests testLogout]' started.\n"
+                    + "Test Case '-[LoginTests testLogout]' passed (0.001 seconds).\n"
+                    + "Test Case '-[LoginTests testSignUp]' started.\n"
+                    + "Test Case '-[LoginTests testSignUp]' passed (0.001 seconds).\n"
+                    // Logged two test cases after testLogin ended.
+                    + "/tmp/LoginTests.m:12: error: -[LoginTests testLogin] : XCTAssertTrue failed\n"
+                    + "Test Suite 'LoginTests' passed at 2014-12-12 05:12:53 +0000.\n"
+                    + "Test Suite 'All tests' passed at 2014-12-12 05:12:53 +0000.\n";
+            parser.getOutputStream().write(log.getBytes(StandardCharsets.UTF_8));
+            parser.finishTestSuites();
+
+            String report = new String(java.nio.file.Files.readAllBytes(new File(reportsDir, "TEST-LoginTests.xml").toPath()), StandardCharsets.UTF_8);
+            assertEquals(report, 3, report.split("<testcase ", -1).length - 1);
+            assertEquals(report, 1, report.split("<failure ", -1).length - 1);
+            int testLogin = report.indexOf("name=\"testLogin\"");
+            assertTrue(report, testLogin >= 0 && report.indexOf("XCTAssertTrue failed", testLogin) < report.indexOf("name=\"testLogout\""));
+            assertTrue(parser.parallelTestSuites.isEmpty());
+        }
+    }
+
+    private static byte[] generateSyntheticLog(int compileLines) {
+        StringBuilder log = new StringBuilder();
+        log.append("Test Suite 'All tests' started at 2014-12-12 05:12:52 +0000\n");
+        log.append("Test Suite 'SyntheticTests' started at 2014-12-12 05:12:52 +0000\n");
+        for ( int i = 0; i < compileLines; i++ ) {
+            log.append("CompileC /Users/jenkins/workspace/build/Objects-normal/arm64/File").append(i).append(".o File").append(i).append(".m normal arm64 objective-c com.apple.compilers.llvm.clang.1_0.compiler\n");
+            if ( i % 1000 == 0 ) {
+                log.append("Test Case '-[SyntheticTests test").append(i).append("]' started.\n");
+                log.append("Test Case '-[SyntheticTests test").append(i).append("]' passed (0.001 seconds).\n");
+            }
+        }
+        log.append("Test Suite 'SyntheticTests' passed at 2014-12-12 05:12:53 +0000.\n");
+        log.append("Test Suite 'All tests' passed at 2014-12-12 05:12:53 +0000.\n");
+        return log.toString().getBytes(StandardCharsets.UTF_8);
+    }
 }
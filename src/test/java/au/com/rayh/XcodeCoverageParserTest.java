@@ -0,0 +1,190 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011 Ray Yamamoto Hilton
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package au.com.rayh;
+
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.Launcher.LocalLauncher;
+import hudson.util.StreamTaskListener;
+
+import java.io.File;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class XcodeCoverageParserTest {
+    @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+    /**
+     * Writes an xcrun that stands in for "xcrun xccov view" by printing the recorded JSON report or archive.
+     */
+    private File writeXcrun(File fixtures) throws Exception {
+        File xcrun = tmp.newFile("xcrun");
+        String script = "#!/bin/sh\n"
+                + "if [ \"$3\" = \"--archive\" ]; then\n"
+                + "  if [ -n \"$XCCOV_ARCHIVE_FAILS\" ]; then\n"
+                + "    echo \"Error: Failed to load coverage archive\" >&2\n"
+                + "    exit 1\n"
+                + "  fi\n"
+                + "  exec cat \"" + fixtures.getAbsolutePath() + "/xccov_archive.json\"\n"
+                + "fi\n"
+                + "exec cat \"" + fixtures.getAbsolutePath() + "/xccov_report.json\"\n";
+        Files.write(xcrun.toPath(), script.getBytes(StandardCharsets.UTF_8));
+        assertTrue(xcrun.setExecutable(true));
+        return xcrun;
+    }
+
+    private Document parse(File workspace, File fixtures, EnvVars envs) throws Exception {
+        FilePath resultBundle = new FilePath(workspace).child("Test.xcresult");
+        resultBundle.mkdirs();
+        XcodeCoverageParser parser = new XcodeCoverageParser(new FilePath(workspace), new LocalLauncher(StreamTaskListener.fromStdout()), envs, writeXcrun(fixtures).getAbsolutePath());
+        parser.parseCoverage(resultBundle);
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+        return factory.newDocumentBuilder().parse(new File(workspace, "coverage-reports/coverage.xml"));
+    }
+
+    private File fixtures() throws Exception {
+        return new File(getClass().getResource("/xccov_report.json").toURI()).getParentFile();
+    }
+
+    private static Element findClass(Document report, String name) {
+        NodeList classes = report.getElementsByTagName("class");
+        for ( int i = 0; i < classes.getLength(); i++ ) {
+            Element element = (Element) classes.item(i);
+            if ( element.getAttribute("name").equals(name) ) {
+                return element;
+            }
+        }
+        throw new AssertionError("No class " + name);
+    }
+
+    /**
+     * @return the lines of a class, outside of its methods, as "number:hits"
+     */
+    private static String lines(Element classElement) {
+        StringBuilder lines = new StringBuilder();
+        NodeList children = classElement.getChildNodes();
+        for ( int i = 0; i < children.getLength(); i++ ) {
+            if ( children.item(i).getNodeName().equals("lines") ) {
+                NodeList lineElements = ((Element) children.item(i)).getElementsByTagName("line");
+                for ( int j = 0; j < lineElements.getLength(); j++ ) {
+                    Element line = (Element) lineElements.item(j);
+                    lines.append(lines.length() > 0 ? " " : "").append(line.getAttribute("number")).append(':').append(line.getAttribute("hits"));
+                }
+            }
+        }
+        return lines.toString();
+    }
+
+    @Test
+    public void shouldConvertLineCoverageToCobertura() throws Exception {
+        Document report = parse(tmp.newFolder("workspace"), fixtures(), new EnvVars());
+
+        Element coverage = report.getDocumentElement();
+        assertEquals("9", coverage.getAttribute("lines-covered"));
+        assertEquals("16", coverage.getAttribute("lines-valid"));
+        NodeList packages = report.getElementsByTagName("package");
+        assertEquals(2, packages.getLength());
+        assertEquals("Calculator.app", ((Element) packages.item(0)).getAttribute("name"));
+        assertEquals("0.5000", ((Element) packages.item(0)).getAttribute("line-rate"));
+        assertEquals("CalculatorTests.xctest", ((Element) packages.item(1)).getAttribute("name"));
+
+        Element calculator = findClass(report, "Calculator");
+        assertEquals("/Users/builder/Calculator/Calculator/Calculator.swift", calculator.getAttribute("filename"));
+        assertEquals("0.7500", calculator.getAttribute("line-rate"));
+        assertEquals("12:4 13:4 14:4 16:1 17:1 18:0 19:0 20:1", lines(calculator));
+        NodeList methods = calculator.getElementsByTagName("method");
+        assertEquals(2, methods.getLength());
+        assertEquals("Calculator.divide<T>(_:by:)", ((Element) methods.item(1)).getAttribute("name"));
+        assertEquals("0.6000", ((Element) methods.item(1)).getAttribute("line-rate"));
+
+        // Not in the archive, so only its functions are reported.
+        assertEquals("8:0", lines(findClass(report, "ViewController")));
+        assertEquals("5:1 6:1 7:1 8:0", lines(findClass(report, "CalculatorTests")));
+    }
+
+    @Test
+    public void shouldReportFunctionsWhenArchiveCannotBeRead() throws Exception {
+        Document report = parse(tmp.newFolder("workspace"), fixtures(), new EnvVars("XCCOV_ARCHIVE_FAILS", "1"));
+
+        assertEquals("9", report.getDocumentElement().getAttribute("lines-covered"));
+        assertEquals("16", report.getDocumentElement().getAttribute("lines-valid"));
+        assertEquals("12:4 16:1", lines(findClass(report, "Calculator")));
+        assertEquals("0.7500", findClass(report, "Calculator").getAttribute("line-rate"));
+    }
+
+    @Test
+    public void shouldConvertManyFilesInBatches() throws Exception {
+        File workspace = tmp.newFolder("workspace");
+        File fixtures = tmp.newFolder("fixtures");
+        int files = 2000;
+        try ( Writer report = Files.newBufferedWriter(new File(fixtures, "xccov_report.json").toPath(), StandardCharsets.UTF_8);
+              Writer archive = Files.newBufferedWriter(new File(fixtures, "xccov_archive.json").toPath(), StandardCharsets.UTF_8) ) {
+            report.write("{\"targets\":[{\"files\":[");
+            archive.write("{");
+            for ( int i = 0; i < files; i++ ) {
+                String path = workspace.getAbsolutePath() + "/Sources/File" + i + ".swift";
+                report.write((i > 0 ? "," : "") + "{\"coveredLines\":1,\"executableLines\":2,\"functions\":[{\"executionCount\":1,\"lineNumber\":1,\"name\":\"f" + i
+                        + "()\"}],\"name\":\"File" + i + ".swift\",\"path\":\"" + path + "\"}");
+                archive.write((i > 0 ? "," : "") + "\"" + path + "\":[{\"executionCount\":" + i + ",\"isExecutable\":true,\"line\":1},"
+                        + "{\"executionCount\":0,\"isExecutable\":true,\"line\":2}]");
+            }
+            report.write("],\"name\":\"App.app\"}]}");
+            archive.write("}");
+        }
+        int batchSize = XcodeCoverageParser.BATCH_SIZE;
+        XcodeCoverageParser.BATCH_SIZE = 64;
+        try {
+            Document report = parse(workspace, fixtures, new EnvVars());
+
+            assertEquals(String.valueOf(files - 1), report.getDocumentElement().getAttribute("lines-covered"));
+            assertEquals(String.valueOf(files * 2), report.getDocumentElement().getAttribute("lines-valid"));
+            NodeList classes = report.getElementsByTagName("class");
+            assertEquals(files, classes.getLength());
+            for ( int i = 0; i < files; i++ ) {
+                Element classElement = (Element) classes.item(i);
+                assertEquals("File" + i, classElement.getAttribute("name"));
+                assertEquals("Sources/File" + i + ".swift", classElement.getAttribute("filename"));
+            }
+            assertEquals("1:1999 2:0", lines((Element) classes.item(files - 1)));
+        }
+        finally {
+            XcodeCoverageParser.BATCH_SIZE = batchSize;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011 Ray Yamamoto Hilton
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package au.com.rayh;
+
+import hudson.FilePath;
+import hudson.Launcher.LocalLauncher;
+import hudson.util.StreamTaskListener;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.URLDecoder;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class XcodeDiscoveryCallableTest {
+    @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+    private FilePath extractProject() throws Exception {
+        FilePath workspace = new FilePath(tmp.getRoot());
+        String projectLocation = URLDecoder.decode(getClass().getClassLoader().getResource("XcodeProject.tar.gz").getPath(), "UTF-8");
+        try {
+            assertEquals(0, new LocalLauncher(StreamTaskListener.fromStdout()).launch().cmds("tar", "zxpf", projectLocation).pwd(workspace).join());
+        } catch (IOException x) {
+            Assume.assumeNoException("failed to run tar", x);
+        }
+        return workspace;
+    }
+
+    @Test
+    public void shouldDiscoverWorkspaceProjectsAndSchemes() throws Exception {
+        FilePath workspace = extractProject();
+        XcodeDiscoveryCallable.Result result = workspace.act(new XcodeDiscoveryCallable("TestXcodeProject.xcodeproj", "TestXcodeProject"));
+
+        // Only the result crosses the channel.
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try ( ObjectOutputStream out = new ObjectOutputStream(bytes) ) {
+            out.writeObject(result);
+        }
+        try ( ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())) ) {
+            result = (XcodeDiscoveryCallable.Result) in.readObject();
+        }
+
+        assertEquals(tmp.getRoot().getAbsolutePath(), result.getProjectRoot());
+        assertTrue(result.isProjectFileFound());
+        assertEquals(Collections.singletonList("TestXcodeProject.xcodeproj"), result.getWorkspaceProjects());
+        ProjectScheme projectScheme = result.getSchemes("TestXcodeProject.xcodeproj").get("TestXcodeProject");
+        assertEquals("container:TestXcodeProject.xcodeproj", projectScheme.referencedContainer);
+        assertEquals("TestXcodeProject", projectScheme.blueprintName);
+        assertEquals(Arrays.asList("TestXcodeProject.xcodeproj"), result.getDirectoryProjects());
+
+        // The projects are parsed on the agent too, once for the project file, the workspace and the directory.
+        XcodeProject xcodeProject = result.getProject("TestXcodeProject.xcodeproj");
+        assertNotNull(xcodeProject);
+        assertTrue(xcodeProject.projectTarget.containsKey("TestXcodeProject"));
+        assertSame(xcodeProject, result.getWorkspace().projects.get("TestXcodeProject.xcodeproj"));
+        assertSame(xcodeProject, result.getProject("./TestXcodeProject.xcodeproj/"));
+    }
+
+    @Test
+    public void shouldReportMissingProjectAndWorkspace() throws Exception {
+        FilePath workspace = extractProject();
+        XcodeDiscoveryCallable.Result result = workspace.act(new XcodeDiscoveryCallable("Missing.xcodeproj", "Missing"));
+        assertFalse(result.isProjectFileFound());
+        assertNull(result.getWorkspaceProjects());
+        assertNull(result.getSchemes("TestXcodeProject.xcodeproj"));
+        assertNull(result.getWorkspace());
+        assertNull(result.getProject("Missing.xcodeproj"));
+        // The project of the directory is still read, it is built when there is no project file or workspace.
+        assertNotNull(result.getProject("TestXcodeProject.xcodeproj"));
+    }
+}
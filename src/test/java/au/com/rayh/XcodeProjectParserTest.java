@@ -3,12 +3,14 @@ package au.com.rayh;
 import org.junit.Assert;
 import org.apache.commons.io.FileUtils;
 import org.junit.Test;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.io.File;
 import java.io.IOException;
 import java.net.URLDecoder;
 import java.util.Arrays;
+import java.util.Collections;
 import org.junit.Assume;
 import org.junit.Rule;
 import org.junit.rules.TemporaryFolder;
@@ -49,6 +51,192 @@ public class XcodeProjectParserTest {
         Assert.assertNotNull(xcodeProject.projectTarget.get("TestXcodeProjectTests"));
     }
 
+    @Test
+    public void testTargetMembership() throws Throwable {
+	FilePath workspace = new FilePath(tmp.getRoot());
+	String projectLocation = URLDecoder.decode(XcodeProjectParserTest.class.getClassLoader().getResource("XcodeProject.tar.gz").getPath(), "UTF-8");
+	run(workspace, "tar", "zxvpf", projectLocation);
+        XcodeProject xcodeProject = XcodeProjectParser.parseXcodeProject(workspace.child("TestXcodeProject.xcodeproj"));
+        Assert.assertEquals(3, xcodeProject.targets.size());
+        ProjectTarget app = xcodeProject.targets.get("TestXcodeProject");
+        Assert.assertTrue(app.sourceFiles.contains("TestXcodeProject/AppDelegate.m"));
+        Assert.assertTrue(app.sourceFiles.contains("TestXcodeProject/Base.lproj/Main.storyboard"));
+        Assert.assertTrue(app.sourceFiles.contains("TestXcodeProject/Assets.xcassets"));
+        Assert.assertFalse(app.sourceFiles.contains("TestXcodeProject/AppDelegate.h"));
+        Assert.assertTrue(app.dependencies.isEmpty());
+        Assert.assertEquals(Arrays.asList("TestXcodeProjectTests/TestXcodeProjectTests.m"), xcodeProject.targets.get("TestXcodeProjectTests").sourceFiles);
+        Assert.assertEquals(Arrays.asList("TestXcodeProject"), xcodeProject.targets.get("TestXcodeProjectUITests").dependencies);
+        Assert.assertTrue(xcodeProject.files.contains("TestXcodeProject/AppDelegate.h"));
+        Assert.assertEquals("../Shared/Model.swift", XcodeProjectParser.normalizePath("App/./Sources", "../../../Shared/Model.swift"));
+    }
+
+    @Test
+    public void testProjectCache() throws Throwable {
+	FilePath workspace = new FilePath(tmp.getRoot());
+	String projectLocation = URLDecoder.decode(XcodeProjectParserTest.class.getClassLoader().getResource("XcodeProject.tar.gz").getPath(), "UTF-8");
+	run(workspace, "tar", "zxvpf", projectLocation);
+	FilePath projectPath = workspace.child("TestXcodeProject.xcodeproj");
+	FilePath copyPath = workspace.child("Copy.xcodeproj");
+	copyPath.mkdirs();
+	copyPath.child("project.pbxproj").write(projectPath.child("project.pbxproj").readToString() + "\n", "UTF-8");
+        int projectCacheSize = XcodeProjectParser.PROJECT_CACHE_SIZE;
+        try {
+            XcodeProjectParser.PROJECT_CACHE_SIZE = 1;
+            XcodeProject xcodeProject = XcodeProjectParser.parseXcodeProject(projectPath);
+            // Unchanged, so not parsed again.
+            Assert.assertSame(xcodeProject, XcodeProjectParser.parseXcodeProject(projectPath));
+            // Shared by the builds, so no build can change it for the others.
+            try {
+                xcodeProject.targets.get("TestXcodeProject").buildConfiguration.get("Debug").buildSettings.put("PRODUCT_NAME", "Changed");
+                Assert.fail();
+            }
+            catch ( UnsupportedOperationException ex ) {
+                // Expected.
+            }
+            try {
+                xcodeProject.projectTarget.get("TestXcodeProject").sourceFiles.clear();
+                Assert.fail();
+            }
+            catch ( UnsupportedOperationException ex ) {
+                // Expected.
+            }
+            XcodeProject copy = XcodeProjectParser.parseXcodeProject(copyPath);
+            Assert.assertNotSame(xcodeProject, copy);
+            Assert.assertEquals(xcodeProject.targets.keySet(), copy.targets.keySet());
+            // Evicted by the copy.
+            Assert.assertNotSame(xcodeProject, XcodeProjectParser.parseXcodeProject(projectPath));
+        }
+        finally {
+            XcodeProjectParser.PROJECT_CACHE_SIZE = projectCacheSize;
+        }
+    }
+
+    @Test
+    public void testWorkspaceProjects() throws Throwable {
+	FilePath workspace = new FilePath(tmp.getRoot());
+	String projectLocation = URLDecoder.decode(XcodeProjectParserTest.class.getClassLoader().getResource("XcodeProject.tar.gz").getPath(), "UTF-8");
+	FilePath app = workspace.child("App");
+	app.mkdirs();
+	run(app, "tar", "zxvpf", projectLocation);
+	FilePath core = workspace.child("Libs/Core/Core.xcodeproj");
+	core.child("xcshareddata/xcschemes").mkdirs();
+	core.child("project.pbxproj").write(app.child("TestXcodeProject.xcodeproj/project.pbxproj").readToString(), "UTF-8");
+	core.child("xcshareddata/xcschemes/Core.xcscheme").write(app.child("TestXcodeProject.xcodeproj/xcshareddata/xcschemes/TestXcodeProject.xcscheme").readToString()
+		.replace("container:TestXcodeProject.xcodeproj", "container:Core.xcodeproj"), "UTF-8");
+	workspace.child("Mono.xcworkspace/contents.xcworkspacedata").write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+		+ "<Workspace version = \"1.0\">\n"
+		+ "   <FileRef location = \"group:App/TestXcodeProject.xcodeproj\"></FileRef>\n"
+		+ "   <Group location = \"container:Libs\" name = \"Libs\">\n"
+		+ "      <FileRef location = \"group:Core/Core.xcodeproj\"></FileRef>\n"
+		+ "      <Group location = \"group:Nested\" name = \"Nested\">\n"
+		+ "         <FileRef location = \"group:../Net/Net.xcodeproj\"></FileRef>\n"
+		+ "      </Group>\n"
+		+ "   </Group>\n"
+		+ "   <FileRef location = \"group:README.md\"></FileRef>\n"
+		+ "   <FileRef location = \"self:\"></FileRef>\n"
+		+ "</Workspace>\n", "UTF-8");
+        Assert.assertEquals(Arrays.asList("App/TestXcodeProject.xcodeproj", "Libs/Core/Core.xcodeproj", "Libs/Net/Net.xcodeproj", "README.md"),
+                XcodeProjectParser.parseXcodeWorkspace(workspace.child("Mono.xcworkspace")));
+
+        XcodeWorkspace xcodeWorkspace = XcodeProjectParser.parseXcodeWorkspaceProjects(workspace.child("Mono.xcworkspace"));
+        Assert.assertEquals(Arrays.asList("App/TestXcodeProject.xcodeproj", "Libs/Core/Core.xcodeproj", "Libs/Net/Net.xcodeproj"), new ArrayList<String>(xcodeWorkspace.projects.keySet()));
+        Assert.assertNotNull(xcodeWorkspace.projects.get("App/TestXcodeProject.xcodeproj").targets.get("TestXcodeProjectTests"));
+        Assert.assertNotNull(xcodeWorkspace.projects.get("Libs/Core/Core.xcodeproj"));
+        // Not in the workspace directory.
+        Assert.assertNull(xcodeWorkspace.projects.get("Libs/Net/Net.xcodeproj"));
+        Assert.assertEquals("TestXcodeProject", xcodeWorkspace.schemes.get("Core").blueprintName);
+        Assert.assertEquals("App/TestXcodeProject.xcodeproj", xcodeWorkspace.schemeProjects.get("TestXcodeProject"));
+        Assert.assertEquals("Libs/Core/Core.xcodeproj", xcodeWorkspace.schemeProjects.get("Core"));
+        Assert.assertEquals(Collections.singleton("Core"), xcodeWorkspace.projectSchemes.get("Libs/Core/Core.xcodeproj").keySet());
+    }
+
+    @Test
+    public void testSchemeModel() throws Throwable {
+	FilePath workspace = new FilePath(tmp.getRoot());
+	String projectLocation = URLDecoder.decode(XcodeProjectParserTest.class.getClassLoader().getResource("XcodeProject.tar.gz").getPath(), "UTF-8");
+	run(workspace, "tar", "zxvpf", projectLocation);
+        ProjectScheme projectScheme = XcodeProjectParser.parseXcodeScheme(workspace.child("TestXcodeProject.xcodeproj/xcshareddata/xcschemes/TestXcodeProject.xcscheme"));
+        Assert.assertTrue(projectScheme.parallelizeBuildables);
+        Assert.assertTrue(projectScheme.buildImplicitDependencies);
+        Assert.assertEquals(1, projectScheme.buildActionEntries.size());
+        ProjectScheme.BuildActionEntry buildActionEntry = projectScheme.buildActionEntries.get(0);
+        Assert.assertTrue(buildActionEntry.buildForTesting && buildActionEntry.buildForRunning && buildActionEntry.buildForArchiving);
+        Assert.assertEquals("643D8A4E2048FA9300B90129", buildActionEntry.buildableReference.blueprintIdentifier);
+        Assert.assertEquals("TestXcodeProject.app", buildActionEntry.buildableReference.buildableName);
+        Assert.assertEquals("Debug", projectScheme.testBuildConfiguration);
+        Assert.assertEquals(2, projectScheme.testables.size());
+        Assert.assertEquals("TestXcodeProjectTests", projectScheme.testables.get(0).buildableReference.blueprintName);
+        Assert.assertEquals("TestXcodeProjectUITests", projectScheme.testables.get(1).buildableReference.blueprintName);
+        Assert.assertFalse(projectScheme.testables.get(1).skipped);
+
+	FilePath schemeFile = workspace.child("Sharded.xcscheme");
+	schemeFile.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+		+ "<Scheme version = \"1.7\">\n"
+		+ "   <BuildAction parallelizeBuildables = \"NO\" buildImplicitDependencies = \"YES\">\n"
+		+ "      <BuildActionEntries>\n"
+		+ "         <BuildActionEntry buildForTesting = \"YES\" buildForRunning = \"YES\">\n"
+		+ "            <BuildableReference BlueprintName = \"App\" ReferencedContainer = \"container:App.xcodeproj\"></BuildableReference>\n"
+		+ "         </BuildActionEntry>\n"
+		+ "         <BuildActionEntry buildForTesting = \"YES\" buildForRunning = \"NO\">\n"
+		+ "            <BuildableReference BlueprintName = \"Kit\" ReferencedContainer = \"container:Kit/Kit.xcodeproj\"></BuildableReference>\n"
+		+ "         </BuildActionEntry>\n"
+		+ "      </BuildActionEntries>\n"
+		+ "   </BuildAction>\n"
+		+ "   <TestAction buildConfiguration = \"Testing\" codeCoverageEnabled = \"YES\">\n"
+		+ "      <Testables>\n"
+		+ "         <TestableReference skipped = \"NO\" parallelizable = \"YES\" testExecutionOrdering = \"random\">\n"
+		+ "            <BuildableReference BlueprintName = \"AppTests\" ReferencedContainer = \"container:App.xcodeproj\"></BuildableReference>\n"
+		+ "            <SkippedTests>\n"
+		+ "               <Test Identifier = \"AppTests/testSlow()\"></Test>\n"
+		+ "               <Test Identifier = \"NetworkTests\"></Test>\n"
+		+ "            </SkippedTests>\n"
+		+ "         </TestableReference>\n"
+		+ "         <TestableReference skipped = \"YES\" useTestSelectionWhitelist = \"YES\">\n"
+		+ "            <BuildableReference BlueprintName = \"KitTests\" ReferencedContainer = \"container:Kit/Kit.xcodeproj\"></BuildableReference>\n"
+		+ "            <SelectedTests>\n"
+		+ "               <Test Identifier = \"KitTests/testParse()\"></Test>\n"
+		+ "            </SelectedTests>\n"
+		+ "         </TestableReference>\n"
+		+ "      </Testables>\n"
+		+ "      <MacroExpansion>\n"
+		+ "         <BuildableReference BlueprintName = \"App\" ReferencedContainer = \"container:App.xcodeproj\"></BuildableReference>\n"
+		+ "      </MacroExpansion>\n"
+		+ "   </TestAction>\n"
+		+ "</Scheme>\n", "UTF-8");
+        projectScheme = XcodeProjectParser.parseXcodeScheme(schemeFile);
+        Assert.assertFalse(projectScheme.parallelizeBuildables);
+        Assert.assertEquals(2, projectScheme.buildActionEntries.size());
+        Assert.assertFalse(projectScheme.buildActionEntries.get(1).buildForRunning);
+        Assert.assertEquals("container:Kit/Kit.xcodeproj", projectScheme.buildActionEntries.get(1).buildableReference.referencedContainer);
+        // The last build action entry, as before.
+        Assert.assertEquals("Kit", projectScheme.blueprintName);
+        Assert.assertEquals("Testing", projectScheme.testBuildConfiguration);
+        Assert.assertTrue(projectScheme.codeCoverageEnabled);
+        ProjectScheme.TestableReference appTests = projectScheme.testables.get(0);
+        Assert.assertTrue(appTests.parallelizable);
+        Assert.assertEquals("random", appTests.testExecutionOrdering);
+        Assert.assertEquals(Arrays.asList("AppTests/testSlow()", "NetworkTests"), appTests.skippedTests);
+        Assert.assertTrue(appTests.selectedTests.isEmpty());
+        ProjectScheme.TestableReference kitTests = projectScheme.testables.get(1);
+        Assert.assertTrue(kitTests.skipped);
+        Assert.assertTrue(kitTests.useTestSelectionWhitelist);
+        Assert.assertEquals("KitTests", kitTests.buildableReference.blueprintName);
+        Assert.assertEquals(Arrays.asList("KitTests/testParse()"), kitTests.selectedTests);
+    }
+
+    @Test
+    public void testSchemeWithExternalEntity() throws Throwable {
+	FilePath workspace = new FilePath(tmp.getRoot());
+	workspace.child("secret.txt").write("secret", "UTF-8");
+	FilePath schemeFile = workspace.child("Entity.xcscheme");
+	schemeFile.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+		+ "<!DOCTYPE Scheme [<!ENTITY xxe SYSTEM \"" + workspace.child("secret.txt").toURI() + "\">]>\n"
+		+ "<Scheme><BuildAction><BuildActionEntries><BuildActionEntry>\n"
+		+ "<BuildableReference BlueprintName = \"&xxe;\"></BuildableReference>\n"
+		+ "</BuildActionEntry></BuildActionEntries></BuildAction></Scheme>\n", "UTF-8");
+        Assert.assertNull(XcodeProjectParser.parseXcodeScheme(schemeFile));
+    }
+
     @Test
     public void testInvalidProject() throws Throwable {
 
@@ -0,0 +1,177 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011 Ray Yamamoto Hilton
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package au.com.rayh;
+
+import au.com.rayh.report.TestCase;
+import au.com.rayh.report.TestSuite;
+
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.Launcher.LocalLauncher;
+import hudson.util.StreamTaskListener;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class XcodeResultBundleParserTest {
+    @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+    /**
+     * Writes an xcrun that stands in for "xcrun xcresulttool get" by printing the recorded JSON of the requested
+     * reference, and for "xcrun xcresulttool export" by copying a recorded attachment. It logs its arguments.
+     */
+    private File writeXcrun(File invocations) throws Exception {
+        File fixtures = new File(getClass().getResource("/xcresulttool_get_root.json").toURI()).getParentFile();
+        File xcrun = tmp.newFile("xcrun");
+        String script = "#!/bin/sh\n"
+                + "echo \"$@\" >> \"" + invocations.getAbsolutePath() + "\"\n"
+                + "if [ -n \"$XCRESULTTOOL_REQUIRES_LEGACY\" ] && [ \"$3\" != \"--legacy\" ]; then\n"
+                + "  echo \"Error: This command is deprecated and will be removed in a future release, --legacy flag is required to use it.\" >&2\n"
+                + "  exit 64\n"
+                + "fi\n"
+                + "command=$2\n"
+                + "id=root\n"
+                + "while [ $# -gt 0 ]; do\n"
+                + "  if [ \"$1\" = \"--id\" ]; then id=\"${2#0~}\"; fi\n"
+                + "  if [ \"$1\" = \"--output-path\" ]; then output=\"$2\"; fi\n"
+                + "  shift\n"
+                + "done\n"
+                + "if [ \"$command\" = \"export\" ]; then\n"
+                + "  exec cp \"" + fixtures.getAbsolutePath() + "/xcresulttool_export_$id.png\" \"$output\"\n"
+                + "fi\n"
+                + "exec cat \"" + fixtures.getAbsolutePath() + "/xcresulttool_get_$id.json\"\n";
+        Files.write(xcrun.toPath(), script.getBytes(StandardCharsets.UTF_8));
+        assertTrue(xcrun.setExecutable(true));
+        return xcrun;
+    }
+
+    private ConcurrentHashMap<String, TestSuite> parse(File xcrun, EnvVars envs) throws Exception {
+        return parse(xcrun, envs, false);
+    }
+
+    private ConcurrentHashMap<String, TestSuite> parse(File xcrun, EnvVars envs, boolean extractAttachments) throws Exception {
+        final ConcurrentHashMap<String, TestSuite> testSuites = new ConcurrentHashMap<String, TestSuite>();
+        FilePath workspace = new FilePath(tmp.newFolder("workspace"));
+        FilePath resultBundle = workspace.child("Test.xcresult");
+        resultBundle.mkdirs();
+        XcodeResultBundleParser parser = new XcodeResultBundleParser(workspace, new LocalLauncher(StreamTaskListener.fromStdout()), envs, xcrun.getAbsolutePath()) {
+            @Override
+            protected OutputStream outputForSuite(TestSuite currentTestSuite) {
+                testSuites.put(currentTestSuite.getName(), currentTestSuite);
+                return new ByteArrayOutputStream();
+            }
+        };
+        parser.setExtractAttachments(extractAttachments);
+        parser.parseResultBundle(resultBundle);
+        return testSuites;
+    }
+
+    @Test
+    public void shouldConvertTestsOfResultBundle() throws Exception {
+        File invocations = new File(tmp.getRoot(), "invocations.txt");
+        ConcurrentHashMap<String, TestSuite> testSuites = parse(writeXcrun(invocations), new EnvVars());
+
+        assertEquals(2, testSuites.size());
+        TestSuite calculatorTests = testSuites.get("CalculatorTests");
+        assertEquals(3, calculatorTests.getTests());
+        assertEquals(1, calculatorTests.getFailures());
+        List<TestCase> testCases = calculatorTests.getTestCases();
+        assertEquals("testAddition()", testCases.get(0).getName());
+        assertEquals(0.0051f, testCases.get(0).getTime(), 0.00001f);
+        assertEquals("XCTAssertEqual failed: (\"4\") is not equal to (\"5\")", testCases.get(0).getFailures().get(0).getMessage());
+        assertEquals("/Users/builder/Calculator/CalculatorTests/CalculatorTests.swift:27", testCases.get(0).getFailures().get(0).getLocation());
+        assertTrue(testCases.get(1).getFailures().isEmpty());
+
+        TestSuite networkTests = testSuites.get("NetworkTests");
+        assertEquals(3, networkTests.getTests());
+        assertEquals(1, networkTests.getFailures());
+        assertTrue(networkTests.getTestCases().get(1).getFailures().get(0).getMessage().startsWith("Asynchronous wait failed"));
+        assertNull(testSuites.get("All tests"));
+
+        // The root, the test plan summaries and the summaries of the two failed tests only.
+        List<String> arguments = Files.readAllLines(invocations.toPath(), StandardCharsets.UTF_8);
+        assertEquals(4, arguments.size());
+        assertTrue(arguments.get(0).endsWith("Test.xcresult"));
+        assertTrue(arguments.get(1).endsWith("--id 0~tests"));
+        assertTrue(arguments.contains("xcresulttool get --format json --path " + tmp.getRoot().getAbsolutePath() + "/workspace/Test.xcresult --id 0~summary1"));
+        assertTrue(arguments.contains("xcresulttool get --format json --path " + tmp.getRoot().getAbsolutePath() + "/workspace/Test.xcresult --id 0~summary2"));
+    }
+
+    @Test
+    public void shouldRetryWithLegacyFlagWhenRequired() throws Exception {
+        File invocations = new File(tmp.getRoot(), "invocations.txt");
+        ConcurrentHashMap<String, TestSuite> testSuites = parse(writeXcrun(invocations), new EnvVars("XCRESULTTOOL_REQUIRES_LEGACY", "1"));
+
+        assertEquals(2, testSuites.size());
+        assertEquals(1, testSuites.get("NetworkTests").getTestCases().get(1).getFailures().size());
+        List<String> arguments = Files.readAllLines(invocations.toPath(), StandardCharsets.UTF_8);
+        assertEquals(5, arguments.size());
+        for ( String argument : arguments.subList(1, arguments.size()) ) {
+            assertTrue(argument, argument.startsWith("xcresulttool get --legacy --format json"));
+        }
+    }
+
+    @Test
+    public void shouldExportEachAttachmentOfFailedTestsOnce() throws Exception {
+        File invocations = new File(tmp.getRoot(), "invocations.txt");
+        ConcurrentHashMap<String, TestSuite> testSuites = parse(writeXcrun(invocations), new EnvVars(), true);
+
+        File attachments = new File(tmp.getRoot(), "workspace/test-reports/attachments");
+        String[] storedAttachments = attachments.list();
+        // The launch screen is referenced by both failed tests and also exported under a second id.
+        assertEquals(2, storedAttachments.length);
+        for ( String storedAttachment : storedAttachments ) {
+            assertTrue(storedAttachment, storedAttachment.endsWith(".png"));
+        }
+        int exports = 0;
+        for ( String argument : Files.readAllLines(invocations.toPath(), StandardCharsets.UTF_8) ) {
+            if ( argument.startsWith("xcresulttool export --type file") ) {
+                exports++;
+            }
+        }
+        assertEquals(3, exports);
+
+        String calculatorTestOut = testSuites.get("CalculatorTests").getTestCases().get(0).getSystemOut();
+        String networkTestOut = testSuites.get("NetworkTests").getTestCases().get(1).getSystemOut();
+        assertEquals(2, calculatorTestOut.split("\n").length);
+        assertTrue(calculatorTestOut.startsWith("[[ATTACHMENT|" + attachments.getAbsolutePath() + "/"));
+        // Both screenshots of the network test have the same content.
+        assertEquals(1, networkTestOut.split("\n").length);
+        assertTrue(calculatorTestOut.contains(networkTestOut));
+        assertNull(testSuites.get("CalculatorTests").getTestCases().get(1).getSystemOut());
+    }
+}
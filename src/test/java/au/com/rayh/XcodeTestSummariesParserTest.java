@@ -5,8 +5,11 @@ import org.apache.commons.io.FileUtils;
 import org.junit.Test;
 import java.util.HashMap;
 import java.util.List;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.net.URLDecoder;
 import java.util.Arrays;
 import org.junit.Assume;
@@ -15,6 +18,8 @@ import org.junit.rules.TemporaryFolder;
 import hudson.FilePath;
 import hudson.Launcher.LocalLauncher;
 import hudson.util.StreamTaskListener;
+import au.com.rayh.report.TestSuite;
+import com.dd.plist.PropertyListParser;
 
 /**
  * Created by Kazuhide Takahashi on 1/7/19.
@@ -39,6 +44,160 @@ public class XcodeTestSummariesParserTest {
 
     }
 
+    @Test
+    public void shouldExtractDeduplicatedAttachmentsOfFailedTests() throws Throwable {
+	File dir = tmp.newFolder();
+	FilePath workspace = new FilePath(dir);
+	String projectLocation = URLDecoder.decode(XcodeTestSummariesParserTest.class.getClassLoader().getResource("XcodeTestSummaries.tar.gz").getPath(), "UTF-8");
+	run(workspace, "tar", "zxvpf", projectLocation);
+	final HashMap<String, TestSuite> testSuites = new HashMap<String, TestSuite>();
+	XcodeTestSummariesParser parser = new XcodeTestSummariesParser(workspace) {
+	    @Override
+	    protected OutputStream outputForSuite(TestSuite currentTestSuite) {
+		testSuites.put(currentTestSuite.getName(), currentTestSuite);
+		return new ByteArrayOutputStream();
+	    }
+	};
+	parser.setExtractAttachments(true);
+	parser.parseTestSummariesPlist(workspace.child("result/TestSummaries.plist"));
+
+	// The failed UI test has 31 screenshots, of which 15 are distinct.
+	File attachments = new File(dir, "test-reports/attachments");
+	Assert.assertEquals(15, attachments.list().length);
+	String systemOut = testSuites.get("XCUITests_ExampleUITestsFail").getTestCases().get(0).getSystemOut();
+	Assert.assertEquals(15, systemOut.split("\n").length);
+	Assert.assertTrue(systemOut.startsWith("[[ATTACHMENT|" + attachments.getAbsolutePath() + "/"));
+	Assert.assertNull(testSuites.get("RaiseAnExceptionTests").getTestCases().get(0).getSystemOut());
+	Assert.assertNull(testSuites.get("XCUITests_ExampleUITests").getTestCases().get(0).getSystemOut());
+    }
+
+    @Test
+    public void shouldWriteEachSuiteOnceForLargeTestSummaries() throws Throwable {
+	final int numberOfTests = 3000;
+	FilePath testSummariesPath = new FilePath(tmp.newFile("TestSummaries.plist"));
+	testSummariesPath.write(generateTestSummaries(numberOfTests), "UTF-8");
+
+	final HashMap<String, Integer> writes = new HashMap<String, Integer>();
+	final HashMap<String, ByteArrayOutputStream> reports = new HashMap<String, ByteArrayOutputStream>();
+	final long[] bytesWritten = new long[1];
+	XcodeTestSummariesParser parser = new XcodeTestSummariesParser(new FilePath(tmp.newFolder())) {
+	    @Override
+	    protected OutputStream outputForSuite(TestSuite currentTestSuite) {
+		Integer count = writes.get(currentTestSuite.getName());
+		writes.put(currentTestSuite.getName(), count == null ? 1 : count + 1);
+		ByteArrayOutputStream report = new ByteArrayOutputStream() {
+		    @Override
+		    public void close() {
+			bytesWritten[0] += size();
+		    }
+		};
+		reports.put(currentTestSuite.getName(), report);
+		return report;
+	    }
+	};
+	parser.parseTestSummariesPlist(testSummariesPath);
+
+	Assert.assertEquals(Integer.valueOf(1), writes.get("LargeTests"));
+	Assert.assertEquals(Integer.valueOf(1), writes.get("FailingTests"));
+	Assert.assertEquals(2, writes.size());
+	String report = new String(reports.get("LargeTests").toByteArray(), StandardCharsets.UTF_8);
+	Assert.assertEquals(numberOfTests, report.split("<testcase ", -1).length - 1);
+	report = new String(reports.get("FailingTests").toByteArray(), StandardCharsets.UTF_8);
+	Assert.assertTrue(report.contains("failures=\"10\""));
+	// Rewriting the report after every test case would write about numberOfTests / 2 times as much.
+	long reportSize = reports.get("LargeTests").size() + reports.get("FailingTests").size();
+	Assert.assertEquals(reportSize, bytesWritten[0]);
+    }
+
+    @Test
+    public void shouldStreamXmlAndBinaryTestSummariesAlike() throws Throwable {
+	File xmlPlist = tmp.newFile("TestSummaries.plist");
+	new FilePath(xmlPlist).write(generateTestSummaries(100), "UTF-8");
+	File binaryPlist = tmp.newFile("TestSummaries.bplist");
+	PropertyListParser.saveAsBinary(PropertyListParser.parse(xmlPlist), binaryPlist);
+
+	HashMap<String, String> xmlReports = convert(new FilePath(xmlPlist));
+	HashMap<String, String> binaryReports = convert(new FilePath(binaryPlist));
+	Assert.assertEquals(2, xmlReports.size());
+	Assert.assertEquals(100, xmlReports.get("LargeTests").split("<testcase ", -1).length - 1);
+	Assert.assertTrue(xmlReports.get("FailingTests").contains("failures=\"10\""));
+	Assert.assertEquals(xmlReports, binaryReports);
+    }
+
+    private HashMap<String, String> convert(FilePath testSummariesPath) throws IOException, InterruptedException {
+	final HashMap<String, String> reports = new HashMap<String, String>();
+	XcodeTestSummariesParser parser = new XcodeTestSummariesParser(new FilePath(tmp.newFolder())) {
+	    @Override
+	    protected OutputStream outputForSuite(final TestSuite currentTestSuite) {
+		return new ByteArrayOutputStream() {
+		    @Override
+		    public void close() {
+			reports.put(currentTestSuite.getName(), new String(toByteArray(), StandardCharsets.UTF_8));
+		    }
+		};
+	    }
+	};
+	parser.parseTestSummariesPlist(testSummariesPath);
+	return reports;
+    }
+
+    private static String generateTestSummaries(int numberOfTests) {
+	StringBuilder plist = new StringBuilder();
+	plist.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+	plist.append("<!DOCTYPE plist PUBLIC \"-//Apple//DTD PLIST 1.0//EN\" \"http://www.apple.com/DTDs/PropertyList-1.0.dtd\">\n");
+	plist.append("<plist version=\"1.0\"><dict>\n");
+	plist.append("<key>FormatVersion</key><string>1.1</string>\n");
+	plist.append("<key>TestableSummaries</key><array><dict>\n");
+	plist.append("<key>DiagnosticsDirectory</key><string>LargeTests-0000</string>\n");
+	plist.append("<key>ProjectPath</key><string>Large.xcodeproj</string>\n");
+	plist.append("<key>TargetName</key><string>LargeTests</string>\n");
+	plist.append("<key>TestName</key><string>LargeTests</string>\n");
+	plist.append("<key>TestObjectClass</key><string>IDESchemeActionTestableSummary</string>\n");
+	plist.append("<key>Tests</key><array>\n");
+	appendTestSuiteStart(plist);
+	appendTestSuiteStart(plist);
+	appendTestSuiteStart(plist);
+	for ( int i = 0; i < numberOfTests; i++ ) {
+	    appendTestCase(plist, "LargeTests", "test" + i, false);
+	}
+	appendTestSuiteEnd(plist, "LargeTests");
+	appendTestSuiteStart(plist);
+	for ( int i = 0; i < 10; i++ ) {
+	    appendTestCase(plist, "FailingTests", "test" + i, true);
+	}
+	appendTestSuiteEnd(plist, "FailingTests");
+	appendTestSuiteEnd(plist, "LargeTests.xctest");
+	appendTestSuiteEnd(plist, "All tests");
+	plist.append("</array></dict></array></dict></plist>\n");
+	return plist.toString();
+    }
+
+    private static void appendTestSuiteStart(StringBuilder plist) {
+	plist.append("<dict><key>Duration</key><real>1.5</real><key>Subtests</key><array>\n");
+    }
+
+    private static void appendTestSuiteEnd(StringBuilder plist, String name) {
+	plist.append("</array><key>TestIdentifier</key><string>").append(name).append("</string>");
+	plist.append("<key>TestName</key><string>").append(name).append("</string>");
+	plist.append("<key>TestObjectClass</key><string>IDESchemeActionTestSummaryGroup</string></dict>\n");
+    }
+
+    private static void appendTestCase(StringBuilder plist, String className, String name, boolean failed) {
+	plist.append("<dict><key>ActivitySummaries</key><array><dict><key>Title</key><string>Start Test</string></dict></array>");
+	plist.append("<key>Duration</key><real>0.001</real>");
+	if ( failed ) {
+	    plist.append("<key>FailureSummaries</key><array><dict>");
+	    plist.append("<key>FileName</key><string>/tmp/").append(className).append(".m</string>");
+	    plist.append("<key>LineNumber</key><integer>42</integer>");
+	    plist.append("<key>Message</key><string>XCTAssertTrue failed</string>");
+	    plist.append("<key>PerformanceFailure</key><false/></dict></array>");
+	}
+	plist.append("<key>TestIdentifier</key><string>").append(className).append('/').append(name).append("</string>");
+	plist.append("<key>TestName</key><string>").append(name).append("</string>");
+	plist.append("<key>TestObjectClass</key><string>IDESchemeActionTestSummary</string>");
+	plist.append("<key>TestStatus</key><string>").append(failed ? "Failure" : "Success").append("</string></dict>\n");
+    }
+
     private static void run(FilePath dir, String... cmds) throws InterruptedException {
         try {
             Assert.assertEquals(0, new LocalLauncher(StreamTaskListener.fromStdout()).launch().cmds(cmds).pwd(dir).join());
@@ -0,0 +1,77 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011 Ray Yamamoto Hilton
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package au.com.rayh;
+
+import hudson.EnvVars;
+import hudson.util.StreamTaskListener;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class XcodebuildAgentCallableTest {
+    @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+    private XcodebuildAgentCallable.Result run(File workspace, String outputFileName, int maxTestFailures) throws Exception {
+        // Stands in for xcodebuild by printing recorded output.
+        String output = new File(getClass().getResource(outputFileName).toURI()).getAbsolutePath();
+        XcodebuildAgentCallable callable = new XcodebuildAgentCallable(StreamTaskListener.fromStdout(), new EnvVars(),
+                Arrays.asList("/bin/sh", "-c", "cat \"" + output + "\""), workspace.getAbsolutePath());
+        callable.setConsoleLog(false);
+        callable.setMaxTestFailures(maxTestFailures);
+        callable.setLogfilePath(workspace.getAbsolutePath(), "logs", false);
+        return callable.call();
+    }
+
+    @Test
+    public void shouldWriteReportsOnAgentAndReturnSummary() throws Exception {
+        File workspace = tmp.newFolder();
+        XcodebuildAgentCallable.Result result = run(workspace, "/XCTest_output_failing_1.txt", 0);
+
+        assertEquals(0, result.getReturnCode());
+        assertEquals(-1, result.getExitCode());
+        assertFalse(result.isTestFailureLimitReached());
+        assertEquals(6, result.getTestResults().getSuites());
+        assertEquals(12, result.getTestResults().getTests());
+        assertEquals(1, result.getTestResults().getFailures());
+        assertEquals(6, new File(workspace, "test-reports").list().length);
+        assertEquals(new File(getClass().getResource("/XCTest_output_failing_1.txt").toURI()).length(),
+                new File(workspace, "logs/xcodebuild.log").length());
+    }
+
+    @Test
+    public void shouldReportReachedFailureLimit() throws Exception {
+        XcodebuildAgentCallable.Result result = run(tmp.newFolder(), "/XCTest_output_failing_1.txt", 1);
+        assertTrue(result.isTestFailureLimitReached());
+        assertEquals(1, result.getTestResults().getFailures());
+    }
+}